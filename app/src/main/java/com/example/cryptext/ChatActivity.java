@@ -1,8 +1,15 @@
 package com.example.cryptext;
 
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.OpenableColumns;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -15,20 +22,42 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.example.cryptext.adapter.MessageAdapter;
+import com.example.cryptext.model.Attachment;
 import com.example.cryptext.model.Message;
-import com.example.cryptext.util.EncryptionUtil;
+import com.example.cryptext.sync.FirestoreSyncBackend;
+import com.example.cryptext.sync.OutboxFlusher;
+import com.example.cryptext.sync.Subscription;
+import com.example.cryptext.sync.SyncEngine;
+import com.example.cryptext.util.BlobStore;
+import com.example.cryptext.util.ChatCipher;
+import com.example.cryptext.util.ChatPrefetcher;
+import com.example.cryptext.util.ConversationCache;
+import com.example.cryptext.util.FirestoreUserDirectory;
+import com.example.cryptext.util.HandlerScheduler;
 import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.Metrics;
+import com.example.cryptext.util.ProfileResolver;
+import com.example.cryptext.util.Thumbnails;
+import com.example.cryptext.util.UserLookupCache;
 import com.google.firebase.auth.FirebaseAuth;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatActivity extends AppCompatActivity {
+    private static final String TAG = "ChatActivity";
 
     private TextView recipientEmailTextView;
     private RecyclerView messagesRecyclerView;
     private EditText messageEditText;
     private ImageButton sendButton;
+    private ImageButton attachButton;
     private SwipeRefreshLayout swipeRefreshLayout;
 
     private String chatId;
@@ -37,41 +66,70 @@ public class ChatActivity extends AppCompatActivity {
 
     private FirebaseAuth firebaseAuth;
     private LocalStorageManager storageManager;
+    private ConversationCache conversationCache;
+    private SyncEngine syncEngine;
+    private OutboxFlusher outboxFlusher;
+    private Subscription changeSubscription;
+    // Set on the main thread, read where changes are delivered
+    private volatile boolean resumed;
     
-    // Using chatId as encryption key for simplicity
-    // In a real app, you might want a more secure key exchange mechanism
-    private String encryptionKey;
+    // Incoming changes are collected here and applied to the adapter in one pass,
+    // at most once per window: a steady stream still reaches the screen every window
+    private static final long CHANGE_THROTTLE_MS = 100;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Message> pendingChanges = new LinkedHashMap<>();
+    private final Runnable applyChangesRunnable = this::applyPendingChanges;
+    private boolean changesScheduled;
+    private ExecutorService storageExecutor;
+    // Pulls wait on the network, so they get their own thread and never hold up local reads and sends
+    private ExecutorService syncExecutor;
+    // Reading and encrypting picked files can take seconds, so it gets its own thread too
+    private ExecutorService attachmentExecutor;
+    
+    // Encrypts and decrypts under the chat's key epochs
+    private ChatCipher chatCipher;
 
     public static final int RESULT_CHAT_UPDATED = 100;
+    private static final int RC_PICK_ATTACHMENT = 9002;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Metrics.enableIfDebuggable(this);
         setContentView(R.layout.activity_chat);
 
         // Get data from intent
         chatId = getIntent().getStringExtra("chatId");
         recipientEmail = getIntent().getStringExtra("recipientEmail");
+        // Sent instead of the email when the chat list hadn't resolved the peer yet
+        String recipientId = getIntent().getStringExtra("recipientId");
 
-        if (chatId == null || recipientEmail == null) {
+        firebaseAuth = FirebaseAuth.getInstance();
+        if (chatId == null || (recipientEmail == null && recipientId == null)
+                || firebaseAuth.getCurrentUser() == null) {
             Toast.makeText(this, "Error loading chat", Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
         
-        // Set encryption key (using chatId as the key)
-        // For better security, you should use a proper key exchange method
-        encryptionKey = chatId;
-
-        // Initialize Firebase Auth and LocalStorageManager
-        firebaseAuth = FirebaseAuth.getInstance();
-        storageManager = new LocalStorageManager(this);
+        // Open the signed-in user's storage
+        String currentUserId = firebaseAuth.getCurrentUser().getUid();
+        storageManager = LocalStorageManager.forUser(this, currentUserId);
+        // Group chats use wrapped group keys; one-to-one chats use the chatId as the key
+        chatCipher = new ChatCipher(storageManager, chatId, currentUserId);
+        conversationCache = ConversationCache.getInstance(this);
+        storageExecutor = Executors.newSingleThreadExecutor();
+        syncExecutor = Executors.newSingleThreadExecutor();
+        attachmentExecutor = Executors.newSingleThreadExecutor();
+        syncEngine = new SyncEngine(storageManager, new FirestoreSyncBackend());
+        outboxFlusher = OutboxFlusher.forUser(this, currentUserId);
 
         // Initialize views
         recipientEmailTextView = findViewById(R.id.recipientEmailTextView);
         messagesRecyclerView = findViewById(R.id.messagesRecyclerView);
         messageEditText = findViewById(R.id.messageEditText);
         sendButton = findViewById(R.id.sendButton);
+        attachButton = findViewById(R.id.attachButton);
         swipeRefreshLayout = findViewById(R.id.swipeRefreshLayout);
 
         // Set text colors for message input
@@ -79,10 +137,16 @@ public class ChatActivity extends AppCompatActivity {
         messageEditText.setHintTextColor(getResources().getColor(R.color.hint_dark_purple));
 
         // Set recipient email
-        recipientEmailTextView.setText(recipientEmail);
+        if (recipientEmail != null) {
+            recipientEmailTextView.setText(recipientEmail);
+        } else {
+            resolveRecipient(recipientId);
+        }
 
         // Set up RecyclerView
-        messageAdapter = new MessageAdapter(this, firebaseAuth.getCurrentUser().getUid());
+        messageAdapter = new MessageAdapter(this, firebaseAuth.getCurrentUser().getUid(), chatCipher,
+                conversationCache.getPlaintextCache(), conversationCache.getThumbnailCache(),
+                storageManager.getBlobStore());
         messagesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         messagesRecyclerView.setAdapter(messageAdapter);
 
@@ -95,8 +159,8 @@ public class ChatActivity extends AppCompatActivity {
             }
         });
 
-        // Load messages
-        loadMessages();
+        // Push anything a previous session left queued
+        outboxFlusher.kick();
 
         // Set up send button
         sendButton.setOnClickListener(new View.OnClickListener() {
@@ -109,6 +173,89 @@ public class ChatActivity extends AppCompatActivity {
                 }
             }
         });
+        
+        // Set up attach button
+        attachButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                Intent pickIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                pickIntent.addCategory(Intent.CATEGORY_OPENABLE);
+                pickIntent.setType("*/*");
+                startActivityForResult(pickIntent, RC_PICK_ATTACHMENT);
+            }
+        });
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if (requestCode == RC_PICK_ATTACHMENT && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            sendAttachment(data.getData());
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Subscribe before loading so nothing stored in between is missed;
+        // a change that is also in the loaded list is applied idempotently
+        changeSubscription = syncEngine.subscribe(chatId, (changedChatId, messages) -> {
+            final List<Message> changes = new ArrayList<>(messages);
+            // Messages arriving while the chat is in the foreground are read as they're shown
+            if (resumed) {
+                storageManager.markChatRead(chatId);
+            }
+            mainHandler.post(() -> queueChanges(changes));
+        }, syncExecutor);
+        loadMessages();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        storageExecutor.execute(() -> storageManager.markChatRead(chatId));
+    }
+
+    @Override
+    protected void onPause() {
+        resumed = false;
+        super.onPause();
+    }
+
+    @Override
+    protected void onStop() {
+        if (changeSubscription != null) {
+            changeSubscription.unsubscribe();
+            changeSubscription = null;
+        }
+        mainHandler.removeCallbacks(applyChangesRunnable);
+        changesScheduled = false;
+        pendingChanges.clear();
+        // Save the message logs' duplicate filters, which are kept in memory while in use
+        storageExecutor.execute(storageManager::flush);
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Drop decrypted plaintext so it doesn't outlive the screen. The cached
+        // page is still encrypted and stays warm for the next open.
+        if (storageExecutor != null) {
+            storageExecutor.shutdownNow();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        if (attachmentExecutor != null) {
+            attachmentExecutor.shutdownNow();
+        }
+        if (messageAdapter != null) {
+            messageAdapter.release();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -120,75 +267,264 @@ public class ChatActivity extends AppCompatActivity {
         super.onBackPressed();
     }
 
+    /**
+     * Show the peer's email once known: from the persisted lookup cache, read
+     * off the main thread, or else from the user directory
+     */
+    private void resolveRecipient(final String recipientId) {
+        final UserLookupCache lookupCache = new UserLookupCache(this);
+        storageExecutor.execute(() -> {
+            final String email = lookupCache.getEmailForUserId(recipientId);
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (email != null) {
+                    showRecipient(email);
+                    return;
+                }
+                final ProfileResolver resolver = new ProfileResolver(new FirestoreUserDirectory(), lookupCache,
+                    new HandlerScheduler());
+                resolver.setListener(userIds -> showRecipient(resolver.getKnownEmail(recipientId)));
+                resolver.request(recipientId);
+            });
+        });
+    }
+
+    private void showRecipient(String email) {
+        if (email != null && !isDestroyed()) {
+            recipientEmail = email;
+            recipientEmailTextView.setText(email);
+        }
+    }
+
     private void loadMessages() {
         sendButton.setEnabled(false); // Disable button during loading
         if (swipeRefreshLayout != null) {
             swipeRefreshLayout.setRefreshing(true);
         }
         
-        // Get messages from local storage
-        List<Message> messageList = storageManager.getChatMessages(chatId);
-        List<Message> decryptedMessages = new ArrayList<>();
+        // Show the prefetched newest page right away, if the chat list warmed it
+        List<Message> cachedPage = conversationCache.getPage(chatId);
+        if (cachedPage != null) {
+            showMessages(cachedPage);
+            sendButton.setEnabled(true);
+        }
+        
+        // Load the full conversation off the main thread, then sync it with the server
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                showLoadedMessages(readStoredMessages(), false);
+                
+                // Pulled messages reach the screen through the change subscription
+                syncExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            syncEngine.syncChat(chatId);
+                        } catch (Exception e) {
+                            Log.w(TAG, "Sync failed", e);
+                        }
+                        showLoadedMessages(null, true);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Read the conversation from local storage; messages stay encrypted until the adapter binds them
+     */
+    private List<Message> readStoredMessages() {
+        List<Message> storedMessages = storageManager.getChatMessages(chatId);
+        List<Message> messageList = new ArrayList<>();
         
-        for (Message message : messageList) {
-            // Decrypt message content if it exists
+        for (Message message : storedMessages) {
             if (message != null && message.getContent() != null) {
-                String decryptedContent = EncryptionUtil.decrypt(message.getContent(), encryptionKey);
-                if (decryptedContent != null) {
-                    Message decryptedMessage = new Message(
-                        message.getMessageId(),
-                        message.getSenderId(),
-                        decryptedContent,
-                        message.getTimestamp()
-                    );
-                    decryptedMessages.add(decryptedMessage);
-                } else {
-                    // If decryption failed, still show the message but mark it
-                    Message errorMessage = new Message(
-                        message.getMessageId(),
-                        message.getSenderId(),
-                        "[Encrypted message]",
-                        message.getTimestamp()
-                    );
-                    decryptedMessages.add(errorMessage);
+                messageList.add(message);
+            }
+        }
+        return messageList;
+    }
+    
+    /**
+     * Post loaded messages to the UI
+     * @param messageList messages to show, or null to leave the list as it is
+     * @param finished whether loading and syncing is complete
+     */
+    private void showLoadedMessages(final List<Message> messageList, final boolean finished) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isDestroyed()) {
+                    return;
+                }
+                if (messageList != null) {
+                    conversationCache.putPage(chatId, messageList, ChatPrefetcher.PAGE_SIZE);
+                    showMessages(messageList);
+                }
+                sendButton.setEnabled(true);
+                if (finished && swipeRefreshLayout != null) {
+                    swipeRefreshLayout.setRefreshing(false);
                 }
             }
+        });
+    }
+    
+    /**
+     * Collect changes from the subscription. This throttles rather than debounces:
+     * the first change opens a window and everything collected by its end is applied together.
+     */
+    private void queueChanges(List<Message> changes) {
+        if (changeSubscription == null) {
+            return;
         }
+        for (Message message : changes) {
+            if (message != null && message.getContent() != null) {
+                pendingChanges.put(message.getMessageId(), message);
+            }
+        }
+        // The first change of a burst opens the window; later ones just join it
+        if (!changesScheduled) {
+            changesScheduled = true;
+            mainHandler.postDelayed(applyChangesRunnable, CHANGE_THROTTLE_MS);
+        }
+    }
+    
+    private void applyPendingChanges() {
+        changesScheduled = false;
+        if (pendingChanges.isEmpty() || isDestroyed()) {
+            return;
+        }
+        List<Message> changes = new ArrayList<>(pendingChanges.values());
+        pendingChanges.clear();
         
-        messageAdapter.setMessages(decryptedMessages);
-        
-        // Scroll to bottom
-        if (decryptedMessages.size() > 0) {
-            messagesRecyclerView.smoothScrollToPosition(decryptedMessages.size() - 1);
+        if (messageAdapter.applyChanges(changes)) {
+            messagesRecyclerView.smoothScrollToPosition(messageAdapter.getItemCount() - 1);
+        }
+        conversationCache.putPage(chatId, messageAdapter.getNewestMessages(ChatPrefetcher.PAGE_SIZE),
+            ChatPrefetcher.PAGE_SIZE);
+    }
+    
+    private void showMessages(List<Message> messageList) {
+        // The full load often matches the cached page already shown
+        if (!messageAdapter.setMessages(messageList)) {
+            return;
         }
         
-        sendButton.setEnabled(true);
-        if (swipeRefreshLayout != null) {
-            swipeRefreshLayout.setRefreshing(false);
+        // Scroll to bottom
+        if (messageList.size() > 0) {
+            messagesRecyclerView.smoothScrollToPosition(messageList.size() - 1);
         }
     }
 
     private void sendMessage(final String content) {
-        String senderId = firebaseAuth.getCurrentUser().getUid();
-        
-        // Encrypt the message content
-        String encryptedContent = EncryptionUtil.encrypt(content, encryptionKey);
-        if (encryptedContent == null) {
-            Toast.makeText(this, "Error encrypting message", Toast.LENGTH_SHORT).show();
-            return;
-        }
+        final String senderId = firebaseAuth.getCurrentUser().getUid();
+
+        // Encrypt and save off the main thread: a group may need a new key first.
+        // The flusher pushes the message from the outbox.
+        storageExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ChatCipher.Sealed sealed = chatCipher.encrypt(content);
+                boolean success = sealed != null && storageManager.sendMessage(
+                    chatId, senderId, content, sealed.content, sealed.keyEpoch);
+                if (!success) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(ChatActivity.this,
+                                sealed == null ? "Error encrypting message" : "Error saving message",
+                                Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                    return;
+                }
+                // The new message reaches the screen through the change subscription
+                outboxFlusher.kick();
+            }
+        });
+    }
 
-        sendButton.setEnabled(false); // Disable button during sending
+    /**
+     * Store a picked file in the BlobStore and send a message referencing it.
+     * Chunks already stored for this chat and key epoch are not written again.
+     * The file is read and encrypted on its own thread, so a large one doesn't
+     * hold up the reads and sends queued on the storage thread; only the small
+     * message write goes there.
+     */
+    private void sendAttachment(final Uri uri) {
+        final String senderId = firebaseAuth.getCurrentUser().getUid();
+        final ContentResolver resolver = getContentResolver();
 
-        // Save message to local storage
-        boolean success = storageManager.sendMessage(chatId, senderId, content, encryptedContent);
-        
-        if (success) {
-            // Message sent successfully, reload messages
-            loadMessages();
-        } else {
-            Toast.makeText(ChatActivity.this, "Error saving message", Toast.LENGTH_SHORT).show();
-            sendButton.setEnabled(true);
+        attachmentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Attachment attachment;
+                final String name;
+                try {
+                    String mimeType = resolver.getType(uri);
+                    name = displayName(resolver, uri);
+                    byte[] thumbnail = mimeType != null && mimeType.startsWith("image/")
+                        ? Thumbnails.create(resolver, uri) : null;
+
+                    BlobStore.Keys keys = chatCipher.attachmentKeys();
+                    if (keys == null) {
+                        showSendError("Error encrypting message");
+                        return;
+                    }
+                    try (InputStream in = resolver.openInputStream(uri)) {
+                        if (in == null) {
+                            throw new IOException("Could not open " + uri);
+                        }
+                        attachment = storageManager.getBlobStore().store(keys, in, mimeType, thumbnail);
+                    }
+                } catch (IOException | SecurityException e) {
+                    Log.e(TAG, "Error storing attachment", e);
+                    showSendError("Error reading file");
+                    return;
+                }
+
+                if (storageExecutor.isShutdown()) {
+                    // The screen closed while the file was stored; its blobs go with the next collection
+                    return;
+                }
+                storageExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The file name is the message content, encrypted like any text
+                        ChatCipher.Sealed sealed = chatCipher.encrypt(name);
+                        if (sealed == null) {
+                            showSendError("Error encrypting message");
+                        } else if (!storageManager.sendMessage(chatId, senderId, name, sealed.content,
+                                sealed.keyEpoch, attachment)) {
+                            showSendError("Error saving message");
+                        } else {
+                            outboxFlusher.kick();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void showSendError(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(ChatActivity.this, message, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private static String displayName(ContentResolver resolver, Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getString(0);
+            }
         }
+        String lastSegment = uri.getLastPathSegment();
+        return lastSegment != null ? lastSegment : "Attachment";
     }
 } 
\ No newline at end of file
@@ -4,13 +4,15 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -20,17 +22,36 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.cryptext.adapter.ChatAdapter;
 import com.example.cryptext.model.Chat;
+import com.example.cryptext.sync.FirestoreSyncBackend;
+import com.example.cryptext.sync.OutboxFlusher;
+import com.example.cryptext.sync.SyncEngine;
+import com.example.cryptext.util.ChatListSnapshot;
+import com.example.cryptext.util.ChatPrefetcher;
 import com.example.cryptext.util.FirebaseAuthManager;
+import com.example.cryptext.util.HandlerScheduler;
+import com.example.cryptext.util.LegacyMigrator;
 import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.Metrics;
+import com.example.cryptext.util.PreviewDecryptor;
+import com.example.cryptext.util.ProfileResolver;
+import com.example.cryptext.util.Reencryptor;
+import com.example.cryptext.util.RetentionSweeper;
+import com.example.cryptext.util.StartupTrace;
+import com.example.cryptext.util.UserLookupCache;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
-import com.google.firebase.firestore.FirebaseFirestore;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
+    private static final String TAG = "MainActivity";
 
     private EditText searchEditText;
     private Button searchButton;
@@ -38,32 +59,52 @@ public class MainActivity extends AppCompatActivity {
     private FloatingActionButton newChatButton;
     private RecyclerView chatsRecyclerView;
     private TextView noChatTextView;
+    private TextView appNameTextView;
+    private ProgressBar migrationProgressBar;
 
     private FirebaseAuth firebaseAuth;
     private FirebaseAuthManager authManager;
     private LocalStorageManager storageManager;
     private ChatAdapter chatAdapter;
+    private ChatPrefetcher chatPrefetcher;
     private FirebaseUser currentUser;
-    private HashMap<String, String> userEmailCache;
+    private UserLookupCache userLookupCache;
+    private LegacyMigrator legacyMigrator;
+    // Reads the chat list so the first frame doesn't wait for it
+    private ExecutorService chatListLoader;
+    // Pulls chats and messages from the server without holding up the loader
+    private ExecutorService syncExecutor;
+    private SyncEngine syncEngine;
+    private PreviewDecryptor previewDecryptor;
+    private ChatListSnapshot chatListSnapshot;
+    private boolean chatsShown;
+    private boolean started;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace startupTrace = StartupTrace.get();
+        startupTrace.mark("activityCreate");
+        Metrics.enableIfDebuggable(this);
         setContentView(R.layout.activity_main);
+        startupTrace.mark("contentView");
 
-        // Initialize Firebase and storage
+        // Only auth is needed here; Firestore starts on first use
         firebaseAuth = FirebaseAuth.getInstance();
-        authManager = new FirebaseAuthManager(this);
-        storageManager = new LocalStorageManager(this);
         currentUser = firebaseAuth.getCurrentUser();
 
         // Check if user is logged in
         if (currentUser == null) {
+            startupTrace.abandon();
             startActivity(new Intent(MainActivity.this, LoginActivity.class));
             finish();
             return;
         }
 
+        // Only the signed-in user's shard is opened
+        storageManager = LocalStorageManager.forUser(this, currentUser.getUid());
+        startupTrace.mark("storageOpen");
+
         // Initialize views
         searchEditText = findViewById(R.id.searchEditText);
         searchButton = findViewById(R.id.searchButton);
@@ -71,17 +112,58 @@ public class MainActivity extends AppCompatActivity {
         newChatButton = findViewById(R.id.newChatButton);
         chatsRecyclerView = findViewById(R.id.chatsRecyclerView);
         noChatTextView = findViewById(R.id.noChatTextView);
+        appNameTextView = findViewById(R.id.appNameTextView);
+        migrationProgressBar = findViewById(R.id.migrationProgressBar);
+
+        // Initialize persistent user lookup cache, shared with the chat list
+        userLookupCache = new UserLookupCache(this);
+        if (currentUser.getEmail() != null) {
+            userLookupCache.remember(currentUser.getEmail(), currentUser.getUid());
+        }
 
-        // Set up RecyclerView
-        chatAdapter = new ChatAdapter(this);
+        // Set up RecyclerView; previews are decrypted in batches on the loader thread
+        chatListLoader = Executors.newSingleThreadExecutor();
+        syncExecutor = Executors.newSingleThreadExecutor();
+        syncEngine = new SyncEngine(storageManager, new FirestoreSyncBackend());
+        previewDecryptor = new PreviewDecryptor(storageManager, chatListLoader, new HandlerScheduler());
+        chatAdapter = new ChatAdapter(this, currentUser.getUid(), storageManager, userLookupCache,
+            previewDecryptor);
         chatsRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         chatsRecyclerView.setAdapter(chatAdapter);
 
-        // Initialize cache
-        userEmailCache = new HashMap<>();
+        // Warm recent chats while idle; stop as soon as the user scrolls
+        chatPrefetcher = new ChatPrefetcher(this, storageManager);
+        chatsRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    chatPrefetcher.schedule(chatAdapter.getChats());
+                } else {
+                    chatPrefetcher.cancel();
+                }
+            }
+        });
+
+        // Chats from before storage was sharded move in the background; show how far it's got
+        legacyMigrator = LegacyMigrator.forUser(this, currentUser.getUid());
+        legacyMigrator.setProgressListener(progress -> runOnUiThread(() -> showMigrationProgress(progress)));
+
+        // Paint the rows saved last time with one file read; loadChats then replaces them
+        chatListSnapshot = storageManager.getChatListSnapshot();
+        List<ChatListSnapshot.Row> snapshotRows = chatListSnapshot.read();
+        if (snapshotRows != null && !snapshotRows.isEmpty()) {
+            chatAdapter.showSnapshot(snapshotRows);
+            noChatTextView.setVisibility(View.GONE);
+            chatsRecyclerView.setVisibility(View.VISIBLE);
+            startupTrace.mark("snapshotShown");
+            traceFirstChatRow();
+        }
+        // Every later change to the rows is saved for the next start
+        chatAdapter.setOnRowsChangedListener(this::saveChatListSnapshot);
 
-        // Load user chats
+        // Load user chats off the main thread
         loadChats();
+        startupTrace.mark("viewsReady");
 
         // Set up click listeners
         searchButton.setOnClickListener(new View.OnClickListener() {
@@ -97,8 +179,11 @@ public class MainActivity extends AppCompatActivity {
         logoutButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                // Sign out from Firebase
-                firebaseAuth.signOut();
+                // Sign out and close this user's storage
+                if (authManager == null) {
+                    authManager = new FirebaseAuthManager(MainActivity.this);
+                }
+                authManager.signOut();
                 
                 // Start login activity
                 startActivity(new Intent(MainActivity.this, LoginActivity.class));
@@ -114,58 +199,214 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        // On a cold start the workers wait for the chat list, so they don't compete with it
+        if (chatsShown) {
+            startBackgroundWork();
+            chatPrefetcher.schedule(chatAdapter.getChats());
+        }
+    }
+
+    private void startBackgroundWork() {
+        // Retry sends that were queued while offline or before the app was closed
+        OutboxFlusher.forUser(this, currentUser.getUid()).kick();
+        // Finish re-encrypting chats whose key was rotated before the app was closed
+        Reencryptor.forUser(this, currentUser.getUid()).kick();
+        // Apply retention policies and reclaim space at most every few hours
+        RetentionSweeper.forUser(this, currentUser.getUid()).kick();
+        // Continue moving chats out of the old global store
+        legacyMigrator.kick();
+        // Lookups are only dropped when read again; clear out the rest
+        userLookupCache.pruneExpired();
+        syncChats();
+    }
+
+    /**
+     * Push anything saved before sync existed, then pick up chats started
+     * elsewhere, the keys to read them, and messages that arrived while the
+     * app was closed
+     */
+    private void syncChats() {
+        final String userId = currentUser.getUid();
+        syncExecutor.execute(() -> {
+            if (storageManager.enqueueUnsyncedHistory(userId) > 0) {
+                OutboxFlusher.forUser(this, userId).kick();
+            }
+            int changes = 0;
+            try {
+                changes += syncEngine.syncChatList(userId);
+            } catch (Exception e) {
+                Log.w(TAG, "Chat list sync failed", e);
+            }
+            try {
+                // Members' keys may have arrived, so wrapped copies for them may be queued
+                int keyChanges = syncEngine.syncKeys(userId);
+                // and chats still under the key derived from their ID can move to a random one
+                Reencryptor reencryptor = Reencryptor.forUser(this, userId);
+                for (String chatId : storageManager.getChatsToRotate()) {
+                    if (reencryptor.rotate(chatId) > 0) {
+                        keyChanges++;
+                    }
+                }
+                if (keyChanges > 0) {
+                    OutboxFlusher.forUser(this, userId).kick();
+                    // A peer's rotation starts a pass over the copies here too
+                    reencryptor.kick();
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Key sync failed", e);
+            }
+            changes += syncEngine.syncAll(userId);
+            if (changes > 0) {
+                runOnUiThread(() -> {
+                    if (!isDestroyed()) {
+                        loadChats();
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onStop() {
+        started = false;
+        // Navigating away cancels prefetching; already warmed chats stay cached
+        if (chatPrefetcher != null) {
+            chatPrefetcher.cancel();
+        }
+        // Save the message logs' duplicate filters, which are kept in memory while in use
+        if (storageManager != null && !chatListLoader.isShutdown()) {
+            chatListLoader.execute(storageManager::flush);
+        }
+        // Debug builds log storage and crypto timings each time the app is backgrounded
+        Metrics.dump();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (chatPrefetcher != null) {
+            chatPrefetcher.shutdown();
+        }
+        if (legacyMigrator != null) {
+            legacyMigrator.setProgressListener(null);
+        }
+        if (previewDecryptor != null) {
+            previewDecryptor.cancel();
+        }
+        if (chatListLoader != null) {
+            chatListLoader.shutdownNow();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        super.onDestroy();
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
         
         if (requestCode == 1 && resultCode == ChatActivity.RESULT_CHAT_UPDATED) {
             // Force refresh the chat list
-            String currentUserId = currentUser.getUid();
-            List<Chat> updatedChats = storageManager.getUserChats(currentUserId);
-            
-            // Clear the adapter
-            chatAdapter.clearChats();
+            loadChats();
+        }
+    }
+
+    private void showMigrationProgress(LocalStorageManager.MigrationProgress progress) {
+        if (progress.isComplete()) {
+            migrationProgressBar.setVisibility(View.GONE);
+            return;
+        }
+        migrationProgressBar.setMax(progress.total);
+        migrationProgressBar.setProgress(progress.moved);
+        migrationProgressBar.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Read and sort the chat list on the loader thread, then show it
+     */
+    private void loadChats() {
+        final String currentUserId = currentUser.getUid();
+        chatListLoader.execute(() -> {
+            final List<Chat> chats = storageManager.getUserChats(currentUserId);
             
             // Sort chats by timestamp (most recent first)
-            updatedChats.sort((c1, c2) -> Long.compare(c2.getTimestamp(), c1.getTimestamp()));
-            
-            // Add chats to adapter
-            for (Chat chat : updatedChats) {
-                chatAdapter.addChat(chat);
-            }
-            
-            // Update UI visibility
-            if (updatedChats.isEmpty()) {
-                noChatTextView.setVisibility(View.VISIBLE);
-                chatsRecyclerView.setVisibility(View.GONE);
-            } else {
-                noChatTextView.setVisibility(View.GONE);
-                chatsRecyclerView.setVisibility(View.VISIBLE);
-            }
+            chats.sort((c1, c2) -> Long.compare(c2.getTimestamp(), c1.getTimestamp()));
+            final LocalStorageManager.MigrationProgress progress = storageManager.getMigrationProgress();
+            // Also loads the read states, so binding rows looks each count up in memory
+            final int totalUnread = storageManager.getTotalUnreadCount();
+            // Peer emails are read here too, so building rows never reads SharedPreferences
+            final Map<String, String> knownEmails = ProfileResolver.readPersistedEmails(userLookupCache,
+                ChatAdapter.peerIds(chats, currentUserId));
+            StartupTrace.get().mark("chatsLoaded");
             
-            // Force adapter to refresh
-            chatAdapter.notifyDataSetChanged();
-        }
+            runOnUiThread(() -> {
+                if (!isDestroyed()) {
+                    showChats(chats, knownEmails);
+                    showMigrationProgress(progress);
+                    showTotalUnread(totalUnread);
+                }
+            });
+        });
     }
 
-    private void loadChats() {
-        String currentUserId = currentUser.getUid();
-        
-        // Get chats from local storage
-        List<Chat> chats = storageManager.getUserChats(currentUserId);
+    private void showTotalUnread(int totalUnread) {
+        appNameTextView.setText(totalUnread > 0
+            ? getString(R.string.app_name_unread, getString(R.string.app_name), totalUnread)
+            : getString(R.string.app_name));
+    }
+
+    private void showChats(List<Chat> chats, Map<String, String> knownEmails) {
+        chatAdapter.setChats(chats, knownEmails);
         
+        // Update UI visibility
         if (chats.isEmpty()) {
             noChatTextView.setVisibility(View.VISIBLE);
             chatsRecyclerView.setVisibility(View.GONE);
-            return;
+            StartupTrace.get().finish("emptyChatList");
+        } else {
+            noChatTextView.setVisibility(View.GONE);
+            chatsRecyclerView.setVisibility(View.VISIBLE);
+            traceFirstChatRow();
         }
         
-        noChatTextView.setVisibility(View.GONE);
-        chatsRecyclerView.setVisibility(View.VISIBLE);
-        
-        for (Chat chat : chats) {
-            chatAdapter.addChat(chat);
+        chatPrefetcher.schedule(chatAdapter.getChats());
+        if (!chatsShown) {
+            chatsShown = true;
+            if (started) {
+                startBackgroundWork();
+            }
+        }
+    }
+
+    // Write the first rows on the loader thread; an unchanged list isn't rewritten
+    private void saveChatListSnapshot() {
+        final List<ChatListSnapshot.Row> rows = chatAdapter.getSnapshotRows();
+        if (!chatListLoader.isShutdown()) {
+            chatListLoader.execute(() -> chatListSnapshot.write(rows));
+        }
+    }
+
+    // Finish the startup trace once the first rows have been laid out and are about to draw
+    private void traceFirstChatRow() {
+        if (StartupTrace.get().isDone()) {
+            return;
         }
+        chatsRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (chatsRecyclerView.getChildCount() == 0) {
+                    return true;
+                }
+                chatsRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.get().finish("firstChatRow");
+                return true;
+            }
+        });
     }
 
     private void showNewChatDialog() {
@@ -182,8 +423,12 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 String recipientEmail = emailEditText.getText().toString().trim();
+                List<String> groupEmails = parseEmails(recipientEmail);
                 
-                if (!TextUtils.isEmpty(recipientEmail)) {
+                if (groupEmails.size() > 1) {
+                    // Several emails start a group
+                    checkIfUsersExist(groupEmails);
+                } else if (!TextUtils.isEmpty(recipientEmail)) {
                     // Check if email exists in Firebase
                     checkIfUserExists(recipientEmail);
                 } else {
@@ -203,7 +448,7 @@ public class MainActivity extends AppCompatActivity {
     }
     
     private void checkIfUserExists(final String recipientEmail) {
-        // Show loading dialog but with a timeout
+        // Show loading dialog only if the answer isn't cached
         final AlertDialog loadingDialog = new AlertDialog.Builder(this)
                 .setTitle("Checking User")
                 .setMessage("Searching for user account...")
@@ -215,66 +460,111 @@ public class MainActivity extends AppCompatActivity {
                     }
                 })
                 .create();
-        loadingDialog.show();
-        
-        // Use our cache if available
-        if (userEmailCache.containsKey(recipientEmail)) {
-            loadingDialog.dismiss();
-            String cachedUserId = userEmailCache.get(recipientEmail);
-            if (cachedUserId != null && !cachedUserId.isEmpty() && !cachedUserId.startsWith("pending_")) {
-                createNewChat(cachedUserId, recipientEmail);
-            } else {
-                showUserNotFoundError();
-            }
-            return;
+        if (!userLookupCache.isCached(recipientEmail)) {
+            loadingDialog.show();
         }
         
-        // Set timeout - close dialog after 10 seconds and show error
-        new Handler().postDelayed(new Runnable() {
+        // The cache times out after 10 seconds and shares queries for the same email
+        userLookupCache.lookup(recipientEmail, new UserLookupCache.Callback() {
             @Override
-            public void run() {
+            public void onUserFound(String userId) {
                 if (loadingDialog.isShowing()) {
                     loadingDialog.dismiss();
-                    showUserNotFoundError();
                 }
+                createNewChat(userId, recipientEmail);
             }
-        }, 10000); // 10 second timeout
-        
-        // Query Firebase for users with this email
-        FirebaseFirestore firestore = FirebaseFirestore.getInstance();
-        firestore.collection("users")
-            .whereEqualTo("email", recipientEmail)
-            .get()
-            .addOnSuccessListener(queryDocumentSnapshots -> {
-                // Dismiss the loading dialog if it's still showing
+
+            @Override
+            public void onUserNotFound() {
                 if (loadingDialog.isShowing()) {
                     loadingDialog.dismiss();
                 }
-                
-                if (!queryDocumentSnapshots.isEmpty()) {
-                    // User exists, get the user ID
-                    String recipientId = queryDocumentSnapshots.getDocuments().get(0).getId();
-                    
-                    // Cache the result
-                    userEmailCache.put(recipientEmail, recipientId);
-                    
-                    // Create chat with this user
-                    if (!TextUtils.isEmpty(recipientId)) {
-                        createNewChat(recipientId, recipientEmail);
-                    }
-                } else {
-                    // User doesn't exist - show error
-                    showUserNotFoundError();
-                }
-            })
-            .addOnFailureListener(e -> {
-                // Dismiss the loading dialog if it's still showing
+                showUserNotFoundError();
+            }
+
+            @Override
+            public void onError(Exception e) {
                 if (loadingDialog.isShowing()) {
                     loadingDialog.dismiss();
                 }
-                
                 showUserNotFoundError();
+            }
+        });
+    }
+    
+    private static List<String> parseEmails(String input) {
+        Set<String> emails = new LinkedHashSet<>();
+        for (String email : input.split("[,;\\s]+")) {
+            if (!email.isEmpty()) {
+                emails.add(email);
+            }
+        }
+        return new ArrayList<>(emails);
+    }
+    
+    /**
+     * Look up every member of a new group, then create it once all are found
+     */
+    private void checkIfUsersExist(final List<String> emails) {
+        final AlertDialog loadingDialog = new AlertDialog.Builder(this)
+                .setTitle("Checking Users")
+                .setMessage("Searching for " + emails.size() + " user accounts...")
+                .setCancelable(false)
+                .create();
+        loadingDialog.show();
+        
+        final List<String> memberIds = new ArrayList<>();
+        final int[] remaining = {emails.size()};
+        final boolean[] failed = {false};
+        for (final String email : emails) {
+            // Callbacks arrive on the main thread, so the counters need no locking
+            userLookupCache.lookup(email, new UserLookupCache.Callback() {
+                @Override
+                public void onUserFound(String userId) {
+                    memberIds.add(userId);
+                    onLookupDone();
+                }
+
+                @Override
+                public void onUserNotFound() {
+                    failed[0] = true;
+                    onLookupDone();
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    failed[0] = true;
+                    onLookupDone();
+                }
+
+                private void onLookupDone() {
+                    if (--remaining[0] > 0) {
+                        return;
+                    }
+                    if (loadingDialog.isShowing()) {
+                        loadingDialog.dismiss();
+                    }
+                    if (failed[0]) {
+                        showUserNotFoundError();
+                    } else {
+                        createGroupChat(memberIds, emails);
+                    }
+                }
             });
+        }
+    }
+    
+    private void createGroupChat(List<String> memberIds, List<String> emails) {
+        String currentUserId = currentUser.getUid();
+        memberIds.remove(currentUserId);
+        String name = emails.get(0) + " +" + (emails.size() - 1);
+        
+        Chat group = storageManager.createGroupChat(currentUserId, name, memberIds);
+        
+        Intent intent = new Intent(MainActivity.this, ChatActivity.class);
+        intent.putExtra("chatId", group.getChatId());
+        intent.putExtra("recipientEmail", name + " (" + group.getParticipants().size() + " members)");
+        startActivity(intent);
     }
     
     private void showUserNotFoundError() {
@@ -304,7 +594,7 @@ public class MainActivity extends AppCompatActivity {
         
         for (Chat chat : userChats) {
             List<String> participants = chat.getParticipants();
-            if (participants != null && participants.contains(recipientId)) {
+            if (!chat.isGroup() && participants != null && participants.contains(recipientId)) {
                 // Chat already exists, open it
                 Intent intent = new Intent(MainActivity.this, ChatActivity.class);
                 intent.putExtra("chatId", chat.getChatId());
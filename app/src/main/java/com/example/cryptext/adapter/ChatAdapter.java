@@ -15,154 +15,281 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.example.cryptext.ChatActivity;
 import com.example.cryptext.R;
 import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.ChatItem;
+import com.example.cryptext.util.ChatListSnapshot;
+import com.example.cryptext.util.ConversationCache;
+import com.example.cryptext.util.FirestoreUserDirectory;
+import com.example.cryptext.util.HandlerScheduler;
 import com.example.cryptext.util.LocalStorageManager;
-import com.google.firebase.auth.FirebaseAuth;
+import com.example.cryptext.util.PreviewDecryptor;
+import com.example.cryptext.util.ProfileResolver;
+import com.example.cryptext.util.TimeFormatter;
+import com.example.cryptext.util.UserLookupCache;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder> {
 
+    /**
+     * Told when the rows change other than by painting a snapshot, so the snapshot can be rewritten
+     */
+    public interface OnRowsChangedListener {
+        void onRowsChanged();
+    }
+
+    // Larger counts show as "99+"
+    private static final int MAX_BADGE_COUNT = 99;
+    // Rows below a bound row whose previews are decrypted in the same batch
+    private static final int PREVIEW_PREFETCH_ROWS = 10;
+
     private Context context;
-    private List<Chat> chatList;
-    private List<Chat> filteredChatList;
+    private List<ChatItem> chatList;
+    private List<ChatItem> filteredChatList;
+    private Set<String> chatIds;
     private String currentUserId;
-    private Map<String, String> userEmailCache;
+    private ProfileResolver profileResolver;
+    private PreviewDecryptor previewDecryptor;
     private LocalStorageManager storageManager;
+    private OnRowsChangedListener rowsChangedListener;
 
-    public ChatAdapter(Context context) {
+    /**
+     * Shares the activity's storage and lookup cache rather than opening its own
+     */
+    public ChatAdapter(Context context, String currentUserId, LocalStorageManager storageManager,
+                       UserLookupCache userLookupCache, PreviewDecryptor previewDecryptor) {
         this.context = context;
         this.chatList = new ArrayList<>();
         this.filteredChatList = new ArrayList<>();
-        this.currentUserId = FirebaseAuth.getInstance().getCurrentUser().getUid();
-        this.userEmailCache = new HashMap<>();
-        this.storageManager = new LocalStorageManager(context);
+        this.chatIds = new HashSet<>();
+        this.currentUserId = currentUserId;
+        this.profileResolver = new ProfileResolver(new FirestoreUserDirectory(),
+            userLookupCache, new HandlerScheduler());
+        this.profileResolver.setListener(this::onProfilesResolved);
+        this.previewDecryptor = previewDecryptor;
+        this.previewDecryptor.setListener(this::onPreviewsDecrypted);
+        this.storageManager = storageManager;
+    }
+
+    public void setOnRowsChangedListener(OnRowsChangedListener listener) {
+        this.rowsChangedListener = listener;
+    }
+
+    private void notifyRowsChanged() {
+        if (rowsChangedListener != null) {
+            rowsChangedListener.onRowsChanged();
+        }
     }
 
     @NonNull
     @Override
     public ChatViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(context).inflate(R.layout.item_chat, parent, false);
-        return new ChatViewHolder(view);
+        final ChatViewHolder holder = new ChatViewHolder(view);
+
+        // Listeners are attached once per ViewHolder and look up the row at click time
+        holder.itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                ChatItem clickedItem = filteredChatList.get(position);
+                openChatActivity(clickedItem);
+            }
+        });
+
+        holder.itemView.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                int position = holder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION) {
+                    return false;
+                }
+                showDeleteConfirmationDialog(filteredChatList.get(position));
+                return true;
+            }
+        });
+
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull ChatViewHolder holder, int position) {
-        Chat chat = filteredChatList.get(position);
+        ChatItem item = filteredChatList.get(position);
+
+        // Bound and prefetched rows queue their peer for a batched lookup
+        if (!item.isPeerResolved()) {
+            profileResolver.request(item.getPeerId());
+        }
+
+        // Previews are decrypted in batches for this row and the next few; blank until then
+        int end = Math.min(filteredChatList.size(), position + PREVIEW_PREFETCH_ROWS);
+        for (int i = position; i < end; i++) {
+            previewDecryptor.request(filteredChatList.get(i).getChat());
+        }
+        String preview = previewDecryptor.getPreview(item.getChat());
+
+        holder.recipientTextView.setText(item.getPeerLabel());
+        holder.lastMessageTextView.setText(preview != null ? preview : "");
+        holder.timeTextView.setText(item.getFormattedTime());
+        bindUnreadCount(holder.unreadTextView, item.getUnreadCount());
+    }
+
+    private static void bindUnreadCount(TextView badge, int unreadCount) {
+        if (unreadCount <= 0) {
+            badge.setVisibility(View.GONE);
+            return;
+        }
+        badge.setText(unreadCount > MAX_BADGE_COUNT ? MAX_BADGE_COUNT + "+" : String.valueOf(unreadCount));
+        badge.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Build the display model for a chat: resolve the peer and format the time once.
+     * The unread count is storage's running count, so no messages are read here.
+     */
+    private ChatItem createChatItem(Chat chat) {
+        ChatItem item = createPeerItem(chat);
+        item.setUnreadCount(storageManager.getUnreadCount(chat.getChatId()));
+        return item;
+    }
+
+    private ChatItem createPeerItem(Chat chat) {
+        if (chat.isGroup()) {
+            // Groups are labelled by name; members aren't resolved for the list
+            ChatItem item = new ChatItem(chat, null, groupLabel(chat),
+                TimeFormatter.formatChatTime(chat.getTimestamp()));
+            item.setPeerLabel(groupLabel(chat), true);
+            return item;
+        }
         
         // Find the other participant (not the current user)
-        String otherParticipantId = null;
+        String recipientId = null;
         for (String participantId : chat.getParticipants()) {
             if (!participantId.equals(currentUserId)) {
-                otherParticipantId = participantId;
+                recipientId = participantId;
                 break;
             }
         }
 
-        final String recipientId = otherParticipantId;
-        
-        // Get recipient email
+        ChatItem item = new ChatItem(
+            chat,
+            recipientId,
+            "Unknown User",
+            TimeFormatter.formatChatTime(chat.getTimestamp())
+        );
         if (recipientId != null) {
-            if (recipientId.startsWith("pending_")) {
+            // Emails were read from the persisted cache on the loader thread; see setChats
+            String email = profileResolver.getKnownEmail(recipientId);
+            if (email != null) {
+                item.setPeerLabel(email, true);
+            } else if (recipientId.startsWith("pending_")) {
                 // This is a pending user, extract email from ID
-                String placeholderEmail = "user_" + recipientId.substring(8) + "@example.com";
-                holder.recipientTextView.setText(placeholderEmail);
-                // Cache for future use
-                userEmailCache.put(recipientId, placeholderEmail);
-            } else if (userEmailCache.containsKey(recipientId)) {
-                // Use cached email if available
-                holder.recipientTextView.setText(userEmailCache.get(recipientId));
+                item.setPeerLabel("user_" + recipientId.substring(8) + "@example.com", true);
             } else {
-                // In a real app, we'd query Firebase for the email
-                // For the local version, we'll just use the ID
-                String fakeEmail = "user_" + recipientId.substring(0, 5) + "@example.com";
-                holder.recipientTextView.setText(fakeEmail);
-                // Cache for future use
-                userEmailCache.put(recipientId, fakeEmail);
+                // Placeholder until the profile resolver fetches the real email
+                item.setPeerLabel("user_" + recipientId.substring(0, 5) + "@example.com", false);
             }
         } else {
-            holder.recipientTextView.setText("Unknown User");
+            item.setPeerLabel("Unknown User", true);
         }
+        return item;
+    }
 
-        holder.lastMessageTextView.setText(chat.getLastMessage());
-        
-        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd, hh:mm a", Locale.getDefault());
-        String formattedTime = dateFormat.format(new Date(chat.getTimestamp()));
-        holder.timeTextView.setText(formattedTime);
-
-        holder.itemView.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                Chat clickedChat = filteredChatList.get(holder.getAdapterPosition());
-                
-                // Find the recipient email
-                String clickedRecipientId = null;
-                for (String participantId : clickedChat.getParticipants()) {
-                    if (!participantId.equals(currentUserId)) {
-                        clickedRecipientId = participantId;
-                        break;
-                    }
-                }
-                
-                // Get the email for this recipient
-                String recipientEmail;
-                if (clickedRecipientId != null) {
-                    if (userEmailCache.containsKey(clickedRecipientId)) {
-                        recipientEmail = userEmailCache.get(clickedRecipientId);
-                    } else if (clickedRecipientId.startsWith("pending_")) {
-                        recipientEmail = "user_" + clickedRecipientId.substring(8) + "@example.com";
-                    } else {
-                        recipientEmail = "user_" + clickedRecipientId.substring(0, 5) + "@example.com";
-                    }
-                } else {
-                    recipientEmail = "Unknown User";
+    /**
+     * Get the other participant of each one-to-one chat, whose emails label the rows
+     */
+    public static Set<String> peerIds(List<Chat> chats, String currentUserId) {
+        Set<String> peerIds = new HashSet<>();
+        for (Chat chat : chats) {
+            if (chat.isGroup() || chat.getParticipants() == null) {
+                continue;
+            }
+            for (String participantId : chat.getParticipants()) {
+                if (!participantId.equals(currentUserId)) {
+                    peerIds.add(participantId);
                 }
-                
-                // Open the chat activity
-                openChatActivity(clickedChat.getChatId(), recipientEmail);
             }
-        });
+        }
+        return peerIds;
+    }
 
-        holder.itemView.setOnLongClickListener(new View.OnLongClickListener() {
-            @Override
-            public boolean onLongClick(View v) {
-                Chat chatToDelete = filteredChatList.get(holder.getAdapterPosition());
-                showDeleteConfirmationDialog(chatToDelete);
-                return true;
+    private static String groupLabel(Chat chat) {
+        String name = chat.getName() != null ? chat.getName() : "Group";
+        return name + " (" + chat.getParticipants().size() + " members)";
+    }
+
+    /**
+     * Update rows whose peer email just arrived, notifying only those rows
+     */
+    private void onProfilesResolved(Set<String> userIds) {
+        for (ChatItem item : chatList) {
+            if (item.getPeerId() != null && userIds.contains(item.getPeerId())) {
+                item.setPeerLabel(profileResolver.getKnownEmail(item.getPeerId()), true);
             }
-        });
+        }
+        for (int i = 0; i < filteredChatList.size(); i++) {
+            String peerId = filteredChatList.get(i).getPeerId();
+            if (peerId != null && userIds.contains(peerId)) {
+                notifyItemChanged(i);
+            }
+        }
+        notifyRowsChanged();
+    }
+
+    /**
+     * Rebind rows whose preview was just decrypted
+     */
+    private void onPreviewsDecrypted(Set<String> chatIds) {
+        for (int i = 0; i < filteredChatList.size(); i++) {
+            if (chatIds.contains(filteredChatList.get(i).getChatId())) {
+                notifyItemChanged(i);
+            }
+        }
     }
     
-    private void openChatActivity(String chatId, String recipientEmail) {
+    /**
+     * Open a chat with its resolved label; a placeholder is never passed on
+     * as the contact's name, so ChatActivity resolves the peer itself instead
+     */
+    private void openChatActivity(ChatItem item) {
         Intent intent = new Intent(context, ChatActivity.class);
-        intent.putExtra("chatId", chatId);
-        intent.putExtra("recipientEmail", recipientEmail);
+        intent.putExtra("chatId", item.getChatId());
+        if (item.isPeerResolved() || item.getPeerId() == null) {
+            intent.putExtra("recipientEmail", item.getPeerLabel());
+        } else {
+            intent.putExtra("recipientId", item.getPeerId());
+        }
         context.startActivity(intent);
     }
 
-    private void showDeleteConfirmationDialog(Chat chat) {
+    private void showDeleteConfirmationDialog(ChatItem item) {
         new AlertDialog.Builder(context)
             .setTitle("Delete Chat")
             .setMessage("Are you sure you want to delete this chat?")
             .setPositiveButton("Delete", (dialog, which) -> {
-                deleteChat(chat);
+                deleteChat(item);
             })
             .setNegativeButton("Cancel", null)
             .show();
     }
 
-    private void deleteChat(Chat chat) {
-        chatList.remove(chat);
-        filteredChatList.remove(chat);
+    private void deleteChat(ChatItem item) {
+        chatList.remove(item);
+        filteredChatList.remove(item);
+        chatIds.remove(item.getChatId());
         
-        storageManager.deleteChat(chat.getChatId(), currentUserId);
+        storageManager.deleteChat(item.getChatId(), currentUserId);
+        // Pages stay cached after the chat closes, so drop this one with the chat
+        ConversationCache.getInstance(context).evictChat(item.getChatId());
         
         notifyDataSetChanged();
+        notifyRowsChanged();
         
         Toast.makeText(context, "Chat deleted", Toast.LENGTH_SHORT).show();
     }
@@ -172,12 +299,67 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
         return filteredChatList.size();
     }
 
-    public void addChat(Chat chat) {
-        if (!chatList.contains(chat)) {
-            chatList.add(chat);
-            filteredChatList.add(chat);
-            notifyDataSetChanged();
+    /**
+     * Replace every chat at once, notifying once rather than per chat
+     * @param knownEmails peer emails read off the main thread with ProfileResolver.readPersistedEmails
+     */
+    public void setChats(List<Chat> chats, Map<String, String> knownEmails) {
+        profileResolver.addKnownEmails(knownEmails);
+        chatList.clear();
+        filteredChatList.clear();
+        chatIds.clear();
+        for (Chat chat : chats) {
+            if (chatIds.add(chat.getChatId())) {
+                chatList.add(createChatItem(chat));
+            }
+        }
+        filteredChatList.addAll(chatList);
+        notifyDataSetChanged();
+        notifyRowsChanged();
+    }
+
+    /**
+     * Paint rows saved by a previous run until setChats replaces them with the real chats.
+     * Rows are shown exactly as saved; nothing is resolved or formatted again.
+     */
+    public void showSnapshot(List<ChatListSnapshot.Row> rows) {
+        chatList.clear();
+        filteredChatList.clear();
+        chatIds.clear();
+        for (ChatListSnapshot.Row row : rows) {
+            if (chatIds.add(row.chat.getChatId())) {
+                ChatItem item = new ChatItem(row.chat, null, row.peerLabel, row.formattedTime);
+                item.setPeerLabel(row.peerLabel, true);
+                item.setUnreadCount(row.unreadCount);
+                chatList.add(item);
+            }
+        }
+        filteredChatList.addAll(chatList);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Get the first rows of the whole list, ignoring any filter, as a snapshot saves them
+     */
+    public List<ChatListSnapshot.Row> getSnapshotRows() {
+        int count = Math.min(chatList.size(), ChatListSnapshot.MAX_ROWS);
+        List<ChatListSnapshot.Row> rows = new ArrayList<>(count);
+        for (ChatItem item : chatList.subList(0, count)) {
+            rows.add(new ChatListSnapshot.Row(item.getChat(), item.getPeerLabel(), item.getFormattedTime(),
+                item.getUnreadCount()));
+        }
+        return rows;
+    }
+
+    /**
+     * Get all chats currently held by the adapter, ignoring any filter
+     */
+    public List<Chat> getChats() {
+        List<Chat> chats = new ArrayList<>(chatList.size());
+        for (ChatItem item : chatList) {
+            chats.add(item.getChat());
         }
+        return chats;
     }
 
     public void filterChats(String query) {
@@ -188,9 +370,11 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
         } else {
             query = query.toLowerCase();
             
-            for (Chat chat : chatList) {
-                if (chat.getLastMessage().toLowerCase().contains(query)) {
-                    filteredChatList.add(chat);
+            // Only previews already decrypted can match
+            for (ChatItem item : chatList) {
+                String preview = previewDecryptor.getPreview(item.getChat());
+                if (preview != null && preview.toLowerCase().contains(query)) {
+                    filteredChatList.add(item);
                 }
             }
         }
@@ -201,6 +385,7 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
     public void clearChats() {
         chatList.clear();
         filteredChatList.clear();
+        chatIds.clear();
         notifyDataSetChanged();
     }
 
@@ -208,12 +393,14 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ChatViewHolder
         TextView recipientTextView;
         TextView lastMessageTextView;
         TextView timeTextView;
+        TextView unreadTextView;
 
         ChatViewHolder(View itemView) {
             super(itemView);
             recipientTextView = itemView.findViewById(R.id.recipientEmailTextView);
             lastMessageTextView = itemView.findViewById(R.id.lastMessageTextView);
             timeTextView = itemView.findViewById(R.id.timestampTextView);
+            unreadTextView = itemView.findViewById(R.id.unreadCountTextView);
         }
     }
 } 
\ No newline at end of file
@@ -1,36 +1,107 @@
 package com.example.cryptext.adapter;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.cryptext.R;
+import com.example.cryptext.model.Attachment;
 import com.example.cryptext.model.Message;
+import com.example.cryptext.model.MessageItem;
+import com.example.cryptext.util.BlobStore;
+import com.example.cryptext.util.ChatCipher;
+import com.example.cryptext.util.HybridLogicalClock;
+import com.example.cryptext.util.PlaintextCache;
+import com.example.cryptext.util.SortedTimeline;
+import com.example.cryptext.util.ThumbnailCache;
+import com.example.cryptext.util.Thumbnails;
+import com.example.cryptext.util.TimeFormatter;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+    private static final String TAG = "MessageAdapter";
 
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
 
+    // Number of rows past the visible range to decrypt ahead of the scroll
+    private static final int PREFETCH_DISTANCE = 6;
+
+    private static final String ENCRYPTED_PLACEHOLDER = "[Encrypted message]";
+
     private Context context;
-    private List<Message> messageList;
+    // Rows in HybridLogicalClock order
+    private SortedTimeline<MessageItem> messageList;
+    private Map<String, MessageItem> itemsById;
     private String currentUserId;
+    private ChatCipher cipher;
+    private PlaintextCache plaintextCache;
+    private ThumbnailCache thumbnailCache;
+    private BlobStore blobStore;
+    // Thumbnails being read on the decrypt executor, by content id, with the messages
+    // showing each; main thread only
+    private Map<String, Set<String>> loadingThumbnails;
+    // Thumbnails that couldn't be read or decoded, so binding doesn't retry them; main thread only
+    private Set<String> unreadableThumbnails;
+    private Handler mainHandler;
+    private ExecutorService decryptExecutor;
+    private RecyclerView.OnScrollListener prefetchScrollListener;
+    // Set by release; once set, no plaintext is cached again
+    private final Object releaseLock = new Object();
+    private boolean released;
 
-    public MessageAdapter(Context context, String currentUserId) {
+    /**
+     * Messages are held as stored (ciphertext) and decrypted on bind
+     * @param cipher decrypts message content for the current user
+     * @param plaintextCache cache of decrypted content, possibly pre-warmed
+     * @param thumbnailCache cache of decoded attachment thumbnails
+     * @param blobStore store the chat's attachments are read from
+     */
+    public MessageAdapter(Context context, String currentUserId, ChatCipher cipher,
+                          PlaintextCache plaintextCache, ThumbnailCache thumbnailCache,
+                          BlobStore blobStore) {
         this.context = context;
-        this.messageList = new ArrayList<>();
+        this.messageList = new SortedTimeline<>(
+            (i1, i2) -> HybridLogicalClock.ORDER.compare(i1.getMessage(), i2.getMessage()));
+        this.itemsById = new HashMap<>();
         this.currentUserId = currentUserId;
+        this.cipher = cipher;
+        this.plaintextCache = plaintextCache;
+        this.thumbnailCache = thumbnailCache;
+        this.blobStore = blobStore;
+        this.loadingThumbnails = new HashMap<>();
+        this.unreadableThumbnails = new HashSet<>();
+        this.mainHandler = new Handler(Looper.getMainLooper());
+        this.decryptExecutor = Executors.newSingleThreadExecutor();
+        this.prefetchScrollListener = new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                prefetchAround(recyclerView, dy);
+            }
+        };
     }
 
     @NonNull
@@ -47,19 +118,101 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messageList.get(position);
+        MessageItem item = messageList.get(position);
+        String plaintext = getPlaintext(item.getMessage());
+        String formattedTime = item.getFormattedTime();
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("hh:mm a", Locale.getDefault());
-        String formattedTime = dateFormat.format(new Date(message.getTimestamp()));
+        Attachment attachment = item.getMessage().getAttachment();
+        if (attachment != null && !ENCRYPTED_PLACEHOLDER.equals(plaintext)) {
+            // The content of an attachment message is the file name
+            plaintext = plaintext + " (" + Formatter.formatShortFileSize(context, attachment.getSize()) + ")";
+        }
 
         if (holder.getItemViewType() == VIEW_TYPE_SENT) {
             SentMessageViewHolder sentHolder = (SentMessageViewHolder) holder;
-            sentHolder.messageTextView.setText(message.getContent());
+            sentHolder.messageTextView.setText(plaintext);
             sentHolder.timeTextView.setText(formattedTime);
+            bindThumbnail(sentHolder.attachmentImageView, item.getMessageId(), attachment);
         } else {
             ReceivedMessageViewHolder receivedHolder = (ReceivedMessageViewHolder) holder;
-            receivedHolder.messageTextView.setText(message.getContent());
+            receivedHolder.messageTextView.setText(plaintext);
             receivedHolder.timeTextView.setText(formattedTime);
+            bindThumbnail(receivedHolder.attachmentImageView, item.getMessageId(), attachment);
+        }
+    }
+
+    /**
+     * Show an attachment's thumbnail if it is decoded already; otherwise load it
+     * on the worker and rebind. Full-size media is never decoded here.
+     */
+    private void bindThumbnail(ImageView imageView, String messageId, Attachment attachment) {
+        String thumbnailId = attachment != null ? attachment.getThumbnail() : null;
+        if (thumbnailId == null || unreadableThumbnails.contains(thumbnailId)) {
+            imageView.setImageDrawable(null);
+            imageView.setVisibility(View.GONE);
+            return;
+        }
+        imageView.setVisibility(View.VISIBLE);
+        Bitmap thumbnail = thumbnailCache.get(thumbnailId);
+        imageView.setImageBitmap(thumbnail);
+        if (thumbnail == null) {
+            loadThumbnail(messageId, attachment);
+        }
+    }
+
+    private void loadThumbnail(String messageId, final Attachment attachment) {
+        final String thumbnailId = attachment.getThumbnail();
+        if (decryptExecutor.isShutdown()) {
+            return;
+        }
+        Set<String> waiting = loadingThumbnails.get(thumbnailId);
+        if (waiting != null) {
+            waiting.add(messageId);
+            return;
+        }
+        waiting = new HashSet<>();
+        waiting.add(messageId);
+        loadingThumbnails.put(thumbnailId, waiting);
+        decryptExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap thumbnail = null;
+                try {
+                    BlobStore.Keys keys = cipher.attachmentKeys(attachment);
+                    if (keys != null) {
+                        thumbnail = Thumbnails.decode(blobStore.get(keys, thumbnailId));
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read thumbnail " + thumbnailId, e);
+                }
+                thumbnailCache.put(thumbnailId, thumbnail);
+                final boolean loaded = thumbnail != null;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Set<String> messageIds = loadingThumbnails.remove(thumbnailId);
+                        if (!loaded) {
+                            unreadableThumbnails.add(thumbnailId);
+                        }
+                        // Rebind even on failure, so the rows drop the empty image
+                        notifyThumbnailLoaded(messageIds);
+                    }
+                });
+            }
+        });
+    }
+
+    // Rebind the rows waiting for a thumbnail; the same file may appear in several messages
+    private void notifyThumbnailLoaded(Set<String> messageIds) {
+        if (messageIds == null) {
+            return;
+        }
+        for (String messageId : messageIds) {
+            MessageItem item = itemsById.get(messageId);
+            int position = item != null ? messageList.indexOf(item) : -1;
+            if (position >= 0) {
+                notifyItemChanged(position);
+            }
         }
     }
 
@@ -70,38 +223,254 @@ public class MessageAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messageList.get(position);
-        if (message.getSenderId().equals(currentUserId)) {
+        if (messageList.get(position).isSent()) {
             return VIEW_TYPE_SENT;
         } else {
             return VIEW_TYPE_RECEIVED;
         }
     }
 
-    public void setMessages(List<Message> messages) {
-        this.messageList = messages;
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        recyclerView.addOnScrollListener(prefetchScrollListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(prefetchScrollListener);
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+
+    /**
+     * Set the stored (still encrypted) messages to display.
+     * Row display data is computed here once rather than on every bind.
+     * @return false if exactly these messages were already shown, in which case nothing is rebound
+     */
+    public boolean setMessages(List<Message> messages) {
+        List<Message> sorted = new ArrayList<>(messages.size());
+        Set<String> seen = new HashSet<>();
+        for (Message message : messages) {
+            if (seen.add(message.getMessageId())) {
+                sorted.add(message);
+            }
+        }
+        sorted.sort(HybridLogicalClock.ORDER);
+        if (isShowing(sorted)) {
+            return false;
+        }
+
+        List<MessageItem> items = new ArrayList<>(sorted.size());
+        itemsById.clear();
+        for (Message message : sorted) {
+            MessageItem item = createMessageItem(message);
+            itemsById.put(item.getMessageId(), item);
+            items.add(item);
+        }
+        messageList.resetSorted(items);
         notifyDataSetChanged();
+        return true;
+    }
+
+    // Whether the rows already hold these messages, in this order and with the same content
+    private boolean isShowing(List<Message> sorted) {
+        if (sorted.size() != messageList.size()) {
+            return false;
+        }
+        for (int i = 0; i < sorted.size(); i++) {
+            Message shown = messageList.get(i).getMessage();
+            Message message = sorted.get(i);
+            if (!shown.getMessageId().equals(message.getMessageId()) || shown.getHlc() != message.getHlc()
+                    || shown.getKeyEpoch() != message.getKeyEpoch()
+                    || !Objects.equals(shown.getContent(), message.getContent())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Apply added or changed messages without rebuilding the list. New messages
+     * are spliced in by HLC in O(k log n) and only the touched rows are notified.
+     * @return true if any row was inserted
+     */
+    public boolean applyChanges(List<Message> changes) {
+        // Keep only the last change per message
+        Map<String, Message> latest = new LinkedHashMap<>();
+        for (Message message : changes) {
+            latest.put(message.getMessageId(), message);
+        }
+
+        List<MessageItem> added = new ArrayList<>();
+        for (Message message : latest.values()) {
+            MessageItem item = createMessageItem(message);
+            MessageItem existing = itemsById.get(item.getMessageId());
+            if (existing == null) {
+                itemsById.put(item.getMessageId(), item);
+                added.add(item);
+                continue;
+            }
+
+            // Content may have changed, so forget the old plaintext
+            plaintextCache.remove(message.getMessageId());
+            itemsById.put(item.getMessageId(), item);
+            if (HybridLogicalClock.ORDER.compare(existing.getMessage(), message) == 0) {
+                int position = messageList.indexOf(existing);
+                messageList.set(position, item);
+                notifyItemChanged(position);
+            } else {
+                int from = messageList.remove(existing);
+                int to = messageList.insert(item);
+                notifyItemMoved(from, to);
+                notifyItemChanged(to);
+            }
+        }
+
+        for (int position : messageList.merge(added)) {
+            notifyItemInserted(position);
+        }
+        return !added.isEmpty();
+    }
+
+    /**
+     * Get up to max of the newest displayed messages, in order
+     */
+    public List<Message> getNewestMessages(int max) {
+        int from = Math.max(0, messageList.size() - max);
+        List<Message> messages = new ArrayList<>(messageList.size() - from);
+        for (int i = from; i < messageList.size(); i++) {
+            messages.add(messageList.get(i).getMessage());
+        }
+        return messages;
+    }
+
+    private MessageItem createMessageItem(Message message) {
+        return new MessageItem(
+            message,
+            TimeFormatter.formatMessageTime(message.getTimestamp()),
+            currentUserId.equals(message.getSenderId())
+        );
+    }
+
+    /**
+     * Stop background decryption and drop cached plaintext for this chat's messages.
+     * Call when the owning activity is destroyed.
+     */
+    public void release() {
+        // Marked first, so a decrypt still running can't cache plaintext after the clear
+        synchronized (releaseLock) {
+            released = true;
+        }
+        decryptExecutor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+        loadingThumbnails.clear();
+        unreadableThumbnails.clear();
+        for (String messageId : itemsById.keySet()) {
+            plaintextCache.remove(messageId);
+        }
+    }
+
+    private void cachePlaintext(String messageId, String plaintext) {
+        synchronized (releaseLock) {
+            if (!released) {
+                plaintextCache.put(messageId, plaintext);
+            }
+        }
+    }
+
+    /**
+     * Return the plaintext for a message, decrypting and caching it on a miss
+     */
+    private String getPlaintext(Message message) {
+        String plaintext = plaintextCache.get(message.getMessageId());
+        if (plaintext != null) {
+            return plaintext;
+        }
+
+        plaintext = cipher.decrypt(message);
+        if (plaintext == null) {
+            return ENCRYPTED_PLACEHOLDER;
+        }
+        cachePlaintext(message.getMessageId(), plaintext);
+        return plaintext;
+    }
+
+    /**
+     * Decrypt a few rows beyond the visible range, in the scroll direction, on a worker
+     */
+    private void prefetchAround(RecyclerView recyclerView, int dy) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)
+                || decryptExecutor.isShutdown()) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+
+        int from;
+        int to;
+        if (dy >= 0) {
+            from = layoutManager.findLastVisibleItemPosition() + 1;
+            to = from + PREFETCH_DISTANCE;
+        } else {
+            to = layoutManager.findFirstVisibleItemPosition();
+            from = to - PREFETCH_DISTANCE;
+        }
+        from = Math.max(0, from);
+        to = Math.min(messageList.size(), to);
+        if (from >= to) {
+            return;
+        }
+
+        final List<Message> pending = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Message message = messageList.get(i).getMessage();
+            if (!plaintextCache.contains(message.getMessageId())) {
+                pending.add(message);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        decryptExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Message message : pending) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (plaintextCache.contains(message.getMessageId())) {
+                        continue;
+                    }
+                    String plaintext = cipher.decrypt(message);
+                    cachePlaintext(message.getMessageId(), plaintext);
+                }
+            }
+        });
     }
 
     static class SentMessageViewHolder extends RecyclerView.ViewHolder {
         TextView messageTextView;
         TextView timeTextView;
+        ImageView attachmentImageView;
 
         SentMessageViewHolder(View itemView) {
             super(itemView);
             messageTextView = itemView.findViewById(R.id.messageTextView);
             timeTextView = itemView.findViewById(R.id.timeTextView);
+            attachmentImageView = itemView.findViewById(R.id.attachmentImageView);
         }
     }
 
     static class ReceivedMessageViewHolder extends RecyclerView.ViewHolder {
         TextView messageTextView;
         TextView timeTextView;
+        ImageView attachmentImageView;
 
         ReceivedMessageViewHolder(View itemView) {
             super(itemView);
             messageTextView = itemView.findViewById(R.id.messageTextView);
             timeTextView = itemView.findViewById(R.id.timeTextView);
+            attachmentImageView = itemView.findViewById(R.id.attachmentImageView);
         }
     }
-} 
\ No newline at end of file
+}
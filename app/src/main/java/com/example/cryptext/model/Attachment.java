@@ -0,0 +1,80 @@
+package com.example.cryptext.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * File attached to a message. The bytes live in the BlobStore as encrypted
+ * chunks; this only references them by content id. The file name travels in
+ * the message's encrypted content. Chunks are encrypted under keys derived
+ * from the chat's key at keyEpoch, so members removed before then can't read
+ * them.
+ */
+public class Attachment {
+    private String mimeType;
+    private long size;
+    // Content ids of the file's chunks, in order
+    private List<String> chunks;
+    // Content id of a small JPEG preview; null for files that aren't images
+    private String thumbnail;
+    // Key epoch the chunks were stored under; null for attachments stored before
+    // they were bound to an epoch, whose keys derive from the chat ID
+    private Integer keyEpoch;
+
+    // Required empty constructor for Firestore
+    public Attachment() {
+        chunks = new ArrayList<>();
+    }
+
+    public Attachment(String mimeType, long size, List<String> chunks, String thumbnail, Integer keyEpoch) {
+        this.mimeType = mimeType;
+        this.size = size;
+        this.chunks = chunks;
+        this.thumbnail = thumbnail;
+        this.keyEpoch = keyEpoch;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public void setMimeType(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public List<String> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<String> chunks) {
+        this.chunks = chunks;
+    }
+
+    public String getThumbnail() {
+        return thumbnail;
+    }
+
+    public void setThumbnail(String thumbnail) {
+        this.thumbnail = thumbnail;
+    }
+
+    public Integer getKeyEpoch() {
+        return keyEpoch;
+    }
+
+    public void setKeyEpoch(Integer keyEpoch) {
+        this.keyEpoch = keyEpoch;
+    }
+
+    public boolean isImage() {
+        return mimeType != null && mimeType.startsWith("image/");
+    }
+}
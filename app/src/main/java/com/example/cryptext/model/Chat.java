@@ -7,9 +7,17 @@ import java.util.Map;
 
 public class Chat {
     private String chatId;
+    // Plain text only for the new-chat placeholder and previews saved before they were encrypted
     private String lastMessage;
+    // The newest message's ciphertext and key epoch, shown as the preview once decrypted
+    private String previewMessageId;
+    private String previewContent;
+    private int previewKeyEpoch;
     private long timestamp;
     private List<String> participants;
+    // Group chats have a name and any number of participants
+    private boolean group;
+    private String name;
 
     // Required empty constructor for Firestore
     public Chat() {
@@ -39,6 +47,35 @@ public class Chat {
         this.lastMessage = lastMessage;
     }
 
+    public String getPreviewMessageId() {
+        return previewMessageId;
+    }
+
+    public String getPreviewContent() {
+        return previewContent;
+    }
+
+    public int getPreviewKeyEpoch() {
+        return previewKeyEpoch;
+    }
+
+    /**
+     * Use a message as the preview, keeping it encrypted; clears any plain text preview
+     */
+    public void setPreview(String messageId, String content, int keyEpoch) {
+        this.previewMessageId = messageId;
+        this.previewContent = content;
+        this.previewKeyEpoch = keyEpoch;
+        this.lastMessage = null;
+    }
+
+    /**
+     * Whether the preview is stored encrypted and must be decrypted to show
+     */
+    public boolean hasEncryptedPreview() {
+        return previewContent != null;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -55,6 +92,22 @@ public class Chat {
         this.participants = participants;
     }
 
+    public boolean isGroup() {
+        return group;
+    }
+
+    public void setGroup(boolean group) {
+        this.group = group;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
     public void addParticipant(String userId) {
         if (participants == null) {
             participants = new ArrayList<>();
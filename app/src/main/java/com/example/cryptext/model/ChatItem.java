@@ -0,0 +1,61 @@
+package com.example.cryptext.model;
+
+/**
+ * Display model for a chat list row. The peer label and formatted time are
+ * resolved once when the chat is added, not on every bind. The label starts
+ * as a placeholder until the peer's profile has been resolved.
+ */
+public class ChatItem {
+    private final Chat chat;
+    private final String peerId;
+    private String peerLabel;
+    private boolean peerResolved;
+    private final String formattedTime;
+    private int unreadCount;
+
+    public ChatItem(Chat chat, String peerId, String peerLabel, String formattedTime) {
+        this.chat = chat;
+        this.peerId = peerId;
+        this.peerLabel = peerLabel;
+        this.formattedTime = formattedTime;
+    }
+
+    public Chat getChat() {
+        return chat;
+    }
+
+    public String getChatId() {
+        return chat.getChatId();
+    }
+
+    // The other participant, or null if none was found
+    public String getPeerId() {
+        return peerId;
+    }
+
+    public String getPeerLabel() {
+        return peerLabel;
+    }
+
+    public void setPeerLabel(String peerLabel, boolean resolved) {
+        this.peerLabel = peerLabel;
+        this.peerResolved = resolved;
+    }
+
+    // False while the label is only a placeholder
+    public boolean isPeerResolved() {
+        return peerResolved;
+    }
+
+    public String getFormattedTime() {
+        return formattedTime;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public void setUnreadCount(int unreadCount) {
+        this.unreadCount = unreadCount;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.cryptext.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One key epoch of a chat as handed to its members: the epoch's key wrapped
+ * to each member's public identity key, keyed by userId. Only the member
+ * holding the matching private key can unwrap their copy, so these are safe
+ * to store on the server alongside the chat.
+ */
+public class EpochKeys {
+    private String chatId;
+    private int epoch;
+    private Map<String, String> wrappedKeys;
+
+    // Required empty constructor for Gson
+    public EpochKeys() {
+    }
+
+    public EpochKeys(String chatId, int epoch, Map<String, String> wrappedKeys) {
+        this.chatId = chatId;
+        this.epoch = epoch;
+        this.wrappedKeys = wrappedKeys;
+    }
+
+    public String getChatId() {
+        return chatId;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public Map<String, String> getWrappedKeys() {
+        if (wrappedKeys == null) {
+            wrappedKeys = new HashMap<>();
+        }
+        return wrappedKeys;
+    }
+}
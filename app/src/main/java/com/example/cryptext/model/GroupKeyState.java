@@ -0,0 +1,82 @@
+package com.example.cryptext.model;
+
+/**
+ * Which key epoch a chat currently encrypts with: group chats from creation,
+ * one-to-one chats once their key is rotated. The wrapped keys of each epoch
+ * are stored separately, so reading this stays cheap however many members
+ * the group has.
+ */
+public class GroupKeyState {
+    private int epoch;
+    // Set when membership changes; the next send issues a new key
+    private boolean rotationPending;
+    // Set once the current epoch's key was wrapped to members' public identity keys
+    // rather than to keys derived from their IDs, as older versions did
+    private boolean wrappedToIdentityKeys;
+    // Set when this device issued the current epoch, so it holds every member's copy
+    private boolean issuedHere;
+    // Set when older messages are being re-encrypted under the current epoch
+    private boolean reencryptPending;
+    // Re-encryption progress: index into the legacy message list, then byte offset into the log
+    private int reencryptLegacyIndex;
+    private long reencryptLogOffset;
+
+    public GroupKeyState() {
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(int epoch) {
+        this.epoch = epoch;
+    }
+
+    public boolean isRotationPending() {
+        return rotationPending;
+    }
+
+    public void setRotationPending(boolean rotationPending) {
+        this.rotationPending = rotationPending;
+    }
+
+    public boolean isWrappedToIdentityKeys() {
+        return wrappedToIdentityKeys;
+    }
+
+    public void setWrappedToIdentityKeys(boolean wrappedToIdentityKeys) {
+        this.wrappedToIdentityKeys = wrappedToIdentityKeys;
+    }
+
+    public boolean isIssuedHere() {
+        return issuedHere;
+    }
+
+    public void setIssuedHere(boolean issuedHere) {
+        this.issuedHere = issuedHere;
+    }
+
+    public boolean isReencryptPending() {
+        return reencryptPending;
+    }
+
+    public void setReencryptPending(boolean reencryptPending) {
+        this.reencryptPending = reencryptPending;
+    }
+
+    public int getReencryptLegacyIndex() {
+        return reencryptLegacyIndex;
+    }
+
+    public void setReencryptLegacyIndex(int reencryptLegacyIndex) {
+        this.reencryptLegacyIndex = reencryptLegacyIndex;
+    }
+
+    public long getReencryptLogOffset() {
+        return reencryptLogOffset;
+    }
+
+    public void setReencryptLogOffset(long reencryptLogOffset) {
+        this.reencryptLogOffset = reencryptLogOffset;
+    }
+}
@@ -5,6 +5,12 @@ public class Message {
     private String senderId;
     private String content;
     private long timestamp;
+    // Hybrid logical clock value that orders the chat; 0 for messages from before HLCs
+    private long hlc;
+    // Group key epoch the content is encrypted under; 0 for the chat's passphrase key
+    private int keyEpoch;
+    // Attached file, or null for a text message
+    private Attachment attachment;
 
     // Required empty constructor for Firestore
     public Message() {
@@ -48,4 +54,28 @@ public class Message {
     public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
     }
-} 
\ No newline at end of file
+
+    public long getHlc() {
+        return hlc;
+    }
+
+    public void setHlc(long hlc) {
+        this.hlc = hlc;
+    }
+
+    public int getKeyEpoch() {
+        return keyEpoch;
+    }
+
+    public void setKeyEpoch(int keyEpoch) {
+        this.keyEpoch = keyEpoch;
+    }
+
+    public Attachment getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Attachment attachment) {
+        this.attachment = attachment;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.cryptext.model;
+
+/**
+ * Display model for a message row. Everything the adapter needs on bind
+ * is computed once when the message list arrives.
+ */
+public class MessageItem {
+    private final Message message;
+    private final String formattedTime;
+    private final boolean sent;
+
+    public MessageItem(Message message, String formattedTime, boolean sent) {
+        this.message = message;
+        this.formattedTime = formattedTime;
+        this.sent = sent;
+    }
+
+    // The stored message; content is still encrypted
+    public Message getMessage() {
+        return message;
+    }
+
+    public String getMessageId() {
+        return message.getMessageId();
+    }
+
+    public String getFormattedTime() {
+        return formattedTime;
+    }
+
+    // True if the current user sent this message
+    public boolean isSent() {
+        return sent;
+    }
+}
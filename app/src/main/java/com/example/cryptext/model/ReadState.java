@@ -0,0 +1,88 @@
+package com.example.cryptext.model;
+
+/**
+ * How far the user has read a chat, kept up to date as messages are sent,
+ * received and read so the unread count never needs a scan. Positions are
+ * HybridLogicalClock order keys: a message from someone else ordered after
+ * the watermark is unread.
+ */
+public class ReadState {
+    // Last message read, and its order key; 0 and null before the chat is first read
+    private long watermark;
+    private String watermarkId;
+    // Newest message stored, which opening the chat marks read
+    private long latest;
+    private String latestId;
+    private int unreadCount;
+
+    public ReadState() {
+    }
+
+    public ReadState(ReadState other) {
+        this.watermark = other.watermark;
+        this.watermarkId = other.watermarkId;
+        this.latest = other.latest;
+        this.latestId = other.latestId;
+        this.unreadCount = other.unreadCount;
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public String getWatermarkId() {
+        return watermarkId;
+    }
+
+    public long getLatest() {
+        return latest;
+    }
+
+    public String getLatestId() {
+        return latestId;
+    }
+
+    public int getUnreadCount() {
+        return unreadCount;
+    }
+
+    public void setUnreadCount(int unreadCount) {
+        this.unreadCount = unreadCount;
+    }
+
+    /**
+     * Note a stored message as the newest if it orders after the current newest
+     */
+    public void noteStored(String messageId, long orderKey) {
+        if (orderKey > latest) {
+            latest = orderKey;
+            latestId = messageId;
+        }
+    }
+
+    /**
+     * Make a message the newest after newer ones were removed, e.g. by retention
+     * @param messageId the newest remaining message, or null if none remain
+     */
+    public void resetLatest(String messageId, long orderKey) {
+        latest = orderKey;
+        latestId = messageId;
+    }
+
+    /**
+     * Move the watermark forward to a message; never moves it back
+     */
+    public void markReadUpTo(String messageId, long orderKey) {
+        if (orderKey > watermark) {
+            watermark = orderKey;
+            watermarkId = messageId;
+        }
+    }
+
+    /**
+     * Whether a message from someone else at this position is unread
+     */
+    public boolean isAfterWatermark(long orderKey) {
+        return orderKey > watermark;
+    }
+}
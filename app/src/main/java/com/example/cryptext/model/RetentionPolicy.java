@@ -0,0 +1,77 @@
+package com.example.cryptext.model;
+
+/**
+ * Limits on how much of a chat's history is kept. A limit of 0 means no
+ * limit. When a global and a per-chat policy both apply, the stricter value
+ * of each limit wins.
+ */
+public class RetentionPolicy {
+    // Messages older than this are removed
+    private long maxAgeMs;
+    // Only the newest this many messages are kept
+    private int maxCount;
+    // Only the newest messages fitting in this many stored bytes are kept
+    private long maxBytes;
+
+    public RetentionPolicy() {
+    }
+
+    public RetentionPolicy(long maxAgeMs, int maxCount, long maxBytes) {
+        this.maxAgeMs = maxAgeMs;
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+
+    public void setMaxAgeMs(long maxAgeMs) {
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public void setMaxCount(int maxCount) {
+        this.maxCount = maxCount;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean isUnlimited() {
+        return maxAgeMs <= 0 && maxCount <= 0 && maxBytes <= 0;
+    }
+
+    /**
+     * Combine two policies, taking the stricter value of each limit
+     * @param a a policy, or null
+     * @param b a policy, or null
+     */
+    public static RetentionPolicy stricter(RetentionPolicy a, RetentionPolicy b) {
+        if (a == null) {
+            return b != null ? b : new RetentionPolicy();
+        }
+        if (b == null) {
+            return a;
+        }
+        return new RetentionPolicy(
+            stricterLimit(a.maxAgeMs, b.maxAgeMs),
+            (int) stricterLimit(a.maxCount, b.maxCount),
+            stricterLimit(a.maxBytes, b.maxBytes));
+    }
+
+    private static long stricterLimit(long a, long b) {
+        if (a <= 0) {
+            return Math.max(b, 0);
+        }
+        return b <= 0 ? a : Math.min(a, b);
+    }
+}
@@ -0,0 +1,350 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.HybridLogicalClock;
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.QuerySnapshot;
+import com.google.firebase.firestore.SetOptions;
+import com.google.firebase.firestore.WriteBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SyncBackend storing messages in chats/{chatId}/batches/{batchId}, many
+ * messages per document packed with MessageBatchCodec. Only ciphertext is
+ * uploaded. Each batch gets a server timestamp that defines the pull order,
+ * so cursors never miss late-arriving writes from devices with skewed clocks.
+ * The chat document itself, chats/{chatId}, lists the participants so each
+ * of them can find the chat. Each member's copy of an epoch key is its own
+ * document in chat_keys, found by member, and public identity keys are a
+ * field of users/{userId}.
+ */
+public class FirestoreSyncBackend implements SyncBackend {
+
+    private static final String CHATS_COLLECTION = "chats";
+    private static final String BATCHES_COLLECTION = "batches";
+    private static final String FIELD_DATA = "data";
+    private static final String FIELD_COUNT = "count";
+    private static final String FIELD_SERVER_TIME = "serverTime";
+    private static final String FIELD_PARTICIPANTS = "participants";
+    private static final String FIELD_GROUP = "group";
+    private static final String FIELD_NAME = "name";
+    private static final String FIELD_CREATED = "created";
+    private static final String USERS_COLLECTION = "users";
+    private static final String FIELD_PUBLIC_KEY = "publicKey";
+    private static final String KEYS_COLLECTION = "chat_keys";
+    private static final String FIELD_CHAT_ID = "chatId";
+    private static final String FIELD_EPOCH = "epoch";
+    private static final String FIELD_MEMBER = "member";
+    private static final String FIELD_WRAPPED_KEY = "wrappedKey";
+    // Firestore's limit on values in a single "in" query
+    private static final int MAX_IN_VALUES = 30;
+
+    // Firestore's limit on writes in one batch
+    private static final int MAX_BATCH_WRITES = 500;
+    // Seal a message batch at this many encoded bytes; documents are limited to 1 MiB
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final long TIMEOUT_SECONDS = 30;
+    // Batch documents fetched per query while pulling, at most 1 MiB at MAX_BATCH_BYTES each
+    static final int DOCUMENTS_PER_QUERY = 4;
+    // Stop a pull once its batches add up to this many bytes
+    static final long MAX_PULL_BYTES = 1024 * 1024;
+
+    private FirebaseFirestore firestore;
+
+    // Firestore is resolved on first use rather than at construction
+    private FirebaseFirestore getFirestore() {
+        if (firestore == null) {
+            firestore = FirebaseFirestore.getInstance();
+        }
+        return firestore;
+    }
+
+    private CollectionReference batches(String chatId) {
+        return getFirestore().collection(CHATS_COLLECTION).document(chatId).collection(BATCHES_COLLECTION);
+    }
+
+    @Override
+    public void push(Map<String, List<Message>> messagesByChat) throws Exception {
+        WriteBatch writeBatch = getFirestore().batch();
+        int writes = 0;
+        for (Map.Entry<String, List<Message>> chat : messagesByChat.entrySet()) {
+            CollectionReference collection = batches(chat.getKey());
+            List<Message> messages = chat.getValue();
+            int start = 0;
+            while (start < messages.size()) {
+                if (writes == MAX_BATCH_WRITES) {
+                    Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    writeBatch = getFirestore().batch();
+                    writes = 0;
+                }
+
+                // Pack messages until the batch is sealed by size
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                int end = start;
+                try (MessageBatchCodec.Encoder encoder = new MessageBatchCodec.Encoder(data, true)) {
+                    while (end < messages.size() && encoder.getRecordBytes() < MAX_BATCH_BYTES) {
+                        encoder.write(messages.get(end++));
+                    }
+                }
+
+                Map<String, Object> document = new HashMap<>();
+                document.put(FIELD_DATA, Blob.fromBytes(data.toByteArray()));
+                document.put(FIELD_COUNT, end - start);
+                document.put(FIELD_SERVER_TIME, FieldValue.serverTimestamp());
+                // Retrying the same send overwrites the same document
+                writeBatch.set(collection.document(batchId(messages.subList(start, end))), document);
+                writes++;
+                start = end;
+            }
+        }
+        if (writes > 0) {
+            Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Pull whole batches after the cursor, stopping once at least limit messages
+     * or MAX_PULL_BYTES are collected. A batch document holds many messages, so
+     * documents are fetched a few at a time rather than limit at a time.
+     */
+    @Override
+    public Page pull(String chatId, SyncCursor after, int limit) throws Exception {
+        List<Message> page = new ArrayList<>();
+        SyncCursor cursor = after;
+        long bytes = 0;
+        boolean hasMore = true;
+        while (hasMore && page.size() < limit && bytes < MAX_PULL_BYTES) {
+            Query query = batches(chatId)
+                .orderBy(FIELD_SERVER_TIME)
+                .orderBy(FieldPath.documentId());
+            if (cursor != null) {
+                query = query.startAfter(toTimestamp(cursor.getPosition()), cursor.getMessageId());
+            }
+            QuerySnapshot snapshot = Tasks.await(query.limit(DOCUMENTS_PER_QUERY).get(),
+                TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            int batchesRead = 0;
+            boolean unstamped = false;
+            for (DocumentSnapshot document : snapshot.getDocuments()) {
+                Timestamp serverTime = document.getTimestamp(FIELD_SERVER_TIME);
+                if (serverTime == null) {
+                    // Our own write that the server hasn't stamped yet; pick it up next time
+                    unstamped = true;
+                    break;
+                }
+                Blob data = document.getBlob(FIELD_DATA);
+                if (data != null) {
+                    byte[] batch = data.toBytes();
+                    page.addAll(MessageBatchCodec.decode(batch));
+                    bytes += batch.length;
+                }
+                cursor = new SyncCursor(toPosition(serverTime), document.getId());
+                batchesRead++;
+                if (page.size() >= limit || bytes >= MAX_PULL_BYTES) {
+                    break;
+                }
+            }
+            // A full query may have more after it; a short one or an unstamped write ends the pull
+            hasMore = !unstamped
+                && (batchesRead < snapshot.size() || snapshot.size() == DOCUMENTS_PER_QUERY);
+        }
+        return new Page(page, cursor, hasMore);
+    }
+
+    @Override
+    public void pushChats(List<Chat> chats) throws Exception {
+        WriteBatch writeBatch = getFirestore().batch();
+        int writes = 0;
+        for (Chat chat : chats) {
+            if (writes == MAX_BATCH_WRITES) {
+                Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                writeBatch = getFirestore().batch();
+                writes = 0;
+            }
+            Map<String, Object> document = new HashMap<>();
+            document.put(FIELD_PARTICIPANTS, new ArrayList<>(chat.getParticipants()));
+            document.put(FIELD_GROUP, chat.isGroup());
+            document.put(FIELD_NAME, chat.getName());
+            document.put(FIELD_CREATED, chat.getTimestamp());
+            // Merged, so the batches subcollection and other fields are left alone
+            writeBatch.set(getFirestore().collection(CHATS_COLLECTION).document(chat.getChatId()),
+                document, SetOptions.merge());
+            writes++;
+        }
+        if (writes > 0) {
+            Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<Chat> pullChats(String userId) throws Exception {
+        QuerySnapshot snapshot = Tasks.await(getFirestore().collection(CHATS_COLLECTION)
+            .whereArrayContains(FIELD_PARTICIPANTS, userId)
+            .get(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        List<Chat> chats = new ArrayList<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            Object participants = document.get(FIELD_PARTICIPANTS);
+            if (!(participants instanceof List)) {
+                continue;
+            }
+            Long created = document.getLong(FIELD_CREATED);
+            Chat chat = new Chat(document.getId(), null, created != null ? created : 0);
+            chat.setParticipants(new ArrayList<>((List<String>) participants));
+            chat.setGroup(Boolean.TRUE.equals(document.getBoolean(FIELD_GROUP)));
+            chat.setName(document.getString(FIELD_NAME));
+            chats.add(chat);
+        }
+        return chats;
+    }
+
+    @Override
+    public void publishPublicKey(String userId, String publicKey) throws Exception {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put(FIELD_PUBLIC_KEY, publicKey);
+        // Merged, so the profile fields are left alone
+        Tasks.await(getFirestore().collection(USERS_COLLECTION).document(userId).set(fields, SetOptions.merge()),
+            TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Map<String, String> pullPublicKeys(List<String> userIds) throws Exception {
+        Map<String, String> keys = new HashMap<>();
+        for (int start = 0; start < userIds.size(); start += MAX_IN_VALUES) {
+            List<String> chunk = userIds.subList(start, Math.min(userIds.size(), start + MAX_IN_VALUES));
+            QuerySnapshot snapshot = Tasks.await(getFirestore().collection(USERS_COLLECTION)
+                .whereIn(FieldPath.documentId(), new ArrayList<>(chunk))
+                .get(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            for (DocumentSnapshot document : snapshot.getDocuments()) {
+                String publicKey = document.getString(FIELD_PUBLIC_KEY);
+                if (publicKey != null) {
+                    keys.put(document.getId(), publicKey);
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void pushKeys(List<EpochKeys> keys) throws Exception {
+        WriteBatch writeBatch = getFirestore().batch();
+        int writes = 0;
+        for (EpochKeys epochKeys : keys) {
+            for (Map.Entry<String, String> wrapped : epochKeys.getWrappedKeys().entrySet()) {
+                if (writes == MAX_BATCH_WRITES) {
+                    Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    writeBatch = getFirestore().batch();
+                    writes = 0;
+                }
+                Map<String, Object> document = new HashMap<>();
+                document.put(FIELD_CHAT_ID, epochKeys.getChatId());
+                document.put(FIELD_EPOCH, epochKeys.getEpoch());
+                document.put(FIELD_MEMBER, wrapped.getKey());
+                document.put(FIELD_WRAPPED_KEY, wrapped.getValue());
+                String documentId = epochKeys.getChatId() + "@" + epochKeys.getEpoch() + ":" + wrapped.getKey();
+                writeBatch.set(getFirestore().collection(KEYS_COLLECTION).document(documentId), document);
+                writes++;
+            }
+        }
+        if (writes > 0) {
+            Tasks.await(writeBatch.commit(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public List<EpochKeys> pullKeys(String userId) throws Exception {
+        QuerySnapshot snapshot = Tasks.await(getFirestore().collection(KEYS_COLLECTION)
+            .whereEqualTo(FIELD_MEMBER, userId)
+            .get(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Map<String, EpochKeys> byEpoch = new LinkedHashMap<>();
+        for (DocumentSnapshot document : snapshot.getDocuments()) {
+            String chatId = document.getString(FIELD_CHAT_ID);
+            Long epoch = document.getLong(FIELD_EPOCH);
+            String wrappedKey = document.getString(FIELD_WRAPPED_KEY);
+            if (chatId == null || epoch == null || wrappedKey == null) {
+                continue;
+            }
+            byEpoch.computeIfAbsent(chatId + "@" + epoch,
+                k -> new EpochKeys(chatId, epoch.intValue(), new HashMap<>()))
+                .getWrappedKeys().put(userId, wrappedKey);
+        }
+        return new ArrayList<>(byEpoch.values());
+    }
+
+    @Override
+    public Subscription watch(String chatId, final Runnable onRemoteChange) {
+        // Listening to the newest document costs one read per remote write,
+        // however long the chat is
+        ListenerRegistration registration = batches(chatId)
+            .orderBy(FIELD_SERVER_TIME, Query.Direction.DESCENDING)
+            .limit(1)
+            .addSnapshotListener((snapshot, error) -> {
+                if (error != null || snapshot == null || snapshot.getMetadata().hasPendingWrites()) {
+                    return;
+                }
+                onRemoteChange.run();
+            });
+        return registration::remove;
+    }
+
+    /**
+     * ID of a batch document: the newest HLC in the batch, zero-padded so IDs
+     * sort in send order among writes with the same server time, then a digest
+     * of the batch's message IDs. Two devices pushing batches that start with
+     * the same message get different documents, and a retry gets the same one.
+     */
+    static String batchId(List<Message> messages) {
+        long newest = 0;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Message message : messages) {
+            newest = Math.max(newest, HybridLogicalClock.orderKey(message));
+            if (message.getMessageId() != null) {
+                digest.update(message.getMessageId().getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+        StringBuilder id = new StringBuilder(String.format("%016x_", newest));
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 8; i++) {
+            id.append(String.format("%02x", hash[i]));
+        }
+        return id.toString();
+    }
+
+    // Positions are nanoseconds since the epoch, which keeps the server's full precision
+    private static long toPosition(Timestamp timestamp) {
+        return timestamp.getSeconds() * 1_000_000_000L + timestamp.getNanoseconds();
+    }
+
+    private static Timestamp toTimestamp(long position) {
+        return new Timestamp(position / 1_000_000_000L, (int) (position % 1_000_000_000L));
+    }
+}
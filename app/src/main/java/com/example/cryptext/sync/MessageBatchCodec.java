@@ -0,0 +1,442 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.HybridLogicalClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding for a batch of messages, so many messages can
+ * travel in one sync document instead of one JSON document each.
+ *
+ * Layout: a 4-byte magic, a version byte and a flags byte, then the record
+ * stream (deflated if FLAG_COMPRESSED) ending with a zero length. Each record
+ * is length-prefixed and holds the messageId, a sender index into a table
+ * built up inline, a zigzag timestamp delta from the previous record, the
+ * HLC as an offset from the timestamp (version 2), the group key epoch
+ * (version 3), the attachment reference with its hex content ids stored as
+ * raw bytes (version 4) and the key epoch it was stored under (version 5),
+ * and the ciphertext. Base64 ciphertext is stored as its raw
+ * bytes and re-encoded in the same form on decode, so messages round-trip
+ * unchanged.
+ */
+public final class MessageBatchCodec {
+
+    static final int MAGIC = 0x43544231; // "CTB1"
+    static final int VERSION = 5;
+    // Version 1 records have no HLC, version 2 records no key epoch, version 3 no attachment,
+    // version 4 no attachment key epoch
+    private static final int MIN_VERSION = 1;
+    static final int FLAG_COMPRESSED = 1;
+
+    // How a record's content is stored
+    private static final int CONTENT_NULL = 0;
+    private static final int CONTENT_TEXT = 1;
+    private static final int CONTENT_BASE64 = 2;
+    // android.util.Base64.DEFAULT: 76-column lines, each ending in '\n'
+    private static final int CONTENT_BASE64_WRAPPED = 3;
+
+    private static final Base64.Encoder WRAPPED_ENCODER =
+        Base64.getMimeEncoder(76, new byte[]{'\n'});
+
+    private MessageBatchCodec() {
+    }
+
+    public static byte[] encode(List<Message> messages, boolean compress) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Encoder encoder = new Encoder(out, compress)) {
+            for (Message message : messages) {
+                encoder.write(message);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public static List<Message> decode(byte[] batch) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (Decoder decoder = new Decoder(new ByteArrayInputStream(batch))) {
+            Message message;
+            while ((message = decoder.read()) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Streams messages into a batch. close() writes the end marker.
+     */
+    public static class Encoder implements Closeable {
+        private final OutputStream out;
+        private final OutputStream records;
+        private final Deflater deflater;
+        private final Map<String, Integer> senderIndexes = new HashMap<>();
+        // Each record is assembled here so its length can be written first
+        private final Buffer record = new Buffer();
+        private final Buffer lengthPrefix = new Buffer();
+        private long previousTimestamp;
+        private long recordBytes;
+        private int messageCount;
+        private boolean closed;
+
+        public Encoder(OutputStream out, boolean compress) throws IOException {
+            this.out = out;
+            out.write(new byte[]{
+                (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC,
+                (byte) VERSION, (byte) (compress ? FLAG_COMPRESSED : 0)
+            });
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            this.records = compress ? new DeflaterOutputStream(out, deflater, 4096) : out;
+        }
+
+        public void write(Message message) throws IOException {
+            record.reset();
+            record.writeString(message.getMessageId());
+
+            String senderId = message.getSenderId();
+            Integer senderIndex = senderIndexes.get(senderId);
+            if (senderIndex != null) {
+                record.writeVarint(senderIndex);
+            } else {
+                // A new index is followed by the sender it defines
+                record.writeVarint(senderIndexes.size());
+                record.writeString(senderId);
+                senderIndexes.put(senderId, senderIndexes.size());
+            }
+
+            long delta = message.getTimestamp() - previousTimestamp;
+            record.writeVarint((delta << 1) ^ (delta >> 63));
+            previousTimestamp = message.getTimestamp();
+
+            // The HLC is usually just past the timestamp; 0 means the message has none
+            long hlc = message.getHlc();
+            if (hlc == 0) {
+                record.writeVarint(0);
+            } else {
+                long offset = hlc - HybridLogicalClock.pack(message.getTimestamp());
+                record.writeVarint(((offset << 1) ^ (offset >> 63)) + 1);
+            }
+
+            record.writeVarint(message.getKeyEpoch());
+
+            writeAttachment(message.getAttachment());
+
+            writeContent(message.getContent());
+
+            lengthPrefix.reset();
+            lengthPrefix.writeVarint(record.size());
+            lengthPrefix.writeTo(records);
+            record.writeTo(records);
+            recordBytes += lengthPrefix.size() + record.size();
+            messageCount++;
+        }
+
+        /**
+         * Uncompressed size of the records written so far
+         */
+        public long getRecordBytes() {
+            return recordBytes;
+        }
+
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            records.write(0);
+            if (deflater != null) {
+                // Finish without closing the caller's stream, then free native memory
+                ((DeflaterOutputStream) records).finish();
+                deflater.end();
+            }
+            out.flush();
+        }
+
+        // Chunk count + 1, so 0 means no attachment
+        private void writeAttachment(Attachment attachment) throws IOException {
+            if (attachment == null) {
+                record.writeVarint(0);
+                return;
+            }
+            List<String> chunks = attachment.getChunks();
+            record.writeVarint(chunks.size() + 1);
+            record.writeString(attachment.getMimeType());
+            record.writeVarint(attachment.getSize());
+            for (String chunk : chunks) {
+                record.writeBlob(fromHex(chunk));
+            }
+            record.writeBlob(attachment.getThumbnail() != null ? fromHex(attachment.getThumbnail()) : new byte[0]);
+            // Epoch + 1, so 0 means legacy chat-derived keys
+            record.writeVarint(attachment.getKeyEpoch() != null ? attachment.getKeyEpoch() + 1 : 0);
+        }
+
+        private static byte[] fromHex(String id) throws IOException {
+            if (id.length() % 2 != 0) {
+                throw new IOException("Bad content id " + id);
+            }
+            byte[] bytes = new byte[id.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                int high = Character.digit(id.charAt(2 * i), 16);
+                int low = Character.digit(id.charAt(2 * i + 1), 16);
+                if (high < 0 || low < 0 || Character.isUpperCase(id.charAt(2 * i))
+                        || Character.isUpperCase(id.charAt(2 * i + 1))) {
+                    throw new IOException("Bad content id " + id);
+                }
+                bytes[i] = (byte) ((high << 4) | low);
+            }
+            return bytes;
+        }
+
+        private void writeContent(String content) {
+            if (content == null) {
+                record.writeVarint(CONTENT_NULL);
+                return;
+            }
+
+            byte[] raw = decodeBase64(content);
+            if (raw != null) {
+                if (Base64.getEncoder().encodeToString(raw).equals(content)) {
+                    record.writeVarint(CONTENT_BASE64);
+                    record.writeBlob(raw);
+                    return;
+                }
+                if (encodeWrapped(raw).equals(content)) {
+                    record.writeVarint(CONTENT_BASE64_WRAPPED);
+                    record.writeBlob(raw);
+                    return;
+                }
+            }
+            record.writeVarint(CONTENT_TEXT);
+            record.writeString(content);
+        }
+
+        private static byte[] decodeBase64(String content) {
+            try {
+                return Base64.getMimeDecoder().decode(content);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads messages back from a batch
+     */
+    public static class Decoder implements Closeable {
+        private final InputStream records;
+        private final List<String> senders = new ArrayList<>();
+        private byte[] scratch = new byte[256];
+        private final int version;
+        private long previousTimestamp;
+        private boolean finished;
+
+        public Decoder(InputStream in) throws IOException {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                magic = (magic << 8) | readByte(in);
+            }
+            int version = readByte(in);
+            int flags = readByte(in);
+            if (magic != MAGIC || version < MIN_VERSION || version > VERSION) {
+                throw new IOException("Not a message batch");
+            }
+            this.version = version;
+            this.records = (flags & FLAG_COMPRESSED) != 0 ? new InflaterInputStream(in) : in;
+        }
+
+        /**
+         * @return the next message, or null at the end of the batch
+         */
+        public Message read() throws IOException {
+            if (finished) {
+                return null;
+            }
+            if (readVarint() == 0) {
+                finished = true;
+                return null;
+            }
+
+            String messageId = readString();
+
+            int senderIndex = (int) readVarint();
+            if (senderIndex == senders.size()) {
+                senders.add(readString());
+            } else if (senderIndex > senders.size()) {
+                throw new IOException("Bad sender index " + senderIndex);
+            }
+            String senderId = senders.get(senderIndex);
+
+            long zigzag = readVarint();
+            long timestamp = previousTimestamp + ((zigzag >>> 1) ^ -(zigzag & 1));
+            previousTimestamp = timestamp;
+
+            long hlc = 0;
+            if (version >= 2) {
+                long encoded = readVarint();
+                if (encoded != 0) {
+                    long zigzagOffset = encoded - 1;
+                    hlc = HybridLogicalClock.pack(timestamp) + ((zigzagOffset >>> 1) ^ -(zigzagOffset & 1));
+                }
+            }
+
+            int keyEpoch = version >= 3 ? (int) readVarint() : 0;
+            Attachment attachment = version >= 4 ? readAttachment() : null;
+
+            Message message = new Message(messageId, senderId, readContent(), timestamp);
+            message.setHlc(hlc);
+            message.setKeyEpoch(keyEpoch);
+            message.setAttachment(attachment);
+            return message;
+        }
+
+        @Override
+        public void close() throws IOException {
+            records.close();
+        }
+
+        private Attachment readAttachment() throws IOException {
+            int chunkCount = (int) readVarint() - 1;
+            if (chunkCount < 0) {
+                return null;
+            }
+            String mimeType = readString();
+            long size = readVarint();
+            List<String> chunks = new ArrayList<>(chunkCount);
+            for (int i = 0; i < chunkCount; i++) {
+                chunks.add(toHex(readBytes()));
+            }
+            byte[] thumbnail = readBytes();
+            long keyEpoch = version >= 5 ? readVarint() : 0;
+            return new Attachment(mimeType, size, chunks, thumbnail.length > 0 ? toHex(thumbnail) : null,
+                keyEpoch > 0 ? (int) (keyEpoch - 1) : null);
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+
+        private String readContent() throws IOException {
+            int kind = (int) readVarint();
+            switch (kind) {
+                case CONTENT_NULL:
+                    return null;
+                case CONTENT_TEXT:
+                    return readString();
+                case CONTENT_BASE64:
+                    return Base64.getEncoder().encodeToString(readBytes());
+                case CONTENT_BASE64_WRAPPED:
+                    return encodeWrapped(readBytes());
+                default:
+                    throw new IOException("Bad content kind " + kind);
+            }
+        }
+
+        private String readString() throws IOException {
+            int length = (int) readVarint();
+            if (length == 0) {
+                return null;
+            }
+            fill(length - 1);
+            return new String(scratch, 0, length - 1, StandardCharsets.UTF_8);
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = (int) readVarint();
+            fill(length);
+            return Arrays.copyOf(scratch, length);
+        }
+
+        // Read length bytes into the reused scratch buffer
+        private void fill(int length) throws IOException {
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            int offset = 0;
+            while (offset < length) {
+                int read = records.read(scratch, offset, length - offset);
+                if (read < 0) {
+                    throw new EOFException("Truncated message batch");
+                }
+                offset += read;
+            }
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte(records);
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private static int readByte(InputStream stream) throws IOException {
+            int b = stream.read();
+            if (b < 0) {
+                throw new EOFException("Truncated message batch");
+            }
+            return b;
+        }
+    }
+
+    private static String encodeWrapped(byte[] raw) {
+        return raw.length == 0 ? "" : WRAPPED_ENCODER.encodeToString(raw) + "\n";
+    }
+
+    // Growable byte buffer with varint helpers; reused across records
+    private static class Buffer extends ByteArrayOutputStream {
+
+        void writeVarint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        // Strings are prefixed with length + 1 so that 0 can mean null
+        void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        void writeBlob(byte[] bytes) {
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
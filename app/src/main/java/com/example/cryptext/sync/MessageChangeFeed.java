@@ -0,0 +1,64 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Message;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide feed of message changes per chat. LocalStorageManager publishes
+ * the messages it adds, whether sent locally or merged from a pull, so
+ * subscribers receive only the new records instead of re-reading the chat.
+ */
+public class MessageChangeFeed {
+
+    public interface Listener {
+        /**
+         * Called on the thread that stored the messages
+         * @param messages added or changed messages, in storage order
+         */
+        void onMessagesChanged(String chatId, List<Message> messages);
+    }
+
+    // Shared by every LocalStorageManager in the app process
+    private static MessageChangeFeed instance;
+
+    private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+
+    public MessageChangeFeed() {
+    }
+
+    public static synchronized MessageChangeFeed getInstance() {
+        if (instance == null) {
+            instance = new MessageChangeFeed();
+        }
+        return instance;
+    }
+
+    public Subscription subscribe(final String chatId, final Listener listener) {
+        listeners.computeIfAbsent(chatId, k -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> {
+            List<Listener> chatListeners = listeners.get(chatId);
+            if (chatListeners != null) {
+                chatListeners.remove(listener);
+            }
+        };
+    }
+
+    public void publish(String chatId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<Listener> chatListeners = listeners.get(chatId);
+        if (chatListeners == null) {
+            return;
+        }
+        List<Message> changes = Collections.unmodifiableList(messages);
+        for (Listener listener : chatListeners) {
+            listener.onMessagesChanged(chatId, changes);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.cryptext.sync;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable queue of locally sent messages, and of chats and key epochs
+ * created or changed here, waiting to be pushed.
+ * Enqueueing is a small local write, so sending never waits on the network;
+ * the OutboxFlusher drains it in batches.
+ *
+ * Entries are committed before enqueueing returns, so a message that is in
+ * the chat's log is pushed even if the process dies right after sending.
+ * Each entry is its own preference key, so enqueueing and removing write
+ * only the entries involved rather than the whole queue, and there is no
+ * shared lock: sends in unrelated chats never wait on each other here.
+ * Keys are "<sequence>/<chatId>" with a zero-padded sequence, so they sort
+ * in the order entries were queued and a chat's entries are found by key.
+ */
+public class Outbox {
+    private static final String TAG = "Outbox";
+
+    public static final String PREF_OUTBOX = "outbox_data";
+    private static final String KEY_SEPARATOR = "/";
+
+    /**
+     * A queued message and the chat it belongs to, a queued chat record, or
+     * a chat's queued wrapped keys
+     */
+    public static class Entry {
+        private String chatId;
+        private Message message;
+        private Chat chat;
+        private EpochKeys keys;
+        // Preference key the entry is saved under; set when read back
+        private transient String key;
+
+        // Required empty constructor for Gson
+        public Entry() {
+        }
+
+        public Entry(String chatId, Message message) {
+            this.chatId = chatId;
+            this.message = message;
+        }
+
+        public Entry(Chat chat) {
+            this.chatId = chat.getChatId();
+            this.chat = chat;
+        }
+
+        public Entry(EpochKeys keys) {
+            this.chatId = keys.getChatId();
+            this.keys = keys;
+        }
+
+        public String getChatId() {
+            return chatId;
+        }
+
+        /**
+         * Get the queued message, or null if this entry is a chat record or keys
+         */
+        public Message getMessage() {
+            return message;
+        }
+
+        /**
+         * Get the queued chat record, or null if this entry is a message or keys
+         */
+        public Chat getChat() {
+            return chat;
+        }
+
+        /**
+         * Get the queued wrapped keys, or null if this entry is a message or chat record
+         */
+        public EpochKeys getKeys() {
+            return keys;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Gson gson;
+    private final AtomicLong nextSequence;
+
+    public Outbox(SharedPreferences prefs) {
+        this.prefs = prefs;
+        this.gson = new Gson();
+        this.nextSequence = new AtomicLong(lastSequence() + 1);
+    }
+
+    public void enqueue(String chatId, Message message) {
+        prefs.edit().putString(nextKey(chatId), gson.toJson(new Entry(chatId, message))).commit();
+    }
+
+    /**
+     * Queue a chat record, so its participants learn about it
+     */
+    public void enqueueChat(Chat chat) {
+        prefs.edit().putString(nextKey(chat.getChatId()), gson.toJson(new Entry(chat))).commit();
+    }
+
+    /**
+     * Queue keys of a chat's epoch wrapped for some of its members, so they can read it
+     */
+    public void enqueueKeys(EpochKeys keys) {
+        prefs.edit().putString(nextKey(keys.getChatId()), gson.toJson(new Entry(keys))).commit();
+    }
+
+    /**
+     * Get up to max of the oldest queued entries without removing them
+     */
+    public List<Entry> peek(int max) {
+        List<String> keys = sortedKeys();
+        List<Entry> entries = new ArrayList<>();
+        for (String key : keys) {
+            if (entries.size() == max) {
+                break;
+            }
+            Entry entry = read(key);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Remove entries once the server has accepted them. Written in the
+     * background: an entry that survives a crash is pushed again, which the
+     * server takes as a rewrite of the same document.
+     */
+    public void remove(List<Entry> entries) {
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Entry entry : entries) {
+            if (entry.key != null) {
+                editor.remove(entry.key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Drop queued messages for a deleted chat
+     */
+    public void removeChat(String chatId) {
+        String suffix = KEY_SEPARATOR + chatId;
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : sortedKeys()) {
+            if (key.endsWith(suffix)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    public int size() {
+        return sortedKeys().size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        prefs.edit().clear().apply();
+    }
+
+    private String nextKey(String chatId) {
+        return String.format("%016x", nextSequence.getAndIncrement()) + KEY_SEPARATOR + chatId;
+    }
+
+    private List<String> sortedKeys() {
+        List<String> keys = new ArrayList<>(prefs.getAll().keySet());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private Entry read(String key) {
+        String entryJson = prefs.getString(key, null);
+        Entry entry = entryJson != null ? gson.fromJson(entryJson, Entry.class) : null;
+        if (entry != null) {
+            entry.key = key;
+        }
+        return entry;
+    }
+
+    private long lastSequence() {
+        long last = -1;
+        for (String key : prefs.getAll().keySet()) {
+            int separator = key.indexOf(KEY_SEPARATOR);
+            if (separator < 0) {
+                continue;
+            }
+            try {
+                last = Math.max(last, Long.parseLong(key.substring(0, separator), 16));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected outbox key " + key);
+            }
+        }
+        return last;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.cryptext.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.LocalStorageManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains the Outbox in the background. Sends that arrive close together are
+ * coalesced into one batched write of up to MAX_BATCH_SIZE messages, and
+ * failures are retried with jittered exponential backoff. Pushes are keyed
+ * by messageId, so retrying a batch that actually landed is harmless.
+ */
+public class OutboxFlusher {
+    private static final String TAG = "OutboxFlusher";
+
+    // Firestore's limit on writes in one WriteBatch
+    static final int MAX_BATCH_SIZE = 500;
+    // Wait this long after a send so a burst goes out as one batch
+    static final long COALESCE_DELAY_MS = 250;
+    static final long BASE_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+    // One flusher per signed-in user's outbox
+    private static final Map<String, OutboxFlusher> instances = new HashMap<>();
+
+    private final LocalStorageManager storage;
+    private final Outbox outbox;
+    private final SyncBackend backend;
+    private final ScheduledExecutorService executor;
+    private final Random random;
+
+    private ScheduledFuture<?> scheduledFlush;
+    private int consecutiveFailures;
+
+    public OutboxFlusher(LocalStorageManager storage, SyncBackend backend,
+                         ScheduledExecutorService executor, Random random) {
+        this.storage = storage;
+        this.outbox = storage.getOutbox();
+        this.backend = backend;
+        this.executor = executor;
+        this.random = random;
+    }
+
+    public static synchronized OutboxFlusher forUser(Context context, String userId) {
+        OutboxFlusher flusher = instances.get(userId);
+        if (flusher == null) {
+            LocalStorageManager storage = LocalStorageManager.forUser(context, userId);
+            flusher = new OutboxFlusher(storage, new FirestoreSyncBackend(),
+                Executors.newSingleThreadScheduledExecutor(), new Random());
+            instances.put(userId, flusher);
+        }
+        return flusher;
+    }
+
+    /**
+     * Stop flushing a user's outbox on logout; queued messages are sent after the next login
+     */
+    public static synchronized void closeUser(String userId) {
+        OutboxFlusher flusher = instances.remove(userId);
+        if (flusher != null) {
+            flusher.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Request a flush soon. Calls during a backoff wait don't cut it short.
+     */
+    public synchronized void kick() {
+        if (executor.isShutdown() || (scheduledFlush != null && !scheduledFlush.isDone())) {
+            return;
+        }
+        scheduledFlush = executor.schedule(this::flushAndReschedule, COALESCE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushAndReschedule() {
+        boolean success = flushNow();
+        synchronized (this) {
+            if (!success) {
+                long delay = backoffDelay(consecutiveFailures, random);
+                Log.w(TAG, "Outbox flush failed, retrying in " + delay + " ms");
+                scheduledFlush = executor.schedule(this::flushAndReschedule, delay, TimeUnit.MILLISECONDS);
+            } else if (!outbox.isEmpty()) {
+                // More than one batch was queued; keep draining
+                scheduledFlush = executor.schedule(this::flushAndReschedule, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Push one batch from the outbox. Blocks; called on the flusher thread.
+     * @return false if the push failed and should be retried
+     */
+    boolean flushNow() {
+        List<Outbox.Entry> batch = outbox.peek(MAX_BATCH_SIZE);
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        List<Chat> chats = new ArrayList<>();
+        List<EpochKeys> keys = new ArrayList<>();
+        Map<String, List<Message>> messagesByChat = new LinkedHashMap<>();
+        for (Outbox.Entry entry : batch) {
+            if (entry.getChat() != null) {
+                chats.add(entry.getChat());
+            } else if (entry.getKeys() != null) {
+                keys.add(entry.getKeys());
+            } else {
+                messagesByChat.computeIfAbsent(entry.getChatId(), k -> new ArrayList<>())
+                    .add(entry.getMessage());
+            }
+        }
+
+        try {
+            // Chat records and keys first, so a peer that sees the messages can find and read them
+            if (!chats.isEmpty()) {
+                backend.pushChats(chats);
+            }
+            if (!keys.isEmpty()) {
+                backend.pushKeys(keys);
+            }
+            if (!messagesByChat.isEmpty()) {
+                backend.push(messagesByChat);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Push failed", e);
+            synchronized (this) {
+                consecutiveFailures++;
+            }
+            return false;
+        }
+
+        storage.acknowledgePushed(batch);
+        synchronized (this) {
+            consecutiveFailures = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Equal-jitter exponential backoff: half of BASE * 2^failures, capped, plus a
+     * random share of the other half, so a retry never fires right away
+     */
+    static long backoffDelay(int failures, Random random) {
+        int exponent = Math.min(Math.max(failures - 1, 0), 20);
+        long ceiling = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << exponent);
+        return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+    }
+}
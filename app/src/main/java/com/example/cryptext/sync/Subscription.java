@@ -0,0 +1,8 @@
+package com.example.cryptext.sync;
+
+/**
+ * Handle for an active change subscription
+ */
+public interface Subscription {
+    void unsubscribe();
+}
@@ -0,0 +1,86 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remote message and chat store used by the SyncEngine. Calls block and are made
+ * from a background thread. Implemented against Firestore in the app and
+ * by in-process fakes in tests.
+ */
+public interface SyncBackend {
+
+    /**
+     * One page of remote messages in (position, messageId) order
+     */
+    class Page {
+        public final List<Message> messages;
+        // Cursor after the last message in this page
+        public final SyncCursor cursor;
+        public final boolean hasMore;
+
+        public Page(List<Message> messages, SyncCursor cursor, boolean hasMore) {
+            this.messages = messages;
+            this.cursor = cursor;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Upload messages, possibly for several chats, as one batched write.
+     * Writes are keyed by messageId, so pushing the same message again is harmless.
+     * @param messagesByChat messages to upload, keyed by chatId
+     */
+    void push(Map<String, List<Message>> messagesByChat) throws Exception;
+
+    /**
+     * Fetch the messages of a chat that come after a cursor
+     * @param after cursor from the previous pull, or null to start from the beginning
+     * @param limit maximum number of messages to return
+     */
+    Page pull(String chatId, SyncCursor after, int limit) throws Exception;
+
+    /**
+     * Upload chat records, so their other participants learn about them.
+     * Only the chatId, participants, group flag, name and creation time are
+     * uploaded; a chat's preview never leaves the device. Keyed by chatId.
+     */
+    void pushChats(List<Chat> chats) throws Exception;
+
+    /**
+     * Fetch the records of every chat a user takes part in
+     */
+    List<Chat> pullChats(String userId) throws Exception;
+
+    /**
+     * Publish a user's public identity key, which others wrap chat keys to
+     */
+    void publishPublicKey(String userId, String publicKey) throws Exception;
+
+    /**
+     * Fetch the public identity keys of several users, keyed by userId.
+     * Users who haven't published one are left out.
+     */
+    Map<String, String> pullPublicKeys(List<String> userIds) throws Exception;
+
+    /**
+     * Upload epoch keys wrapped for chat members. Each member's copy is keyed by
+     * chat, epoch and member, so pushing again or adding members later is harmless.
+     */
+    void pushKeys(List<EpochKeys> keys) throws Exception;
+
+    /**
+     * Fetch every epoch key wrapped for a user, each holding only that user's copy
+     */
+    List<EpochKeys> pullKeys(String userId) throws Exception;
+
+    /**
+     * Watch a chat for remote writes. The callback only signals that a pull
+     * would find something new; it may fire once on registration and on any thread.
+     */
+    Subscription watch(String chatId, Runnable onRemoteChange);
+}
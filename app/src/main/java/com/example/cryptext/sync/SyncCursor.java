@@ -0,0 +1,29 @@
+package com.example.cryptext.sync;
+
+/**
+ * High-water mark of what has been pulled for a chat. Remote records are
+ * ordered by (position, id); a pull returns only messages after the cursor.
+ * The id is a messageId, or the batch document id when messages are batched.
+ */
+public class SyncCursor {
+    private long position;
+    private String messageId;
+
+    // Required empty constructor for Gson
+    public SyncCursor() {
+    }
+
+    public SyncCursor(long position, String messageId) {
+        this.position = position;
+        this.messageId = messageId;
+    }
+
+    // Server-assigned ordering value of the last pulled message
+    public long getPosition() {
+        return position;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.cryptext.sync;
+
+import android.util.Log;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.HybridLogicalClock;
+import com.example.cryptext.util.LocalStorageManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delta sync from a SyncBackend into LocalStorageManager. Pulls remote pages
+ * after the chat's persisted cursor, so each sync moves only records that are
+ * new since the last one, and pulls the records of chats the user was added
+ * to elsewhere and the keys wrapped for them. Outgoing messages, chats and
+ * keys are pushed by the OutboxFlusher.
+ * syncChat blocks and must be called from a background thread.
+ */
+public class SyncEngine {
+    private static final String TAG = "SyncEngine";
+
+    static final int PULL_PAGE_SIZE = 200;
+
+    /**
+     * Outcome of syncing one chat
+     */
+    public static class Result {
+        public int pulled;
+
+        public boolean hasNewMessages() {
+            return pulled > 0;
+        }
+    }
+
+    private final LocalStorageManager storage;
+    private final SyncBackend backend;
+
+    public SyncEngine(LocalStorageManager storage, SyncBackend backend) {
+        this.storage = storage;
+        this.backend = backend;
+    }
+
+    /**
+     * Pull new remote messages for a chat
+     */
+    public Result syncChat(String chatId) throws Exception {
+        Result result = new Result();
+
+        SyncCursor cursor = storage.getSyncCursor(chatId);
+        Message newest = null;
+        SyncBackend.Page page;
+        do {
+            page = backend.pull(chatId, cursor, PULL_PAGE_SIZE);
+            if (page.messages.isEmpty()) {
+                break;
+            }
+            // Each page is merged and its cursor saved before the next is fetched
+            List<Message> added = storage.mergeRemoteMessages(chatId, page.messages, page.cursor);
+            result.pulled += added.size();
+            for (Message message : added) {
+                if (newest == null || HybridLogicalClock.ORDER.compare(message, newest) > 0) {
+                    newest = message;
+                }
+            }
+            cursor = page.cursor;
+        } while (page.hasMore && !Thread.currentThread().isInterrupted());
+
+        if (newest != null) {
+            updatePreview(chatId, newest);
+        }
+        return result;
+    }
+
+    /**
+     * Subscribe to a chat's changes. The listener receives only messages that are
+     * added locally or by a pull; remote writes trigger a delta pull on syncExecutor,
+     * and pulls requested while one is already queued are coalesced.
+     */
+    public Subscription subscribe(final String chatId, MessageChangeFeed.Listener listener,
+                                  final Executor syncExecutor) {
+        final Subscription local = storage.getChangeFeed().subscribe(chatId, listener);
+        final AtomicBoolean pullQueued = new AtomicBoolean();
+        final Subscription remote = backend.watch(chatId, () -> {
+            if (!pullQueued.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                syncExecutor.execute(() -> {
+                    pullQueued.set(false);
+                    try {
+                        syncChat(chatId);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Sync failed for " + chatId, e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The executor was shut down with the screen
+                pullQueued.set(false);
+            }
+        });
+        return () -> {
+            remote.unsubscribe();
+            local.unsubscribe();
+        };
+    }
+
+    /**
+     * Pull the records of every chat the user takes part in, adding chats
+     * started on other devices or by other users to the chat list
+     * @return the number of chats added or changed
+     */
+    public int syncChatList(String userId) throws Exception {
+        int changed = 0;
+        for (Chat chat : backend.pullChats(userId)) {
+            if (storage.mergeRemoteChat(userId, chat)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Exchange keys: publish the user's public identity key, learn those of
+     * everyone they chat with, store the epoch keys wrapped for them, and wrap
+     * current keys for members who couldn't be given them before. Run after
+     * syncChatList, so the chats the keys belong to are known.
+     * @return the number of epoch keys stored or member copies wrapped
+     */
+    public int syncKeys(String userId) throws Exception {
+        backend.publishPublicKey(userId, storage.getPublicKey());
+
+        Set<String> peers = new LinkedHashSet<>();
+        for (Chat chat : storage.getUserChats(userId)) {
+            peers.addAll(chat.getParticipants());
+        }
+        peers.remove(userId);
+        if (!peers.isEmpty()) {
+            storage.mergeMemberPublicKeys(backend.pullPublicKeys(new ArrayList<>(peers)));
+        }
+
+        int changed = 0;
+        for (EpochKeys keys : backend.pullKeys(userId)) {
+            if (storage.mergeRemoteKeys(keys)) {
+                changed++;
+            }
+        }
+        return changed + storage.distributeGroupKeys();
+    }
+
+    /**
+     * Sync every chat in a user's chat list, continuing past chats that fail
+     * @return the number of messages pulled
+     */
+    public int syncAll(String userId) {
+        int pulled = 0;
+        for (String chatId : storage.getUserChatIds(userId)) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            try {
+                pulled += syncChat(chatId).pulled;
+            } catch (Exception e) {
+                Log.w(TAG, "Sync failed for " + chatId, e);
+            }
+        }
+        return pulled;
+    }
+
+    // The preview stays encrypted; the chat list decrypts it when shown
+    private void updatePreview(String chatId, Message newest) {
+        storage.updateChatPreview(chatId, newest);
+    }
+}
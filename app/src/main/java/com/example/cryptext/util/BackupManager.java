@@ -0,0 +1,501 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageBatchCodec;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Exports a user's chats, messages and attachment blobs to one encrypted
+ * archive and imports them back. Both directions stream, so memory use is
+ * bounded by one frame however large the archive grows.
+ *
+ * Layout: a 4-byte magic, a version byte, a random salt and the PBKDF2
+ * iteration count, then frames. A frame is a length-prefixed payload (the
+ * IV and AES ciphertext of one record) followed by an HMAC-SHA256 of the
+ * frame's index and payload, so frames can't be altered, reordered or
+ * spliced in from another archive. A record is the user's identity key pair,
+ * a chat with its keys, a run of its messages in MessageBatchCodec's
+ * compressed form, one attachment blob with the key epoch it was stored
+ * under, or the end marker, without which the archive is truncated.
+ * Version 1 archives have no identity record; blobs in version 1 and 2
+ * archives are all under legacy chat-derived keys.
+ *
+ * Import writes each frame's records in one batch and saves how many frames
+ * are done, so running it again on an interrupted archive skips straight
+ * past them. Messages whose IDs are already stored are skipped.
+ */
+public class BackupManager {
+
+    static final int MAGIC = 0x4354424b; // "CTBK"
+    static final int VERSION = 3;
+    // Key epoch written for blobs under legacy chat-derived keys
+    private static final int LEGACY_BLOB_EPOCH = -1;
+    static final int DEFAULT_ITERATIONS = 120_000;
+    // Refuse headers asking for more, so a damaged one can't stall an import
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int SALT_BYTES = 16;
+    // AES-128 key, then HMAC-SHA256 key
+    private static final int ENCRYPTION_KEY_BYTES = 16;
+    private static final int MAC_KEY_BYTES = 32;
+    private static final int MAC_BYTES = 32;
+    // Stored records per message frame
+    static final int MESSAGES_PER_FRAME = 500;
+    // The largest record is one attachment chunk, so anything bigger is damage
+    private static final int MAX_FRAME_BYTES = 4 * BlobStore.CHUNK_SIZE;
+    // Record body that still fits a frame once the chat ID, IV and padding are added
+    private static final int MAX_RECORD_BYTES = MAX_FRAME_BYTES - 1024;
+
+    private static final int RECORD_CHAT = 1;
+    private static final int RECORD_MESSAGES = 2;
+    private static final int RECORD_BLOB = 3;
+    private static final int RECORD_END = 4;
+    private static final int RECORD_IDENTITY = 5;
+
+    private static final Metrics.Histogram EXPORT_FRAME_TIME = Metrics.histogram("backup.exportFrame");
+    private static final Metrics.Histogram IMPORT_FRAME_TIME = Metrics.histogram("backup.importFrame");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("backup.bytesWritten");
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("backup.bytesRead");
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * Totals of an export or import
+     */
+    public static class Result {
+        // Chats written, or on import those that weren't stored yet
+        public final int chats;
+        // Messages written, or on import those added
+        public final long messages;
+        // On import, messages already stored
+        public final long messagesSkipped;
+        public final int blobs;
+        public final long archiveBytes;
+
+        Result(int chats, long messages, long messagesSkipped, int blobs, long archiveBytes) {
+            this.chats = chats;
+            this.messages = messages;
+            this.messagesSkipped = messagesSkipped;
+            this.blobs = blobs;
+            this.archiveBytes = archiveBytes;
+        }
+    }
+
+    private final LocalStorageManager storage;
+    private final int iterations;
+    private final Gson gson = new Gson();
+
+    public BackupManager(LocalStorageManager storage) {
+        this(storage, DEFAULT_ITERATIONS);
+    }
+
+    BackupManager(LocalStorageManager storage, int iterations) {
+        this.storage = storage;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Write every stored chat to out as an archive encrypted under passphrase. Blocks.
+     */
+    public Result export(OutputStream out, String passphrase) throws IOException {
+        byte[] salt = new byte[SALT_BYTES];
+        secureRandom.nextBytes(salt);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.write(salt);
+        data.writeInt(iterations);
+        FrameWriter writer = new FrameWriter(data, deriveKeys(passphrase, salt, iterations));
+
+        // Group keys are wrapped to the identity key, so it goes first
+        writer.write(RECORD_IDENTITY, "", gson.toJson(storage.exportIdentity()).getBytes(StandardCharsets.UTF_8));
+
+        // Chats still in the store from before sharding are moved first, so they're included
+        for (String chatId : storage.getChatsPendingMigration()) {
+            storage.migrateChat(chatId);
+        }
+
+        int chats = 0;
+        long messages = 0;
+        int blobs = 0;
+        for (String chatId : storage.getStoredChatIds()) {
+            LocalStorageManager.ChatBackup backup = storage.exportChat(chatId);
+            if (backup == null) {
+                // Deleted since the IDs were listed
+                continue;
+            }
+            writer.write(RECORD_CHAT, chatId, gson.toJson(backup).getBytes(StandardCharsets.UTF_8));
+            chats++;
+
+            // A blob shared by several messages goes in once per chat
+            Set<String> writtenBlobs = new HashSet<>();
+            // Each ID goes in once, as its last record: later ones re-encrypt or replace it
+            Set<String> writtenIds = new HashSet<>();
+            long generation = storage.getCompactionGeneration(chatId);
+            Map<String, Long> lastRecords = lastRecords(chatId, generation);
+            while (lastRecords == null) {
+                generation = storage.getCompactionGeneration(chatId);
+                lastRecords = lastRecords(chatId, generation);
+            }
+
+            // Legacy messages moved into the log since are left to their log record
+            List<Message> legacyRun = new ArrayList<>();
+            for (Message message : storage.getLegacyMessages(chatId)) {
+                String id = message.getMessageId();
+                if (id == null || (!lastRecords.containsKey(id) && writtenIds.add(id))) {
+                    legacyRun.add(message);
+                }
+            }
+            for (int i = 0; i < legacyRun.size(); i += MESSAGES_PER_FRAME) {
+                List<Message> run = legacyRun.subList(i, Math.min(legacyRun.size(), i + MESSAGES_PER_FRAME));
+                messages += writeMessages(writer, chatId, run);
+                blobs += writeBlobs(writer, chatId, run, writtenBlobs);
+            }
+
+            long index = 0;
+            long offset = 0;
+            while (true) {
+                MessageLog.Batch batch = storage.readLogBatch(chatId, offset, MESSAGES_PER_FRAME, generation);
+                if (batch == null) {
+                    // Compacted meanwhile, which moves records and drops expired messages;
+                    // scan again, leaving out what is written already
+                    do {
+                        generation = storage.getCompactionGeneration(chatId);
+                        lastRecords = lastRecords(chatId, generation);
+                    } while (lastRecords == null);
+                    index = 0;
+                    offset = 0;
+                    continue;
+                }
+                List<Message> run = new ArrayList<>(batch.messages.size());
+                for (Message message : batch.messages) {
+                    String id = message.getMessageId();
+                    Long last = id != null ? lastRecords.get(id) : null;
+                    if (id == null || (last != null && last == index && writtenIds.add(id))) {
+                        run.add(message);
+                    }
+                    index++;
+                }
+                if (!run.isEmpty()) {
+                    messages += writeMessages(writer, chatId, run);
+                    blobs += writeBlobs(writer, chatId, run, writtenBlobs);
+                }
+                if (batch.finished) {
+                    break;
+                }
+                offset = batch.nextOffset;
+            }
+        }
+
+        writer.write(RECORD_END, "", new byte[0]);
+        data.flush();
+        return new Result(chats, messages, 0, blobs, writer.bytes);
+    }
+
+    // Index of each ID's last record in a chat's log, or null if the log was compacted during the scan
+    private Map<String, Long> lastRecords(String chatId, long generation) throws IOException {
+        Map<String, Long> lastRecords = new HashMap<>();
+        long index = 0;
+        long offset = 0;
+        while (true) {
+            MessageLog.Batch batch = storage.readLogBatch(chatId, offset, MESSAGES_PER_FRAME, generation);
+            if (batch == null) {
+                return null;
+            }
+            for (Message message : batch.messages) {
+                if (message.getMessageId() != null) {
+                    lastRecords.put(message.getMessageId(), index);
+                }
+                index++;
+            }
+            if (batch.finished) {
+                return lastRecords;
+            }
+            offset = batch.nextOffset;
+        }
+    }
+
+    // Write a run of messages, halving it until each frame fits under MAX_FRAME_BYTES
+    private int writeMessages(FrameWriter writer, String chatId, List<Message> run) throws IOException {
+        byte[] body = MessageBatchCodec.encode(run, true);
+        if (body.length > MAX_RECORD_BYTES && run.size() > 1) {
+            int half = run.size() / 2;
+            return writeMessages(writer, chatId, run.subList(0, half))
+                + writeMessages(writer, chatId, run.subList(half, run.size()));
+        }
+        writer.write(RECORD_MESSAGES, chatId, body);
+        return run.size();
+    }
+
+    // Write the attachment blobs of messages not written yet; those never stored here are left out
+    private int writeBlobs(FrameWriter writer, String chatId, List<Message> messages,
+                           Set<String> writtenBlobs) throws IOException {
+        int written = 0;
+        for (Message message : messages) {
+            Attachment attachment = message.getAttachment();
+            if (attachment == null) {
+                continue;
+            }
+            Set<String> ids = new HashSet<>(attachment.getChunks());
+            if (attachment.getThumbnail() != null) {
+                ids.add(attachment.getThumbnail());
+            }
+            for (String id : ids) {
+                if (!writtenBlobs.add(id)) {
+                    continue;
+                }
+                byte[] blob = storage.getBlobStore().readEncrypted(id);
+                if (blob != null) {
+                    ByteArrayOutputStream body = new ByteArrayOutputStream(blob.length + 80);
+                    DataOutputStream bodyData = new DataOutputStream(body);
+                    Integer epoch = attachment.getKeyEpoch();
+                    bodyData.writeInt(epoch != null ? epoch : LEGACY_BLOB_EPOCH);
+                    bodyData.writeUTF(id);
+                    bodyData.write(blob);
+                    writer.write(RECORD_BLOB, chatId, body.toByteArray());
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Import an archive written by export, resuming after the frames an earlier
+     * interrupted import of it finished. Blocks.
+     * @throws IOException if the passphrase is wrong or the archive is damaged or
+     * truncated; everything before the bad frame stays imported
+     */
+    public Result importFrom(InputStream in, String passphrase) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a backup archive");
+        }
+        int version = data.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported backup version " + version);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        data.readFully(salt);
+        int archiveIterations = data.readInt();
+        if (archiveIterations <= 0 || archiveIterations > MAX_ITERATIONS) {
+            throw new IOException("Bad iteration count " + archiveIterations);
+        }
+        byte[] keys = deriveKeys(passphrase, salt, archiveIterations);
+        byte[] encryptionKey = Arrays.copyOf(keys, ENCRYPTION_KEY_BYTES);
+        Mac mac = newMac(keys);
+
+        // The salt is random per export, so it identifies the archive
+        String archiveId = Base64.getUrlEncoder().withoutPadding().encodeToString(salt);
+        long checkpoint = storage.getImportCheckpoint(archiveId);
+        long bytes = 4 + 1 + SALT_BYTES + 4;
+        int chats = 0;
+        long messages = 0;
+        long skipped = 0;
+        int blobs = 0;
+        for (long index = 0; ; index++) {
+            int length = data.readInt();
+            if (length <= 0 || length > MAX_FRAME_BYTES) {
+                throw new IOException("Bad frame length " + length);
+            }
+            bytes += 4 + length + MAC_BYTES;
+            if (index < checkpoint) {
+                skipFully(data, length + MAC_BYTES);
+                continue;
+            }
+
+            long start = Metrics.start();
+            byte[] payload = new byte[length];
+            byte[] tag = new byte[MAC_BYTES];
+            data.readFully(payload);
+            data.readFully(tag);
+            BYTES_READ.add(4 + length + MAC_BYTES);
+            if (!MessageDigest.isEqual(tag, frameMac(mac, index, payload))) {
+                throw new IOException("Wrong passphrase or damaged backup at frame " + index);
+            }
+            byte[] plain;
+            try {
+                plain = EncryptionUtil.decryptBytes(payload, encryptionKey);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt frame " + index, e);
+            }
+
+            ByteArrayInputStream recordIn = new ByteArrayInputStream(plain);
+            DataInputStream record = new DataInputStream(recordIn);
+            int type = record.readUnsignedByte();
+            if (type == RECORD_END) {
+                storage.clearImportCheckpoint(archiveId);
+                IMPORT_FRAME_TIME.recordSince(start);
+                return new Result(chats, messages, skipped, blobs, bytes);
+            }
+            String chatId = record.readUTF();
+            switch (type) {
+                case RECORD_CHAT:
+                    LocalStorageManager.ChatBackup backup;
+                    try {
+                        backup = gson.fromJson(new String(remaining(plain, recordIn), StandardCharsets.UTF_8),
+                            LocalStorageManager.ChatBackup.class);
+                    } catch (JsonParseException e) {
+                        throw new IOException("Unreadable chat in frame " + index, e);
+                    }
+                    if (storage.importChat(backup)) {
+                        chats++;
+                    }
+                    break;
+                case RECORD_IDENTITY:
+                    LocalStorageManager.IdentityBackup identity;
+                    try {
+                        identity = gson.fromJson(new String(remaining(plain, recordIn), StandardCharsets.UTF_8),
+                            LocalStorageManager.IdentityBackup.class);
+                    } catch (JsonParseException e) {
+                        throw new IOException("Unreadable identity in frame " + index, e);
+                    }
+                    if (identity == null || !storage.importIdentity(identity)) {
+                        throw new IOException("Unreadable identity in frame " + index);
+                    }
+                    break;
+                case RECORD_MESSAGES:
+                    List<Message> run = MessageBatchCodec.decode(remaining(plain, recordIn));
+                    List<Message> added = storage.importMessages(chatId, run);
+                    messages += added.size();
+                    skipped += run.size() - added.size();
+                    break;
+                case RECORD_BLOB:
+                    int epoch = version >= 3 ? record.readInt() : LEGACY_BLOB_EPOCH;
+                    String blobId = record.readUTF();
+                    // The chat record, and with it the epoch's key, comes before its blobs
+                    BlobStore.Keys blobKeys = epoch == LEGACY_BLOB_EPOCH ? BlobStore.Keys.legacy(chatId)
+                        : new ChatCipher(storage, chatId).attachmentKeys(epoch);
+                    if (blobKeys == null) {
+                        throw new IOException("No key for blob " + blobId + " in frame " + index);
+                    }
+                    if (storage.getBlobStore().putEncrypted(blobKeys, blobId, remaining(plain, recordIn))) {
+                        blobs++;
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in frame " + index);
+            }
+            storage.setImportCheckpoint(archiveId, index + 1);
+            IMPORT_FRAME_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Encrypts, authenticates and writes one record per frame
+     */
+    private static class FrameWriter {
+        private final DataOutputStream out;
+        private final byte[] encryptionKey;
+        private final Mac mac;
+        private long index;
+        private long bytes = 4 + 1 + SALT_BYTES + 4;
+
+        FrameWriter(DataOutputStream out, byte[] keys) throws IOException {
+            this.out = out;
+            this.encryptionKey = Arrays.copyOf(keys, ENCRYPTION_KEY_BYTES);
+            this.mac = newMac(keys);
+        }
+
+        void write(int type, String chatId, byte[] body) throws IOException {
+            long start = Metrics.start();
+            try {
+                ByteArrayOutputStream plain = new ByteArrayOutputStream(body.length + 64);
+                DataOutputStream record = new DataOutputStream(plain);
+                record.writeByte(type);
+                if (type != RECORD_END) {
+                    record.writeUTF(chatId);
+                }
+                record.write(body);
+
+                byte[] payload = EncryptionUtil.encryptBytes(plain.toByteArray(), 0, plain.size(), encryptionKey);
+                if (payload.length > MAX_FRAME_BYTES) {
+                    // Import would refuse it, so the archive would never restore
+                    throw new IOException("Record of " + body.length + " bytes is too large for a frame");
+                }
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.write(frameMac(mac, index, payload));
+                index++;
+                bytes += 4 + payload.length + MAC_BYTES;
+                BYTES_WRITTEN.add(4 + payload.length + MAC_BYTES);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt frame " + index, e);
+            } finally {
+                EXPORT_FRAME_TIME.recordSince(start);
+            }
+        }
+    }
+
+    private static byte[] deriveKeys(String passphrase, byte[] salt, int iterations) throws IOException {
+        try {
+            return EncryptionUtil.stretchPassphrase(passphrase, salt, iterations,
+                ENCRYPTION_KEY_BYTES + MAC_KEY_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive backup key", e);
+        }
+    }
+
+    private static Mac newMac(byte[] keys) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(keys, ENCRYPTION_KEY_BYTES, MAC_KEY_BYTES, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up backup MAC", e);
+        }
+    }
+
+    // MAC of a frame's position and payload; binding the position catches reordered or dropped frames
+    private static byte[] frameMac(Mac mac, long index, byte[] payload) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (index >>> shift));
+        }
+        mac.update(payload);
+        return mac.doFinal();
+    }
+
+    private static byte[] remaining(byte[] plain, ByteArrayInputStream in) {
+        return Arrays.copyOfRange(plain, plain.length - in.available(), plain.length);
+    }
+
+    private static void skipFully(DataInputStream in, long count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes((int) Math.min(count, Integer.MAX_VALUE));
+            if (skipped == 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Backup archive ends early");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
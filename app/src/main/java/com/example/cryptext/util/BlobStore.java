@@ -0,0 +1,287 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Content-addressed store of encrypted attachment chunks. Files are split
+ * into fixed-size chunks; each chunk is named by an HMAC of its plaintext
+ * under one key and encrypted under another, both derived from the chat's
+ * key epoch. A chunk that is already stored is not written again, so
+ * re-sending or forwarding a file within a chat and epoch costs no extra
+ * bytes.
+ */
+public class BlobStore {
+
+    /**
+     * The keys blobs of one chat and epoch are named and encrypted with
+     */
+    public static final class Keys {
+        // null for legacy keys derived from the chat ID
+        final Integer epoch;
+        final byte[] idKey;
+        final byte[] key;
+
+        private Keys(Integer epoch, byte[] idKey, byte[] key) {
+            this.epoch = epoch;
+            this.idKey = idKey;
+            this.key = key;
+        }
+
+        /**
+         * @param epochKey the key the chat's messages at epoch are encrypted under
+         */
+        public static Keys forEpoch(int epoch, byte[] epochKey) {
+            return new Keys(epoch, EncryptionUtil.attachmentIdKey(epochKey), EncryptionUtil.attachmentKey(epochKey));
+        }
+
+        /**
+         * Keys of attachments stored before they were bound to an epoch
+         */
+        public static Keys legacy(String chatId) {
+            return new Keys(null, EncryptionUtil.legacyAttachmentIdKey(chatId),
+                EncryptionUtil.legacyAttachmentKey(chatId));
+        }
+    }
+
+    // Chunks are read, encrypted and written one at a time, so memory use is bounded by this
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final String BLOB_DIR = "blobs";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final Metrics.Histogram PUT_TIME = Metrics.histogram("blob.put");
+    private static final Metrics.Histogram GET_TIME = Metrics.histogram("blob.get");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("blob.bytesWritten");
+    private static final Metrics.Counter DEDUP_HITS = Metrics.counter("blob.dedupHits");
+
+    private final File blobDir;
+
+    public BlobStore(File filesDir) {
+        this.blobDir = new File(filesDir, BLOB_DIR);
+    }
+
+    /**
+     * Store a file, chunk by chunk
+     * @param keys keys of the chat's current epoch
+     * @param thumbnail small JPEG preview to store alongside, or null
+     * @return the attachment referencing the stored chunks
+     */
+    public Attachment store(Keys keys, InputStream in, String mimeType, byte[] thumbnail)
+            throws IOException {
+        List<String> chunks = new ArrayList<>();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long size = 0;
+        int length;
+        while ((length = readChunk(in, buffer)) > 0) {
+            chunks.add(put(keys, buffer, length));
+            size += length;
+        }
+
+        String thumbnailId = thumbnail != null ? put(keys, thumbnail, thumbnail.length) : null;
+        return new Attachment(mimeType, size, chunks, thumbnailId, keys.epoch);
+    }
+
+    /**
+     * Read and decrypt one blob, such as a thumbnail
+     * @param keys keys of the epoch the blob's attachment was stored under
+     * @throws IOException if the blob is missing or doesn't match its id
+     */
+    public byte[] get(Keys keys, String id) throws IOException {
+        long start = Metrics.start();
+        try {
+            byte[] data = EncryptionUtil.decryptBytes(Files.readAllBytes(fileFor(id).toPath()), keys.key);
+            // The id is a MAC of the plaintext, so this also catches tampering
+            if (!EncryptionUtil.contentId(keys.idKey, data, 0, data.length).equals(id)) {
+                throw new IOException("Blob " + id + " doesn't match its id");
+            }
+            return data;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt blob " + id, e);
+        } finally {
+            GET_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Write an attachment's decrypted bytes to out, one chunk at a time
+     * @param keys keys of the epoch the attachment was stored under
+     */
+    public void copyTo(Keys keys, Attachment attachment, OutputStream out) throws IOException {
+        for (String id : attachment.getChunks()) {
+            out.write(get(keys, id));
+        }
+    }
+
+    /**
+     * @return true if every chunk of the attachment is stored locally
+     */
+    public boolean contains(Attachment attachment) {
+        for (String id : attachment.getChunks()) {
+            if (!fileFor(id).exists()) {
+                return false;
+            }
+        }
+        return attachment.getThumbnail() == null || fileFor(attachment.getThumbnail()).exists();
+    }
+
+    /**
+     * Total size of the stored (encrypted) blobs
+     */
+    public long totalBytes() {
+        long total = 0;
+        File[] shards = blobDir.listFiles();
+        if (shards == null) {
+            return 0;
+        }
+        for (File shard : shards) {
+            File[] blobs = shard.listFiles();
+            if (blobs != null) {
+                for (File blob : blobs) {
+                    total += blob.length();
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Delete blobs no message references any more. Blobs written at or after
+     * cutoff are kept, so a file being sent while the caller collected the
+     * references isn't deleted under it.
+     * @param referenced content ids of every blob still referenced
+     * @param cutoffMillis only blobs last modified before this time are deleted
+     * @return the bytes freed
+     */
+    public long collectGarbage(Set<String> referenced, long cutoffMillis) {
+        long freed = 0;
+        File[] shards = blobDir.listFiles();
+        if (shards == null) {
+            return 0;
+        }
+        for (File shard : shards) {
+            File[] blobs = shard.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                // Leftover temp files from interrupted writes go too
+                boolean unreferenced = blob.getName().endsWith(TEMP_SUFFIX)
+                    || !referenced.contains(blob.getName());
+                if (unreferenced && blob.lastModified() < cutoffMillis) {
+                    long length = blob.length();
+                    if (blob.delete()) {
+                        freed += length;
+                    }
+                }
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Read a blob as stored, still encrypted under its epoch's key, e.g. to copy it into a backup
+     * @return the encrypted blob, or null if it isn't stored
+     */
+    byte[] readEncrypted(String id) throws IOException {
+        File file = fileFor(id);
+        return file.exists() ? Files.readAllBytes(file.toPath()) : null;
+    }
+
+    /**
+     * Store a blob copied from elsewhere, such as a backup, still encrypted.
+     * It is checked against its id first, so a blob from another chat or
+     * epoch or a damaged copy is rejected.
+     * @return true if it was written, false if it was already stored
+     * @throws IOException if the blob doesn't decrypt to content matching its id
+     */
+    boolean putEncrypted(Keys keys, String id, byte[] encrypted) throws IOException {
+        File file = fileFor(id);
+        if (file.exists() && file.setLastModified(System.currentTimeMillis())) {
+            return false;
+        }
+        try {
+            byte[] data = EncryptionUtil.decryptBytes(encrypted, keys.key);
+            if (!EncryptionUtil.contentId(keys.idKey, data, 0, data.length).equals(id)) {
+                throw new IOException("Blob " + id + " doesn't match its id");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt blob " + id, e);
+        }
+        write(file, id, encrypted);
+        return true;
+    }
+
+    private String put(Keys keys, byte[] data, int length) throws IOException {
+        long start = Metrics.start();
+        try {
+            String id = EncryptionUtil.contentId(keys.idKey, data, 0, length);
+            File file = fileFor(id);
+            // Touching a reused blob keeps collectGarbage from deleting it before its message is stored
+            if (file.exists() && file.setLastModified(System.currentTimeMillis())) {
+                DEDUP_HITS.increment();
+                return id;
+            }
+
+            write(file, id, EncryptionUtil.encryptBytes(data, 0, length, keys.key));
+            return id;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt chunk", e);
+        } finally {
+            PUT_TIME.recordSince(start);
+        }
+    }
+
+    private void write(File file, String id, byte[] encrypted) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Write then rename, so a blob is either complete or absent; a concurrent
+        // put of the same chunk just replaces it with an equivalent one
+        File temp = File.createTempFile(id, TEMP_SUFFIX, dir);
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(encrypted);
+                out.flush();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not store blob " + id);
+            }
+        } finally {
+            temp.delete();
+        }
+        BYTES_WRITTEN.add(encrypted.length);
+    }
+
+    // Blobs are spread over subdirectories by the first two hex digits of their id
+    private File fileFor(String id) {
+        if (id.length() < 3 || !id.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Bad blob id " + id);
+        }
+        return new File(new File(blobDir, id.substring(0, 2)), id);
+    }
+
+    // Fill buffer from in; returns fewer bytes than the buffer holds only at the end
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
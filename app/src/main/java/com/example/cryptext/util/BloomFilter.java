@@ -0,0 +1,120 @@
+package com.example.cryptext.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed-size Bloom filter over strings. mightContain never returns a false
+ * negative; false positives occur at roughly expectedFalsePositiveRate().
+ */
+public class BloomFilter {
+
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int count;
+
+    private BloomFilter(long[] bits, int numBits, int numHashes, int capacity, int count) {
+        this.bits = bits;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.capacity = capacity;
+        this.count = count;
+    }
+
+    /**
+     * Size a filter for a number of items and a target false-positive rate
+     */
+    public static BloomFilter create(int capacity, double falsePositiveRate) {
+        capacity = Math.max(capacity, 1);
+        double ln2 = Math.log(2);
+        int numBits = (int) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        numBits = Math.max(64, (numBits + 63) / 64 * 64);
+        int numHashes = Math.max(1, (int) Math.round((double) numBits / capacity * ln2));
+        return new BloomFilter(new long[numBits / 64], numBits, numHashes, capacity, 0);
+    }
+
+    public void add(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    public boolean mightContain(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of values added
+    public int getCount() {
+        return count;
+    }
+
+    // Number of values the filter was sized for
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Estimated false-positive rate at the current fill
+     */
+    public double expectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) numHashes * count / numBits), numHashes);
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(numBits);
+        out.writeInt(numHashes);
+        out.writeInt(capacity);
+        out.writeInt(count);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public static BloomFilter readFrom(DataInputStream in) throws IOException {
+        int numBits = in.readInt();
+        int numHashes = in.readInt();
+        int capacity = in.readInt();
+        int count = in.readInt();
+        if (numBits <= 0 || numBits % 64 != 0 || numHashes <= 0 || capacity <= 0 || count < 0) {
+            throw new IOException("Corrupt Bloom filter");
+        }
+        long[] bits = new long[numBits / 64];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, numBits, numHashes, capacity, count);
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, finished with a murmur-style mix
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
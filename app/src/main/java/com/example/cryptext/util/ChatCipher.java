@@ -0,0 +1,160 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Message;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encrypts and decrypts one chat's messages for one member. Messages record
+ * the key epoch they were encrypted under: epoch 0 is the chatId passphrase,
+ * later epochs are group keys or rotated one-to-one keys. Group messages are
+ * encrypted once under the current epoch's key, so sending costs the same
+ * however many members there are. Unwrapped keys are cached process-wide by
+ * chat, epoch and member, so decrypting a chat that spans several epochs
+ * never waits on storage after the first message of each.
+ */
+public class ChatCipher {
+
+    private static final int KEY_CACHE_SIZE = 64;
+    private static final Map<String, byte[]> keyCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, byte[]>(KEY_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > KEY_CACHE_SIZE;
+            }
+        });
+
+    private static final Metrics.Counter KEY_CACHE_HITS = Metrics.counter("crypto.epochKeyCache.hits");
+    private static final Metrics.Counter KEY_CACHE_MISSES = Metrics.counter("crypto.epochKeyCache.misses");
+
+    /**
+     * Ciphertext and the key epoch it was encrypted under
+     */
+    public static class Sealed {
+        public final String content;
+        public final int keyEpoch;
+
+        Sealed(String content, int keyEpoch) {
+            this.content = content;
+            this.keyEpoch = keyEpoch;
+        }
+    }
+
+    private final LocalStorageManager storage;
+    private final String chatId;
+    private final String memberId;
+
+    /**
+     * Cipher for the user whose storage shard this is
+     */
+    public ChatCipher(LocalStorageManager storage, String chatId) {
+        this(storage, chatId, storage.getOwnerId());
+    }
+
+    public ChatCipher(LocalStorageManager storage, String chatId, String memberId) {
+        this.storage = storage;
+        this.chatId = chatId;
+        this.memberId = memberId;
+    }
+
+    /**
+     * Clear cached epoch keys (e.g. on logout)
+     */
+    public static void clearKeyCache() {
+        keyCache.clear();
+    }
+
+    /**
+     * Encrypt a new message. May issue a new group key if membership changed,
+     * so call it off the main thread.
+     * @return the sealed message, or null on failure
+     */
+    public Sealed encrypt(String plaintext) {
+        int epoch = storage.getGroupKeyEpoch(chatId);
+        String content;
+        if (epoch == 0) {
+            content = EncryptionUtil.encrypt(plaintext, chatId);
+        } else {
+            byte[] key = groupKey(epoch);
+            content = key != null ? EncryptionUtil.encryptWithKey(plaintext, key) : null;
+        }
+        return content != null ? new Sealed(content, epoch) : null;
+    }
+
+    /**
+     * @return the plaintext, or null if it can't be decrypted (e.g. sent after
+     * this member left the group)
+     */
+    public String decrypt(Message message) {
+        if (message.getContent() == null) {
+            return null;
+        }
+        if (message.getKeyEpoch() == 0) {
+            return EncryptionUtil.decrypt(message.getContent(), chatId);
+        }
+        byte[] key = groupKey(message.getKeyEpoch());
+        return key != null ? EncryptionUtil.decryptWithKey(message.getContent(), key) : null;
+    }
+
+    /**
+     * Re-encrypt a message under the chat's current epoch
+     * @return the re-encrypted copy, or null if it can't be decrypted
+     */
+    public Message reencrypt(Message message) {
+        String plaintext = decrypt(message);
+        Sealed sealed = plaintext != null ? encrypt(plaintext) : null;
+        if (sealed == null) {
+            return null;
+        }
+        Message copy = new Message(message.getMessageId(), message.getSenderId(), sealed.content,
+            message.getTimestamp());
+        copy.setHlc(message.getHlc());
+        copy.setKeyEpoch(sealed.keyEpoch);
+        copy.setAttachment(message.getAttachment());
+        return copy;
+    }
+
+    /**
+     * Keys to store a new attachment under, those of the chat's current epoch.
+     * May issue a new group key like encrypt, so call it off the main thread.
+     * @return the keys, or null if this member has no key for the current epoch
+     */
+    public BlobStore.Keys attachmentKeys() {
+        return attachmentKeys(storage.getGroupKeyEpoch(chatId));
+    }
+
+    /**
+     * Keys an attachment's blobs were stored under
+     * @return the keys, or null if this member has no key for its epoch
+     */
+    public BlobStore.Keys attachmentKeys(Attachment attachment) {
+        Integer epoch = attachment.getKeyEpoch();
+        return epoch != null ? attachmentKeys(epoch) : BlobStore.Keys.legacy(chatId);
+    }
+
+    BlobStore.Keys attachmentKeys(int epoch) {
+        byte[] key = epoch == 0 ? EncryptionUtil.passphraseKey(chatId) : groupKey(epoch);
+        return key != null ? BlobStore.Keys.forEpoch(epoch, key) : null;
+    }
+
+    private byte[] groupKey(int epoch) {
+        if (memberId == null) {
+            return null;
+        }
+        String cacheKey = chatId + "@" + epoch + ":" + memberId;
+        byte[] key = keyCache.get(cacheKey);
+        if (key != null) {
+            KEY_CACHE_HITS.increment();
+            return key;
+        }
+        KEY_CACHE_MISSES.increment();
+        key = storage.getGroupKey(chatId, epoch, memberId);
+        if (key != null) {
+            keyCache.put(cacheKey, key);
+        }
+        return key;
+    }
+}
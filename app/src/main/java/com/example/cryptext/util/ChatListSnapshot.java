@@ -0,0 +1,279 @@
+package com.example.cryptext.util;
+
+import android.util.Log;
+
+import com.example.cryptext.model.Chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * The first screenful of chat list rows as last shown, in one small binary
+ * file, so MainActivity can paint them with a single read before the chats
+ * themselves are loaded. Rows hold what the list displays: the resolved
+ * peer label, the formatted time and the unread count, with the preview
+ * kept as stored, so an encrypted preview is saved as its ciphertext and
+ * decrypted when painted like any other. The only plain text is the
+ * new-chat placeholder or a preview from before previews were encrypted.
+ * The file is replaced whole and checksummed; one written by another format
+ * version, for another user, or in another time zone or locale (whose
+ * times would read wrong) counts as stale and is deleted rather than shown.
+ *
+ * File layout: [int magic][int version][UTF owner][UTF zone][UTF locale]
+ * [int rows]{[chatId][peerLabel][plainPreview][previewMessageId][previewContent][int keyEpoch]
+ * [formattedTime][long timestamp][int unread]}*[long crc32]
+ */
+public class ChatListSnapshot {
+    private static final String TAG = "ChatListSnapshot";
+
+    static final int MAGIC = 0x43544C53; // "CTLS"
+    // Version 2 added the unread count; 3 keeps previews encrypted
+    static final int VERSION = 3;
+    static final String FILE_NAME = "chat_list.snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Rows beyond the first screenful aren't worth the bytes
+    public static final int MAX_ROWS = 20;
+    // Plain previews are cut to what a row can show
+    static final int MAX_PREVIEW_CHARS = 160;
+    // Ciphertext can't be cut, so longer previews are left out and load with the chats
+    static final int MAX_SEALED_PREVIEW_CHARS = 2048;
+
+    private static final Metrics.Histogram READ_TIME = Metrics.histogram("snapshot.read");
+    private static final Metrics.Histogram WRITE_TIME = Metrics.histogram("snapshot.write");
+    private static final Metrics.Counter STALE = Metrics.counter("snapshot.stale");
+
+    /**
+     * One chat list row as displayed. The chat carries only its ID, preview and timestamp.
+     */
+    public static class Row {
+        public final Chat chat;
+        public final String peerLabel;
+        public final String formattedTime;
+        public final int unreadCount;
+
+        public Row(Chat chat, String peerLabel, String formattedTime, int unreadCount) {
+            this.chat = chat;
+            this.peerLabel = peerLabel;
+            this.formattedTime = formattedTime;
+            this.unreadCount = unreadCount;
+        }
+    }
+
+    private final File file;
+    private final String ownerId;
+
+    // What the file holds, so an unchanged list isn't rewritten; guarded by this
+    private byte[] lastWritten;
+
+    public ChatListSnapshot(File dir, String ownerId) {
+        this.file = new File(dir, FILE_NAME);
+        this.ownerId = ownerId != null ? ownerId : "";
+    }
+
+    /**
+     * Read the rows last written, deleting the file if it's stale or damaged
+     * @return the rows, or null if there's no usable snapshot
+     */
+    public synchronized List<Row> read() {
+        if (!file.isFile()) {
+            return null;
+        }
+        long start = Metrics.start();
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            List<Row> rows = decode(data);
+            if (rows == null) {
+                STALE.increment();
+                deleteFile();
+                return null;
+            }
+            lastWritten = data;
+            return rows;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the chat list snapshot", e);
+            return null;
+        } finally {
+            READ_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Replace the snapshot with the first rows of the list, unless it already holds them
+     * @return true if the file was rewritten
+     */
+    public synchronized boolean write(List<Row> rows) {
+        byte[] data = encode(rows.subList(0, Math.min(rows.size(), MAX_ROWS)));
+        if (Arrays.equals(data, lastWritten)) {
+            return false;
+        }
+        long start = Metrics.start();
+        try {
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create " + dir);
+            }
+            // Write then rename, so a reader never sees half a snapshot
+            File temp = File.createTempFile(FILE_NAME, TEMP_SUFFIX, dir);
+            try {
+                try (OutputStream out = new FileOutputStream(temp)) {
+                    out.write(data);
+                    out.flush();
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            } finally {
+                temp.delete();
+            }
+            lastWritten = data;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the chat list snapshot", e);
+            return false;
+        } finally {
+            WRITE_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Delete the snapshot, e.g. when the user's data is cleared
+     */
+    public synchronized void delete() {
+        deleteFile();
+    }
+
+    private void deleteFile() {
+        lastWritten = null;
+        file.delete();
+    }
+
+    byte[] encode(List<Row> rows) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, ownerId);
+            writeString(out, ZoneId.systemDefault().getId());
+            writeString(out, Locale.getDefault().toLanguageTag());
+            out.writeInt(rows.size());
+            for (Row row : rows) {
+                Chat chat = row.chat;
+                boolean sealed = chat.hasEncryptedPreview()
+                    && chat.getPreviewContent().length() <= MAX_SEALED_PREVIEW_CHARS;
+                writeString(out, chat.getChatId());
+                writeString(out, row.peerLabel);
+                writeString(out, chat.hasEncryptedPreview() ? null : cutPreview(chat.getLastMessage()));
+                writeString(out, sealed ? chat.getPreviewMessageId() : null);
+                writeString(out, sealed ? chat.getPreviewContent() : null);
+                out.writeInt(sealed ? chat.getPreviewKeyEpoch() : 0);
+                writeString(out, row.formattedTime);
+                out.writeLong(chat.getTimestamp());
+                out.writeInt(row.unreadCount);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Only thrown by the underlying stream, which is in memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the rows, or null if the data is stale or damaged
+     */
+    List<Row> decode(byte[] data) {
+        if (data.length < Long.BYTES) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - Long.BYTES);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !ownerId.equals(readString(in))
+                    || !ZoneId.systemDefault().getId().equals(readString(in))
+                    || !Locale.getDefault().toLanguageTag().equals(readString(in))) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ROWS) {
+                return null;
+            }
+            List<Row> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String chatId = readString(in);
+                String peerLabel = readString(in);
+                String plainPreview = readString(in);
+                String previewMessageId = readString(in);
+                String previewContent = readString(in);
+                int keyEpoch = in.readInt();
+                String formattedTime = readString(in);
+                Chat chat = new Chat(chatId, plainPreview, in.readLong());
+                if (previewContent != null) {
+                    chat.setPreview(previewMessageId, previewContent, keyEpoch);
+                }
+                rows.add(new Row(chat, peerLabel, formattedTime, in.readInt()));
+            }
+            if (in.readLong() != crc.getValue() || in.available() != 0) {
+                return null;
+            }
+            return rows;
+        } catch (IOException e) {
+            // Truncated or garbled
+            return null;
+        }
+    }
+
+    private static String cutPreview(String preview) {
+        if (preview == null || preview.length() <= MAX_PREVIEW_CHARS) {
+            return preview;
+        }
+        int end = MAX_PREVIEW_CHARS;
+        if (Character.isHighSurrogate(preview.charAt(end - 1))) {
+            end--;
+        }
+        return preview.substring(0, end);
+    }
+
+    // Length-prefixed UTF-8, with -1 for null; unlike writeUTF, not limited to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("String runs past the end");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
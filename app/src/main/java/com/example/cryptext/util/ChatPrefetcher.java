@@ -0,0 +1,146 @@
+package com.example.cryptext.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Warms the newest page of the most recent chats once the main thread goes idle,
+ * so that ChatActivity can render them without touching disk or crypto.
+ * Work is cancelled on scroll or navigation and skipped under memory pressure.
+ */
+public class ChatPrefetcher {
+
+    // How many of the most recent chats to warm
+    private static final int MAX_PREFETCH_CHATS = 5;
+
+    // Messages per chat that ChatActivity shows first
+    public static final int PAGE_SIZE = 30;
+
+    private final Context context;
+    private final LocalStorageManager storageManager;
+    private final ConversationCache conversationCache;
+    private final ExecutorService executor;
+
+    private MessageQueue.IdleHandler pendingIdleHandler;
+    private Future<?> runningTask;
+
+    public ChatPrefetcher(Context context, LocalStorageManager storageManager) {
+        this.context = context.getApplicationContext();
+        this.storageManager = storageManager;
+        this.conversationCache = ConversationCache.getInstance(context);
+        this.executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Schedule a prefetch of the most recent chats for the next time the main thread is idle.
+     * Replaces any prefetch that is already pending. Must be called on the main thread.
+     */
+    public void schedule(List<Chat> chats) {
+        cancel();
+
+        final List<Chat> recentChats = new ArrayList<>(chats);
+        recentChats.sort((c1, c2) -> Long.compare(c2.getTimestamp(), c1.getTimestamp()));
+        if (recentChats.size() > MAX_PREFETCH_CHATS) {
+            recentChats.subList(MAX_PREFETCH_CHATS, recentChats.size()).clear();
+        }
+        if (recentChats.isEmpty()) {
+            return;
+        }
+
+        pendingIdleHandler = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                pendingIdleHandler = null;
+                if (!isUnderMemoryPressure()) {
+                    runningTask = executor.submit(() -> prefetch(recentChats));
+                }
+                // One-shot
+                return false;
+            }
+        };
+        Looper.myQueue().addIdleHandler(pendingIdleHandler);
+    }
+
+    /**
+     * Cancel any pending or running prefetch. Already warmed chats stay cached.
+     */
+    public void cancel() {
+        if (pendingIdleHandler != null) {
+            Looper.myQueue().removeIdleHandler(pendingIdleHandler);
+            pendingIdleHandler = null;
+        }
+        if (runningTask != null) {
+            runningTask.cancel(true);
+            runningTask = null;
+        }
+    }
+
+    /**
+     * Cancel work and stop the worker thread
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void prefetch(List<Chat> chats) {
+        PlaintextCache plaintextCache = conversationCache.getPlaintextCache();
+
+        for (Chat chat : chats) {
+            if (Thread.currentThread().isInterrupted() || isUnderMemoryPressure()) {
+                return;
+            }
+
+            String chatId = chat.getChatId();
+            if (conversationCache.hasPage(chatId)) {
+                continue;
+            }
+
+            // Parse and keep only the newest page
+            List<Message> stored = storageManager.getChatMessages(chatId);
+            List<Message> messages = new ArrayList<>();
+            for (Message message : stored) {
+                if (message != null && message.getContent() != null) {
+                    messages.add(message);
+                }
+            }
+            int from = Math.max(0, messages.size() - PAGE_SIZE);
+            List<Message> page = messages.subList(from, messages.size());
+
+            ChatCipher cipher = new ChatCipher(storageManager, chatId);
+            for (Message message : page) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if (!plaintextCache.contains(message.getMessageId())) {
+                    String plaintext = cipher.decrypt(message);
+                    plaintextCache.put(message.getMessageId(), plaintext);
+                }
+            }
+
+            conversationCache.putPage(chatId, page, PAGE_SIZE);
+        }
+    }
+
+    private boolean isUnderMemoryPressure() {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return false;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        activityManager.getMemoryInfo(memoryInfo);
+        return memoryInfo.lowMemory;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.cryptext.util;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+import com.example.cryptext.model.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Process-wide cache shared by the chat list and chat screens.
+ * Holds the newest page of stored messages for recently used chats, plus the
+ * decrypted plaintext for those messages and decoded attachment thumbnails,
+ * so opening a warmed chat needs no disk or crypto work on the main thread. Trimmed under memory pressure.
+ */
+public class ConversationCache implements ComponentCallbacks2 {
+
+    // Number of chats whose newest page is kept in memory
+    private static final int MAX_CACHED_CHATS = 8;
+
+    private static final Metrics.Counter PAGE_HITS = Metrics.counter("cache.page.hits");
+    private static final Metrics.Counter PAGE_MISSES = Metrics.counter("cache.page.misses");
+
+    private static ConversationCache instance;
+
+    private final LruCache<String, List<Message>> pages;
+    private final PlaintextCache plaintextCache;
+    private final ThumbnailCache thumbnailCache;
+
+    private ConversationCache() {
+        this.pages = new LruCache<>(MAX_CACHED_CHATS);
+        this.plaintextCache = new PlaintextCache();
+        this.thumbnailCache = new ThumbnailCache();
+    }
+
+    public static synchronized ConversationCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ConversationCache();
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the cached newest page of (still encrypted) messages for a chat
+     * @return the page in chronological order, or null if the chat isn't warmed
+     */
+    public List<Message> getPage(String chatId) {
+        List<Message> page = pages.get(chatId);
+        (page != null ? PAGE_HITS : PAGE_MISSES).increment();
+        return page;
+    }
+
+    /**
+     * Whether a chat is warmed, without counting towards the page hit rate
+     */
+    public boolean hasPage(String chatId) {
+        return pages.get(chatId) != null;
+    }
+
+    /**
+     * Cache the newest page of messages for a chat
+     * @param messages chronological messages; only the tail is kept
+     * @param pageSize maximum number of messages to keep
+     */
+    public void putPage(String chatId, List<Message> messages, int pageSize) {
+        int from = Math.max(0, messages.size() - pageSize);
+        List<Message> page = new ArrayList<>(messages.subList(from, messages.size()));
+        pages.put(chatId, Collections.unmodifiableList(page));
+    }
+
+    public PlaintextCache getPlaintextCache() {
+        return plaintextCache;
+    }
+
+    public ThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    /**
+     * Forget a chat's cached page and the plaintext of its cached messages
+     */
+    public void evictChat(String chatId) {
+        List<Message> page = pages.remove(chatId);
+        if (page != null) {
+            for (Message message : page) {
+                plaintextCache.remove(message.getMessageId());
+            }
+        }
+    }
+
+    public void clear() {
+        pages.evictAll();
+        plaintextCache.clear();
+        thumbnailCache.clear();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            pages.trimToSize(MAX_CACHED_CHATS / 2);
+            plaintextCache.trimToHalf();
+            thumbnailCache.trimToHalf();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        // Not affected by configuration changes
+    }
+}
@@ -1,22 +1,81 @@
 package com.example.cryptext.util;
 
-import android.util.Base64;
+import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class EncryptionUtil {
+    private static final String TAG = "EncryptionUtil";
     
     private static final String ALGORITHM = "AES";
     private static final String CIPHER_TRANSFORMATION = "AES/CBC/PKCS5Padding";
     
+    // Derived keys are cached so repeated decrypts in a chat don't rehash the passphrase
+    private static final int KEY_CACHE_SIZE = 32;
+    private static final Map<String, Key> keyCache = Collections.synchronizedMap(
+        new LinkedHashMap<String, Key>(KEY_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Key> eldest) {
+                return size() > KEY_CACHE_SIZE;
+            }
+        });
+    
+    // Same output as android.util.Base64.DEFAULT (76-column lines, each ending in '\n'),
+    // so stored messages are unchanged, but also runs off-device in tests and load runs
+    private static final Base64.Encoder BASE64_ENCODER = Base64.getMimeEncoder(76, new byte[]{'\n'});
+    private static final Base64.Decoder BASE64_DECODER = Base64.getMimeDecoder();
+    
+    // SecureRandom is thread-safe; one instance avoids reseeding on every message
+    private static final SecureRandom secureRandom = new SecureRandom();
+    
+    // Each user has an EC identity key pair; group keys are wrapped to its public key
+    private static final String IDENTITY_KEY_ALGORITHM = "EC";
+    private static final String IDENTITY_KEY_CURVE = "secp256r1";
+    // Key-encryption keys are derived from an ECDH secret, this prefix, the chat and the epoch
+    private static final String MEMBER_KEY_PREFIX = "member:";
+    // A wrapped 16-byte key on its own, as issued by versions without identity keys
+    private static final int LEGACY_WRAPPED_BYTES = 24;
+    // Attachment chunks are encrypted and named with keys derived from an epoch's key and these labels
+    private static final String ATTACHMENT_KEY_LABEL = "attachment";
+    private static final String ATTACHMENT_ID_KEY_LABEL = "attachment-id";
+    // Attachments stored before that used keys derived from these prefixes and the chat ID alone
+    private static final String LEGACY_ATTACHMENT_KEY_PREFIX = "attachment:";
+    private static final String LEGACY_ATTACHMENT_ID_KEY_PREFIX = "attachment-id:";
+    
+    private static final Metrics.Histogram ENCRYPT_TIME = Metrics.histogram("crypto.encrypt");
+    private static final Metrics.Histogram DECRYPT_TIME = Metrics.histogram("crypto.decrypt");
+    private static final Metrics.Counter FAILURES = Metrics.counter("crypto.failures");
+    private static final Metrics.Counter KEY_CACHE_HITS = Metrics.counter("crypto.keyCache.hits");
+    private static final Metrics.Counter KEY_CACHE_MISSES = Metrics.counter("crypto.keyCache.misses");
+    private static final Metrics.Histogram WRAP_TIME = Metrics.histogram("crypto.wrapKey");
+    private static final Metrics.Histogram UNWRAP_TIME = Metrics.histogram("crypto.unwrapKey");
+    
     /**
      * Encrypt a message using AES algorithm
      * @param message message to encrypt
@@ -25,33 +84,37 @@ public class EncryptionUtil {
      */
     public static String encrypt(String message, String secretKey) {
         try {
-            // Generate a secure IV (Initialization Vector)
-            SecureRandom secureRandom = new SecureRandom();
-            byte[] iv = new byte[16]; // 16 bytes for AES
-            secureRandom.nextBytes(iv);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-            
-            // Create key
-            Key key = generateKey(secretKey);
-            
-            // Initialize cipher
-            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
-            
-            // Encrypt
-            byte[] encrypted = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
-            
-            // Combine IV and encrypted part
-            byte[] encryptedIvPlusData = new byte[iv.length + encrypted.length];
-            System.arraycopy(iv, 0, encryptedIvPlusData, 0, iv.length);
-            System.arraycopy(encrypted, 0, encryptedIvPlusData, iv.length, encrypted.length);
+            return encrypt(message, generateKey(secretKey));
+        } catch (NoSuchAlgorithmException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error deriving key", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Encrypt a message under a raw AES key, such as a group key
+     * @return Base64-encoded encrypted message with IV prepended
+     */
+    public static String encryptWithKey(String message, byte[] rawKey) {
+        return encrypt(message, new SecretKeySpec(rawKey, ALGORITHM));
+    }
+    
+    private static String encrypt(String message, Key key) {
+        long start = Metrics.start();
+        try {
+            byte[] data = message.getBytes(StandardCharsets.UTF_8);
+            byte[] encryptedIvPlusData = encryptBytes(data, 0, data.length, key);
             
             // Encode with Base64 for safe storage/transmission
-            return Base64.encodeToString(encryptedIvPlusData, Base64.DEFAULT);
+            return BASE64_ENCODER.encodeToString(encryptedIvPlusData) + "\n";
             
         } catch (Exception e) {
-            e.printStackTrace();
+            FAILURES.increment();
+            Log.e(TAG, "Error encrypting message", e);
             return null;
+        } finally {
+            ENCRYPT_TIME.recordSince(start);
         }
     }
     
@@ -62,43 +125,387 @@ public class EncryptionUtil {
      * @return decrypted message
      */
     public static String decrypt(String encryptedData, String secretKey) {
+        try {
+            return decrypt(encryptedData, generateKey(secretKey));
+        } catch (NoSuchAlgorithmException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error deriving key", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Decrypt a message encrypted with encryptWithKey
+     */
+    public static String decryptWithKey(String encryptedData, byte[] rawKey) {
+        return decrypt(encryptedData, new SecretKeySpec(rawKey, ALGORITHM));
+    }
+    
+    private static String decrypt(String encryptedData, Key key) {
+        long start = Metrics.start();
         try {
             // Decode from Base64
-            byte[] encryptedIvPlusData = Base64.decode(encryptedData, Base64.DEFAULT);
-            
-            // Extract IV
-            byte[] iv = new byte[16]; // 16 bytes for AES
-            System.arraycopy(encryptedIvPlusData, 0, iv, 0, iv.length);
-            IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-            
-            // Extract encrypted part
-            byte[] encryptedBytes = new byte[encryptedIvPlusData.length - iv.length];
-            System.arraycopy(encryptedIvPlusData, iv.length, encryptedBytes, 0, encryptedBytes.length);
-            
-            // Create key
-            Key key = generateKey(secretKey);
+            byte[] encryptedIvPlusData = BASE64_DECODER.decode(encryptedData);
             
-            // Initialize cipher
-            Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, key, ivParameterSpec);
-            
-            // Decrypt
-            byte[] decrypted = cipher.doFinal(encryptedBytes);
+            byte[] decrypted = decryptBytes(encryptedIvPlusData, key);
             
             return new String(decrypted, StandardCharsets.UTF_8);
             
         } catch (Exception e) {
-            e.printStackTrace();
+            FAILURES.increment();
+            Log.e(TAG, "Error decrypting message", e);
             return null;
+        } finally {
+            DECRYPT_TIME.recordSince(start);
         }
     }
     
     /**
-     * Generate a key from a passphrase
+     * Encrypt binary data, such as an attachment chunk, under a raw AES key
+     * @return the IV followed by the ciphertext
+     */
+    public static byte[] encryptBytes(byte[] data, int offset, int length, byte[] rawKey)
+            throws GeneralSecurityException {
+        long start = Metrics.start();
+        try {
+            return encryptBytes(data, offset, length, new SecretKeySpec(rawKey, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            FAILURES.increment();
+            throw e;
+        } finally {
+            ENCRYPT_TIME.recordSince(start);
+        }
+    }
+    
+    /**
+     * Decrypt data encrypted with encryptBytes
+     * @throws GeneralSecurityException if the key is wrong or the data was altered
+     */
+    public static byte[] decryptBytes(byte[] encryptedIvPlusData, byte[] rawKey)
+            throws GeneralSecurityException {
+        long start = Metrics.start();
+        try {
+            return decryptBytes(encryptedIvPlusData, new SecretKeySpec(rawKey, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            FAILURES.increment();
+            throw e;
+        } finally {
+            DECRYPT_TIME.recordSince(start);
+        }
+    }
+    
+    private static byte[] encryptBytes(byte[] data, int offset, int length, Key key)
+            throws GeneralSecurityException {
+        // Generate a secure IV (Initialization Vector)
+        byte[] iv = new byte[16]; // 16 bytes for AES
+        secureRandom.nextBytes(iv);
+        IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
+        
+        // Initialize cipher
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, ivParameterSpec);
+        
+        // Write the IV, then encrypt straight into the buffer after it
+        byte[] encryptedIvPlusData = new byte[iv.length + cipher.getOutputSize(length)];
+        System.arraycopy(iv, 0, encryptedIvPlusData, 0, iv.length);
+        int written = cipher.doFinal(data, offset, length, encryptedIvPlusData, iv.length);
+        return written == encryptedIvPlusData.length - iv.length
+            ? encryptedIvPlusData : Arrays.copyOf(encryptedIvPlusData, iv.length + written);
+    }
+    
+    private static byte[] decryptBytes(byte[] encryptedIvPlusData, Key key) throws GeneralSecurityException {
+        if (encryptedIvPlusData.length < 16) {
+            throw new GeneralSecurityException("Ciphertext shorter than its IV");
+        }
+        // The first 16 bytes are the IV
+        IvParameterSpec ivParameterSpec = new IvParameterSpec(encryptedIvPlusData, 0, 16);
+        
+        // Initialize cipher
+        Cipher cipher = Cipher.getInstance(CIPHER_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, ivParameterSpec);
+        
+        // Decrypt
+        return cipher.doFinal(encryptedIvPlusData, 16, encryptedIvPlusData.length - 16);
+    }
+    
+    /**
+     * Key that encrypts attachment chunks stored under an epoch
+     * @param epochKey the epoch's message key
+     */
+    public static byte[] attachmentKey(byte[] epochKey) {
+        return subkey(epochKey, ATTACHMENT_KEY_LABEL);
+    }
+    
+    /**
+     * Key that names attachment chunks stored under an epoch, separate from the one that encrypts them
+     * @param epochKey the epoch's message key
+     */
+    public static byte[] attachmentIdKey(byte[] epochKey) {
+        return subkey(epochKey, ATTACHMENT_ID_KEY_LABEL);
+    }
+    
+    /**
+     * Key that encrypted a chat's attachment chunks before they were bound to an epoch
+     */
+    public static byte[] legacyAttachmentKey(String chatId) {
+        return rawKey(LEGACY_ATTACHMENT_KEY_PREFIX + chatId);
+    }
+    
+    /**
+     * Key that named a chat's attachment chunks before they were bound to an epoch
+     */
+    public static byte[] legacyAttachmentIdKey(String chatId) {
+        return rawKey(LEGACY_ATTACHMENT_ID_KEY_PREFIX + chatId);
+    }
+    
+    /**
+     * Raw key a chat's epoch 0 messages are encrypted under
+     */
+    public static byte[] passphraseKey(String chatId) {
+        return rawKey(chatId);
+    }
+    
+    /**
+     * Content address of a plaintext chunk: HMAC-SHA256 under a chat's id key, in hex.
+     * The same chunk always gets the same id within a chat, but ids reveal nothing
+     * about the content to anyone without the key.
+     */
+    public static String contentId(byte[] idKey, byte[] data, int offset, int length) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(idKey, "HmacSHA256"));
+            mac.update(data, offset, length);
+            byte[] digest = mac.doFinal();
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available on every supported platform
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Stretch a user-chosen passphrase, such as a backup's, into length bytes
+     * of key material with PBKDF2, so every guess costs iterations rounds
+     */
+    public static byte[] stretchPassphrase(String passphrase, byte[] salt, int iterations, int length)
+            throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    // HMAC-SHA256 of label under key, truncated to AES-128, so subkeys for different uses are independent
+    private static byte[] subkey(byte[] key, String label) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return Arrays.copyOf(mac.doFinal(label.getBytes(StandardCharsets.UTF_8)), 16);
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is available on every supported platform
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static byte[] rawKey(String passphrase) {
+        try {
+            return generateKey(passphrase).getEncoded();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every supported platform
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Derive the key for a passphrase ahead of time so later calls hit the key cache
+     * @param secretKey passphrase
+     */
+    public static void warmKey(String secretKey) {
+        try {
+            generateKey(secretKey);
+        } catch (NoSuchAlgorithmException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error deriving key", e);
+        }
+    }
+    
+    /**
+     * Generate a random group key
+     */
+    public static byte[] newGroupKey() {
+        byte[] key = new byte[16];
+        secureRandom.nextBytes(key);
+        return key;
+    }
+    
+    /**
+     * Generate a user's identity key pair. The private key never leaves the
+     * device; the public key is published so others can wrap group keys to it.
+     */
+    public static KeyPair newIdentityKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(IDENTITY_KEY_ALGORITHM);
+            generator.initialize(new ECGenParameterSpec(IDENTITY_KEY_CURVE), secureRandom);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            // P-256 is available on every supported platform
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * @return the Base64-encoded key, X.509 for a public key or PKCS#8 for a private one
+     */
+    public static String encodeKey(Key key) {
+        return Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+    
+    /**
+     * @return the public key, or null if encoded isn't one
+     */
+    public static PublicKey decodePublicKey(String encoded) {
+        try {
+            return KeyFactory.getInstance(IDENTITY_KEY_ALGORITHM)
+                .generatePublic(new X509EncodedKeySpec(Base64.getDecoder().decode(encoded)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error decoding public key", e);
+            return null;
+        }
+    }
+    
+    /**
+     * @return the private key, or null if encoded isn't one
+     */
+    public static PrivateKey decodePrivateKey(String encoded) {
+        try {
+            return KeyFactory.getInstance(IDENTITY_KEY_ALGORITHM)
+                .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(encoded)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error decoding private key", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Wrap a group key to one member's public identity key. A fresh ephemeral
+     * key pair is agreed with the member's key, so only the holder of the
+     * matching private key can unwrap it; the ephemeral public key is sent along.
+     * @return the Base64-encoded ephemeral public key and wrapped key, or null on failure
+     */
+    public static String wrapGroupKey(byte[] groupKey, String chatId, int epoch, PublicKey memberKey) {
+        long start = Metrics.start();
+        try {
+            KeyPair ephemeral = newIdentityKeyPair();
+            byte[] kek = memberKey(ephemeral.getPrivate(), memberKey, chatId, epoch);
+            byte[] ephemeralKey = ephemeral.getPublic().getEncoded();
+            byte[] wrapped = KeyWrap.wrap(kek, groupKey);
+            
+            byte[] out = new byte[1 + ephemeralKey.length + wrapped.length];
+            out[0] = (byte) ephemeralKey.length;
+            System.arraycopy(ephemeralKey, 0, out, 1, ephemeralKey.length);
+            System.arraycopy(wrapped, 0, out, 1 + ephemeralKey.length, wrapped.length);
+            return Base64.getEncoder().encodeToString(out);
+        } catch (GeneralSecurityException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error wrapping group key", e);
+            return null;
+        } finally {
+            WRAP_TIME.recordSince(start);
+        }
+    }
+    
+    /**
+     * Unwrap a group key wrapped to a member's public identity key
+     * @param memberId the member, only needed for keys issued before identity keys
+     * @param identityKey the member's private identity key
+     * @return the group key, or null if it wasn't wrapped for this member
+     */
+    public static byte[] unwrapGroupKey(String wrappedKey, String chatId, int epoch,
+                                        String memberId, PrivateKey identityKey) {
+        long start = Metrics.start();
+        try {
+            byte[] data = Base64.getDecoder().decode(wrappedKey);
+            if (data.length == LEGACY_WRAPPED_BYTES) {
+                // Readable by anyone who knows the IDs; kept only for old messages,
+                // and a new key is issued before anything else is sent
+                return KeyWrap.unwrap(legacyMemberKey(chatId, memberId), data);
+            }
+            int keyLength = data.length > 0 ? data[0] & 0xff : 0;
+            if (data.length < 1 + keyLength + LEGACY_WRAPPED_BYTES) {
+                throw new GeneralSecurityException("Bad wrapped key length");
+            }
+            PublicKey ephemeralKey = KeyFactory.getInstance(IDENTITY_KEY_ALGORITHM)
+                .generatePublic(new X509EncodedKeySpec(Arrays.copyOfRange(data, 1, 1 + keyLength)));
+            byte[] kek = memberKey(identityKey, ephemeralKey, chatId, epoch);
+            return KeyWrap.unwrap(kek, Arrays.copyOfRange(data, 1 + keyLength, data.length));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error unwrapping group key", e);
+            return null;
+        } finally {
+            UNWRAP_TIME.recordSince(start);
+        }
+    }
+    
+    /**
+     * Key-encryption key for one member's copy of an epoch's key: SHA-256 of
+     * the ECDH secret, bound to the chat and epoch, truncated to AES-128
+     */
+    private static byte[] memberKey(PrivateKey privateKey, PublicKey publicKey, String chatId, int epoch)
+            throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+        agreement.init(privateKey);
+        agreement.doPhase(publicKey, true);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(agreement.generateSecret());
+        digest.update((MEMBER_KEY_PREFIX + chatId + "@" + epoch).getBytes(StandardCharsets.UTF_8));
+        return Arrays.copyOf(digest.digest(), 16);
+    }
+    
+    // Key-encryption key of a member before identity keys, derived from public IDs alone
+    private static byte[] legacyMemberKey(String chatId, String memberId) throws NoSuchAlgorithmException {
+        return deriveKey(MEMBER_KEY_PREFIX + chatId + ":" + memberId).getEncoded();
+    }
+    
+    /**
+     * Clear cached derived keys (e.g. on logout)
+     */
+    public static void clearKeyCache() {
+        keyCache.clear();
+    }
+    
+    /**
+     * Get the key for a passphrase, deriving it on a cache miss
      * @param secretKey passphrase
      * @return encryption key
      */
     private static Key generateKey(String secretKey) throws NoSuchAlgorithmException {
+        Key cachedKey = keyCache.get(secretKey);
+        if (cachedKey != null) {
+            KEY_CACHE_HITS.increment();
+            return cachedKey;
+        }
+        
+        KEY_CACHE_MISSES.increment();
+        Key key = deriveKey(secretKey);
+        keyCache.put(secretKey, key);
+        return key;
+    }
+    
+    /**
+     * Generate a key from a passphrase
+     * @param secretKey passphrase
+     * @return encryption key
+     */
+    private static Key deriveKey(String secretKey) throws NoSuchAlgorithmException {
         // Create SHA-256 hash of the key
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
         byte[] keyBytes = digest.digest(secretKey.getBytes(StandardCharsets.UTF_8));
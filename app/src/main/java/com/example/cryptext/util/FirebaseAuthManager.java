@@ -5,6 +5,7 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.example.cryptext.sync.OutboxFlusher;
 import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
@@ -14,6 +15,7 @@ import com.google.firebase.auth.FirebaseAuth;
 import com.google.firebase.auth.FirebaseUser;
 import com.google.firebase.firestore.DocumentReference;
 import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.SetOptions;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -31,7 +33,14 @@ public class FirebaseAuthManager {
     public FirebaseAuthManager(Context context) {
         this.context = context;
         this.firebaseAuth = FirebaseAuth.getInstance();
-        this.firestore = FirebaseFirestore.getInstance();
+    }
+
+    // Firestore is only needed to register, so it isn't started with every screen that signs out
+    private FirebaseFirestore getFirestore() {
+        if (firestore == null) {
+            firestore = FirebaseFirestore.getInstance();
+        }
+        return firestore;
     }
 
     // AUTH METHODS
@@ -48,6 +57,9 @@ public class FirebaseAuthManager {
                 public void onComplete(@NonNull Task<AuthResult> task) {
                     if (task.isSuccessful()) {
                         FirebaseUser user = firebaseAuth.getCurrentUser();
+                        if (user != null) {
+                            backfillEmailLower(user);
+                        }
                         callback.onSuccess(user);
                     } else {
                         callback.onFailure(task.getException());
@@ -78,10 +90,11 @@ public class FirebaseAuthManager {
     private void createUserProfile(final FirebaseUser user, final AuthCallback callback) {
         Map<String, Object> userData = new HashMap<>();
         userData.put("userId", user.getUid());
-        userData.put("email", user.getEmail());
+        userData.put(FirestoreUserDirectory.EMAIL_FIELD, user.getEmail());
+        userData.put(FirestoreUserDirectory.EMAIL_LOWER_FIELD, UserLookupCache.normalizeEmail(user.getEmail()));
         userData.put("createdAt", System.currentTimeMillis());
         
-        firestore.collection("users")
+        getFirestore().collection("users")
             .document(user.getUid())
             .set(userData)
             .addOnSuccessListener(new OnSuccessListener<Void>() {
@@ -98,7 +111,37 @@ public class FirebaseAuthManager {
             });
     }
     
+    /**
+     * Give a profile registered before emailLower existed its normalized email, so
+     * lookups by any casing find it. Best effort: retried at every sign-in.
+     */
+    private void backfillEmailLower(FirebaseUser user) {
+        if (user.getEmail() == null) {
+            return;
+        }
+        Map<String, Object> update = new HashMap<>();
+        update.put(FirestoreUserDirectory.EMAIL_LOWER_FIELD, UserLookupCache.normalizeEmail(user.getEmail()));
+        getFirestore().collection("users")
+            .document(user.getUid())
+            .set(update, SetOptions.merge())
+            .addOnFailureListener(e -> Log.w(TAG, "Could not backfill emailLower", e));
+    }
+    
+    /**
+     * Sign out and close the user's storage, outbox and in-memory caches
+     */
     public void signOut() {
+        FirebaseUser user = firebaseAuth.getCurrentUser();
+        if (user != null) {
+            OutboxFlusher.closeUser(user.getUid());
+            Reencryptor.closeUser(user.getUid());
+            RetentionSweeper.closeUser(user.getUid());
+            LegacyMigrator.closeUser(user.getUid());
+            LocalStorageManager.closeUser(user.getUid());
+        }
+        ConversationCache.getInstance(context).clear();
+        EncryptionUtil.clearKeyCache();
+        ChatCipher.clearKeyCache();
         firebaseAuth.signOut();
     }
     
@@ -0,0 +1,74 @@
+package com.example.cryptext.util;
+
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldPath;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UserDirectory backed by the Firestore "users" collection
+ */
+public class FirestoreUserDirectory implements UserDirectory {
+
+    private static final String USERS_COLLECTION = "users";
+    // Profiles store their email as typed and normalized, since Firestore equality is case-sensitive
+    public static final String EMAIL_FIELD = "email";
+    public static final String EMAIL_LOWER_FIELD = "emailLower";
+
+    private FirebaseFirestore firestore;
+
+    // Firestore is resolved on first use rather than at construction
+    private FirebaseFirestore getFirestore() {
+        if (firestore == null) {
+            firestore = FirebaseFirestore.getInstance();
+        }
+        return firestore;
+    }
+
+    /**
+     * Callers pass a normalized email. Profiles without emailLower, which
+     * their owner fills in at next sign-in, are still found by the email they
+     * were registered with if that was already lowercase.
+     */
+    @Override
+    public void findUserIdByEmail(final String email, final LookupCallback callback) {
+        getFirestore().collection(USERS_COLLECTION)
+            .whereEqualTo(EMAIL_LOWER_FIELD, email)
+            .get()
+            .addOnSuccessListener(queryDocumentSnapshots -> {
+                if (!queryDocumentSnapshots.isEmpty()) {
+                    callback.onResult(queryDocumentSnapshots.getDocuments().get(0).getId());
+                    return;
+                }
+                getFirestore().collection(USERS_COLLECTION)
+                    .whereEqualTo(EMAIL_FIELD, email)
+                    .get()
+                    .addOnSuccessListener(legacySnapshots -> callback.onResult(legacySnapshots.isEmpty()
+                        ? null : legacySnapshots.getDocuments().get(0).getId()))
+                    .addOnFailureListener(callback::onFailure);
+            })
+            .addOnFailureListener(callback::onFailure);
+    }
+
+    @Override
+    public void findEmailsByUserIds(List<String> userIds, final BatchCallback callback) {
+        // Profile documents are keyed by userId
+        getFirestore().collection(USERS_COLLECTION)
+            .whereIn(FieldPath.documentId(), userIds)
+            .get()
+            .addOnSuccessListener(queryDocumentSnapshots -> {
+                Map<String, String> emailsByUserId = new HashMap<>();
+                for (DocumentSnapshot document : queryDocumentSnapshots.getDocuments()) {
+                    String email = document.getString(EMAIL_FIELD);
+                    if (email != null) {
+                        emailsByUserId.put(document.getId(), email);
+                    }
+                }
+                callback.onResult(emailsByUserId);
+            })
+            .addOnFailureListener(callback::onFailure);
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.cryptext.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Scheduler that runs tasks on the main thread
+ */
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Message;
+
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+
+/**
+ * Hybrid logical clock for ordering messages across devices. A value packs
+ * wall-clock milliseconds in the high 48 bits and a logical counter in the
+ * low 16 bits, so values compare as plain longs. Every value handed out is
+ * greater than the previous one and than any remote value received, so a
+ * reply always sorts after the message it answers even if the replying
+ * device's clock is behind.
+ */
+public class HybridLogicalClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    // Remote values this far ahead of our wall clock don't drag our clock forward
+    static final long MAX_DRIFT_MS = 60 * 1000;
+
+    /**
+     * Chat order: HLC, then messageId to break ties
+     */
+    public static final Comparator<Message> ORDER = (m1, m2) -> {
+        int byClock = Long.compare(orderKey(m1), orderKey(m2));
+        if (byClock != 0) {
+            return byClock;
+        }
+        String id1 = m1.getMessageId() != null ? m1.getMessageId() : "";
+        String id2 = m2.getMessageId() != null ? m2.getMessageId() : "";
+        return id1.compareTo(id2);
+    };
+
+    private static HybridLogicalClock instance;
+
+    private final LongSupplier wallClock;
+    private long last;
+
+    public HybridLogicalClock(LongSupplier wallClock) {
+        this.wallClock = wallClock;
+    }
+
+    public static synchronized HybridLogicalClock getInstance() {
+        if (instance == null) {
+            instance = new HybridLogicalClock(System::currentTimeMillis);
+        }
+        return instance;
+    }
+
+    /**
+     * Get a value for a local event, such as sending a message
+     */
+    public synchronized long now() {
+        last = Math.max(last + 1, pack(wallClock.getAsLong()));
+        return last;
+    }
+
+    /**
+     * Advance past a value this clock handed out before the app was restarted.
+     * Unlike a remote value it is trusted however far ahead of the wall clock it is.
+     */
+    public synchronized void restore(long saved) {
+        last = Math.max(last, saved);
+    }
+
+    /**
+     * Get the latest value handed out or received, without advancing
+     */
+    public synchronized long current() {
+        return last;
+    }
+
+    /**
+     * Advance past a value received from another device
+     */
+    public synchronized void receive(long remote) {
+        long wall = wallClock.getAsLong();
+        long next = Math.max(last + 1, pack(wall));
+        if (physicalMillis(remote) <= wall + MAX_DRIFT_MS) {
+            next = Math.max(next, remote + 1);
+        }
+        last = next;
+    }
+
+    /**
+     * Sort key of a message; messages without an HLC fall back to their wall-clock timestamp
+     */
+    public static long orderKey(Message message) {
+        return message.getHlc() != 0 ? message.getHlc() : pack(message.getTimestamp());
+    }
+
+    public static long pack(long millis) {
+        return millis << LOGICAL_BITS;
+    }
+
+    public static long physicalMillis(long hlc) {
+        return hlc >>> LOGICAL_BITS;
+    }
+}
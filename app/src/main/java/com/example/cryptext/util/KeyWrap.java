@@ -0,0 +1,96 @@
+package com.example.cryptext.util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES key wrap (RFC 3394). Wrapping a 16-byte key costs 12 AES block
+ * operations and adds 8 bytes, which also serve as an integrity check.
+ */
+final class KeyWrap {
+
+    private static final byte[] DEFAULT_IV = {
+        (byte) 0xA6, (byte) 0xA6, (byte) 0xA6, (byte) 0xA6,
+        (byte) 0xA6, (byte) 0xA6, (byte) 0xA6, (byte) 0xA6
+    };
+
+    private KeyWrap() {
+    }
+
+    /**
+     * @param kek key-encryption key, 16 or 32 bytes
+     * @param key key to wrap; a multiple of 8 bytes, at least 16
+     * @return the wrapped key, 8 bytes longer than key
+     */
+    static byte[] wrap(byte[] kek, byte[] key) throws GeneralSecurityException {
+        if (key.length < 16 || key.length % 8 != 0) {
+            throw new GeneralSecurityException("Key length must be a multiple of 8, at least 16");
+        }
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kek, "AES"));
+
+        int n = key.length / 8;
+        byte[] a = DEFAULT_IV.clone();
+        byte[] r = key.clone();
+        byte[] block = new byte[16];
+        for (int j = 0; j < 6; j++) {
+            for (int i = 1; i <= n; i++) {
+                System.arraycopy(a, 0, block, 0, 8);
+                System.arraycopy(r, (i - 1) * 8, block, 8, 8);
+                block = aes.doFinal(block);
+                System.arraycopy(block, 0, a, 0, 8);
+                xorCounter(a, (long) n * j + i);
+                System.arraycopy(block, 8, r, (i - 1) * 8, 8);
+            }
+        }
+
+        byte[] wrapped = new byte[key.length + 8];
+        System.arraycopy(a, 0, wrapped, 0, 8);
+        System.arraycopy(r, 0, wrapped, 8, r.length);
+        return wrapped;
+    }
+
+    /**
+     * @return the unwrapped key
+     * @throws GeneralSecurityException if the kek is wrong or the wrapped key was altered
+     */
+    static byte[] unwrap(byte[] kek, byte[] wrapped) throws GeneralSecurityException {
+        if (wrapped.length < 24 || wrapped.length % 8 != 0) {
+            throw new GeneralSecurityException("Bad wrapped key length");
+        }
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kek, "AES"));
+
+        int n = wrapped.length / 8 - 1;
+        byte[] a = Arrays.copyOf(wrapped, 8);
+        byte[] r = Arrays.copyOfRange(wrapped, 8, wrapped.length);
+        byte[] block = new byte[16];
+        for (int j = 5; j >= 0; j--) {
+            for (int i = n; i >= 1; i--) {
+                xorCounter(a, (long) n * j + i);
+                System.arraycopy(a, 0, block, 0, 8);
+                System.arraycopy(r, (i - 1) * 8, block, 8, 8);
+                block = aes.doFinal(block);
+                System.arraycopy(block, 0, a, 0, 8);
+                System.arraycopy(block, 8, r, (i - 1) * 8, 8);
+            }
+        }
+
+        if (!MessageDigest.isEqual(a, DEFAULT_IV)) {
+            throw new GeneralSecurityException("Key unwrap failed integrity check");
+        }
+        return r;
+    }
+
+    // XOR the big-endian step counter into the low bytes of A
+    private static void xorCounter(byte[] a, long t) {
+        for (int k = 7; k >= 0 && t != 0; k--) {
+            a[k] ^= (byte) t;
+            t >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.cryptext.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Moves a user's chats out of the global store used before sharding, one
+ * chat per PacedWorker step, so users with long histories never wait for
+ * it at startup. Until a chat is moved its reads come from the old store.
+ * The chats left are saved after each one, so the migration resumes where
+ * it stopped after a crash or logout.
+ */
+public class LegacyMigrator extends PacedWorker {
+    private static final String TAG = "LegacyMigrator";
+
+    /**
+     * Told after each chat is moved, on the migrator's thread
+     */
+    public interface ProgressListener {
+        void onProgress(LocalStorageManager.MigrationProgress progress);
+    }
+
+    private final LocalStorageManager storage;
+    private volatile ProgressListener listener;
+    // Chats that failed to verify since the last kick; retried on the next one
+    private final Set<String> failed = new HashSet<>();
+
+    public LegacyMigrator(LocalStorageManager storage, ScheduledExecutorService executor) {
+        super(executor);
+        this.storage = storage;
+    }
+
+    public static LegacyMigrator forUser(Context context, String userId) {
+        return instance(TAG, userId,
+            executor -> new LegacyMigrator(LocalStorageManager.forUser(context, userId), executor));
+    }
+
+    /**
+     * Stop migrating on logout; it resumes after the next login
+     */
+    public static void closeUser(String userId) {
+        close(TAG, userId);
+    }
+
+    /**
+     * Set the listener told of progress, or null
+     */
+    public void setProgressListener(ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    // Each kick retries the chats that failed before
+    @Override
+    protected void onKicked() {
+        failed.clear();
+    }
+
+    @Override
+    protected boolean doStep() {
+        return step();
+    }
+
+    /**
+     * Move the next chat still in the old store. Blocks.
+     * @return true if chats are left that haven't failed since the last kick
+     */
+    boolean step() {
+        String chatId = null;
+        for (String pending : storage.getChatsPendingMigration()) {
+            if (!failed.contains(pending)) {
+                chatId = pending;
+                break;
+            }
+        }
+        if (chatId == null) {
+            return false;
+        }
+
+        try {
+            storage.migrateChat(chatId);
+        } catch (IOException e) {
+            // Its old data is kept and still read; the next kick tries again
+            Log.e(TAG, "Could not move " + chatId, e);
+            failed.add(chatId);
+        }
+
+        ProgressListener current = listener;
+        if (current != null) {
+            current.onProgress(storage.getMigrationProgress());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.cryptext.util;
+
+import android.content.SharedPreferences;
+
+import com.example.cryptext.model.Message;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The global store every user shared before storage was sharded: the
+ * unprefixed chats_data, messages_data and user_chats_data preference files
+ * and the message logs directly under the app's files directory. Shards
+ * read from it for chats LegacyMigrator hasn't moved yet. A chat is listed
+ * by each participant who used the device, so its data is only deleted once
+ * no one still waiting to migrate lists it.
+ */
+public class LegacyStore {
+
+    private static final String PREF_CHATS = "chats_data";
+    private static final String PREF_MESSAGES = "messages_data";
+    private static final String PREF_USER_CHATS = "user_chats_data";
+
+    // Every shard's view of the store edits the same files
+    private static final Object LOCK = new Object();
+
+    private final LocalStorageManager.PreferencesProvider prefsProvider;
+    private final MessageLog messageLog;
+    private final Gson gson = new Gson();
+
+    public LegacyStore(LocalStorageManager.PreferencesProvider prefsProvider, File filesDir) {
+        this.prefsProvider = prefsProvider;
+        this.messageLog = new MessageLog(filesDir);
+    }
+
+    /**
+     * Get the chat IDs in a user's old chat list
+     */
+    public List<String> getUserChatIds(String userId) {
+        String userChatsJson = prefsProvider.get(PREF_USER_CHATS).getString(userId, null);
+        if (userChatsJson == null) {
+            return new ArrayList<>();
+        }
+        Type chatListType = new TypeToken<List<String>>() {}.getType();
+        List<String> chatIds = gson.fromJson(userChatsJson, chatListType);
+        return chatIds != null ? chatIds : new ArrayList<>();
+    }
+
+    /**
+     * Get a chat's stored record, or null if it isn't in the old store
+     */
+    public String getChatJson(String chatId) {
+        return prefsProvider.get(PREF_CHATS).getString(chatId, null);
+    }
+
+    /**
+     * Get a chat's messages from the old one-list-per-chat preferences
+     */
+    public List<Message> getListedMessages(String chatId) {
+        String messagesJson = prefsProvider.get(PREF_MESSAGES).getString(chatId, null);
+        if (messagesJson == null) {
+            return new ArrayList<>();
+        }
+        Type messageListType = new TypeToken<List<Message>>() {}.getType();
+        List<Message> messages = gson.fromJson(messagesJson, messageListType);
+        return messages != null ? messages : new ArrayList<>();
+    }
+
+    /**
+     * Read part of a chat's old message log, as stored
+     */
+    public MessageLog.Batch readLogBatch(String chatId, long offset, int maxRecords) throws IOException {
+        return messageLog.readBatch(chatId, offset, maxRecords);
+    }
+
+    /**
+     * Get all of a chat's old messages: the listed ones, then its log
+     */
+    public List<Message> readMessages(String chatId) {
+        List<Message> messages = getListedMessages(chatId);
+        messages.addAll(messageLog.read(chatId));
+        return messages;
+    }
+
+    /**
+     * Take a chat off a user's old chat list, deleting its data if no other
+     * user still lists it
+     */
+    public void removeChat(String chatId, String userId) {
+        synchronized (LOCK) {
+            SharedPreferences userChatsPrefs = prefsProvider.get(PREF_USER_CHATS);
+            List<String> chatIds = getUserChatIds(userId);
+            if (chatIds.remove(chatId)) {
+                SharedPreferences.Editor editor = userChatsPrefs.edit();
+                if (chatIds.isEmpty()) {
+                    editor.remove(userId);
+                } else {
+                    editor.putString(userId, gson.toJson(chatIds));
+                }
+                editor.commit();
+            }
+
+            for (Map.Entry<String, ?> entry : userChatsPrefs.getAll().entrySet()) {
+                if (entry.getValue() instanceof String && ((String) entry.getValue()).contains(chatId)
+                        && getUserChatIds(entry.getKey()).contains(chatId)) {
+                    return;
+                }
+            }
+            prefsProvider.get(PREF_CHATS).edit().remove(chatId).commit();
+            prefsProvider.get(PREF_MESSAGES).edit().remove(chatId).commit();
+            messageLog.delete(chatId);
+        }
+    }
+}
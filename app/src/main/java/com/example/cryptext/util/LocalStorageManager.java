@@ -4,18 +4,50 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.example.cryptext.model.Attachment;
 import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.GroupKeyState;
 import com.example.cryptext.model.Message;
+import com.example.cryptext.model.ReadState;
+import com.example.cryptext.model.RetentionPolicy;
+import com.example.cryptext.sync.MessageChangeFeed;
+import com.example.cryptext.sync.Outbox;
+import com.example.cryptext.sync.SyncCursor;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class to handle local storage operations for the messaging app.
  * This simulates a server by storing data in SharedPreferences.
+ * New messages go to an append-only MessageLog per chat.
+ * Storage is sharded per user: each user's preference files and message logs
+ * are separate, so only the signed-in user's data is ever loaded.
+ * Writes lock a stripe per chat or user, so different chats write in
+ * parallel while writes to the same chat are serialized.
  */
 public class LocalStorageManager {
     private static final String TAG = "LocalStorageManager";
@@ -24,51 +56,289 @@ public class LocalStorageManager {
     private static final String PREF_CHATS = "chats_data";
     private static final String PREF_MESSAGES = "messages_data";
     private static final String PREF_USER_CHATS = "user_chats_data";
+    private static final String PREF_SYNC_STATE = "sync_state";
+    private static final String PREF_GROUP_KEYS = "group_keys";
+    private static final String PREF_RETENTION = "retention";
+    private static final String PREF_MIGRATION = "migration";
+    private static final String PREF_READ_STATE = "read_state";
+    private static final String PREF_IDENTITY = "identity";
+    private static final String PREF_MEMBER_KEYS = "member_keys";
     
-    private final Context context;
+    // Shard locations: preference files are prefixed, logs live under files/users/<userId>
+    private static final String SHARD_PREF_PREFIX = "user_";
+    private static final String SHARD_DIR = "users";
+    
+    // Keys in PREF_SYNC_STATE, suffixed with the chatId
+    private static final String ECHO_PREFIX = "echo:";
+    private static final String CURSOR_PREFIX = "cursor:";
+    // Counts compactions of a chat's stored messages, which move their positions; a scan
+    // by position that sees it change since it started must start over
+    private static final String COMPACTIONS_PREFIX = "compactions:";
+    // Frames of a backup archive already imported, suffixed with the archive's ID
+    private static final String IMPORT_PREFIX = "import:";
+    // Newest clock value this shard handed out or received
+    private static final String CLOCK_KEY = "hlc";
+    // When the last retention pass finished, so one isn't repeated on every launch
+    private static final String LAST_SWEEP_KEY = "last_sweep";
+    // Set once everything saved before sync existed has been queued for pushing
+    private static final String HISTORY_QUEUED = "history_queued";
+    
+    // Keys in PREF_GROUP_KEYS: the chatId holds its GroupKeyState, "<chatId>@<epoch>" the wrapped keys
+    // Keys in PREF_IDENTITY: this user's identity key pair, Base64-encoded
+    private static final String IDENTITY_PUBLIC = "public";
+    private static final String IDENTITY_PRIVATE = "private";
+    // Keys in PREF_MEMBER_KEYS are other users' IDs, values their public identity keys
+    
+    // Keys in PREF_MIGRATION: chats still in the old global store, how many there were, how many moved
+    private static final String MIGRATION_PENDING = "pending";
+    private static final String MIGRATION_TOTAL = "total";
+    private static final String MIGRATION_MOVED = "moved";
+    // Old records copied per write when moving a chat
+    private static final int MIGRATION_BATCH = 500;
+    
+    // Preview of a chat with no messages yet; the only preview saved in plain text
+    public static final String NEW_CHAT_PREVIEW = "Start chatting";
+    // Message ID prefix of previews sealed after being saved in plain text
+    private static final String SEALED_PREVIEW_PREFIX = "preview_";
+    
+    // Key in PREF_RETENTION of the policy for every chat; other keys are chatIds
+    private static final String GLOBAL_RETENTION = "*";
+    private static final String EPOCH_SEPARATOR = "@";
+    
+    /**
+     * Opens named SharedPreferences; lets tests substitute in-memory preferences
+     */
+    public interface PreferencesProvider {
+        SharedPreferences get(String name);
+    }
+    
+    private final PreferencesProvider prefsProvider;
+    private final MessageLog messageLog;
+    private final BlobStore blobStore;
+    private final ChatListSnapshot chatListSnapshot;
+    private final Outbox outbox;
+    private final MessageChangeFeed changeFeed;
     private final Gson gson;
+    // User whose shard this is; null for storage not opened through forUser
+    private final String ownerId;
+    // Data from before sharding, read until LegacyMigrator moves it; null if there is none to move
+    private final LegacyStore legacyStore;
+    
+    // Chats still to move out of legacyStore; loaded on first use, replaced as a whole when one moves
+    private final Object migrationLock = new Object();
+    private volatile Set<String> migrationPending;
+    
+    // Read state by chat, loaded on first use; a chat's entry is replaced, not changed, under its stripe
+    private final Object readStateLock = new Object();
+    private volatile Map<String, ReadState> readStates;
+    // Sum of every chat's unread count, kept alongside them
+    private final AtomicInteger totalUnread = new AtomicInteger();
+    
+    // This user's identity key pair, loaded or generated on first use
+    private final Object identityLock = new Object();
+    private volatile KeyPair identity;
+    
+    // Whether the clock has been advanced past this shard's saved value
+    private final Object clockLock = new Object();
+    private volatile boolean clockSeeded;
+    
+    // Read-modify-write of a chat's or user's records happens under that key's stripe
+    private final LockStripes locks = new LockStripes(32);
+    
+    private static final Metrics.Histogram GET_USER_CHATS_TIME = Metrics.histogram("storage.getUserChats");
+    private static final Metrics.Histogram CREATE_CHAT_TIME = Metrics.histogram("storage.createChat");
+    private static final Metrics.Histogram GET_MESSAGES_TIME = Metrics.histogram("storage.getChatMessages");
+    private static final Metrics.Histogram SEND_TIME = Metrics.histogram("storage.sendMessage");
+    private static final Metrics.Histogram MERGE_TIME = Metrics.histogram("storage.mergeRemoteMessages");
+    private static final Metrics.Histogram DELETE_CHAT_TIME = Metrics.histogram("storage.deleteChat");
+    private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("json.parse");
+    private static final Metrics.Histogram MIGRATE_CHAT_TIME = Metrics.histogram("migration.chat");
+    private static final Metrics.Counter MIGRATED_MESSAGES = Metrics.counter("migration.messages");
+    private static final Metrics.Counter MIGRATION_FAILURES = Metrics.counter("migration.failures");
+    private static final Metrics.Counter FAILURES = Metrics.counter("storage.failures");
+    
+    // Open shards by userId
+    private static final Map<String, LocalStorageManager> shards = new HashMap<>();
+    
+    /**
+     * Get a user's storage shard, opening it on first use
+     */
+    public static synchronized LocalStorageManager forUser(Context context, String userId) {
+        LocalStorageManager shard = shards.get(userId);
+        if (shard == null) {
+            final Context appContext = context.getApplicationContext();
+            final String shardName = safeName(userId);
+            shard = new LocalStorageManager(
+                name -> appContext.getSharedPreferences(
+                    SHARD_PREF_PREFIX + shardName + "_" + name, Context.MODE_PRIVATE),
+                new File(new File(appContext.getFilesDir(), SHARD_DIR), shardName),
+                MessageChangeFeed.getInstance(), userId,
+                new LegacyStore(name -> appContext.getSharedPreferences(name, Context.MODE_PRIVATE),
+                    appContext.getFilesDir()));
+            shards.put(userId, shard);
+        }
+        return shard;
+    }
+    
+    /**
+     * Close a user's shard on logout. Its data stays on disk for the next login.
+     */
+    public static synchronized void closeUser(String userId) {
+        LocalStorageManager shard = shards.remove(userId);
+        if (shard != null) {
+            shard.messageLog.close();
+        }
+    }
+    
+    /**
+     * Save in-memory state that is only written back now and then, such as the
+     * logs' duplicate filters. Blocks; call off the main thread when the app goes
+     * to the background.
+     */
+    public void flush() {
+        messageLog.flush();
+    }
+    
+    private static String safeName(String userId) {
+        return userId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+    
+    public LocalStorageManager(PreferencesProvider prefsProvider, File filesDir) {
+        this(prefsProvider, filesDir, MessageChangeFeed.getInstance());
+    }
+    
+    public LocalStorageManager(PreferencesProvider prefsProvider, File filesDir,
+                               MessageChangeFeed changeFeed) {
+        this(prefsProvider, filesDir, changeFeed, null);
+    }
+    
+    public LocalStorageManager(PreferencesProvider prefsProvider, File filesDir,
+                               MessageChangeFeed changeFeed, String ownerId) {
+        this(prefsProvider, filesDir, changeFeed, ownerId, null);
+    }
     
-    public LocalStorageManager(Context context) {
-        this.context = context;
+    public LocalStorageManager(PreferencesProvider prefsProvider, File filesDir,
+                               MessageChangeFeed changeFeed, String ownerId, LegacyStore legacyStore) {
+        this.prefsProvider = prefsProvider;
+        this.changeFeed = changeFeed;
+        this.ownerId = ownerId;
+        this.legacyStore = legacyStore;
+        this.messageLog = new MessageLog(filesDir);
+        this.blobStore = new BlobStore(filesDir);
+        this.chatListSnapshot = new ChatListSnapshot(filesDir, ownerId);
+        this.outbox = new Outbox(prefsProvider.get(Outbox.PREF_OUTBOX));
         this.gson = new Gson();
     }
     
+    private SharedPreferences prefs(String name) {
+        return prefsProvider.get(name);
+    }
+    
+    private static String chatKey(String chatId) {
+        return "chat:" + chatId;
+    }
+    
+    private static String userKey(String userId) {
+        return "user:" + userId;
+    }
+    
+    /**
+     * Get the user whose shard this is, or null if it wasn't opened with forUser
+     */
+    public String getOwnerId() {
+        return ownerId;
+    }
+    
+    /**
+     * Get the store holding this user's encrypted attachment chunks
+     */
+    public BlobStore getBlobStore() {
+        return blobStore;
+    }
+    
+    /**
+     * Get the snapshot of this user's chat list rows painted at startup
+     */
+    public ChatListSnapshot getChatListSnapshot() {
+        return chatListSnapshot;
+    }
+    
+    /**
+     * Get the feed that announces messages added to this storage
+     */
+    public MessageChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+    
+    /**
+     * Get the queue of sent messages waiting to be pushed
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+    
     // USER CHATS METHODS
     
     /**
      * Get all chats for a specific user
      */
     public List<Chat> getUserChats(String userId) {
-        SharedPreferences userChatsPrefs = context.getSharedPreferences(PREF_USER_CHATS, Context.MODE_PRIVATE);
-        String userChatsJson = userChatsPrefs.getString(userId, null);
-        
-        if (userChatsJson == null) {
-            return new ArrayList<>();
-        }
-        
-        Type chatListType = new TypeToken<List<String>>() {}.getType();
-        List<String> chatIds = gson.fromJson(userChatsJson, chatListType);
+        long start = Metrics.start();
+        List<String> chatIds = getUserChatIds(userId);
         
         List<Chat> chats = new ArrayList<>();
-        SharedPreferences chatsPrefs = context.getSharedPreferences(PREF_CHATS, Context.MODE_PRIVATE);
+        SharedPreferences chatsPrefs = prefs(PREF_CHATS);
         
         for (String chatId : chatIds) {
             String chatJson = chatsPrefs.getString(chatId, null);
+            if (chatJson == null && isMigrationPending(chatId)) {
+                chatJson = legacyStore.getChatJson(chatId);
+            }
             if (chatJson != null) {
+                long parseStart = Metrics.start();
                 Chat chat = gson.fromJson(chatJson, Chat.class);
+                PARSE_TIME.recordSince(parseStart);
                 chats.add(chat);
             }
         }
         
+        GET_USER_CHATS_TIME.recordSince(start);
         return chats;
     }
     
+    /**
+     * Get the chat IDs in a user's chat list
+     */
+    public List<String> getUserChatIds(String userId) {
+        SharedPreferences userChatsPrefs = prefs(PREF_USER_CHATS);
+        String userChatsJson = userChatsPrefs.getString(userId, null);
+        
+        List<String> chatIds = new ArrayList<>();
+        if (userChatsJson != null) {
+            Type chatListType = new TypeToken<List<String>>() {}.getType();
+            chatIds = gson.fromJson(userChatsJson, chatListType);
+        }
+        
+        // Chats not moved out of the old store yet are listed from there
+        if (legacyStore != null && userId.equals(ownerId)) {
+            for (String chatId : migrationPending()) {
+                if (!chatIds.contains(chatId)) {
+                    chatIds.add(chatId);
+                }
+            }
+        }
+        return chatIds;
+    }
+    
     /**
      * Create a new chat between two users
      */
     public Chat createChat(String currentUserId, String recipientId, String recipientEmail) {
-        // Generate a unique chat ID
-        String chatId = "chat_" + System.currentTimeMillis() + "_" + currentUserId.substring(0, 4);
+        long start = Metrics.start();
+        
+        // Generate a unique chat ID; the random suffix keeps concurrent creates apart
+        String chatId = "chat_" + System.currentTimeMillis() + "_" + currentUserId.substring(0, 4)
+            + "_" + UUID.randomUUID().toString().substring(0, 8);
         long timestamp = System.currentTimeMillis();
         
         // Create chat object
@@ -78,134 +348,1873 @@ public class LocalStorageManager {
         
         Chat chat = new Chat();
         chat.setChatId(chatId);
-        chat.setLastMessage("Start chatting");
+        chat.setLastMessage(NEW_CHAT_PREVIEW);
         chat.setTimestamp(timestamp);
         chat.setParticipants(participants);
         
         // Save the chat
-        SharedPreferences chatsPrefs = context.getSharedPreferences(PREF_CHATS, Context.MODE_PRIVATE);
-        String chatJson = gson.toJson(chat);
-        chatsPrefs.edit().putString(chatId, chatJson).apply();
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            String chatJson = gson.toJson(chat);
+            chatsPrefs.edit().putString(chatId, chatJson).apply();
+        }
         
         // Add chat to both users' chat lists
         addChatToUser(currentUserId, chatId);
         addChatToUser(recipientId, chatId);
+        // Pushed so the recipient's devices list it too
+        outbox.enqueueChat(chat);
         
+        CREATE_CHAT_TIME.recordSince(start);
         return chat;
     }
     
     private void addChatToUser(String userId, String chatId) {
-        SharedPreferences userChatsPrefs = context.getSharedPreferences(PREF_USER_CHATS, Context.MODE_PRIVATE);
-        String userChatsJson = userChatsPrefs.getString(userId, null);
+        try (LockStripes.Held held = locks.lock(userKey(userId))) {
+            SharedPreferences userChatsPrefs = prefs(PREF_USER_CHATS);
+            String userChatsJson = userChatsPrefs.getString(userId, null);
+            
+            List<String> chatIds;
+            if (userChatsJson == null) {
+                chatIds = new ArrayList<>();
+            } else {
+                Type chatListType = new TypeToken<List<String>>() {}.getType();
+                chatIds = gson.fromJson(userChatsJson, chatListType);
+            }
+            
+            if (!chatIds.contains(chatId)) {
+                chatIds.add(chatId);
+                userChatsPrefs.edit().putString(userId, gson.toJson(chatIds)).apply();
+            }
+        }
+    }
+    
+    private void removeChatFromUser(String userId, String chatId) {
+        try (LockStripes.Held held = locks.lock(userKey(userId))) {
+            SharedPreferences userChatsPrefs = prefs(PREF_USER_CHATS);
+            String userChatsJson = userChatsPrefs.getString(userId, null);
+            
+            if (userChatsJson != null) {
+                Type chatListType = new TypeToken<List<String>>() {}.getType();
+                List<String> chatIds = gson.fromJson(userChatsJson, chatListType);
+                
+                if (chatIds != null) {
+                    chatIds.remove(chatId);
+                    userChatsPrefs.edit().putString(userId, gson.toJson(chatIds)).commit();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Store a chat record pulled from the server: a chat this device hasn't
+     * seen is added to the user's chat list, and a group's members and name
+     * are brought up to date.
+     * @return true if anything changed
+     */
+    public boolean mergeRemoteChat(String userId, Chat remote) {
+        String chatId = remote.getChatId();
+        boolean added;
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            String chatJson = chatsPrefs.getString(chatId, null);
+            if (chatJson == null && isMigrationPending(chatId)) {
+                // Listed already; the migrator brings the record over
+                return false;
+            }
+            
+            Chat chat;
+            if (chatJson == null) {
+                chat = new Chat(chatId, NEW_CHAT_PREVIEW, remote.getTimestamp());
+                added = true;
+            } else {
+                chat = gson.fromJson(chatJson, Chat.class);
+                added = false;
+            }
+            boolean changed = added || (remote.isGroup()
+                && (!remote.getParticipants().equals(chat.getParticipants())
+                    || !Objects.equals(remote.getName(), chat.getName())));
+            if (!changed) {
+                return false;
+            }
+            chat.setParticipants(new ArrayList<>(remote.getParticipants()));
+            chat.setGroup(remote.isGroup());
+            chat.setName(remote.getName());
+            chatsPrefs.edit().putString(chatId, gson.toJson(chat)).commit();
+        }
         
-        List<String> chatIds;
-        if (userChatsJson == null) {
-            chatIds = new ArrayList<>();
-        } else {
-            Type chatListType = new TypeToken<List<String>>() {}.getType();
-            chatIds = gson.fromJson(userChatsJson, chatListType);
+        if (added) {
+            addChatToUser(userId, chatId);
+        }
+        return true;
+    }
+    
+    /**
+     * Queue everything saved before sync existed: every chat record in the
+     * user's list and the messages kept in the old per-chat lists. Runs once;
+     * later calls return straight away.
+     * @return the number of records queued
+     */
+    public int enqueueUnsyncedHistory(String userId) {
+        SharedPreferences syncPrefs = prefs(PREF_SYNC_STATE);
+        if (syncPrefs.getBoolean(HISTORY_QUEUED, false)) {
+            return 0;
         }
         
-        if (!chatIds.contains(chatId)) {
-            chatIds.add(chatId);
-            userChatsPrefs.edit().putString(userId, gson.toJson(chatIds)).apply();
+        int queued = 0;
+        for (Chat chat : getUserChats(userId)) {
+            outbox.enqueueChat(chat);
+            queued++;
+            
+            List<Message> unsynced = new ArrayList<>(getLegacyMessages(chat.getChatId()));
+            if (isMigrationPending(chat.getChatId())) {
+                unsynced.addAll(legacyStore.getListedMessages(chat.getChatId()));
+            }
+            for (Message message : unsynced) {
+                outbox.enqueue(chat.getChatId(), message);
+                queued++;
+            }
         }
+        syncPrefs.edit().putBoolean(HISTORY_QUEUED, true).commit();
+        return queued;
     }
     
-    // MESSAGES METHODS
+    // IDENTITY KEY METHODS
     
     /**
-     * Get all messages for a specific chat
+     * Get this user's public identity key, generating the key pair on first use
+     * @return the Base64-encoded public key
      */
-    public List<Message> getChatMessages(String chatId) {
-        SharedPreferences messagesPrefs = context.getSharedPreferences(PREF_MESSAGES, Context.MODE_PRIVATE);
-        String chatMessagesJson = messagesPrefs.getString(chatId, null);
+    public String getPublicKey() {
+        return EncryptionUtil.encodeKey(identity().getPublic());
+    }
+    
+    private KeyPair identity() {
+        KeyPair loaded = identity;
+        if (loaded != null) {
+            return loaded;
+        }
+        synchronized (identityLock) {
+            if (identity == null) {
+                SharedPreferences identityPrefs = prefs(PREF_IDENTITY);
+                String publicKey = identityPrefs.getString(IDENTITY_PUBLIC, null);
+                String privateKey = identityPrefs.getString(IDENTITY_PRIVATE, null);
+                if (publicKey != null && privateKey != null) {
+                    identity = decodeIdentity(publicKey, privateKey);
+                    if (identity == null) {
+                        // Keys issued to the old pair can no longer be read
+                        Log.e(TAG, "Stored identity key is unreadable; generating a new one");
+                    }
+                }
+                if (identity == null) {
+                    KeyPair generated = EncryptionUtil.newIdentityKeyPair();
+                    saveIdentity(generated);
+                    identity = generated;
+                }
+            }
+            return identity;
+        }
+    }
+    
+    private static KeyPair decodeIdentity(String publicKey, String privateKey) {
+        PublicKey decodedPublic = EncryptionUtil.decodePublicKey(publicKey);
+        PrivateKey decodedPrivate = EncryptionUtil.decodePrivateKey(privateKey);
+        return decodedPublic != null && decodedPrivate != null ? new KeyPair(decodedPublic, decodedPrivate) : null;
+    }
+    
+    private void saveIdentity(KeyPair pair) {
+        prefs(PREF_IDENTITY).edit()
+            .putString(IDENTITY_PUBLIC, EncryptionUtil.encodeKey(pair.getPublic()))
+            .putString(IDENTITY_PRIVATE, EncryptionUtil.encodeKey(pair.getPrivate()))
+            .commit();
+    }
+    
+    /**
+     * Remember other users' public identity keys, as fetched from the server.
+     * A user who published a new key, e.g. after reinstalling, has it replaced;
+     * keys issued from then on are wrapped to the new one.
+     * @param publicKeys Base64-encoded public keys by userId
+     * @return the number of keys added or replaced
+     */
+    public int mergeMemberPublicKeys(Map<String, String> publicKeys) {
+        SharedPreferences keysPrefs = prefs(PREF_MEMBER_KEYS);
+        SharedPreferences.Editor editor = keysPrefs.edit();
+        int changed = 0;
+        for (Map.Entry<String, String> entry : publicKeys.entrySet()) {
+            String userId = entry.getKey();
+            if (userId.equals(ownerId) || entry.getValue().equals(keysPrefs.getString(userId, null))
+                    || EncryptionUtil.decodePublicKey(entry.getValue()) == null) {
+                continue;
+            }
+            editor.putString(userId, entry.getValue());
+            changed++;
+        }
+        if (changed > 0) {
+            editor.apply();
+        }
+        return changed;
+    }
+    
+    // A member's public identity key, or null if it isn't known yet
+    private PublicKey memberPublicKey(String memberId) {
+        if (memberId.equals(ownerId)) {
+            return identity().getPublic();
+        }
+        String publicKey = prefs(PREF_MEMBER_KEYS).getString(memberId, null);
+        return publicKey != null ? EncryptionUtil.decodePublicKey(publicKey) : null;
+    }
+    
+    /**
+     * This user's identity key pair as written to a backup, so a restored
+     * device can unwrap the keys issued to this one
+     */
+    public static class IdentityBackup {
+        public String publicKey;
+        public String privateKey;
+    }
+    
+    public IdentityBackup exportIdentity() {
+        KeyPair pair = identity();
+        IdentityBackup backup = new IdentityBackup();
+        backup.publicKey = EncryptionUtil.encodeKey(pair.getPublic());
+        backup.privateKey = EncryptionUtil.encodeKey(pair.getPrivate());
+        return backup;
+    }
+    
+    /**
+     * Replace this user's identity key pair with one from a backup. The next
+     * key sync publishes it again.
+     * @return false if the backup's keys are unreadable
+     */
+    public boolean importIdentity(IdentityBackup backup) {
+        KeyPair pair = backup.publicKey != null && backup.privateKey != null
+            ? decodeIdentity(backup.publicKey, backup.privateKey) : null;
+        if (pair == null) {
+            return false;
+        }
+        synchronized (identityLock) {
+            saveIdentity(pair);
+            identity = pair;
+        }
+        return true;
+    }
+    
+    // GROUP CHATS METHODS
+    
+    /**
+     * Create a group chat. Its first group key is issued to every member.
+     */
+    public Chat createGroupChat(String creatorId, String name, List<String> memberIds) {
+        String chatId = "group_" + System.currentTimeMillis() + "_" + creatorId.substring(0, 4)
+            + "_" + UUID.randomUUID().toString().substring(0, 8);
         
-        if (chatMessagesJson == null) {
-            return new ArrayList<>();
+        Set<String> participants = new LinkedHashSet<>();
+        participants.add(creatorId);
+        participants.addAll(memberIds);
+        
+        Chat chat = new Chat();
+        chat.setChatId(chatId);
+        chat.setGroup(true);
+        chat.setName(name);
+        chat.setLastMessage(NEW_CHAT_PREVIEW);
+        chat.setTimestamp(System.currentTimeMillis());
+        chat.setParticipants(new ArrayList<>(participants));
+        
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            prefs(PREF_CHATS).edit().putString(chatId, gson.toJson(chat)).commit();
+            rotateGroupKey(chatId, chat.getParticipants(), new GroupKeyState());
         }
         
-        Type messageListType = new TypeToken<List<Message>>() {}.getType();
-        return gson.fromJson(chatMessagesJson, messageListType);
+        for (String participantId : participants) {
+            addChatToUser(participantId, chatId);
+        }
+        outbox.enqueueChat(chat);
+        return chat;
     }
     
     /**
-     * Save a new message to a chat
+     * Add a member to a group. The key is rotated on the next send.
+     * @return false if the chat isn't a group
      */
-    public boolean sendMessage(String chatId, String senderId, String content, String encryptedContent) {
-        try {
-            // Get existing messages
-            List<Message> messages = getChatMessages(chatId);
-            
-            // Create new message
-            String messageId = "msg_" + System.currentTimeMillis() + "_" + senderId.substring(0, 4);
-            long timestamp = System.currentTimeMillis();
-            
-            Message message = new Message(messageId, senderId, encryptedContent, timestamp);
-            messages.add(message);
-            
-            // Save updated messages
-            SharedPreferences messagesPrefs = context.getSharedPreferences(PREF_MESSAGES, Context.MODE_PRIVATE);
-            String messagesJson = gson.toJson(messages);
-            messagesPrefs.edit().putString(chatId, messagesJson).apply();
-            
-            // Update chat's last message and timestamp
-            SharedPreferences chatsPrefs = context.getSharedPreferences(PREF_CHATS, Context.MODE_PRIVATE);
-            String chatJson = chatsPrefs.getString(chatId, null);
-            
-            if (chatJson != null) {
-                Chat chat = gson.fromJson(chatJson, Chat.class);
-                chat.setLastMessage(content);  // Use the unencrypted content for the last message
-                chat.setTimestamp(timestamp);
-                
-                // Save the updated chat
-                String updatedChatJson = gson.toJson(chat);
-                chatsPrefs.edit().putString(chatId, updatedChatJson).apply();
-                
-                // Force commit to ensure changes are saved immediately
-                chatsPrefs.edit().commit();
+    public boolean addGroupMember(String chatId, String memberId) {
+        if (!changeMembership(chatId, memberId, true)) {
+            return false;
+        }
+        addChatToUser(memberId, chatId);
+        return true;
+    }
+    
+    /**
+     * Remove a member from a group. The key is rotated on the next send, so the
+     * member can't read messages sent after this.
+     * @return false if the chat isn't a group
+     */
+    public boolean removeGroupMember(String chatId, String memberId) {
+        if (!changeMembership(chatId, memberId, false)) {
+            return false;
+        }
+        removeChatFromUser(memberId, chatId);
+        return true;
+    }
+    
+    private boolean changeMembership(String chatId, String memberId, boolean add) {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+            if (chatJson == null) {
+                return false;
+            }
+            Chat chat = gson.fromJson(chatJson, Chat.class);
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (!chat.isGroup() || state == null) {
+                return false;
             }
             
+            boolean changed = add ? !chat.getParticipants().contains(memberId)
+                : chat.getParticipants().remove(memberId);
+            if (!changed) {
+                return true;
+            }
+            if (add) {
+                chat.addParticipant(memberId);
+            }
+            state.setRotationPending(true);
+            prefs(PREF_CHATS).edit().putString(chatId, gson.toJson(chat)).commit();
+            prefs(PREF_GROUP_KEYS).edit().putString(chatId, gson.toJson(state)).commit();
+            outbox.enqueueChat(chat);
             return true;
-        } catch (Exception e) {
-            Log.e(TAG, "Error sending message", e);
-            return false;
         }
     }
     
     /**
-     * Clear all local data (for testing or logout)
+     * Get the group key epoch new messages in a chat are encrypted under,
+     * first issuing a new key if membership changed since the last one or
+     * the last one was wrapped the old way, to keys derived from member IDs
+     * @return the epoch, or 0 if the chat has no group key
      */
-    public void clearAllData() {
-        context.getSharedPreferences(PREF_CHATS, Context.MODE_PRIVATE).edit().clear().apply();
-        context.getSharedPreferences(PREF_MESSAGES, Context.MODE_PRIVATE).edit().clear().apply();
-        context.getSharedPreferences(PREF_USER_CHATS, Context.MODE_PRIVATE).edit().clear().apply();
+    public int getGroupKeyEpoch(String chatId) {
+        GroupKeyState state = loadGroupKeyState(chatId);
+        if (state == null) {
+            return 0;
+        }
+        if (!needsRotation(state)) {
+            return state.getEpoch();
+        }
+        
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            // Another thread may have rotated while this one waited
+            state = loadGroupKeyState(chatId);
+            if (needsRotation(state)) {
+                Chat chat = gson.fromJson(prefs(PREF_CHATS).getString(chatId, null), Chat.class);
+                rotateGroupKey(chatId, chat.getParticipants(), state);
+            }
+            return state.getEpoch();
+        }
+    }
+    
+    private static boolean needsRotation(GroupKeyState state) {
+        return state.isRotationPending() || (state.getEpoch() > 0 && !state.isWrappedToIdentityKeys());
     }
     
     /**
-     * Delete a chat and its messages
+     * Get a group key as unwrapped by one member. Only the owner's private
+     * identity key is on this device, so only the owner's copy can be unwrapped.
+     * @return the key, or null if that epoch's key wasn't issued to the member
      */
-    public void deleteChat(String chatId, String userId) {
-        // Remove chat from user's chat list
-        SharedPreferences userChatsPrefs = context.getSharedPreferences(PREF_USER_CHATS, Context.MODE_PRIVATE);
-        String userChatsJson = userChatsPrefs.getString(userId, null);
+    public byte[] getGroupKey(String chatId, int epoch, String memberId) {
+        if (ownerId == null || !ownerId.equals(memberId)) {
+            return null;
+        }
+        String wrappedKey = loadWrappedKeys(chatId, epoch).get(memberId);
+        return wrappedKey != null
+            ? EncryptionUtil.unwrapGroupKey(wrappedKey, chatId, epoch, memberId, identity().getPrivate())
+            : null;
+    }
+    
+    private Map<String, String> loadWrappedKeys(String chatId, int epoch) {
+        String wrappedJson = prefs(PREF_GROUP_KEYS).getString(wrappedKeysName(chatId, epoch), null);
+        if (wrappedJson == null) {
+            return new HashMap<>();
+        }
+        Type wrappedType = new TypeToken<Map<String, String>>() {}.getType();
+        return gson.fromJson(wrappedJson, wrappedType);
+    }
+    
+    private GroupKeyState loadGroupKeyState(String chatId) {
+        String stateJson = prefs(PREF_GROUP_KEYS).getString(chatId, null);
+        return stateJson != null ? gson.fromJson(stateJson, GroupKeyState.class) : null;
+    }
+    
+    // Issue a new group key wrapped for each member whose public key is known and queue
+    // it for them; the others get it from distributeGroupKeys once theirs is learned.
+    // The caller holds the chat's stripe
+    private void rotateGroupKey(String chatId, List<String> memberIds, GroupKeyState state) {
+        byte[] groupKey = EncryptionUtil.newGroupKey();
+        int epoch = state.getEpoch() + 1;
+        Map<String, String> wrappedKeys = wrapForMembers(groupKey, chatId, epoch, memberIds);
         
-        if (userChatsJson != null) {
-            Type chatListType = new TypeToken<List<String>>() {}.getType();
-            List<String> chatIds = gson.fromJson(userChatsJson, chatListType);
+        state.setEpoch(epoch);
+        state.setRotationPending(false);
+        state.setWrappedToIdentityKeys(true);
+        state.setIssuedHere(true);
+        prefs(PREF_GROUP_KEYS).edit()
+            .putString(wrappedKeysName(chatId, epoch), gson.toJson(wrappedKeys))
+            .putString(chatId, gson.toJson(state))
+            .commit();
+        outbox.enqueueKeys(new EpochKeys(chatId, epoch, wrappedKeys));
+    }
+    
+    private Map<String, String> wrapForMembers(byte[] groupKey, String chatId, int epoch,
+                                               Collection<String> memberIds) {
+        Map<String, String> wrappedKeys = new HashMap<>();
+        for (String memberId : memberIds) {
+            PublicKey publicKey = memberPublicKey(memberId);
+            String wrappedKey = publicKey != null
+                ? EncryptionUtil.wrapGroupKey(groupKey, chatId, epoch, publicKey) : null;
+            if (wrappedKey != null) {
+                wrappedKeys.put(memberId, wrappedKey);
+            }
+        }
+        return wrappedKeys;
+    }
+    
+    /**
+     * Store the wrapped keys of a chat's epoch fetched from the server, keeping
+     * copies already stored. An epoch newer than the chat's current one becomes
+     * current, so this device sends under the key its peers moved to.
+     * @return true if anything was stored
+     */
+    public boolean mergeRemoteKeys(EpochKeys remote) {
+        String chatId = remote.getChatId();
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+            if (chatJson == null && !isMigrationPending(chatId)) {
+                // Deleted here, or the chat record hasn't arrived yet
+                return false;
+            }
+            Map<String, String> wrappedKeys = loadWrappedKeys(chatId, remote.getEpoch());
+            boolean added = false;
+            for (Map.Entry<String, String> entry : remote.getWrappedKeys().entrySet()) {
+                added |= wrappedKeys.putIfAbsent(entry.getKey(), entry.getValue()) == null;
+            }
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (state == null) {
+                state = new GroupKeyState();
+            }
+            boolean newer = remote.getEpoch() > state.getEpoch();
+            if (!added && !newer) {
+                return false;
+            }
             
-            if (chatIds != null) {
-                chatIds.remove(chatId);
-                userChatsPrefs.edit().putString(userId, gson.toJson(chatIds)).commit();
+            SharedPreferences.Editor editor = prefs(PREF_GROUP_KEYS).edit()
+                .putString(wrappedKeysName(chatId, remote.getEpoch()), gson.toJson(wrappedKeys));
+            if (newer) {
+                if (state.getEpoch() == 0 && chatJson != null && !gson.fromJson(chatJson, Chat.class).isGroup()) {
+                    // The peer moved the chat off the key derived from its ID, so the
+                    // copies here are re-encrypted too, as the peer's are
+                    state.setReencryptPending(true);
+                    state.setReencryptLegacyIndex(0);
+                    state.setReencryptLogOffset(0);
+                }
+                state.setEpoch(remote.getEpoch());
+                state.setWrappedToIdentityKeys(true);
+                state.setIssuedHere(false);
+                editor.putString(chatId, gson.toJson(state));
+            }
+            editor.commit();
+            return true;
+        }
+    }
+    
+    /**
+     * Get the one-to-one chats still encrypted under the key derived from
+     * their ID, which anyone who learns the ID can derive, that this device
+     * should move to a random key with rotateChatKey. Only the participant
+     * whose ID sorts first rotates, so both sides don't issue competing keys,
+     * and only once every participant's public key is known, so the new key
+     * reaches them all at once.
+     */
+    public List<String> getChatsToRotate() {
+        List<String> chatIds = new ArrayList<>();
+        if (ownerId == null) {
+            return chatIds;
+        }
+        for (Map.Entry<String, ?> entry : prefs(PREF_CHATS).getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            Chat chat = gson.fromJson((String) entry.getValue(), Chat.class);
+            GroupKeyState state = loadGroupKeyState(entry.getKey());
+            if (chat.isGroup() || (state != null && state.getEpoch() > 0)) {
+                continue;
+            }
+            List<String> participants = chat.getParticipants();
+            if (participants == null || participants.isEmpty()
+                    || !ownerId.equals(Collections.min(participants))) {
+                continue;
+            }
+            boolean keysKnown = true;
+            for (String memberId : participants) {
+                keysKnown &= memberPublicKey(memberId) != null;
+            }
+            if (keysKnown) {
+                chatIds.add(entry.getKey());
+            }
+        }
+        return chatIds;
+    }
+    
+    /**
+     * Wrap each chat's current key for members who weren't given it because
+     * their public key wasn't known yet, and queue their copies. Only the
+     * device that issued a key knows who has a copy, so only it hands them out.
+     * Chats with a membership change still to apply are left alone: their
+     * members get the next key instead, so no one reads what was sent before
+     * they joined.
+     * @return the number of copies wrapped
+     */
+    public int distributeGroupKeys() {
+        if (ownerId == null) {
+            return 0;
+        }
+        List<String> chatIds = new ArrayList<>();
+        for (String key : prefs(PREF_GROUP_KEYS).getAll().keySet()) {
+            if (!key.contains(EPOCH_SEPARATOR)) {
+                chatIds.add(key);
             }
         }
         
-        // Remove chat data
-        SharedPreferences chatsPrefs = context.getSharedPreferences(PREF_CHATS, Context.MODE_PRIVATE);
-        chatsPrefs.edit().remove(chatId).commit();
-        
-        // Remove messages
-        SharedPreferences messagesPrefs = context.getSharedPreferences(PREF_MESSAGES, Context.MODE_PRIVATE);
-        messagesPrefs.edit().remove(chatId).commit();
+        int wrapped = 0;
+        for (String chatId : chatIds) {
+            try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+                String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+                GroupKeyState state = loadGroupKeyState(chatId);
+                if (chatJson == null || state == null || !state.isIssuedHere() || needsRotation(state)) {
+                    continue;
+                }
+                int epoch = state.getEpoch();
+                Map<String, String> wrappedKeys = loadWrappedKeys(chatId, epoch);
+                List<String> missing = new ArrayList<>();
+                for (String memberId : gson.fromJson(chatJson, Chat.class).getParticipants()) {
+                    if (!wrappedKeys.containsKey(memberId)) {
+                        missing.add(memberId);
+                    }
+                }
+                byte[] groupKey = missing.isEmpty() ? null : getGroupKey(chatId, epoch, ownerId);
+                if (groupKey == null) {
+                    continue;
+                }
+                Map<String, String> added = wrapForMembers(groupKey, chatId, epoch, missing);
+                if (added.isEmpty()) {
+                    continue;
+                }
+                wrappedKeys.putAll(added);
+                prefs(PREF_GROUP_KEYS).edit()
+                    .putString(wrappedKeysName(chatId, epoch), gson.toJson(wrappedKeys))
+                    .commit();
+                outbox.enqueueKeys(new EpochKeys(chatId, epoch, added));
+                wrapped += added.size();
+            }
+        }
+        return wrapped;
+    }
+    
+    private static String wrappedKeysName(String chatId, int epoch) {
+        return chatId + EPOCH_SEPARATOR + epoch;
+    }
+    
+    // KEY ROTATION METHODS
+    
+    /**
+     * Older messages of a chat still under a previous key, read in one step of
+     * a re-encryption pass
+     */
+    public static class ReencryptBatch {
+        // Epoch the messages are to be re-encrypted under
+        public final int epoch;
+        public final List<Message> messages;
+        // Whether the messages come from the list stored before the log, and are rewritten there
+        private final boolean legacy;
+        // Compaction generation the positions below belong to
+        private final long generation;
+        private final int nextLegacyIndex;
+        private final long nextLogOffset;
+        private final boolean finished;
+        
+        ReencryptBatch(int epoch, List<Message> messages, boolean legacy, long generation,
+                       int nextLegacyIndex, long nextLogOffset, boolean finished) {
+            this.epoch = epoch;
+            this.messages = messages;
+            this.legacy = legacy;
+            this.generation = generation;
+            this.nextLegacyIndex = nextLegacyIndex;
+            this.nextLogOffset = nextLogOffset;
+            this.finished = finished;
+        }
+    }
+    
+    /**
+     * Start a new key epoch for a chat right away. New messages use it at once;
+     * older ones are re-encrypted under it in the background by Reencryptor.
+     * @return the new epoch, or 0 if the chat doesn't exist
+     */
+    public int rotateChatKey(String chatId) {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+            if (chatJson == null) {
+                return 0;
+            }
+            Chat chat = gson.fromJson(chatJson, Chat.class);
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (state == null) {
+                state = new GroupKeyState();
+            }
+            
+            // A pass already underway restarts, so it covers everything under the new epoch
+            state.setReencryptPending(true);
+            state.setReencryptLegacyIndex(0);
+            state.setReencryptLogOffset(0);
+            rotateGroupKey(chatId, chat.getParticipants(), state);
+            return state.getEpoch();
+        }
+    }
+    
+    /**
+     * Get the chats with a re-encryption pass to finish
+     */
+    public List<String> getChatsPendingReencryption() {
+        List<String> chatIds = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : prefs(PREF_GROUP_KEYS).getAll().entrySet()) {
+            if (entry.getKey().contains(EPOCH_SEPARATOR) || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            GroupKeyState state = gson.fromJson((String) entry.getValue(), GroupKeyState.class);
+            if (state.isReencryptPending()) {
+                chatIds.add(entry.getKey());
+            }
+        }
+        return chatIds;
+    }
+    
+    /**
+     * Read the next step of a chat's re-encryption pass: up to maxRecords
+     * stored records, of which those under an older epoch are returned
+     * @return the batch, or null if the chat has no pass underway
+     */
+    public ReencryptBatch nextReencryptBatch(String chatId, int maxRecords) throws IOException {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (state == null || !state.isReencryptPending()) {
+                return null;
+            }
+            int epoch = state.getEpoch();
+            List<Message> stale = new ArrayList<>();
+            
+            // Messages from before the append-only log come first
+            int legacyIndex = state.getReencryptLegacyIndex();
+            String legacyJson = prefs(PREF_MESSAGES).getString(chatId, null);
+            if (legacyJson != null) {
+                Type messageListType = new TypeToken<List<Message>>() {}.getType();
+                List<Message> legacyMessages = gson.fromJson(legacyJson, messageListType);
+                if (legacyMessages != null && legacyIndex < legacyMessages.size()) {
+                    int end = Math.min(legacyMessages.size(), legacyIndex + maxRecords);
+                    addStale(stale, legacyMessages.subList(legacyIndex, end), epoch);
+                    return new ReencryptBatch(epoch, stale, true, getCompactionGeneration(chatId), end,
+                        state.getReencryptLogOffset(), false);
+                }
+            }
+            
+            MessageLog.Batch batch = messageLog.readBatch(chatId, state.getReencryptLogOffset(), maxRecords);
+            addStale(stale, batch.messages, epoch);
+            return new ReencryptBatch(epoch, stale, false, getCompactionGeneration(chatId), legacyIndex,
+                batch.nextOffset, batch.finished);
+        }
+    }
+    
+    // Replace messages in the list stored before the log by ID; the caller holds the chat's stripe
+    private void rewriteLegacyMessages(String chatId, List<Message> replacements) {
+        if (replacements.isEmpty()) {
+            return;
+        }
+        Map<String, Message> byId = new HashMap<>();
+        for (Message message : replacements) {
+            byId.put(message.getMessageId(), message);
+        }
+        List<Message> legacyMessages = getLegacyMessages(chatId);
+        if (legacyMessages.isEmpty()) {
+            // Migrated or swept since the batch was read; the log holds them now, if anything
+            return;
+        }
+        for (int i = 0; i < legacyMessages.size(); i++) {
+            Message replacement = byId.get(legacyMessages.get(i).getMessageId());
+            if (replacement != null) {
+                legacyMessages.set(i, replacement);
+            }
+        }
+        prefs(PREF_MESSAGES).edit().putString(chatId, gson.toJson(legacyMessages)).commit();
+    }
+    
+    private static void addStale(List<Message> stale, List<Message> messages, int epoch) {
+        for (Message message : messages) {
+            if (message.getKeyEpoch() < epoch && message.getContent() != null) {
+                stale.add(message);
+            }
+        }
+    }
+    
+    /**
+     * Store the re-encrypted messages of a batch and advance the pass.
+     * Messages from the log are appended to it, each replacing its older
+     * record; messages from before the log are rewritten in place in the
+     * stored list, so the old ciphertext doesn't linger there.
+     * If the key was rotated again meanwhile, the messages are still stored
+     * (they decrypt under their own epoch) but the restarted pass is kept.
+     * If the chat was compacted or deleted meanwhile, the batch is dropped:
+     * some of its messages may have expired, and the pass restarts anyway.
+     * @return false if the batch was dropped
+     */
+    public boolean completeReencryptBatch(String chatId, ReencryptBatch batch,
+                                          List<Message> reencrypted) throws IOException {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (state == null || getCompactionGeneration(chatId) != batch.generation) {
+                return false;
+            }
+            if (batch.legacy) {
+                rewriteLegacyMessages(chatId, reencrypted);
+            } else {
+                messageLog.append(chatId, reencrypted);
+            }
+            
+            if (state.isReencryptPending() && state.getEpoch() == batch.epoch) {
+                state.setReencryptLegacyIndex(batch.nextLegacyIndex);
+                state.setReencryptLogOffset(batch.nextLogOffset);
+                state.setReencryptPending(!batch.finished);
+                prefs(PREF_GROUP_KEYS).edit().putString(chatId, gson.toJson(state)).commit();
+            }
+        }
+        // Open screens swap in the new ciphertext; the plaintext is unchanged
+        if (!reencrypted.isEmpty()) {
+            changeFeed.publish(chatId, reencrypted);
+        }
+        return true;
+    }
+    
+    // MESSAGES METHODS
+    
+    /**
+     * Get all messages for a specific chat, in HybridLogicalClock order
+     */
+    public List<Message> getChatMessages(String chatId) {
+        long start = Metrics.start();
+        List<Message> messages = new ArrayList<>();
+        
+        // Until the chat is moved, messages from before sharding are read from the old store
+        if (isMigrationPending(chatId)) {
+            messages.addAll(legacyStore.readMessages(chatId));
+        }
+        
+        // Messages written before the append-only log existed
+        messages.addAll(getLegacyMessages(chatId));
+        
+        List<Message> logMessages = messageLog.read(chatId);
+        if (messages.isEmpty()) {
+            messages = logMessages;
+        } else {
+            // Legacy messages re-encrypted into the log are replaced by their newer record
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < messages.size(); i++) {
+                if (messages.get(i).getMessageId() != null) {
+                    positions.put(messages.get(i).getMessageId(), i);
+                }
+            }
+            for (Message message : logMessages) {
+                MessageLog.addOrReplace(messages, positions, message);
+            }
+        }
+        
+        // The log is in arrival order, which is nearly sorted, so this is close to linear
+        messages.sort(HybridLogicalClock.ORDER);
+        GET_MESSAGES_TIME.recordSince(start);
+        return messages;
+    }
+    
+    /**
+     * Save a new message to a chat
+     */
+    public boolean sendMessage(String chatId, String senderId, String content, String encryptedContent) {
+        return sendMessage(chatId, senderId, content, encryptedContent, 0);
+    }
+    
+    /**
+     * Save a new message to a chat
+     * @param keyEpoch group key epoch encryptedContent is encrypted under, or 0
+     */
+    public boolean sendMessage(String chatId, String senderId, String content, String encryptedContent,
+                               int keyEpoch) {
+        return sendMessage(chatId, senderId, content, encryptedContent, keyEpoch, null);
+    }
+    
+    /**
+     * Save a new message with an attachment already stored in the BlobStore
+     * @param attachment the attachment, or null for a text message
+     */
+    public boolean sendMessage(String chatId, String senderId, String content, String encryptedContent,
+                               int keyEpoch, Attachment attachment) {
+        long start = Metrics.start();
+        try {
+            Message message;
+            try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+                // Create new message; the random suffix keeps IDs unique across quick sends and devices
+                String messageId = "msg_" + System.currentTimeMillis() + "_" + senderId.substring(0, 4)
+                    + "_" + UUID.randomUUID().toString().substring(0, 8);
+                long timestamp = System.currentTimeMillis();
+                
+                message = new Message(messageId, senderId, encryptedContent, timestamp);
+                message.setHlc(clock().now());
+                saveClock();
+                message.setKeyEpoch(keyEpoch);
+                message.setAttachment(attachment);
+                
+                // Append to the chat's log; existing messages are not rewritten
+                messageLog.append(chatId, Collections.singletonList(message));
+                
+                // Replying means everything before it was read
+                ReadState readState = copyReadState(chatId);
+                readState.noteStored(messageId, message.getHlc());
+                readState.markReadUpTo(messageId, message.getHlc());
+                readState.setUnreadCount(0);
+                saveReadState(chatId, readState);
+                
+                // Expect the message back from pulls once it's pushed, so it isn't merged twice
+                SharedPreferences syncPrefs = prefs(PREF_SYNC_STATE);
+                Set<String> echoIds = new HashSet<>(
+                    syncPrefs.getStringSet(ECHO_PREFIX + chatId, Collections.emptySet()));
+                echoIds.add(messageId);
+                syncPrefs.edit().putStringSet(ECHO_PREFIX + chatId, echoIds).commit();
+                
+                // Queue the message; OutboxFlusher pushes it in the background
+                outbox.enqueue(chatId, message);
+                
+                // The preview is the message's own ciphertext, so it costs no extra encryption
+                updateChatPreview(chatId, message);
+            }
+            
+            // Listeners run outside the lock
+            changeFeed.publish(chatId, Collections.singletonList(message));
+            return true;
+        } catch (Exception e) {
+            FAILURES.increment();
+            Log.e(TAG, "Error sending message", e);
+            return false;
+        } finally {
+            SEND_TIME.recordSince(start);
+        }
+    }
+    
+    /**
+     * Make a message the chat's preview and timestamp unless the preview is
+     * newer already, e.g. when a message from a peer that was offline arrives
+     * late. The preview is kept encrypted as the message is; PreviewDecryptor
+     * decrypts it for display.
+     */
+    public void updateChatPreview(String chatId, Message newest) {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            String chatJson = chatsPrefs.getString(chatId, null);
+            if (chatJson == null && isMigrationPending(chatId)) {
+                // Saved below, so the record is in this shard from now on
+                chatJson = legacyStore.getChatJson(chatId);
+            }
+            
+            if (chatJson != null) {
+                Chat chat = gson.fromJson(chatJson, Chat.class);
+                if (!isAfterPreview(chat, newest)) {
+                    return;
+                }
+                chat.setPreview(newest.getMessageId(), newest.getContent(), newest.getKeyEpoch());
+                chat.setTimestamp(newest.getTimestamp());
+                
+                // Save the updated chat; commit so the change is saved immediately
+                String updatedChatJson = gson.toJson(chat);
+                chatsPrefs.edit().putString(chatId, updatedChatJson).commit();
+            }
+        }
+    }
+    
+    // Whether a message sorts at or after the chat's preview in chat order
+    private static boolean isAfterPreview(Chat chat, Message message) {
+        if (chat.getPreviewMessageId() == null && !hasPlainPreview(chat)) {
+            // Only the new chat placeholder, which any message replaces
+            return true;
+        }
+        // The preview's HLC isn't kept, so it's ordered by its timestamp
+        Message preview = new Message(chat.getPreviewMessageId(), null, null, chat.getTimestamp());
+        return HybridLogicalClock.ORDER.compare(message, preview) >= 0;
+    }
+    
+    /**
+     * Whether a chat's preview was saved in plain text before previews were encrypted
+     */
+    public static boolean hasPlainPreview(Chat chat) {
+        return !chat.hasEncryptedPreview() && chat.getLastMessage() != null
+            && !NEW_CHAT_PREVIEW.equals(chat.getLastMessage());
+    }
+    
+    /**
+     * Encrypt a preview saved in plain text with the chat's current key. Blocks.
+     * @return true if the preview was replaced
+     */
+    public boolean sealPlainPreview(String chatId) {
+        String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+        Chat chat = chatJson != null ? gson.fromJson(chatJson, Chat.class) : null;
+        if (chat == null || !hasPlainPreview(chat)) {
+            return false;
+        }
+        // Encrypted outside the lock, since it may read or issue the chat's group key
+        ChatCipher.Sealed sealed = new ChatCipher(this, chatId).encrypt(chat.getLastMessage());
+        if (sealed == null) {
+            return false;
+        }
+        
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            String currentJson = chatsPrefs.getString(chatId, null);
+            Chat current = currentJson != null ? gson.fromJson(currentJson, Chat.class) : null;
+            // A message sent meanwhile already replaced the plain preview
+            if (current == null || !hasPlainPreview(current)
+                    || !current.getLastMessage().equals(chat.getLastMessage())) {
+                return false;
+            }
+            current.setPreview(SEALED_PREVIEW_PREFIX + chatId + "_" + current.getTimestamp(),
+                sealed.content, sealed.keyEpoch);
+            chatsPrefs.edit().putString(chatId, gson.toJson(current)).commit();
+            return true;
+        }
+    }
+    
+    // SYNC STATE METHODS
+    
+    /**
+     * Get the pull cursor for a chat, or null if it has never been pulled
+     */
+    public SyncCursor getSyncCursor(String chatId) {
+        String cursorJson = prefs(PREF_SYNC_STATE).getString(CURSOR_PREFIX + chatId, null);
+        return cursorJson != null ? gson.fromJson(cursorJson, SyncCursor.class) : null;
+    }
+    
+    /**
+     * Merge a page of pulled messages into a chat and advance its cursor.
+     * Costs O(k) for k pulled messages: echoes of messages this device pushed
+     * are dropped, and the log's ID filter rejects re-delivered messages
+     * without reading the stored ones.
+     * @return the messages that were actually added
+     */
+    public List<Message> mergeRemoteMessages(String chatId, List<Message> remoteMessages,
+                                             SyncCursor cursor) throws IOException {
+        long start = Metrics.start();
+        List<Message> added;
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            added = mergeLocked(chatId, remoteMessages, cursor);
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
+        }
+        MERGE_TIME.recordSince(start);
+        changeFeed.publish(chatId, added);
+        return added;
+    }
+    
+    private List<Message> mergeLocked(String chatId, List<Message> remoteMessages,
+                                      SyncCursor cursor) throws IOException {
+        SharedPreferences syncPrefs = prefs(PREF_SYNC_STATE);
+        Set<String> echoIds = new HashSet<>(
+            syncPrefs.getStringSet(ECHO_PREFIX + chatId, Collections.emptySet()));
+        
+        List<Message> candidates = new ArrayList<>();
+        for (Message message : remoteMessages) {
+            if (!echoIds.remove(message.getMessageId())) {
+                candidates.add(message);
+            }
+        }
+        
+        List<Message> added = messageLog.appendNew(chatId, candidates);
+        noteStored(chatId, added, true);
+        
+        // Later local sends must sort after everything seen from other devices
+        receiveClock(added);
+        syncPrefs.edit()
+            .putStringSet(ECHO_PREFIX + chatId, echoIds)
+            .putString(CURSOR_PREFIX + chatId, gson.toJson(cursor))
+            .commit();
+        return added;
+    }
+    
+    /**
+     * Take pushed messages off the outbox once the server has accepted them.
+     * Their echoes are forgotten too: a pull that brings them back is dropped
+     * by the log's ID filter, so the echo sets only hold messages in flight.
+     */
+    public void acknowledgePushed(List<Outbox.Entry> entries) {
+        Map<String, Set<String>> idsByChat = new HashMap<>();
+        for (Outbox.Entry entry : entries) {
+            if (entry.getMessage() != null) {
+                idsByChat.computeIfAbsent(entry.getChatId(), k -> new HashSet<>())
+                    .add(entry.getMessage().getMessageId());
+            }
+        }
+        
+        outbox.remove(entries);
+        SharedPreferences syncPrefs = prefs(PREF_SYNC_STATE);
+        for (Map.Entry<String, Set<String>> chat : idsByChat.entrySet()) {
+            try (LockStripes.Held held = locks.lock(chatKey(chat.getKey()))) {
+                String echoKey = ECHO_PREFIX + chat.getKey();
+                Set<String> echoIds = new HashSet<>(syncPrefs.getStringSet(echoKey, Collections.emptySet()));
+                if (!echoIds.removeAll(chat.getValue())) {
+                    continue;
+                }
+                if (echoIds.isEmpty()) {
+                    syncPrefs.edit().remove(echoKey).apply();
+                } else {
+                    syncPrefs.edit().putStringSet(echoKey, echoIds).apply();
+                }
+            }
+        }
+    }
+    
+    // CLOCK METHODS
+    
+    /**
+     * Get the clock, first advancing it past every value this shard handed out
+     * or received before the app was last closed. New messages then sort after
+     * old ones even if the wall clock was set back in between.
+     */
+    private HybridLogicalClock clock() {
+        HybridLogicalClock clock = HybridLogicalClock.getInstance();
+        if (clockSeeded) {
+            return clock;
+        }
+        synchronized (clockLock) {
+            if (!clockSeeded) {
+                long saved = prefs(PREF_SYNC_STATE).getLong(CLOCK_KEY, 0);
+                if (saved != 0) {
+                    clock.restore(saved);
+                } else {
+                    // Saved by an older version: the newest message stored in any chat
+                    long newest = 0;
+                    for (ReadState state : readStates().values()) {
+                        newest = Math.max(newest, state.getLatest());
+                    }
+                    if (newest != 0) {
+                        clock.receive(newest);
+                    }
+                }
+                clockSeeded = true;
+            }
+        }
+        return clock;
+    }
+    
+    // Advance the clock past stored messages from elsewhere, so later local sends sort after them
+    private void receiveClock(List<Message> stored) {
+        HybridLogicalClock clock = clock();
+        for (Message message : stored) {
+            if (message.getHlc() != 0) {
+                clock.receive(message.getHlc());
+            }
+        }
+        if (!stored.isEmpty()) {
+            saveClock();
+        }
+    }
+    
+    // Save the clock's value for the next start; only ever moves it forward
+    private void saveClock() {
+        synchronized (clockLock) {
+            long current = HybridLogicalClock.getInstance().current();
+            SharedPreferences syncPrefs = prefs(PREF_SYNC_STATE);
+            if (current > syncPrefs.getLong(CLOCK_KEY, 0)) {
+                syncPrefs.edit().putLong(CLOCK_KEY, current).apply();
+            }
+        }
+    }
+    
+    // READ STATE METHODS
+    
+    /**
+     * Get how many messages from others in a chat haven't been read; doesn't scan
+     */
+    public int getUnreadCount(String chatId) {
+        ReadState state = readStates().get(chatId);
+        return state != null ? state.getUnreadCount() : 0;
+    }
+    
+    /**
+     * Get the unread count summed over every chat, e.g. for a launcher badge
+     */
+    public int getTotalUnreadCount() {
+        readStates();
+        return totalUnread.get();
+    }
+    
+    /**
+     * Get a chat's read watermark and unread count
+     */
+    public ReadState getReadState(String chatId) {
+        ReadState state = readStates().get(chatId);
+        return state != null ? new ReadState(state) : new ReadState();
+    }
+    
+    /**
+     * Mark everything stored in a chat as read, e.g. when it's opened
+     */
+    public void markChatRead(String chatId) {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            ReadState current = readStates().get(chatId);
+            if (current == null || (current.getUnreadCount() == 0 && current.getWatermark() >= current.getLatest())) {
+                return;
+            }
+            ReadState readState = new ReadState(current);
+            readState.markReadUpTo(current.getLatestId(), current.getLatest());
+            readState.setUnreadCount(0);
+            saveReadState(chatId, readState);
+        }
+    }
+    
+    // Count newly stored messages; the caller holds the chat's stripe
+    private void noteStored(String chatId, List<Message> stored, boolean countUnread) {
+        if (stored.isEmpty()) {
+            return;
+        }
+        ReadState readState = copyReadState(chatId);
+        int unread = readState.getUnreadCount();
+        for (Message message : stored) {
+            long orderKey = HybridLogicalClock.orderKey(message);
+            readState.noteStored(message.getMessageId(), orderKey);
+            // Messages this user sent from another device are read already
+            if (countUnread && readState.isAfterWatermark(orderKey)
+                    && (ownerId == null || !ownerId.equals(message.getSenderId()))) {
+                unread++;
+            }
+        }
+        readState.setUnreadCount(unread);
+        saveReadState(chatId, readState);
+    }
+    
+    private ReadState copyReadState(String chatId) {
+        ReadState current = readStates().get(chatId);
+        return current != null ? new ReadState(current) : new ReadState();
+    }
+    
+    // Replace a chat's read state; the caller holds the chat's stripe
+    private void saveReadState(String chatId, ReadState readState) {
+        ReadState previous = readStates().put(chatId, readState);
+        totalUnread.addAndGet(readState.getUnreadCount() - (previous != null ? previous.getUnreadCount() : 0));
+        // Not committed: a lost write only leaves a count that the next read of the chat corrects
+        prefs(PREF_READ_STATE).edit().putString(chatId, gson.toJson(readState)).apply();
+    }
+    
+    private Map<String, ReadState> readStates() {
+        Map<String, ReadState> states = readStates;
+        if (states != null) {
+            return states;
+        }
+        synchronized (readStateLock) {
+            if (readStates == null) {
+                Map<String, ReadState> loaded = new ConcurrentHashMap<>();
+                int total = 0;
+                for (Map.Entry<String, ?> entry : prefs(PREF_READ_STATE).getAll().entrySet()) {
+                    if (entry.getValue() instanceof String) {
+                        ReadState state = gson.fromJson((String) entry.getValue(), ReadState.class);
+                        loaded.put(entry.getKey(), state);
+                        total += state.getUnreadCount();
+                    }
+                }
+                totalUnread.set(total);
+                readStates = loaded;
+            }
+            return readStates;
+        }
+    }
+    
+    // BACKUP METHODS
+    
+    /**
+     * A chat as a backup holds it apart from its messages: the chat record,
+     * its key epoch state and the wrapped keys of every epoch
+     */
+    public static class ChatBackup {
+        public Chat chat;
+        public GroupKeyState keyState;
+        // Wrapped keys by member, for each epoch
+        public Map<Integer, Map<String, String>> wrappedKeys = new HashMap<>();
+    }
+    
+    /**
+     * Read a chat's record and keys for a backup
+     * @return the chat, or null if it doesn't exist
+     */
+    public ChatBackup exportChat(String chatId) {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+            if (chatJson == null) {
+                return null;
+            }
+            ChatBackup backup = new ChatBackup();
+            backup.chat = gson.fromJson(chatJson, Chat.class);
+            backup.keyState = loadGroupKeyState(chatId);
+            if (backup.keyState != null) {
+                Type wrappedType = new TypeToken<Map<String, String>>() {}.getType();
+                SharedPreferences keysPrefs = prefs(PREF_GROUP_KEYS);
+                for (int epoch = 1; epoch <= backup.keyState.getEpoch(); epoch++) {
+                    String wrappedJson = keysPrefs.getString(wrappedKeysName(chatId, epoch), null);
+                    if (wrappedJson != null) {
+                        backup.wrappedKeys.put(epoch, gson.fromJson(wrappedJson, wrappedType));
+                    }
+                }
+            }
+            return backup;
+        }
+    }
+    
+    /**
+     * Get a chat's messages from before the append-only log, as stored
+     */
+    public List<Message> getLegacyMessages(String chatId) {
+        String legacyJson = prefs(PREF_MESSAGES).getString(chatId, null);
+        if (legacyJson == null) {
+            return new ArrayList<>();
+        }
+        Type messageListType = new TypeToken<List<Message>>() {}.getType();
+        List<Message> legacyMessages = gson.fromJson(legacyJson, messageListType);
+        return legacyMessages != null ? legacyMessages : new ArrayList<>();
+    }
+    
+    /**
+     * Read up to maxRecords records of a chat's log from a byte offset, as
+     * stored, so a long scan such as a backup proceeds in bounded steps
+     * @param generation the chat's compaction generation when the scan started
+     * @return the batch, or null if the log was compacted since, which moves
+     * offsets, so the scan must start over
+     */
+    public MessageLog.Batch readLogBatch(String chatId, long offset, int maxRecords,
+                                         long generation) throws IOException {
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            if (getCompactionGeneration(chatId) != generation) {
+                return null;
+            }
+            return messageLog.readBatch(chatId, offset, maxRecords);
+        }
+    }
+    
+    /**
+     * Get how many times a chat's stored messages were compacted, to pass to readLogBatch
+     */
+    public long getCompactionGeneration(String chatId) {
+        return prefs(PREF_SYNC_STATE).getLong(COMPACTIONS_PREFIX + chatId, 0);
+    }
+    
+    /**
+     * Store a chat from a backup unless it's already here, and add it to its
+     * participants' chat lists
+     * @return true if the chat was stored
+     */
+    public boolean importChat(ChatBackup backup) {
+        String chatId = backup.chat.getChatId();
+        boolean stored = false;
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            if (prefs(PREF_CHATS).getString(chatId, null) == null) {
+                // Keys first: until the chat record exists, a retry rewrites them
+                SharedPreferences.Editor keysEditor = prefs(PREF_GROUP_KEYS).edit();
+                for (Map.Entry<Integer, Map<String, String>> entry : backup.wrappedKeys.entrySet()) {
+                    keysEditor.putString(wrappedKeysName(chatId, entry.getKey()), gson.toJson(entry.getValue()));
+                }
+                GroupKeyState state = backup.keyState;
+                if (state != null) {
+                    // Re-encryption progress is a position in the exporting device's storage
+                    state.setReencryptLegacyIndex(0);
+                    state.setReencryptLogOffset(0);
+                    keysEditor.putString(chatId, gson.toJson(state));
+                }
+                keysEditor.commit();
+                prefs(PREF_CHATS).edit().putString(chatId, gson.toJson(backup.chat)).commit();
+                stored = true;
+            }
+        }
+        
+        for (String participantId : backup.chat.getParticipants()) {
+            addChatToUser(participantId, chatId);
+        }
+        return stored;
+    }
+    
+    /**
+     * Add a batch of messages from a backup in one write, skipping those
+     * whose IDs the chat already has
+     * @return the messages that were added
+     */
+    public List<Message> importMessages(String chatId, List<Message> messages) throws IOException {
+        List<Message> added;
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            List<Message> candidates = messages;
+            // The log's ID filter doesn't cover messages from before the log
+            List<Message> legacyMessages = getLegacyMessages(chatId);
+            if (!legacyMessages.isEmpty()) {
+                Set<String> legacyIds = new HashSet<>();
+                for (Message message : legacyMessages) {
+                    legacyIds.add(message.getMessageId());
+                }
+                candidates = new ArrayList<>();
+                for (Message message : messages) {
+                    if (!legacyIds.contains(message.getMessageId())) {
+                        candidates.add(message);
+                    }
+                }
+            }
+            added = messageLog.appendNew(chatId, candidates);
+            // Restored history isn't counted as unread
+            noteStored(chatId, added, false);
+            
+            // Later local sends must sort after the imported messages
+            receiveClock(added);
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
+        }
+        changeFeed.publish(chatId, added);
+        return added;
+    }
+    
+    /**
+     * Get how many frames of a backup archive were imported before an interruption
+     */
+    public long getImportCheckpoint(String archiveId) {
+        return prefs(PREF_SYNC_STATE).getLong(IMPORT_PREFIX + archiveId, 0);
+    }
+    
+    /**
+     * Record that the first frames of a backup archive are imported
+     */
+    public void setImportCheckpoint(String archiveId, long frames) {
+        prefs(PREF_SYNC_STATE).edit().putLong(IMPORT_PREFIX + archiveId, frames).commit();
+    }
+    
+    /**
+     * Forget a backup archive's progress once it's fully imported
+     */
+    public void clearImportCheckpoint(String archiveId) {
+        prefs(PREF_SYNC_STATE).edit().remove(IMPORT_PREFIX + archiveId).commit();
+    }
+    
+    // MIGRATION METHODS
+    
+    /**
+     * How far moving this user's chats out of the old global store has got
+     */
+    public static class MigrationProgress {
+        public final int moved;
+        public final int total;
+        
+        MigrationProgress(int moved, int total) {
+            this.moved = moved;
+            this.total = total;
+        }
+        
+        public boolean isComplete() {
+            return moved >= total;
+        }
+    }
+    
+    /**
+     * Get the chats still in the old global store, in the order they'll be moved
+     */
+    public List<String> getChatsPendingMigration() {
+        return new ArrayList<>(migrationPending());
+    }
+    
+    /**
+     * Get how many of this user's chats in the old store have been moved
+     */
+    public MigrationProgress getMigrationProgress() {
+        migrationPending();
+        SharedPreferences migrationPrefs = prefs(PREF_MIGRATION);
+        return new MigrationProgress(migrationPrefs.getInt(MIGRATION_MOVED, 0),
+            migrationPrefs.getInt(MIGRATION_TOTAL, 0));
+    }
+    
+    /**
+     * Move one chat from the old global store into this shard. Its messages
+     * are copied in batches, then checked against the old records by count and
+     * checksum; only then is the chat deleted from the old store. Copying skips
+     * IDs already stored, so after a crash at any point the chat is just moved again.
+     * @return the number of messages verified
+     * @throws IOException if the copy doesn't match the old records, which are kept
+     */
+    public int migrateChat(String chatId) throws IOException {
+        if (!isMigrationPending(chatId)) {
+            return 0;
+        }
+        long start = Metrics.start();
+        String chatJson = legacyStore.getChatJson(chatId);
+        Chat chat = chatJson != null ? gson.fromJson(chatJson, Chat.class) : null;
+        // Reads merge both stores until the chat is marked moved, so listing it early is harmless
+        if (chat != null) {
+            for (String participantId : chat.getParticipants()) {
+                addChatToUser(participantId, chatId);
+            }
+        }
+        
+        int verified;
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            if (chatJson != null && chatsPrefs.getString(chatId, null) == null) {
+                chatsPrefs.edit().putString(chatId, chatJson).commit();
+            }
+            
+            // Copy, noting each old record's ID in order and digesting it as read
+            MessageDigest expected = newDigest();
+            List<String> copiedIds = new ArrayList<>();
+            List<Message> listed = legacyStore.getListedMessages(chatId);
+            for (int i = 0; i < listed.size(); i += MIGRATION_BATCH) {
+                copyForMigration(chatId, listed.subList(i, Math.min(listed.size(), i + MIGRATION_BATCH)),
+                    expected, copiedIds);
+            }
+            MessageLog.Batch batch;
+            long offset = 0;
+            do {
+                batch = legacyStore.readLogBatch(chatId, offset, MIGRATION_BATCH);
+                copyForMigration(chatId, batch.messages, expected, copiedIds);
+                offset = batch.nextOffset;
+            } while (!batch.finished);
+            
+            // Digest what this shard now holds for the same IDs, in the same order
+            Map<String, Message> stored = new HashMap<>();
+            for (Message message : messageLog.read(chatId)) {
+                if (message.getMessageId() != null) {
+                    stored.put(message.getMessageId(), message);
+                }
+            }
+            MessageDigest actual = newDigest();
+            int found = 0;
+            for (String messageId : copiedIds) {
+                Message message = stored.get(messageId);
+                if (message != null) {
+                    digestMessage(actual, message);
+                    found++;
+                }
+            }
+            if (found != copiedIds.size() || !MessageDigest.isEqual(expected.digest(), actual.digest())) {
+                MIGRATION_FAILURES.increment();
+                throw new IOException("Chat " + chatId + " did not verify after moving: " + found + " of "
+                    + copiedIds.size() + " records found");
+            }
+            verified = found;
+        } finally {
+            MIGRATE_CHAT_TIME.recordSince(start);
+        }
+        
+        // Verified, so the old copy can go; if that's interrupted, the next attempt finds nothing to copy
+        legacyStore.removeChat(chatId, ownerId);
+        finishMigration(chatId);
+        MIGRATED_MESSAGES.add(verified);
+        return verified;
+    }
+    
+    // Copy a batch of old records; the caller holds the chat's stripe
+    private void copyForMigration(String chatId, List<Message> messages, MessageDigest expected,
+                                  List<String> copiedIds) throws IOException {
+        List<Message> withIds = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (message.getMessageId() != null) {
+                withIds.add(message);
+                copiedIds.add(message.getMessageId());
+                digestMessage(expected, message);
+            }
+        }
+        // A message already here, e.g. pulled since the upgrade, is kept as it is
+        List<Message> added = messageLog.appendNew(chatId, withIds);
+        noteStored(chatId, added, false);
+        receiveClock(added);
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every supported platform
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    // The fields that make a message what it is; each is followed by a separator so they can't run together
+    private static void digestMessage(MessageDigest digest, Message message) {
+        String fields = message.getMessageId() + '\0' + message.getSenderId() + '\0' + message.getContent()
+            + '\0' + message.getTimestamp() + '\0' + message.getKeyEpoch() + '\n';
+        digest.update(fields.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private boolean isMigrationPending(String chatId) {
+        return legacyStore != null && migrationPending().contains(chatId);
+    }
+    
+    // Chats still to move; the first call after an upgrade lists them from the old store
+    private Set<String> migrationPending() {
+        Set<String> pending = migrationPending;
+        if (pending != null) {
+            return pending;
+        }
+        synchronized (migrationLock) {
+            if (migrationPending == null) {
+                SharedPreferences migrationPrefs = prefs(PREF_MIGRATION);
+                String pendingJson = migrationPrefs.getString(MIGRATION_PENDING, null);
+                List<String> chatIds;
+                if (pendingJson != null) {
+                    Type chatListType = new TypeToken<List<String>>() {}.getType();
+                    chatIds = gson.fromJson(pendingJson, chatListType);
+                } else if (legacyStore == null || ownerId == null) {
+                    chatIds = new ArrayList<>();
+                } else {
+                    chatIds = legacyStore.getUserChatIds(ownerId);
+                    migrationPrefs.edit()
+                        .putString(MIGRATION_PENDING, gson.toJson(chatIds))
+                        .putInt(MIGRATION_TOTAL, chatIds.size())
+                        .putInt(MIGRATION_MOVED, 0)
+                        .commit();
+                }
+                migrationPending = Collections.unmodifiableSet(new LinkedHashSet<>(chatIds));
+            }
+            return migrationPending;
+        }
+    }
+    
+    // Record a chat as moved; its reads come from this shard alone from now on
+    private void finishMigration(String chatId) {
+        synchronized (migrationLock) {
+            Set<String> pending = new LinkedHashSet<>(migrationPending());
+            if (!pending.remove(chatId)) {
+                return;
+            }
+            SharedPreferences migrationPrefs = prefs(PREF_MIGRATION);
+            migrationPrefs.edit()
+                .putString(MIGRATION_PENDING, gson.toJson(new ArrayList<>(pending)))
+                .putInt(MIGRATION_MOVED, migrationPrefs.getInt(MIGRATION_MOVED, 0) + 1)
+                .commit();
+            migrationPending = Collections.unmodifiableSet(pending);
+        }
+    }
+    
+    // RETENTION METHODS
+    
+    /**
+     * What a sweep of one chat removed, and the attachment blobs its remaining messages use
+     */
+    public static class SweepResult {
+        public final int messagesRemoved;
+        public final long bytesReclaimed;
+        public final Set<String> referencedBlobs;
+        
+        SweepResult(int messagesRemoved, long bytesReclaimed, Set<String> referencedBlobs) {
+            this.messagesRemoved = messagesRemoved;
+            this.bytesReclaimed = bytesReclaimed;
+            this.referencedBlobs = referencedBlobs;
+        }
+    }
+    
+    /**
+     * Set the retention policy for every chat, or null to keep everything
+     */
+    public void setGlobalRetention(RetentionPolicy policy) {
+        setRetention(GLOBAL_RETENTION, policy);
+    }
+    
+    /**
+     * Set one chat's retention policy, or null to use only the global one
+     */
+    public void setChatRetention(String chatId, RetentionPolicy policy) {
+        setRetention(chatId, policy);
+    }
+    
+    private void setRetention(String key, RetentionPolicy policy) {
+        SharedPreferences.Editor editor = prefs(PREF_RETENTION).edit();
+        if (policy == null) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, gson.toJson(policy));
+        }
+        editor.commit();
+    }
+    
+    /**
+     * Get the policy that applies to a chat: the stricter of its own and the global one
+     */
+    public RetentionPolicy getRetention(String chatId) {
+        SharedPreferences retentionPrefs = prefs(PREF_RETENTION);
+        String globalJson = retentionPrefs.getString(GLOBAL_RETENTION, null);
+        String chatJson = retentionPrefs.getString(chatId, null);
+        return RetentionPolicy.stricter(
+            globalJson != null ? gson.fromJson(globalJson, RetentionPolicy.class) : null,
+            chatJson != null ? gson.fromJson(chatJson, RetentionPolicy.class) : null);
+    }
+    
+    /**
+     * Get the IDs of every chat stored in this shard
+     */
+    public List<String> getStoredChatIds() {
+        return new ArrayList<>(prefs(PREF_CHATS).getAll().keySet());
+    }
+    
+    /**
+     * Remove a chat's messages that its retention policy no longer allows,
+     * then compact its log, which also drops records replaced by re-encryption
+     * @param now current time, for the age limit
+     */
+    public SweepResult sweepChat(String chatId, long now) throws IOException {
+        RetentionPolicy policy = getRetention(chatId);
+        try (LockStripes.Held held = locks.lock(chatKey(chatId))) {
+            List<Message> messages = getChatMessages(chatId);
+            Set<String> expired = expiredMessageIds(messages, policy, now);
+            
+            // Messages from before the append-only log are stored as one list
+            long reclaimed = 0;
+            SharedPreferences messagesPrefs = prefs(PREF_MESSAGES);
+            String legacyJson = messagesPrefs.getString(chatId, null);
+            if (legacyJson != null && !expired.isEmpty()) {
+                Type messageListType = new TypeToken<List<Message>>() {}.getType();
+                List<Message> legacyMessages = gson.fromJson(legacyJson, messageListType);
+                List<Message> keptLegacy = new ArrayList<>();
+                for (Message message : legacyMessages) {
+                    if (!expired.contains(message.getMessageId())) {
+                        keptLegacy.add(message);
+                    }
+                }
+                if (keptLegacy.size() < legacyMessages.size()) {
+                    String keptJson = keptLegacy.isEmpty() ? "" : gson.toJson(keptLegacy);
+                    SharedPreferences.Editor editor = messagesPrefs.edit();
+                    if (keptLegacy.isEmpty()) {
+                        editor.remove(chatId);
+                    } else {
+                        editor.putString(chatId, keptJson);
+                    }
+                    editor.commit();
+                    reclaimed += legacyJson.length() - keptJson.length();
+                }
+            }
+            
+            reclaimed += messageLog.compact(chatId,
+                message -> message.getMessageId() == null || !expired.contains(message.getMessageId()));
+            
+            // Positions in the stored messages moved, so scans by position (an unfinished
+            // re-encryption pass, a backup underway) start over
+            if (reclaimed > 0) {
+                prefs(PREF_SYNC_STATE).edit()
+                    .putLong(COMPACTIONS_PREFIX + chatId, getCompactionGeneration(chatId) + 1).commit();
+                GroupKeyState state = loadGroupKeyState(chatId);
+                if (state != null && state.isReencryptPending()) {
+                    state.setReencryptLegacyIndex(0);
+                    state.setReencryptLogOffset(0);
+                    prefs(PREF_GROUP_KEYS).edit().putString(chatId, gson.toJson(state)).commit();
+                }
+            }
+            if (!expired.isEmpty()) {
+                noteExpired(chatId, messages, expired);
+            }
+            
+            Set<String> referencedBlobs = new HashSet<>();
+            for (Message message : messages) {
+                Attachment attachment = message.getAttachment();
+                if (attachment != null && !expired.contains(message.getMessageId())) {
+                    referencedBlobs.addAll(attachment.getChunks());
+                    if (attachment.getThumbnail() != null) {
+                        referencedBlobs.add(attachment.getThumbnail());
+                    }
+                }
+            }
+            return new SweepResult(expired.size(), reclaimed, referencedBlobs);
+        }
+    }
+    
+    // Point the chat's preview and read state past expired messages; the caller holds the chat's stripe
+    private void noteExpired(String chatId, List<Message> sorted, Set<String> expired) {
+        Message newest = null;
+        for (int i = sorted.size() - 1; i >= 0 && newest == null; i--) {
+            Message message = sorted.get(i);
+            if (message.getMessageId() == null || !expired.contains(message.getMessageId())) {
+                newest = message;
+            }
+        }
+        boolean newestExpired = !sorted.isEmpty() && sorted.get(sorted.size() - 1) != newest;
+        
+        boolean changed = false;
+        String chatJson = prefs(PREF_CHATS).getString(chatId, null);
+        Chat chat = chatJson != null ? gson.fromJson(chatJson, Chat.class) : null;
+        // A plain text preview has no ID, but is of the newest message when it was saved
+        if (chat != null && (chat.getPreviewMessageId() != null ? expired.contains(chat.getPreviewMessageId())
+                : hasPlainPreview(chat) && newestExpired)) {
+            if (newest != null) {
+                chat.setPreview(newest.getMessageId(), newest.getContent(), newest.getKeyEpoch());
+            } else {
+                chat.setPreview(null, null, 0);
+                chat.setLastMessage(NEW_CHAT_PREVIEW);
+            }
+            prefs(PREF_CHATS).edit().putString(chatId, gson.toJson(chat)).commit();
+            changed = true;
+        }
+        
+        ReadState current = readStates().get(chatId);
+        if (current != null) {
+            ReadState readState = new ReadState(current);
+            int unread = readState.getUnreadCount();
+            for (Message message : sorted) {
+                if (message.getMessageId() != null && expired.contains(message.getMessageId())
+                        && readState.isAfterWatermark(HybridLogicalClock.orderKey(message))
+                        && (ownerId == null || !ownerId.equals(message.getSenderId()))) {
+                    unread--;
+                }
+            }
+            readState.setUnreadCount(Math.max(0, unread));
+            if (current.getLatestId() != null && expired.contains(current.getLatestId())) {
+                readState.resetLatest(newest != null ? newest.getMessageId() : null,
+                    newest != null ? HybridLogicalClock.orderKey(newest) : 0);
+            }
+            if (readState.getUnreadCount() != current.getUnreadCount()
+                    || readState.getLatest() != current.getLatest()) {
+                saveReadState(chatId, readState);
+                changed = true;
+            }
+        }
+        
+        // The rows painted at startup may show an expired preview or count; the next load rewrites them
+        if (changed) {
+            chatListSnapshot.delete();
+        }
+    }
+    
+    /**
+     * When the last retention pass finished, or 0 if none has
+     */
+    public long getLastSweepMillis() {
+        return prefs(PREF_SYNC_STATE).getLong(LAST_SWEEP_KEY, 0);
+    }
+    
+    public void setLastSweepMillis(long millis) {
+        prefs(PREF_SYNC_STATE).edit().putLong(LAST_SWEEP_KEY, millis).apply();
+    }
+    
+    /**
+     * Pick the messages a policy removes: those past the age limit, and all
+     * but the newest that fit the count and byte limits
+     * @param messages messages in HybridLogicalClock order
+     */
+    private Set<String> expiredMessageIds(List<Message> messages, RetentionPolicy policy, long now) {
+        Set<String> expired = new HashSet<>();
+        if (policy.isUnlimited()) {
+            return expired;
+        }
+        int kept = 0;
+        long keptBytes = 0;
+        boolean full = false;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            Message message = messages.get(i);
+            if (message.getMessageId() == null) {
+                continue;
+            }
+            long size = gson.toJson(message).length() + 1;
+            boolean tooOld = policy.getMaxAgeMs() > 0 && now - message.getTimestamp() > policy.getMaxAgeMs();
+            full = full
+                || (policy.getMaxCount() > 0 && kept >= policy.getMaxCount())
+                || (policy.getMaxBytes() > 0 && keptBytes + size > policy.getMaxBytes());
+            if (tooOld || full) {
+                expired.add(message.getMessageId());
+            } else {
+                kept++;
+                keptBytes += size;
+            }
+        }
+        return expired;
+    }
+    
+    /**
+     * Clear all of this user's local data; other users' shards are untouched
+     */
+    public void clearAllData() {
+        try (LockStripes.Held held = locks.lockAll()) {
+            prefs(PREF_CHATS).edit().clear().apply();
+            prefs(PREF_MESSAGES).edit().clear().apply();
+            prefs(PREF_USER_CHATS).edit().clear().apply();
+            prefs(PREF_SYNC_STATE).edit().clear().apply();
+            prefs(PREF_GROUP_KEYS).edit().clear().apply();
+            prefs(PREF_RETENTION).edit().clear().apply();
+            prefs(PREF_READ_STATE).edit().clear().apply();
+            synchronized (readStateLock) {
+                readStates = null;
+                totalUnread.set(0);
+            }
+            outbox.clear();
+            messageLog.deleteAll();
+            chatListSnapshot.delete();
+            
+            // The user's chats still in the old store go too, rather than coming back
+            if (legacyStore != null && ownerId != null) {
+                for (String chatId : migrationPending()) {
+                    legacyStore.removeChat(chatId, ownerId);
+                }
+            }
+            synchronized (migrationLock) {
+                prefs(PREF_MIGRATION).edit().clear().commit();
+                migrationPending = null;
+            }
+        }
+    }
+    
+    /**
+     * Delete a chat and its messages
+     */
+    public void deleteChat(String chatId, String userId) {
+        long start = Metrics.start();
+        try (LockStripes.Held held = locks.lock(userKey(userId), chatKey(chatId))) {
+            // Remove chat from user's chat list
+            removeChatFromUser(userId, chatId);
+            
+            // Remove chat data
+            SharedPreferences chatsPrefs = prefs(PREF_CHATS);
+            chatsPrefs.edit().remove(chatId).commit();
+            
+            // Remove messages
+            SharedPreferences messagesPrefs = prefs(PREF_MESSAGES);
+            messagesPrefs.edit().remove(chatId).commit();
+            messageLog.delete(chatId);
+            
+            // Remove sync state and unsent messages
+            outbox.removeChat(chatId);
+            prefs(PREF_SYNC_STATE).edit()
+                .remove(ECHO_PREFIX + chatId)
+                .remove(CURSOR_PREFIX + chatId)
+                .commit();
+            
+            prefs(PREF_RETENTION).edit().remove(chatId).commit();
+            
+            // Its unread messages no longer count towards the total
+            ReadState readState = readStates().remove(chatId);
+            if (readState != null) {
+                totalUnread.addAndGet(-readState.getUnreadCount());
+            }
+            prefs(PREF_READ_STATE).edit().remove(chatId).commit();
+            
+            // Remove group keys of every epoch
+            GroupKeyState state = loadGroupKeyState(chatId);
+            if (state != null) {
+                SharedPreferences.Editor keysEditor = prefs(PREF_GROUP_KEYS).edit().remove(chatId);
+                for (int epoch = 1; epoch <= state.getEpoch(); epoch++) {
+                    keysEditor.remove(wrappedKeysName(chatId, epoch));
+                }
+                keysEditor.commit();
+            }
+            
+            // A chat not moved yet is deleted from the old store instead
+            if (isMigrationPending(chatId)) {
+                legacyStore.removeChat(chatId, userId);
+                finishMigration(chatId);
+            }
+        }
+        DELETE_CHAT_TIME.recordSince(start);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,83 @@
+package com.example.cryptext.util;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that keys hash onto. Operations on the same key are
+ * serialized while unrelated keys usually land on different stripes and run
+ * in parallel. Multiple stripes are always taken in index order, so callers
+ * locking several keys can't deadlock each other.
+ */
+public class LockStripes {
+
+    private final ReentrantLock[] locks;
+
+    /**
+     * Locks acquired by lock(); closing releases them
+     */
+    public static final class Held implements AutoCloseable {
+        private final ReentrantLock[] held;
+
+        private Held(ReentrantLock[] held) {
+            this.held = held;
+        }
+
+        @Override
+        public void close() {
+            for (int i = held.length - 1; i >= 0; i--) {
+                held[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * @param count number of stripes, rounded up to a power of two
+     */
+    public LockStripes(int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1) << 1);
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquire the stripes of the given keys
+     */
+    public Held lock(String... keys) {
+        int[] indexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            indexes[i] = indexFor(keys[i]);
+        }
+        return acquire(Arrays.stream(indexes).sorted().distinct().toArray());
+    }
+
+    /**
+     * Acquire every stripe, for operations that span all keys
+     */
+    public Held lockAll() {
+        int[] indexes = new int[locks.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        return acquire(indexes);
+    }
+
+    private Held acquire(int[] sortedIndexes) {
+        ReentrantLock[] held = new ReentrantLock[sortedIndexes.length];
+        for (int i = 0; i < sortedIndexes.length; i++) {
+            held[i] = locks[sortedIndexes[i]];
+            held[i].lock();
+        }
+        return new Held(held);
+    }
+
+    // Package-private so tests can pick keys on different stripes
+    int indexFor(String key) {
+        int hash = key.hashCode();
+        // Spread the high bits, as HashMap does
+        hash ^= hash >>> 16;
+        return hash & (locks.length - 1);
+    }
+}
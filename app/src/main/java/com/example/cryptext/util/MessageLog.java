@@ -0,0 +1,589 @@
+package com.example.cryptext.util;
+
+import android.util.Log;
+
+import com.example.cryptext.model.Message;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Append-only, per-chat message files (one JSON message per line).
+ * Appending k messages costs O(k) regardless of how long the chat is,
+ * unlike rewriting a whole JSON blob in SharedPreferences.
+ * Each log has a Bloom filter of its message IDs next to it, so merges can
+ * reject most new IDs as "not a duplicate" without reading the log. Filters
+ * are kept in memory while the log is open and written back by flush(),
+ * close() and compact(); a filter file left behind by a crash no longer
+ * matches its log's length and is rebuilt.
+ * A message is updated (e.g. re-encrypted under a newer key) by appending a
+ * new record with the same ID, which replaces the earlier one on read.
+ */
+public class MessageLog {
+    private static final String TAG = "MessageLog";
+
+    private static final String LOG_DIR = "messages";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String FILTER_SUFFIX = ".bloom";
+    private static final int FILTER_VERSION = 1;
+    // Records read at a time while compacting
+    static final int COMPACT_BATCH = 500;
+    private static final int MIN_FILTER_CAPACITY = 1024;
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    // Guard each chat's log and filter; striped by file path so different chats proceed in parallel
+    private static final LockStripes LOCKS = new LockStripes(32);
+
+    // Dedup counters across all chats
+    private static final AtomicLong filterQueries = new AtomicLong();
+    private static final AtomicLong filterPositives = new AtomicLong();
+    private static final AtomicLong falsePositives = new AtomicLong();
+    private static final AtomicLong filterRebuilds = new AtomicLong();
+
+    private static final Metrics.Histogram READ_TIME = Metrics.histogram("log.read");
+    private static final Metrics.Histogram APPEND_TIME = Metrics.histogram("log.append");
+    private static final Metrics.Histogram PARSE_TIME = Metrics.histogram("json.parse");
+    private static final Metrics.Histogram SERIALIZE_TIME = Metrics.histogram("json.serialize");
+    private static final Metrics.Counter BYTES_READ = Metrics.counter("log.bytesRead");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("log.bytesWritten");
+    private static final Metrics.Counter FAILURES = Metrics.counter("log.failures");
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.histogram("log.compact");
+
+    /**
+     * Snapshot of the dedup filter counters
+     */
+    public static class DedupStats {
+        public final long queries;
+        // IDs the filter reported as possibly present, which required reading the log
+        public final long possibleDuplicates;
+        // Possible duplicates that turned out to be new
+        public final long falsePositives;
+        public final long rebuilds;
+
+        DedupStats(long queries, long possibleDuplicates, long falsePositives, long rebuilds) {
+            this.queries = queries;
+            this.possibleDuplicates = possibleDuplicates;
+            this.falsePositives = falsePositives;
+            this.rebuilds = rebuilds;
+        }
+
+        /**
+         * Observed share of new IDs that the filter wrongly reported as present
+         */
+        public double falsePositiveRate() {
+            long newIds = queries - (possibleDuplicates - falsePositives);
+            return newIds > 0 ? (double) falsePositives / newIds : 0;
+        }
+    }
+
+    /**
+     * A chat's filter held in memory, and the log length it covers
+     */
+    private static final class OpenFilter {
+        final BloomFilter filter;
+        long logLength;
+        // Changed since it was last saved
+        boolean dirty;
+
+        OpenFilter(BloomFilter filter, long logLength) {
+            this.filter = filter;
+            this.logLength = logLength;
+        }
+    }
+
+    private final File logDir;
+    private final Gson gson;
+    // Filters of the chats used since the log was opened, by chatId; changed under the chat's lock
+    private final Map<String, OpenFilter> openFilters = new ConcurrentHashMap<>();
+
+    public MessageLog(File filesDir) {
+        this.logDir = new File(filesDir, LOG_DIR);
+        this.gson = new Gson();
+    }
+
+    /**
+     * Messages read from part of a log, and where the next read continues
+     */
+    public static class Batch {
+        public final List<Message> messages;
+        public final long nextOffset;
+        // True if the log has nothing after nextOffset
+        public final boolean finished;
+
+        Batch(List<Message> messages, long nextOffset, boolean finished) {
+            this.messages = messages;
+            this.nextOffset = nextOffset;
+            this.finished = finished;
+        }
+    }
+
+    /**
+     * Read all messages of a chat in append order. A record that replaces an
+     * earlier one with the same ID takes the earlier one's place.
+     */
+    public List<Message> read(String chatId) {
+        List<Message> messages = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+        long start = Metrics.start();
+        try (LockStripes.Held held = lockChat(chatId)) {
+            File file = fileFor(chatId);
+            if (!file.exists()) {
+                return messages;
+            }
+            if (Metrics.isEnabled()) {
+                BYTES_READ.add(file.length());
+            }
+
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    long parseStart = Metrics.start();
+                    try {
+                        addOrReplace(messages, positions, gson.fromJson(line, Message.class));
+                    } catch (JsonParseException e) {
+                        // A torn write from a crash can leave a partial last line
+                        FAILURES.increment();
+                        Log.w(TAG, "Skipping unreadable line in " + file.getName());
+                    }
+                    PARSE_TIME.recordSince(parseStart);
+                }
+            } catch (IOException e) {
+                FAILURES.increment();
+                Log.e(TAG, "Error reading message log", e);
+            }
+        } finally {
+            READ_TIME.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Read up to maxRecords records starting at a byte offset, without
+     * resolving replaced records. Lets long scans proceed in small steps
+     * that resume from nextOffset.
+     */
+    public Batch readBatch(String chatId, long offset, int maxRecords) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (LockStripes.Held held = lockChat(chatId)) {
+            File file = fileFor(chatId);
+            long length = file.exists() ? file.length() : 0;
+            if (offset >= length) {
+                return new Batch(messages, length, true);
+            }
+
+            try (FileInputStream fileIn = new FileInputStream(file)) {
+                fileIn.getChannel().position(offset);
+                BufferedInputStream in = new BufferedInputStream(fileIn);
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long position = offset;
+                int b;
+                while (messages.size() < maxRecords && (b = in.read()) >= 0) {
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    position += line.size() + 1;
+                    if (line.size() > 0) {
+                        try {
+                            messages.add(gson.fromJson(line.toString("UTF-8"), Message.class));
+                        } catch (JsonParseException e) {
+                            FAILURES.increment();
+                            Log.w(TAG, "Skipping unreadable line in " + file.getName());
+                        }
+                    }
+                    line.reset();
+                }
+                // A torn last line without its newline is left for a later read
+                if (Metrics.isEnabled()) {
+                    BYTES_READ.add(position - offset);
+                }
+                return new Batch(messages, position, position + line.size() >= length);
+            }
+        }
+    }
+
+    /**
+     * Rewrite a chat's log keeping only the messages that pass keep, and
+     * dropping records replaced by later ones. The log is read twice in
+     * batches, first to find each ID's last record and then to copy the kept
+     * ones, so memory use is bounded by the IDs rather than the messages.
+     * A replaced message ends up where its last record was; readers sort by
+     * HLC, so only the file order changes. The new log is written beside the
+     * old one and renamed over it, so a crash leaves one or the other.
+     * @return the bytes reclaimed; 0 if nothing needed dropping
+     */
+    public long compact(String chatId, Predicate<Message> keep) throws IOException {
+        long start = Metrics.start();
+        try (LockStripes.Held held = lockChat(chatId)) {
+            File file = fileFor(chatId);
+            if (!file.exists()) {
+                return 0;
+            }
+
+            // Index of each ID's last record; an earlier record is replaced by it
+            Map<String, Long> lastRecords = new HashMap<>();
+            long records = 0;
+            long withoutId = 0;
+            boolean anyRejected = false;
+            long offset = 0;
+            Batch batch;
+            do {
+                batch = readBatch(chatId, offset, COMPACT_BATCH);
+                for (Message message : batch.messages) {
+                    if (message.getMessageId() != null) {
+                        lastRecords.put(message.getMessageId(), records);
+                    } else {
+                        withoutId++;
+                    }
+                    // Only final records matter, but while none are replaced every record is final
+                    anyRejected |= !keep.test(message);
+                    records++;
+                }
+                offset = batch.nextOffset;
+            } while (!batch.finished);
+            boolean anyReplaced = lastRecords.size() + withoutId < records;
+            boolean tornTail = offset < file.length();
+            if (!anyReplaced && !anyRejected && !tornTail) {
+                return 0;
+            }
+
+            long lengthBefore = file.length();
+            File tempFile = new File(logDir, file.getName() + ".tmp");
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+                long index = 0;
+                offset = 0;
+                do {
+                    batch = readBatch(chatId, offset, COMPACT_BATCH);
+                    for (Message message : batch.messages) {
+                        String messageId = message.getMessageId();
+                        boolean last = messageId == null || lastRecords.get(messageId) == index;
+                        if (last && keep.test(message)) {
+                            writer.write(gson.toJson(message));
+                            writer.write('\n');
+                        }
+                        index++;
+                    }
+                    offset = batch.nextOffset;
+                } while (!batch.finished);
+            } catch (IOException e) {
+                FAILURES.increment();
+                tempFile.delete();
+                throw e;
+            }
+            if (!tempFile.renameTo(file)) {
+                FAILURES.increment();
+                tempFile.delete();
+                throw new IOException("Could not replace " + file.getName());
+            }
+            // The filter would still hold the dropped IDs
+            openFilters.put(chatId, new OpenFilter(rebuildFilter(chatId), file.length()));
+            return lengthBefore - file.length();
+        } finally {
+            COMPACT_TIME.recordSince(start);
+        }
+    }
+
+    /**
+     * Add a message, or put it in place of an earlier message with the same ID
+     * @param positions index of each message ID in messages
+     */
+    static void addOrReplace(List<Message> messages, Map<String, Integer> positions, Message message) {
+        if (message.getMessageId() != null) {
+            Integer position = positions.putIfAbsent(message.getMessageId(), messages.size());
+            if (position != null) {
+                messages.set(position, message);
+                return;
+            }
+        }
+        messages.add(message);
+    }
+
+    /**
+     * Append messages to the end of a chat's log
+     */
+    public void append(String chatId, List<Message> messages) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        try (LockStripes.Held held = lockChat(chatId)) {
+            appendLocked(chatId, messages, openFilter(chatId));
+        }
+    }
+
+    /**
+     * Append only the messages whose IDs aren't in the chat yet. The log is read
+     * only when the filter reports a possible duplicate.
+     * @return the messages that were appended
+     */
+    public List<Message> appendNew(String chatId, List<Message> messages) throws IOException {
+        List<Message> added = new ArrayList<>();
+        if (messages.isEmpty()) {
+            return added;
+        }
+
+        try (LockStripes.Held held = lockChat(chatId)) {
+            OpenFilter open = openFilter(chatId);
+            BloomFilter filter = open.filter;
+            Set<String> storedIds = null;
+            Set<String> batchIds = new HashSet<>();
+
+            for (Message message : messages) {
+                String messageId = message.getMessageId();
+                if (messageId == null) {
+                    added.add(message);
+                    continue;
+                }
+                if (!batchIds.add(messageId)) {
+                    continue;
+                }
+
+                filterQueries.incrementAndGet();
+                if (filter.mightContain(messageId)) {
+                    filterPositives.incrementAndGet();
+                    if (storedIds == null) {
+                        storedIds = readIds(chatId);
+                    }
+                    if (storedIds.contains(messageId)) {
+                        continue;
+                    }
+                    falsePositives.incrementAndGet();
+                }
+                added.add(message);
+            }
+
+            appendLocked(chatId, added, open);
+        }
+        return added;
+    }
+
+    /**
+     * Estimated false-positive rate of a chat's filter at its current fill
+     */
+    public double expectedFalsePositiveRate(String chatId) {
+        try (LockStripes.Held held = lockChat(chatId)) {
+            return openFilter(chatId).filter.expectedFalsePositiveRate();
+        }
+    }
+
+    /**
+     * Save the filters changed since they were last saved
+     */
+    public void flush() {
+        for (String chatId : openFilters.keySet()) {
+            try (LockStripes.Held held = lockChat(chatId)) {
+                OpenFilter open = openFilters.get(chatId);
+                // A filter behind its log was overtaken by another writer and is rebuilt on next use
+                if (open != null && open.dirty && open.logLength == fileFor(chatId).length()) {
+                    saveFilter(chatId, open.filter);
+                    open.dirty = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Save changed filters and let go of them; the log can still be used and reopens them
+     */
+    public void close() {
+        flush();
+        openFilters.clear();
+    }
+
+    public static DedupStats getDedupStats() {
+        return new DedupStats(filterQueries.get(), filterPositives.get(),
+            falsePositives.get(), filterRebuilds.get());
+    }
+
+    private void appendLocked(String chatId, List<Message> messages, OpenFilter open) throws IOException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (!logDir.exists() && !logDir.mkdirs()) {
+            throw new IOException("Cannot create " + logDir);
+        }
+
+        long start = Metrics.start();
+        File file = fileFor(chatId);
+        long lengthBefore = Metrics.isEnabled() ? file.length() : 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+            for (Message message : messages) {
+                long serializeStart = Metrics.start();
+                String json = gson.toJson(message);
+                SERIALIZE_TIME.recordSince(serializeStart);
+                writer.write(json);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            FAILURES.increment();
+            throw e;
+        }
+        if (Metrics.isEnabled()) {
+            BYTES_WRITTEN.add(file.length() - lengthBefore);
+        }
+        APPEND_TIME.recordSince(start);
+
+        for (Message message : messages) {
+            if (message.getMessageId() != null) {
+                open.filter.add(message.getMessageId());
+            }
+        }
+        if (open.filter.getCount() > open.filter.getCapacity()) {
+            // Full filters lose accuracy; rebuild with room to grow
+            openFilters.put(chatId, new OpenFilter(rebuildFilter(chatId), file.length()));
+        } else {
+            open.logLength = file.length();
+            open.dirty = true;
+        }
+    }
+
+    /**
+     * Get a chat's filter, loading it on first use. A filter that no longer
+     * matches the log's length, because another MessageLog over the same
+     * directory appended to it, is loaded again. The caller holds the chat's lock.
+     */
+    private OpenFilter openFilter(String chatId) {
+        long length = fileFor(chatId).length();
+        OpenFilter open = openFilters.get(chatId);
+        if (open == null || open.logLength != length) {
+            open = new OpenFilter(loadFilter(chatId), length);
+            openFilters.put(chatId, open);
+        }
+        return open;
+    }
+
+    /**
+     * Load a chat's filter, rebuilding it if it is missing, unreadable or
+     * doesn't match the log (after a crash between writes or a rewrite of the log)
+     */
+    private BloomFilter loadFilter(String chatId) {
+        File filterFile = filterFileFor(chatId);
+        if (filterFile.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(filterFile)))) {
+                if (in.readInt() == FILTER_VERSION && in.readLong() == fileFor(chatId).length()) {
+                    return BloomFilter.readFrom(in);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unreadable filter " + filterFile.getName());
+            }
+        }
+        return rebuildFilter(chatId);
+    }
+
+    private BloomFilter rebuildFilter(String chatId) {
+        filterRebuilds.incrementAndGet();
+        Set<String> ids = readIds(chatId);
+        BloomFilter filter = BloomFilter.create(
+            Math.max(MIN_FILTER_CAPACITY, ids.size() * 2), FILTER_FALSE_POSITIVE_RATE);
+        for (String messageId : ids) {
+            filter.add(messageId);
+        }
+        saveFilter(chatId, filter);
+        return filter;
+    }
+
+    // Written to a temp file and renamed, so a crash never leaves a torn filter
+    private void saveFilter(String chatId, BloomFilter filter) {
+        if (!logDir.exists() && !logDir.mkdirs()) {
+            return;
+        }
+        File filterFile = filterFileFor(chatId);
+        File tempFile = new File(logDir, filterFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(FILTER_VERSION);
+            out.writeLong(fileFor(chatId).length());
+            filter.writeTo(out);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save filter " + filterFile.getName());
+            return;
+        }
+        if (!tempFile.renameTo(filterFile)) {
+            Log.w(TAG, "Could not replace filter " + filterFile.getName());
+        }
+    }
+
+    private Set<String> readIds(String chatId) {
+        Set<String> ids = new HashSet<>();
+        for (Message message : read(chatId)) {
+            if (message.getMessageId() != null) {
+                ids.add(message.getMessageId());
+            }
+        }
+        return ids;
+    }
+
+    public void delete(String chatId) {
+        try (LockStripes.Held held = lockChat(chatId)) {
+            openFilters.remove(chatId);
+            for (File file : new File[]{fileFor(chatId), filterFileFor(chatId)}) {
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Could not delete " + file.getName());
+                }
+            }
+        }
+    }
+
+    public void deleteAll() {
+        try (LockStripes.Held held = LOCKS.lockAll()) {
+            openFilters.clear();
+            File[] files = logDir.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Could not delete " + file.getName());
+                }
+            }
+        }
+    }
+
+    private LockStripes.Held lockChat(String chatId) {
+        return LOCKS.lock(fileFor(chatId).getPath());
+    }
+
+    private File fileFor(String chatId) {
+        return new File(logDir, safeName(chatId) + LOG_SUFFIX);
+    }
+
+    private File filterFileFor(String chatId) {
+        return new File(logDir, safeName(chatId) + FILTER_SUFFIX);
+    }
+
+    // Chat IDs are generated locally, but keep them path-safe regardless
+    private static String safeName(String chatId) {
+        return chatId.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+}
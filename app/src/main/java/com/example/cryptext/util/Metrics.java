@@ -0,0 +1,298 @@
+package com.example.cryptext.util;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide registry of counters and latency histograms for the storage,
+ * crypto and serialization paths. Recording is lock-free. While disabled,
+ * start() skips the clock read and every record call is a single volatile
+ * read, so instrumented code costs next to nothing in release builds.
+ */
+public final class Metrics {
+    private static final String TAG = "Metrics";
+
+    private static volatile boolean enabled;
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn recording on for debuggable builds only
+     */
+    public static void enableIfDebuggable(Context context) {
+        setEnabled((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+    }
+
+    /**
+     * Get or register the counter with the given name
+     */
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /**
+     * Get or register the latency histogram with the given name
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Start timing an operation; pass the result to Histogram.recordSince()
+     * @return the start time, or 0 while disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Zero every counter and histogram
+     */
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.adder.reset();
+        }
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Capture the current values, sorted by name
+     */
+    public static Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, HistogramSnapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(counterValues, histogramValues);
+    }
+
+    /**
+     * Write a snapshot to logcat, one metric per line; does nothing while disabled
+     */
+    public static void dump() {
+        if (!enabled) {
+            return;
+        }
+        for (String line : snapshot().toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            if (enabled) {
+                adder.increment();
+            }
+        }
+
+        public void add(long amount) {
+            if (enabled) {
+                adder.add(amount);
+            }
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Latency histogram with log-linear buckets in the style of HdrHistogram:
+     * each power of two is split into SUB_BUCKETS linear buckets, so any
+     * recorded value is known to within about 3%.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        // Values up to about 68 seconds get their own bucket; longer ones share the last
+        private static final long MAX_TRACKED_NANOS = (1L << 36) - 1;
+        private static final int BUCKET_COUNT = indexFor(MAX_TRACKED_NANOS) + 1;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        /**
+         * Record the time elapsed since a Metrics.start() value
+         */
+        public void recordSince(long startNanos) {
+            if (startNanos != 0 && enabled) {
+                record(System.nanoTime() - startNanos);
+            }
+        }
+
+        public void record(long nanos) {
+            if (!enabled) {
+                return;
+            }
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(indexFor(Math.min(nanos, MAX_TRACKED_NANOS)));
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long max = maxNanos.get();
+            return new HistogramSnapshot(total, total > 0 ? totalNanos.sum() / total : 0,
+                percentile(counts, total, 0.50, max),
+                percentile(counts, total, 0.90, max),
+                percentile(counts, total, 0.99, max),
+                max);
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets.set(i, 0);
+            }
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction, long max) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * fraction));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // Report the middle of the bucket, never above the largest value seen
+                    return Math.min(max, lowerBound(i) + (bucketWidth(i) - 1) / 2);
+                }
+            }
+            return max;
+        }
+
+        static int indexFor(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+        }
+
+        static long lowerBound(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        }
+
+        private static long bucketWidth(int index) {
+            return index < 2 * SUB_BUCKETS ? 1 : 1L << (index / SUB_BUCKETS - 1);
+        }
+    }
+
+    /**
+     * Values of one histogram, in nanoseconds
+     */
+    public static final class HistogramSnapshot {
+        public final long count;
+        public final long meanNanos;
+        public final long p50Nanos;
+        public final long p90Nanos;
+        public final long p99Nanos;
+        public final long maxNanos;
+
+        HistogramSnapshot(long count, long meanNanos, long p50Nanos, long p90Nanos,
+                          long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                + " mean=" + micros(meanNanos)
+                + " p50=" + micros(p50Nanos)
+                + " p90=" + micros(p90Nanos)
+                + " p99=" + micros(p99Nanos)
+                + " max=" + micros(maxNanos);
+        }
+
+        private static String micros(long nanos) {
+            return String.format(Locale.US, "%.1fus", nanos / 1000.0);
+        }
+    }
+
+    /**
+     * Point-in-time values of every registered metric, e.g. for a debug screen
+     */
+    public static final class Snapshot {
+        public final Map<String, Long> counters;
+        public final Map<String, HistogramSnapshot> histograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, HistogramSnapshot> histograms) {
+            this.counters = counters;
+            this.histograms = histograms;
+        }
+
+        public long counter(String name) {
+            Long value = counters.get(name);
+            return value != null ? value : 0;
+        }
+
+        public HistogramSnapshot histogram(String name) {
+            return histograms.get(name);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            for (Map.Entry<String, HistogramSnapshot> entry : histograms.entrySet()) {
+                out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.cryptext.util;
+
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Base of the background maintenance workers. Runs a subclass's step
+ * function on a background-priority thread, pausing between steps for
+ * several times as long as the last one took, so the work never holds a
+ * chat's lock for long or competes with the foreground. Subclasses keep
+ * their progress in storage, so stopping between steps loses nothing.
+ */
+public abstract class PacedWorker {
+
+    // Idle at least this long between steps, and this many times the last step's duration
+    static final long MIN_PAUSE_MS = 50;
+    static final int PAUSE_FACTOR = 4;
+
+    // One worker of each kind per signed-in user's storage, keyed "<name>/<userId>"
+    private static final Map<String, PacedWorker> instances = new HashMap<>();
+
+    protected final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> scheduledStep;
+
+    protected PacedWorker(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Get the user's worker of the given kind, creating it on its own
+     * background-priority thread if there is none
+     */
+    @SuppressWarnings("unchecked")
+    protected static synchronized <W extends PacedWorker> W instance(
+            String name, String userId, Function<ScheduledExecutorService, W> create) {
+        String key = name + "/" + userId;
+        PacedWorker worker = instances.get(key);
+        if (worker == null) {
+            worker = create.apply(Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, name)));
+            instances.put(key, worker);
+        }
+        return (W) worker;
+    }
+
+    /**
+     * Stop the user's worker of the given kind on logout
+     */
+    protected static synchronized void close(String name, String userId) {
+        PacedWorker worker = instances.remove(name + "/" + userId);
+        if (worker != null) {
+            worker.executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Start stepping soon unless a step is already scheduled
+     */
+    public synchronized void kick() {
+        if (executor.isShutdown() || (scheduledStep != null && !scheduledStep.isDone())) {
+            return;
+        }
+        scheduledStep = executor.schedule(() -> {
+            onKicked();
+            stepAndReschedule();
+        }, kickDelayMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private void stepAndReschedule() {
+        long start = System.nanoTime();
+        boolean more = doStep();
+        long pauseMs = more
+            ? Math.max(MIN_PAUSE_MS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) * PAUSE_FACTOR)
+            : restartDelayMs();
+        synchronized (this) {
+            if (pauseMs >= 0 && !executor.isShutdown()) {
+                scheduledStep = executor.schedule(this::stepAndReschedule, pauseMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Do one step of the work. Blocks; called on the worker's thread.
+     * @return true if more steps follow
+     */
+    protected abstract boolean doStep();
+
+    /**
+     * Delay before the first step after a kick
+     */
+    protected long kickDelayMs() {
+        return MIN_PAUSE_MS;
+    }
+
+    /**
+     * Delay before starting over once doStep reports the work done, or -1 to wait for the next kick
+     */
+    protected long restartDelayMs() {
+        return -1;
+    }
+
+    /**
+     * Called on the worker's thread before the first step after a kick
+     */
+    protected void onKicked() {
+    }
+}
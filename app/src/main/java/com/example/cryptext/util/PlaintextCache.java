@@ -0,0 +1,70 @@
+package com.example.cryptext.util;
+
+import android.util.LruCache;
+
+/**
+ * Size-bounded LRU cache of decrypted message bodies, keyed by messageId.
+ * Lets the message list decrypt lazily on bind without re-decrypting rows
+ * the user scrolls back and forth over.
+ */
+public class PlaintextCache {
+
+    // Budget in characters of plaintext, roughly 256 KB of UTF-16
+    private static final int DEFAULT_MAX_CHARS = 128 * 1024;
+
+    private static final Metrics.Counter HITS = Metrics.counter("cache.plaintext.hits");
+    private static final Metrics.Counter MISSES = Metrics.counter("cache.plaintext.misses");
+
+    private final LruCache<String, String> cache;
+
+    public PlaintextCache() {
+        this(DEFAULT_MAX_CHARS);
+    }
+
+    public PlaintextCache(int maxChars) {
+        this.cache = new LruCache<String, String>(maxChars) {
+            @Override
+            protected int sizeOf(String messageId, String plaintext) {
+                return Math.max(1, plaintext.length());
+            }
+        };
+    }
+
+    public String get(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        String plaintext = cache.get(messageId);
+        (plaintext != null ? HITS : MISSES).increment();
+        return plaintext;
+    }
+
+    public void put(String messageId, String plaintext) {
+        if (messageId == null || plaintext == null) {
+            return;
+        }
+        cache.put(messageId, plaintext);
+    }
+
+    public void remove(String messageId) {
+        if (messageId != null) {
+            cache.remove(messageId);
+        }
+    }
+
+    // Doesn't count as a hit or miss, so prefetch checks don't skew the hit rate
+    public boolean contains(String messageId) {
+        return messageId != null && cache.get(messageId) != null;
+    }
+
+    public void trimToHalf() {
+        cache.trimToSize(cache.maxSize() / 2);
+    }
+
+    /**
+     * Drop all cached plaintext so it doesn't linger in memory
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+}
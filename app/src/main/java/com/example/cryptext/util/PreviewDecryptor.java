@@ -0,0 +1,155 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decrypts chat list previews, which are stored encrypted, in batches off
+ * the main thread. Rows request their preview when bound, along with the
+ * rows just below; requests made in one main-thread pass are decrypted
+ * together on the worker and kept in an LRU cache, so binding a row never
+ * does crypto. The listener is told which chats' previews arrived.
+ * Previews still saved in plain text are shown as they are; requesting
+ * never writes to storage, and RetentionSweeper seals them in the
+ * background. All methods must be called on the main thread.
+ */
+public class PreviewDecryptor {
+
+    public interface Listener {
+        void onPreviewsDecrypted(Set<String> chatIds);
+    }
+
+    // Shown for a preview this member can't decrypt, e.g. sent after they left a group
+    public static final String UNREADABLE_PREVIEW = "[Encrypted message]";
+
+    // Budget in characters of decrypted previews
+    private static final int MAX_CACHED_CHARS = 32 * 1024;
+
+    private static final Metrics.Histogram BATCH_TIME = Metrics.histogram("preview.decryptBatch");
+    private static final Metrics.Counter DECRYPTED = Metrics.counter("preview.decrypted");
+
+    private final LocalStorageManager storage;
+    private final Executor worker;
+    private final Scheduler scheduler;
+    // Decrypted previews by preview message ID; written on the worker
+    private final PlaintextCache cache;
+
+    private final Map<String, Chat> pending;
+    private final Set<String> inFlight;
+    private final Runnable flushTask;
+    private boolean flushScheduled;
+    private Listener listener;
+
+    /**
+     * @param worker runs the batches; a single storage thread is enough
+     * @param scheduler runs flushes and results on the main thread
+     */
+    public PreviewDecryptor(LocalStorageManager storage, Executor worker, Scheduler scheduler) {
+        this.storage = storage;
+        this.worker = worker;
+        this.scheduler = scheduler;
+        this.cache = new PlaintextCache(MAX_CACHED_CHARS);
+        this.pending = new LinkedHashMap<>();
+        this.inFlight = new HashSet<>();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled = false;
+                flush();
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get a chat's preview without any crypto
+     * @return the preview, or null if it hasn't been decrypted yet
+     */
+    public String getPreview(Chat chat) {
+        if (!chat.hasEncryptedPreview()) {
+            return chat.getLastMessage();
+        }
+        return cache.get(chat.getPreviewMessageId());
+    }
+
+    /**
+     * Queue a chat's preview for decryption. Requests made in the same
+     * main-thread pass are decrypted as one batch.
+     */
+    public void request(Chat chat) {
+        if (!chat.hasEncryptedPreview()) {
+            return;
+        }
+        String previewId = chat.getPreviewMessageId();
+        if (cache.contains(previewId) || inFlight.contains(previewId)) {
+            return;
+        }
+        pending.put(chat.getChatId(), chat);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.postDelayed(flushTask, 0);
+        }
+    }
+
+    /**
+     * Stop any scheduled flush; a running batch still fills the cache
+     */
+    public void cancel() {
+        scheduler.cancel(flushTask);
+        flushScheduled = false;
+        pending.clear();
+    }
+
+    private void flush() {
+        final List<Chat> batch = new ArrayList<>(pending.values());
+        pending.clear();
+        for (Chat chat : batch) {
+            inFlight.add(chat.getPreviewMessageId());
+        }
+        try {
+            worker.execute(() -> decryptBatch(batch));
+        } catch (RejectedExecutionException e) {
+            // The screen is closing
+            for (Chat chat : batch) {
+                inFlight.remove(chat.getPreviewMessageId());
+            }
+        }
+    }
+
+    // Runs on the worker
+    private void decryptBatch(final List<Chat> batch) {
+        long start = Metrics.start();
+        final Set<String> decrypted = new HashSet<>();
+        for (Chat chat : batch) {
+            Message preview = new Message(chat.getPreviewMessageId(), null, chat.getPreviewContent(),
+                chat.getTimestamp());
+            preview.setKeyEpoch(chat.getPreviewKeyEpoch());
+            String plaintext = new ChatCipher(storage, chat.getChatId()).decrypt(preview);
+            cache.put(chat.getPreviewMessageId(), plaintext != null ? plaintext : UNREADABLE_PREVIEW);
+            decrypted.add(chat.getChatId());
+            DECRYPTED.increment();
+        }
+        BATCH_TIME.recordSince(start);
+
+        scheduler.postDelayed(() -> {
+            for (Chat chat : batch) {
+                inFlight.remove(chat.getPreviewMessageId());
+            }
+            if (listener != null && !decrypted.isEmpty()) {
+                listener.onPreviewsDecrypted(decrypted);
+            }
+        }, 0);
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.cryptext.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves participant userIds to emails for the chat list.
+ * IDs requested while rows are bound are collected and fetched together in
+ * batched directory requests, results are written to the shared UserLookupCache,
+ * and the listener is told exactly which IDs changed.
+ * All methods must be called on the main thread.
+ */
+public class ProfileResolver {
+
+    public interface Listener {
+        void onProfilesResolved(Set<String> userIds);
+    }
+
+    private final UserDirectory directory;
+    private final UserLookupCache lookupCache;
+    private final Scheduler scheduler;
+
+    private final Map<String, String> emailsByUserId;
+    private final Set<String> pending;
+    private final Set<String> inFlight;
+    private final Set<String> missing;
+    private final Runnable flushTask;
+    private boolean flushScheduled;
+    private Listener listener;
+
+    public ProfileResolver(UserDirectory directory, UserLookupCache lookupCache, Scheduler scheduler) {
+        this.directory = directory;
+        this.lookupCache = lookupCache;
+        this.scheduler = scheduler;
+        this.emailsByUserId = new HashMap<>();
+        this.pending = new LinkedHashSet<>();
+        this.inFlight = new HashSet<>();
+        this.missing = new HashSet<>();
+        this.flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled = false;
+                flush();
+            }
+        };
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Read the persisted emails of some users. Safe on any thread, so the chat
+     * list reads them on its loader thread and hands them to addKnownEmails.
+     */
+    public static Map<String, String> readPersistedEmails(UserLookupCache lookupCache,
+                                                          Collection<String> userIds) {
+        Map<String, String> emails = new HashMap<>();
+        for (String userId : userIds) {
+            String email = lookupCache.getEmailForUserId(userId);
+            if (email != null) {
+                emails.put(userId, email);
+            }
+        }
+        return emails;
+    }
+
+    public void addKnownEmails(Map<String, String> emails) {
+        emailsByUserId.putAll(emails);
+    }
+
+    /**
+     * Get an email already held in memory; never reads the persisted cache
+     * @return the email, or null if it isn't known yet
+     */
+    public String getKnownEmail(String userId) {
+        return emailsByUserId.get(userId);
+    }
+
+    /**
+     * Get a known email for a userId without any network work, reading the persisted cache on a miss
+     * @return the email, or null if it hasn't been resolved yet
+     */
+    public String getEmail(String userId) {
+        String email = emailsByUserId.get(userId);
+        if (email == null) {
+            email = lookupCache.getEmailForUserId(userId);
+            if (email != null) {
+                emailsByUserId.put(userId, email);
+            }
+        }
+        return email;
+    }
+
+    /**
+     * Queue a userId for resolution. Requests made in the same main-thread
+     * pass are flushed together as one or more batched directory requests.
+     */
+    public void request(String userId) {
+        if (userId == null || emailsByUserId.containsKey(userId)
+                || inFlight.contains(userId) || missing.contains(userId)) {
+            return;
+        }
+        if (!pending.add(userId)) {
+            return;
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.postDelayed(flushTask, 0);
+        }
+    }
+
+    /**
+     * Stop any scheduled flush; in-flight batches still populate the cache
+     */
+    public void cancel() {
+        scheduler.cancel(flushTask);
+        flushScheduled = false;
+        pending.clear();
+    }
+
+    private void flush() {
+        List<String> batch = new ArrayList<>(UserDirectory.MAX_BATCH_SIZE);
+        for (String userId : pending) {
+            // It may have been resolved from the persisted cache meanwhile
+            if (getEmail(userId) != null) {
+                continue;
+            }
+            batch.add(userId);
+            if (batch.size() == UserDirectory.MAX_BATCH_SIZE) {
+                fetch(batch);
+                batch = new ArrayList<>(UserDirectory.MAX_BATCH_SIZE);
+            }
+        }
+        pending.clear();
+        if (!batch.isEmpty()) {
+            fetch(batch);
+        }
+    }
+
+    private void fetch(final List<String> batch) {
+        inFlight.addAll(batch);
+        directory.findEmailsByUserIds(batch, new UserDirectory.BatchCallback() {
+            @Override
+            public void onResult(Map<String, String> emails) {
+                Set<String> resolved = new HashSet<>();
+                for (String userId : batch) {
+                    inFlight.remove(userId);
+                    String email = emails.get(userId);
+                    if (email != null) {
+                        emailsByUserId.put(userId, email);
+                        lookupCache.remember(email, userId);
+                        resolved.add(userId);
+                    } else {
+                        // Don't ask again for accounts that don't exist
+                        missing.add(userId);
+                    }
+                }
+                if (listener != null && !resolved.isEmpty()) {
+                    listener.onProfilesResolved(resolved);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // Allow a later bind to retry
+                inFlight.removeAll(batch);
+            }
+        });
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.cryptext.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.example.cryptext.model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Re-encrypts a chat's older messages under its current key epoch after a
+ * rotation, one small batch per PacedWorker step. Progress is saved after
+ * every batch, so a pass resumes where it stopped.
+ */
+public class Reencryptor extends PacedWorker {
+    private static final String TAG = "Reencryptor";
+
+    // Stored records read per batch
+    static final int BATCH_SIZE = 50;
+
+    private static final Metrics.Histogram BATCH_TIME = Metrics.histogram("crypto.reencryptBatch");
+    private static final Metrics.Counter REENCRYPTED = Metrics.counter("crypto.reencrypted");
+
+    private final LocalStorageManager storage;
+    private final String memberId;
+
+    public Reencryptor(LocalStorageManager storage, String memberId, ScheduledExecutorService executor) {
+        super(executor);
+        this.storage = storage;
+        this.memberId = memberId;
+    }
+
+    public static Reencryptor forUser(Context context, String userId) {
+        return instance(TAG, userId,
+            executor -> new Reencryptor(LocalStorageManager.forUser(context, userId), userId, executor));
+    }
+
+    /**
+     * Stop re-encrypting on logout; the pass resumes after the next login
+     */
+    public static void closeUser(String userId) {
+        close(TAG, userId);
+    }
+
+    /**
+     * Rotate a chat's key and start re-encrypting its older messages
+     * @return the new epoch, or 0 if the chat doesn't exist
+     */
+    public int rotate(String chatId) {
+        int epoch = storage.rotateChatKey(chatId);
+        kick();
+        return epoch;
+    }
+
+    @Override
+    protected boolean doStep() {
+        return runBatch();
+    }
+
+    /**
+     * Re-encrypt one batch of the first chat with a pass underway. Blocks.
+     * @return true if any pass has work left
+     */
+    boolean runBatch() {
+        List<String> chatIds = storage.getChatsPendingReencryption();
+        if (chatIds.isEmpty()) {
+            return false;
+        }
+        String chatId = chatIds.get(0);
+        long start = Metrics.start();
+        try {
+            LocalStorageManager.ReencryptBatch batch = storage.nextReencryptBatch(chatId, BATCH_SIZE);
+            if (batch == null) {
+                return chatIds.size() > 1;
+            }
+
+            // Decrypt and encrypt outside the chat's lock, so sends aren't held up
+            ChatCipher cipher = new ChatCipher(storage, chatId, memberId);
+            List<Message> reencrypted = new ArrayList<>(batch.messages.size());
+            for (Message message : batch.messages) {
+                Message copy = cipher.reencrypt(message);
+                if (copy != null) {
+                    reencrypted.add(copy);
+                } else {
+                    // E.g. sent under an epoch this member never had; leave it as it is
+                    Log.w(TAG, "Could not re-encrypt " + message.getMessageId());
+                }
+            }
+            // Dropped if the chat was compacted meanwhile; the pass restarts from its start
+            if (storage.completeReencryptBatch(chatId, batch, reencrypted)) {
+                REENCRYPTED.add(reencrypted.size());
+            }
+            return true;
+        } catch (IOException e) {
+            // Retried from the saved position on the next kick
+            Log.e(TAG, "Re-encryption batch failed", e);
+            return false;
+        } finally {
+            BATCH_TIME.recordSince(start);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.cryptext.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically enforces retention policies. A pass sweeps one chat per
+ * PacedWorker step, removing messages its policy no longer allows and
+ * compacting its log, then deletes attachment blobs that no remaining
+ * message references, so a chat's lock is only held for one chat's compaction.
+ * Each step also seals the chat's preview if an older version saved it in
+ * plain text, so the chat list never writes while binding.
+ */
+public class RetentionSweeper extends PacedWorker {
+    private static final String TAG = "RetentionSweeper";
+
+    static final long SWEEP_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+    // Unreferenced blobs younger than this at the start of a pass are kept: their message may not be stored yet
+    static final long BLOB_GRACE_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final Metrics.Histogram SWEEP_TIME = Metrics.histogram("retention.sweep");
+    private static final Metrics.Histogram CHAT_SWEEP_TIME = Metrics.histogram("retention.sweepChat");
+    private static final Metrics.Counter BYTES_RECLAIMED = Metrics.counter("retention.bytesReclaimed");
+    private static final Metrics.Counter MESSAGES_REMOVED = Metrics.counter("retention.messagesRemoved");
+    private static final Metrics.Counter PREVIEWS_SEALED = Metrics.counter("preview.sealed");
+
+    /**
+     * Totals of one completed pass
+     */
+    public static class PassResult {
+        public final int chatsSwept;
+        public final int messagesRemoved;
+        // Includes deleted attachment blobs
+        public final long bytesReclaimed;
+
+        PassResult(int chatsSwept, int messagesRemoved, long bytesReclaimed) {
+            this.chatsSwept = chatsSwept;
+            this.messagesRemoved = messagesRemoved;
+            this.bytesReclaimed = bytesReclaimed;
+        }
+    }
+
+    private final LocalStorageManager storage;
+
+    private long lastPassMillis;
+
+    // State of the pass underway; only touched on the executor thread
+    private List<String> pendingChats;
+    private Set<String> referencedBlobs;
+    private boolean blobsComplete;
+    private long passStartMillis;
+    private long passStartNanos;
+    private int chatsSwept;
+    private int messagesRemoved;
+    private long bytesReclaimed;
+
+    public RetentionSweeper(LocalStorageManager storage, ScheduledExecutorService executor) {
+        super(executor);
+        this.storage = storage;
+        this.lastPassMillis = storage.getLastSweepMillis();
+    }
+
+    public static RetentionSweeper forUser(Context context, String userId) {
+        return instance(TAG, userId,
+            executor -> new RetentionSweeper(LocalStorageManager.forUser(context, userId), executor));
+    }
+
+    /**
+     * Stop sweeping on logout
+     */
+    public static void closeUser(String userId) {
+        close(TAG, userId);
+    }
+
+    // A kick starts a pass unless one is underway or the last finished within SWEEP_INTERVAL_MS
+    @Override
+    protected synchronized long kickDelayMs() {
+        return Math.max(MIN_PAUSE_MS, lastPassMillis + SWEEP_INTERVAL_MS - System.currentTimeMillis());
+    }
+
+    @Override
+    protected boolean doStep() {
+        return step() == null;
+    }
+
+    @Override
+    protected long restartDelayMs() {
+        return SWEEP_INTERVAL_MS;
+    }
+
+    /**
+     * Sweep the next chat of the pass, starting a pass if none is underway. Blocks.
+     * @return the pass totals once it completes, otherwise null
+     */
+    PassResult step() {
+        if (pendingChats == null) {
+            pendingChats = new ArrayList<>(storage.getStoredChatIds());
+            referencedBlobs = new HashSet<>();
+            blobsComplete = true;
+            passStartMillis = System.currentTimeMillis();
+            passStartNanos = System.nanoTime();
+            chatsSwept = 0;
+            messagesRemoved = 0;
+            bytesReclaimed = 0;
+        }
+
+        if (!pendingChats.isEmpty()) {
+            String chatId = pendingChats.remove(pendingChats.size() - 1);
+            long start = Metrics.start();
+            try {
+                LocalStorageManager.SweepResult result = storage.sweepChat(chatId, passStartMillis);
+                referencedBlobs.addAll(result.referencedBlobs);
+                chatsSwept++;
+                messagesRemoved += result.messagesRemoved;
+                bytesReclaimed += result.bytesReclaimed;
+            } catch (IOException e) {
+                // Its blobs can't be told apart from garbage now, so skip collecting this pass
+                Log.e(TAG, "Could not sweep " + chatId, e);
+                blobsComplete = false;
+            } finally {
+                CHAT_SWEEP_TIME.recordSince(start);
+            }
+            if (storage.sealPlainPreview(chatId)) {
+                PREVIEWS_SEALED.increment();
+            }
+            if (!pendingChats.isEmpty()) {
+                return null;
+            }
+        }
+
+        if (blobsComplete) {
+            bytesReclaimed += storage.getBlobStore().collectGarbage(referencedBlobs,
+                passStartMillis - BLOB_GRACE_MS);
+        }
+        PassResult result = new PassResult(chatsSwept, messagesRemoved, bytesReclaimed);
+        BYTES_RECLAIMED.add(bytesReclaimed);
+        MESSAGES_REMOVED.add(messagesRemoved);
+        // Wall time of the whole pass, pauses included
+        if (Metrics.isEnabled()) {
+            SWEEP_TIME.record(System.nanoTime() - passStartNanos);
+        }
+        pendingChats = null;
+        referencedBlobs = null;
+        // Saved with the shard, so a relaunch doesn't start a pass the interval forbids
+        long finished = System.currentTimeMillis();
+        storage.setLastSweepMillis(finished);
+        synchronized (this) {
+            lastPassMillis = finished;
+        }
+        return result;
+    }
+}
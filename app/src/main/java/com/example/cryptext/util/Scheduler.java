@@ -0,0 +1,10 @@
+package com.example.cryptext.util;
+
+/**
+ * Posts delayed work to a single thread. The app uses the main-thread
+ * HandlerScheduler; tests drive a manual implementation.
+ */
+public interface Scheduler {
+    void postDelayed(Runnable task, long delayMs);
+    void cancel(Runnable task);
+}
@@ -0,0 +1,258 @@
+package com.example.cryptext.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Ordered list with O(log n) insert, remove, positional get and position lookup,
+ * backed by a treap whose nodes know their subtree size. Merging k values into
+ * n costs O(k log n) and reports the positions they landed at, so a
+ * RecyclerView can be notified of exactly those rows.
+ * Values must be unique under the comparator. Not thread-safe.
+ */
+public class SortedTimeline<T> {
+
+    // Priorities of nodes built in bulk sit above every inserted node's
+    private static final int BUILT_PRIORITY_BASE = 1 << 30;
+
+    private static class Node<T> {
+        T value;
+        final int priority;
+        int size = 1;
+        Node<T> left;
+        Node<T> right;
+
+        Node(T value, int priority) {
+            this.value = value;
+            this.priority = priority;
+        }
+    }
+
+    private final Comparator<? super T> comparator;
+    private final Random random = new Random();
+    private Node<T> root;
+
+    public SortedTimeline(Comparator<? super T> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * Replace the contents with values that are already sorted, in O(n)
+     */
+    public void resetSorted(List<T> sorted) {
+        root = build(sorted, 0, sorted.size());
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size());
+        }
+        Node<T> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.value;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Replace the value at a position with one that sorts the same
+     */
+    public void set(int index, T value) {
+        Node<T> node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                node.value = value;
+                return;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+        throw new IndexOutOfBoundsException("Index " + index);
+    }
+
+    /**
+     * @return the position of a value, or -1 if it isn't present
+     */
+    public int indexOf(T value) {
+        int index = 0;
+        Node<T> node = root;
+        while (node != null) {
+            int cmp = comparator.compare(value, node.value);
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp == 0) {
+                return index + size(node.left);
+            } else {
+                index += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position the value was inserted at
+     */
+    public int insert(T value) {
+        root = insert(root, new Node<>(value, random.nextInt(BUILT_PRIORITY_BASE)));
+        return indexOf(value);
+    }
+
+    /**
+     * Insert several values
+     * @return the final positions of the inserted values, ascending. Notifying
+     * these in order as single-row inserts brings a copy of the old list up to date.
+     */
+    public int[] merge(Collection<T> values) {
+        for (T value : values) {
+            root = insert(root, new Node<>(value, random.nextInt(BUILT_PRIORITY_BASE)));
+        }
+        int[] positions = new int[values.size()];
+        int i = 0;
+        for (T value : values) {
+            positions[i++] = indexOf(value);
+        }
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    /**
+     * @return the position the value was removed from, or -1 if it wasn't present
+     */
+    public int remove(T value) {
+        int index = indexOf(value);
+        if (index >= 0) {
+            root = remove(root, value);
+        }
+        return index;
+    }
+
+    public List<T> toList() {
+        List<T> values = new ArrayList<>(size());
+        collect(root, values);
+        return values;
+    }
+
+    private Node<T> build(List<T> sorted, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int mid = (from + to) >>> 1;
+        Node<T> left = build(sorted, from, mid);
+        Node<T> right = build(sorted, mid + 1, to);
+        // Parents get a higher priority than their children, keeping the heap order
+        int height = 1 + Math.max(left != null ? left.priority - BUILT_PRIORITY_BASE : 0,
+            right != null ? right.priority - BUILT_PRIORITY_BASE : 0);
+        Node<T> node = new Node<>(sorted.get(mid), BUILT_PRIORITY_BASE + height);
+        node.left = left;
+        node.right = right;
+        update(node);
+        return node;
+    }
+
+    private Node<T> insert(Node<T> node, Node<T> fresh) {
+        if (node == null) {
+            return fresh;
+        }
+        if (comparator.compare(fresh.value, node.value) < 0) {
+            node.left = insert(node.left, fresh);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, fresh);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        update(node);
+        return node;
+    }
+
+    private Node<T> remove(Node<T> node, T value) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = comparator.compare(value, node.value);
+        if (cmp < 0) {
+            node.left = remove(node.left, value);
+        } else if (cmp > 0) {
+            node.right = remove(node.right, value);
+        } else {
+            return join(node.left, node.right);
+        }
+        update(node);
+        return node;
+    }
+
+    // Join two treaps where every value in left sorts before every value in right
+    private Node<T> join(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = join(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = join(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private Node<T> rotateRight(Node<T> node) {
+        Node<T> pivot = node.left;
+        node.left = pivot.right;
+        pivot.right = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private Node<T> rotateLeft(Node<T> node) {
+        Node<T> pivot = node.right;
+        node.right = pivot.left;
+        pivot.left = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private void collect(Node<T> node, List<T> values) {
+        while (node != null) {
+            collect(node.left, values);
+            values.add(node.value);
+            node = node.right;
+        }
+    }
+
+    private static void update(Node<?> node) {
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+
+    private static int size(Node<?> node) {
+        return node != null ? node.size : 0;
+    }
+}
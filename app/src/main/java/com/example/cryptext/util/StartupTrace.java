@@ -0,0 +1,99 @@
+package com.example.cryptext.util;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Times the phases of a cold start, from the process being forked to the
+ * first chat row being drawn. Each phase is marked once with the
+ * milliseconds since process start; finishing logs the phases in order and
+ * records each one as a "startup.*" histogram in Metrics. Marks after the
+ * trace is finished or abandoned are ignored, so warm starts aren't traced.
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private static StartupTrace instance;
+
+    private final long processStartMs;
+    private final LongSupplier clock;
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private boolean done;
+
+    StartupTrace(long processStartMs, LongSupplier clock) {
+        this.processStartMs = processStartMs;
+        this.clock = clock;
+    }
+
+    /**
+     * Get this process's trace, timed against the uptime clock
+     */
+    public static synchronized StartupTrace get() {
+        if (instance == null) {
+            instance = new StartupTrace(Process.getStartUptimeMillis(), SystemClock::uptimeMillis);
+        }
+        return instance;
+    }
+
+    /**
+     * Note that a phase has been reached; only its first mark counts
+     */
+    public synchronized void mark(String phase) {
+        if (!done) {
+            phases.putIfAbsent(phase, clock.getAsLong() - processStartMs);
+        }
+    }
+
+    /**
+     * Mark the last phase, then log and record the trace
+     */
+    public synchronized void finish(String phase) {
+        if (done) {
+            return;
+        }
+        mark(phase);
+        done = true;
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            Metrics.histogram("startup." + entry.getKey()).record(TimeUnit.MILLISECONDS.toNanos(entry.getValue()));
+        }
+        Log.i(TAG, report());
+    }
+
+    /**
+     * Stop tracing without reporting, e.g. when launch goes to the login screen instead
+     */
+    public synchronized void abandon() {
+        done = true;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Get the milliseconds since process start at which each phase was reached, in order
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+
+    /**
+     * Describe each phase's time since process start and since the phase before
+     */
+    public synchronized String report() {
+        StringBuilder out = new StringBuilder("Cold start:");
+        long previous = 0;
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            out.append(' ').append(entry.getKey()).append('=').append(entry.getValue())
+                .append("ms (+").append(entry.getValue() - previous).append(')');
+            previous = entry.getValue();
+        }
+        return out.toString();
+    }
+}
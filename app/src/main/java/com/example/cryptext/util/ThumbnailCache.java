@@ -0,0 +1,57 @@
+package com.example.cryptext.util;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * Size-bounded LRU cache of decoded attachment thumbnails, keyed by the
+ * thumbnail's content id. A thumbnail shared by several messages is decoded
+ * once.
+ */
+public class ThumbnailCache {
+
+    // Budget in bytes of bitmap memory
+    private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final Metrics.Counter HITS = Metrics.counter("cache.thumbnail.hits");
+    private static final Metrics.Counter MISSES = Metrics.counter("cache.thumbnail.misses");
+
+    private final LruCache<String, Bitmap> cache;
+
+    public ThumbnailCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ThumbnailCache(int maxBytes) {
+        this.cache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String id, Bitmap bitmap) {
+                return Math.max(1, bitmap.getAllocationByteCount());
+            }
+        };
+    }
+
+    public Bitmap get(String id) {
+        if (id == null) {
+            return null;
+        }
+        Bitmap bitmap = cache.get(id);
+        (bitmap != null ? HITS : MISSES).increment();
+        return bitmap;
+    }
+
+    public void put(String id, Bitmap bitmap) {
+        if (id == null || bitmap == null) {
+            return;
+        }
+        cache.put(id, bitmap);
+    }
+
+    public void trimToHalf() {
+        cache.trimToSize(cache.maxSize() / 2);
+    }
+
+    public void clear() {
+        cache.evictAll();
+    }
+}
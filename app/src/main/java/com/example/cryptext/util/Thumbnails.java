@@ -0,0 +1,89 @@
+package com.example.cryptext.util;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Makes the small previews stored next to image attachments, so the message
+ * list only ever decodes a few kilobytes per row instead of the full image.
+ */
+public final class Thumbnails {
+    private static final String TAG = "Thumbnails";
+
+    // Longest edge of a thumbnail, in pixels
+    static final int MAX_EDGE = 320;
+    private static final int JPEG_QUALITY = 80;
+
+    private Thumbnails() {
+    }
+
+    /**
+     * Create a JPEG thumbnail of an image. The image is subsampled while
+     * decoding, so the full-size bitmap is never held in memory.
+     * @return the JPEG bytes, or null if the content isn't a decodable image
+     */
+    public static byte[] create(ContentResolver resolver, Uri uri) {
+        try {
+            // First pass reads only the dimensions
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream in = resolver.openInputStream(uri)) {
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize(options.outWidth, options.outHeight);
+            Bitmap sampled;
+            try (InputStream in = resolver.openInputStream(uri)) {
+                sampled = BitmapFactory.decodeStream(in, null, options);
+            }
+            if (sampled == null) {
+                return null;
+            }
+
+            float scale = Math.min(1f, (float) MAX_EDGE / Math.max(sampled.getWidth(), sampled.getHeight()));
+            Bitmap thumbnail = scale < 1f
+                ? Bitmap.createScaledBitmap(sampled, Math.max(1, Math.round(sampled.getWidth() * scale)),
+                    Math.max(1, Math.round(sampled.getHeight() * scale)), true)
+                : sampled;
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            if (thumbnail != sampled) {
+                thumbnail.recycle();
+            }
+            sampled.recycle();
+            return out.toByteArray();
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Could not create thumbnail", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decode a stored thumbnail
+     * @return the bitmap, or null if the bytes aren't an image
+     */
+    public static Bitmap decode(byte[] jpeg) {
+        return BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+    }
+
+    // Largest power of two that keeps both edges at or above MAX_EDGE
+    static int sampleSize(int width, int height) {
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= MAX_EDGE) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
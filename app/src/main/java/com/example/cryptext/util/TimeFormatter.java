@@ -0,0 +1,39 @@
+package com.example.cryptext.util;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * Shared, thread-safe timestamp formatting for list rows.
+ * Replaces per-bind SimpleDateFormat instances, which are neither cheap nor thread-safe.
+ */
+public final class TimeFormatter {
+
+    private static final DateTimeFormatter MESSAGE_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("hh:mm a", Locale.getDefault());
+    private static final DateTimeFormatter CHAT_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MMM dd, hh:mm a", Locale.getDefault());
+
+    private TimeFormatter() {
+    }
+
+    /**
+     * Format a message timestamp, e.g. "04:05 PM"
+     */
+    public static String formatMessageTime(long timestamp) {
+        return format(MESSAGE_TIME_FORMAT, timestamp);
+    }
+
+    /**
+     * Format a chat list timestamp, e.g. "Mar 02, 04:05 PM"
+     */
+    public static String formatChatTime(long timestamp) {
+        return format(CHAT_TIME_FORMAT, timestamp);
+    }
+
+    private static String format(DateTimeFormatter formatter, long timestamp) {
+        return Instant.ofEpochMilli(timestamp).atZone(ZoneId.systemDefault()).format(formatter);
+    }
+}
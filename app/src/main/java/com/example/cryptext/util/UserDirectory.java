@@ -0,0 +1,37 @@
+package com.example.cryptext.util;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source of truth for user accounts. Implemented against Firestore in the app
+ * and by in-memory fakes in tests.
+ */
+public interface UserDirectory {
+
+    // Firestore's limit on values in a single "in" query
+    int MAX_BATCH_SIZE = 30;
+
+    interface LookupCallback {
+        // userId is null if no account uses this email
+        void onResult(String userId);
+        void onFailure(Exception e);
+    }
+
+    interface BatchCallback {
+        // Only userIds that exist are present in the map
+        void onResult(Map<String, String> emailsByUserId);
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Find the userId registered with an email address
+     */
+    void findUserIdByEmail(String email, LookupCallback callback);
+
+    /**
+     * Fetch the emails of several users in one request.
+     * Callers keep batches within MAX_BATCH_SIZE.
+     */
+    void findEmailsByUserIds(List<String> userIds, BatchCallback callback);
+}
@@ -0,0 +1,266 @@
+package com.example.cryptext.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.google.gson.Gson;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongSupplier;
+
+/**
+ * Persistent email <-> userId cache in front of a UserDirectory.
+ * Found users are cached for a long TTL, unknown emails for a short one,
+ * and concurrent lookups of the same email share a single directory query.
+ * All methods must be called on one thread (the main thread in the app).
+ */
+public class UserLookupCache {
+
+    private static final String PREF_USER_LOOKUP = "user_lookup_cache";
+    private static final String EMAIL_KEY_PREFIX = "email:";
+    private static final String USER_KEY_PREFIX = "uid:";
+
+    static final long POSITIVE_TTL_MS = 7L * 24 * 60 * 60 * 1000; // 7 days
+    static final long NEGATIVE_TTL_MS = 2L * 60 * 1000; // 2 minutes
+    static final long LOOKUP_TIMEOUT_MS = 10000; // 10 seconds
+
+    public interface Callback {
+        void onUserFound(String userId);
+        void onUserNotFound();
+        void onError(Exception e);
+    }
+
+    // Persisted form of a cache entry; userId is null for a negative entry
+    private static class Entry {
+        String email;
+        String userId;
+        long expiresAt;
+    }
+
+    // A directory query shared by every caller waiting on the same email
+    private class PendingLookup implements Runnable {
+        final String email;
+        final List<Callback> callbacks = new ArrayList<>();
+
+        PendingLookup(String email) {
+            this.email = email;
+        }
+
+        // Timeout fired before the directory answered
+        @Override
+        public void run() {
+            if (inFlight.get(email) != this) {
+                return;
+            }
+            inFlight.remove(email);
+            Exception timeout = new TimeoutException("User lookup timed out");
+            for (Callback callback : callbacks) {
+                callback.onError(timeout);
+            }
+        }
+    }
+
+    private final UserDirectory directory;
+    private final SharedPreferences prefs;
+    private final Scheduler scheduler;
+    private final LongSupplier clock;
+    private final Gson gson;
+    private final Map<String, PendingLookup> inFlight;
+
+    public UserLookupCache(Context context) {
+        this(new FirestoreUserDirectory(),
+            context.getSharedPreferences(PREF_USER_LOOKUP, Context.MODE_PRIVATE),
+            new HandlerScheduler(),
+            System::currentTimeMillis);
+    }
+
+    public UserLookupCache(UserDirectory directory, SharedPreferences prefs,
+                           Scheduler scheduler, LongSupplier clock) {
+        this.directory = directory;
+        this.prefs = prefs;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.gson = new Gson();
+        this.inFlight = new HashMap<>();
+    }
+
+    /**
+     * Check whether an email can be answered without a directory query
+     */
+    public boolean isCached(String email) {
+        return readEntry(EMAIL_KEY_PREFIX + normalizeEmail(email)) != null;
+    }
+
+    /**
+     * Resolve an email to a userId. Cached answers are delivered synchronously;
+     * otherwise the callback fires once the directory answers or the lookup times out.
+     */
+    public void lookup(String email, Callback callback) {
+        final String normalizedEmail = normalizeEmail(email);
+
+        Entry cached = readEntry(EMAIL_KEY_PREFIX + normalizedEmail);
+        if (cached != null) {
+            if (cached.userId != null) {
+                callback.onUserFound(cached.userId);
+            } else {
+                callback.onUserNotFound();
+            }
+            return;
+        }
+
+        // Join a query that is already running for this email
+        PendingLookup pending = inFlight.get(normalizedEmail);
+        if (pending != null) {
+            pending.callbacks.add(callback);
+            return;
+        }
+
+        final PendingLookup lookup = new PendingLookup(normalizedEmail);
+        lookup.callbacks.add(callback);
+        inFlight.put(normalizedEmail, lookup);
+        scheduler.postDelayed(lookup, LOOKUP_TIMEOUT_MS);
+
+        directory.findUserIdByEmail(normalizedEmail, new UserDirectory.LookupCallback() {
+            @Override
+            public void onResult(String userId) {
+                // Cache the answer even if the callers already timed out
+                if (userId != null) {
+                    putEntry(normalizedEmail, userId, POSITIVE_TTL_MS);
+                } else {
+                    putEntry(normalizedEmail, null, NEGATIVE_TTL_MS);
+                }
+
+                if (!complete(lookup)) {
+                    return;
+                }
+                for (Callback waiting : lookup.callbacks) {
+                    if (userId != null) {
+                        waiting.onUserFound(userId);
+                    } else {
+                        waiting.onUserNotFound();
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                // Failures are not cached so the next attempt queries again
+                if (!complete(lookup)) {
+                    return;
+                }
+                for (Callback waiting : lookup.callbacks) {
+                    waiting.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the cached email for a userId, or null if unknown or expired.
+     * Only reads SharedPreferences, so unlike the rest of this class it may be called on any thread.
+     */
+    public String getEmailForUserId(String userId) {
+        Entry entry = readEntry(USER_KEY_PREFIX + userId);
+        return entry != null ? entry.email : null;
+    }
+
+    /**
+     * Record a known email <-> userId pair, e.g. for the signed-in user
+     */
+    public void remember(String email, String userId) {
+        putEntry(normalizeEmail(email), userId, POSITIVE_TTL_MS);
+    }
+
+    /**
+     * Delete expired entries, and userId entries no email entry points to any more.
+     * Entries are otherwise only dropped when read, and a userId is rarely read
+     * again once its email has moved on.
+     * @return the number of entries deleted
+     */
+    public int pruneExpired() {
+        long now = clock.getAsLong();
+        Map<String, ?> all = prefs.getAll();
+        SharedPreferences.Editor editor = prefs.edit();
+        int pruned = 0;
+        for (Map.Entry<String, ?> stored : all.entrySet()) {
+            String key = stored.getKey();
+            Entry entry = stored.getValue() instanceof String
+                ? gson.fromJson((String) stored.getValue(), Entry.class) : null;
+            boolean stale = entry == null || entry.expiresAt <= now;
+            if (!stale && key.startsWith(USER_KEY_PREFIX)) {
+                // The email now belongs to another account, or its entry is gone
+                Object emailJson = all.get(EMAIL_KEY_PREFIX + entry.email);
+                Entry current = emailJson instanceof String ? gson.fromJson((String) emailJson, Entry.class) : null;
+                stale = current == null || !key.equals(USER_KEY_PREFIX + current.userId);
+            }
+            if (stale) {
+                editor.remove(key);
+                pruned++;
+            }
+        }
+        if (pruned > 0) {
+            editor.apply();
+        }
+        return pruned;
+    }
+
+    public void clear() {
+        prefs.edit().clear().apply();
+    }
+
+    // Detach a finished lookup; false if it already timed out
+    private boolean complete(PendingLookup lookup) {
+        scheduler.cancel(lookup);
+        if (inFlight.get(lookup.email) != lookup) {
+            return false;
+        }
+        inFlight.remove(lookup.email);
+        return true;
+    }
+
+    private Entry readEntry(String key) {
+        String json = prefs.getString(key, null);
+        if (json == null) {
+            return null;
+        }
+
+        Entry entry = gson.fromJson(json, Entry.class);
+        if (entry == null || entry.expiresAt <= clock.getAsLong()) {
+            prefs.edit().remove(key).apply();
+            return null;
+        }
+        return entry;
+    }
+
+    private void putEntry(String email, String userId, long ttlMs) {
+        Entry entry = new Entry();
+        entry.email = email;
+        entry.userId = userId;
+        entry.expiresAt = clock.getAsLong() + ttlMs;
+
+        String json = gson.toJson(entry);
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(EMAIL_KEY_PREFIX + email, json);
+        if (userId != null) {
+            editor.putString(USER_KEY_PREFIX + userId, json);
+        }
+        // The account the email pointed to before no longer has it
+        Entry previous = readEntry(EMAIL_KEY_PREFIX + email);
+        if (previous != null && previous.userId != null && !previous.userId.equals(userId)) {
+            editor.remove(USER_KEY_PREFIX + previous.userId);
+        }
+        editor.apply();
+    }
+
+    /**
+     * The form emails are cached, stored (as a profile's emailLower) and queried in
+     */
+    public static String normalizeEmail(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,445 @@
+package com.example.cryptext.load;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageChangeFeed;
+import com.example.cryptext.sync.Outbox;
+import com.example.cryptext.util.EncryptionUtil;
+import com.example.cryptext.util.FakeSharedPreferences;
+import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.Metrics;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Drives LocalStorageManager and EncryptionUtil the way the app does, for many
+ * simulated users at once, and reports throughput, latency percentiles, on-disk
+ * size and heap high-water as JSON so runs can be compared across commits.
+ *
+ * Each simulated user gets its own storage shard over in-memory preferences and
+ * a temp directory. A user creates chats, sends encrypted messages round-robin
+ * across them (opening a chat and decrypting its newest page every readEvery
+ * sends), drains its outbox as OutboxFlusher would, and finally deletes a share
+ * of its chats. Latencies come from the Metrics histograms around each call.
+ */
+public class StorageLoadHarness {
+
+    // Newest messages decrypted when a chat is opened, like ChatActivity's first page
+    private static final int PAGE_SIZE = 20;
+    // Outbox entries drained per simulated flush
+    private static final int FLUSH_BATCH = 500;
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * Shape of a run. Every field can be set with a "load.<field>" property.
+     */
+    public static class Config {
+        public int users = 20;
+        public int chatsPerUser = 3;
+        public int messagesPerChat = 50;
+        // Total sends per second across all users; 0 sends as fast as possible
+        public int sendsPerSecond = 0;
+        // "fixed:N", "uniform:MIN-MAX" or "lognormal:MEDIAN:SIGMA", in characters
+        public String messageSize = "lognormal:60:1.0";
+        public int readEvery = 25;
+        public int flushEvery = 100;
+        public double deleteFraction = 0.25;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public long seed = 1;
+        // Free-form tag for the report, e.g. the commit being measured
+        public String label = "";
+
+        public static Config fromProperties(Properties properties) {
+            Config config = new Config();
+            config.users = intProperty(properties, "users", config.users);
+            config.chatsPerUser = intProperty(properties, "chatsPerUser", config.chatsPerUser);
+            config.messagesPerChat = intProperty(properties, "messagesPerChat", config.messagesPerChat);
+            config.sendsPerSecond = intProperty(properties, "sendsPerSecond", config.sendsPerSecond);
+            config.messageSize = properties.getProperty("load.messageSize", config.messageSize);
+            config.readEvery = intProperty(properties, "readEvery", config.readEvery);
+            config.flushEvery = intProperty(properties, "flushEvery", config.flushEvery);
+            config.deleteFraction = Double.parseDouble(
+                properties.getProperty("load.deleteFraction", String.valueOf(config.deleteFraction)));
+            config.threads = intProperty(properties, "threads", config.threads);
+            config.seed = Long.parseLong(properties.getProperty("load.seed", String.valueOf(config.seed)));
+            config.label = properties.getProperty("load.label", config.label);
+            return config;
+        }
+
+        private static int intProperty(Properties properties, String name, int defaultValue) {
+            return Integer.parseInt(properties.getProperty("load." + name, String.valueOf(defaultValue)));
+        }
+    }
+
+    /**
+     * Latency percentiles and throughput of one kind of call
+     */
+    public static class OperationStats {
+        public long count;
+        public double perSecond;
+        public double meanMicros;
+        public double p50Micros;
+        public double p99Micros;
+        public double maxMicros;
+    }
+
+    /**
+     * Result of a run; serialized as-is by toJson()
+     */
+    public static class Report {
+        public String label;
+        public long startedAtMillis;
+        public Config config;
+        public double elapsedSeconds;
+        public long messagesSent;
+        public long failures;
+        public Map<String, OperationStats> operations = new LinkedHashMap<>();
+        // Sizes once every message is sent, before any chat is deleted
+        public long logBytes;
+        public long filterBytes;
+        public long logFiles;
+        public long preferenceChars;
+        // Highest used heap seen by a sampler thread, and used heap after the run and a GC
+        public long heapHighWaterBytes;
+        public long heapAfterGcBytes;
+
+        public String toJson() {
+            return GSON.toJson(this);
+        }
+    }
+
+    // Metrics histograms reported, by report name
+    private static final String[][] OPERATIONS = {
+        {"createChat", "storage.createChat"},
+        {"sendMessage", "storage.sendMessage"},
+        {"getChatMessages", "storage.getChatMessages"},
+        {"deleteChat", "storage.deleteChat"},
+        {"encrypt", "crypto.encrypt"},
+        {"decrypt", "crypto.decrypt"},
+    };
+
+    private final Config config;
+    private final SizeDistribution sizes;
+    private final AtomicLong nextSendNanos = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public StorageLoadHarness(Config config) {
+        this.config = config;
+        this.sizes = SizeDistribution.parse(config.messageSize);
+    }
+
+    public Report run() throws Exception {
+        Path root = Files.createTempDirectory("cryptext-load");
+        boolean wasEnabled = Metrics.isEnabled();
+        Metrics.reset();
+        Metrics.setEnabled(true);
+        HeapSampler heapSampler = new HeapSampler();
+
+        Report report = new Report();
+        report.label = config.label;
+        report.config = config;
+        report.startedAtMillis = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(config.threads);
+        try {
+            heapSampler.start();
+            long start = System.nanoTime();
+            nextSendNanos.set(start);
+
+            List<SimulatedUser> users = new ArrayList<>();
+            for (int u = 0; u < config.users; u++) {
+                users.add(new SimulatedUser(u, new File(root.toFile(), "user" + u)));
+            }
+
+            runAll(executor, users, SimulatedUser::createChatsAndSend);
+            measureFiles(root, users, report);
+            runAll(executor, users, SimulatedUser::deleteChats);
+
+            report.elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        } finally {
+            executor.shutdownNow();
+            heapSampler.stop();
+            Metrics.setEnabled(wasEnabled);
+        }
+
+        report.messagesSent = messagesSent.get();
+        report.failures = failures.get();
+        report.heapHighWaterBytes = heapSampler.highWater;
+        System.gc();
+        report.heapAfterGcBytes = usedHeap();
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        for (String[] operation : OPERATIONS) {
+            report.operations.put(operation[0],
+                stats(snapshot.histogram(operation[1]), report.elapsedSeconds));
+        }
+        deleteRecursively(root);
+        return report;
+    }
+
+    private interface UserTask {
+        void run(SimulatedUser user) throws Exception;
+    }
+
+    private static void runAll(ExecutorService executor, List<SimulatedUser> users, UserTask task)
+            throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (SimulatedUser user : users) {
+            futures.add(executor.submit(() -> {
+                task.run(user);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private class SimulatedUser {
+        final String userId;
+        final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        final LocalStorageManager storage;
+        final Random random;
+        final List<String> chatIds = new ArrayList<>();
+
+        SimulatedUser(int index, File filesDir) {
+            this.userId = String.format("user_%06d", index);
+            this.random = new Random(config.seed * 31 + index);
+            this.storage = new LocalStorageManager(name -> {
+                synchronized (prefs) {
+                    return prefs.computeIfAbsent(name, n -> new FakeSharedPreferences());
+                }
+            }, filesDir, new MessageChangeFeed());
+        }
+
+        void createChatsAndSend() {
+            for (int c = 0; c < config.chatsPerUser; c++) {
+                String peerId = String.format("peer_%s_%03d", userId, c);
+                chatIds.add(storage.createChat(userId, peerId, peerId + "@example.com").getChatId());
+            }
+
+            int total = config.chatsPerUser * config.messagesPerChat;
+            for (int i = 0; i < total; i++) {
+                String chatId = chatIds.get(i % chatIds.size());
+                pace();
+                String content = sizes.content(random);
+                String encrypted = EncryptionUtil.encrypt(content, chatId);
+                if (encrypted != null && storage.sendMessage(chatId, userId, content, encrypted)) {
+                    messagesSent.incrementAndGet();
+                } else {
+                    failures.incrementAndGet();
+                }
+
+                if (config.readEvery > 0 && (i + 1) % config.readEvery == 0) {
+                    openChat(chatId);
+                }
+                if (config.flushEvery > 0 && (i + 1) % config.flushEvery == 0) {
+                    drainOutbox();
+                }
+            }
+            drainOutbox();
+        }
+
+        void deleteChats() {
+            int toDelete = (int) Math.round(chatIds.size() * config.deleteFraction);
+            for (String chatId : chatIds.subList(0, toDelete)) {
+                storage.deleteChat(chatId, userId);
+            }
+        }
+
+        // Load the chat and decrypt its newest page
+        private void openChat(String chatId) {
+            List<Message> messages = storage.getChatMessages(chatId);
+            for (Message message : messages.subList(Math.max(0, messages.size() - PAGE_SIZE), messages.size())) {
+                if (EncryptionUtil.decrypt(message.getContent(), chatId) == null) {
+                    failures.incrementAndGet();
+                }
+            }
+        }
+
+        // Stand-in for a successful OutboxFlusher push
+        private void drainOutbox() {
+            Outbox outbox = storage.getOutbox();
+            List<Outbox.Entry> batch;
+            while (!(batch = outbox.peek(FLUSH_BATCH)).isEmpty()) {
+                outbox.remove(batch);
+            }
+        }
+    }
+
+    // Hand out evenly spaced send slots across all threads
+    private void pace() {
+        if (config.sendsPerSecond <= 0) {
+            return;
+        }
+        long slot = nextSendNanos.getAndAdd(TimeUnit.SECONDS.toNanos(1) / config.sendsPerSecond);
+        long wait = slot - System.nanoTime();
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private static void measureFiles(Path root, List<SimulatedUser> users, Report report) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                long size = path.toFile().length();
+                if (path.toString().endsWith(".log")) {
+                    report.logBytes += size;
+                    report.logFiles++;
+                } else if (path.toString().endsWith(".bloom")) {
+                    report.filterBytes += size;
+                }
+            });
+        }
+        for (SimulatedUser user : users) {
+            for (FakeSharedPreferences prefs : user.prefs.values()) {
+                for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+                    report.preferenceChars += entry.getKey().length() + String.valueOf(entry.getValue()).length();
+                }
+            }
+        }
+    }
+
+    private static OperationStats stats(Metrics.HistogramSnapshot histogram, double elapsedSeconds) {
+        OperationStats stats = new OperationStats();
+        if (histogram == null) {
+            return stats;
+        }
+        stats.count = histogram.count;
+        stats.perSecond = elapsedSeconds > 0 ? histogram.count / elapsedSeconds : 0;
+        stats.meanMicros = histogram.meanNanos / 1000.0;
+        stats.p50Micros = histogram.p50Nanos / 1000.0;
+        stats.p99Micros = histogram.p99Nanos / 1000.0;
+        stats.maxMicros = histogram.maxNanos / 1000.0;
+        return stats;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void deleteRecursively(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // Samples used heap every few milliseconds and keeps the highest value
+    private static class HeapSampler implements Runnable {
+        private volatile boolean running;
+        private volatile long highWater;
+        private Thread thread;
+
+        void start() {
+            running = true;
+            thread = new Thread(this, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            highWater = Math.max(highWater, usedHeap());
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                highWater = Math.max(highWater, usedHeap());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+    }
+
+    /**
+     * Message lengths drawn from a fixed, uniform or log-normal distribution
+     */
+    static class SizeDistribution {
+        private static final int MAX_LENGTH = 64 * 1024;
+        private static final String ALPHABET =
+            "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 .,!?";
+
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private SizeDistribution(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed":
+                    return new SizeDistribution("fixed", Double.parseDouble(parts[1]), 0);
+                case "uniform":
+                    String[] range = parts[1].split("-");
+                    return new SizeDistribution("uniform",
+                        Double.parseDouble(range[0]), Double.parseDouble(range[1]));
+                case "lognormal":
+                    return new SizeDistribution("lognormal",
+                        Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    throw new IllegalArgumentException("Unknown message size distribution: " + spec);
+            }
+        }
+
+        int nextLength(Random random) {
+            double length;
+            switch (kind) {
+                case "fixed":
+                    length = a;
+                    break;
+                case "uniform":
+                    length = a + random.nextDouble() * (b - a + 1);
+                    break;
+                default:
+                    // a is the median, b the sigma of the underlying normal
+                    length = a * Math.exp(b * random.nextGaussian());
+                    break;
+            }
+            return (int) Math.max(1, Math.min(MAX_LENGTH, length));
+        }
+
+        String content(Random random) {
+            int length = nextLength(random);
+            StringBuilder content = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                content.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            return content.toString();
+        }
+    }
+
+    /**
+     * Run with "load.*" system properties and print the report
+     */
+    public static void main(String[] args) throws Exception {
+        Report report = new StorageLoadHarness(Config.fromProperties(System.getProperties())).run();
+        System.out.println(report.toJson());
+    }
+}
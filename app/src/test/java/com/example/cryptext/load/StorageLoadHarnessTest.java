@@ -0,0 +1,69 @@
+package com.example.cryptext.load;
+
+import com.google.gson.Gson;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class StorageLoadHarnessTest {
+
+    @Test
+    public void smallRunReportsEveryOperation() throws Exception {
+        StorageLoadHarness.Config config = new StorageLoadHarness.Config();
+        config.users = 4;
+        config.chatsPerUser = 2;
+        config.messagesPerChat = 30;
+        config.readEvery = 10;
+        config.deleteFraction = 0.5;
+        config.threads = 2;
+
+        StorageLoadHarness.Report report = new StorageLoadHarness(config).run();
+
+        assertEquals(240, report.messagesSent);
+        assertEquals(0, report.failures);
+        assertEquals(8, report.operations.get("createChat").count);
+        assertEquals(240, report.operations.get("sendMessage").count);
+        assertEquals(240, report.operations.get("encrypt").count);
+        assertEquals(24, report.operations.get("getChatMessages").count);
+        assertEquals(4, report.operations.get("deleteChat").count);
+        assertTrue(report.operations.get("decrypt").count > 0);
+        assertTrue(report.operations.get("sendMessage").p99Micros
+            >= report.operations.get("sendMessage").p50Micros);
+        assertEquals(8, report.logFiles);
+        assertTrue(report.logBytes > 0);
+        assertTrue(report.heapHighWaterBytes > 0);
+
+        // The report round-trips as JSON for comparing runs
+        StorageLoadHarness.Report parsed = new Gson().fromJson(report.toJson(), StorageLoadHarness.Report.class);
+        assertEquals(report.messagesSent, parsed.messagesSent);
+        assertEquals(report.operations.keySet(), parsed.operations.keySet());
+    }
+
+    /**
+     * Full-size run, skipped unless -Dload.run=true. Shape it with load.* properties,
+     * e.g. -Dload.users=2000 -Dload.messagesPerChat=500 -Dload.label=$(git rev-parse --short HEAD)
+     */
+    @Test
+    public void configuredRun() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("load.run"));
+        StorageLoadHarness.Report report =
+            new StorageLoadHarness(StorageLoadHarness.Config.fromProperties(System.getProperties())).run();
+
+        File out = new File(System.getProperty("load.report", "build/reports/load/storage-load.json"));
+        File dir = out.getAbsoluteFile().getParentFile();
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8)) {
+            writer.write(report.toJson());
+        }
+        System.out.println("Load report written to " + out.getAbsolutePath());
+        assertEquals(0, report.failures);
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.HybridLogicalClock;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FirestoreSyncBackendTest {
+
+    @Test
+    public void batchIdsAreStableUniqueAndSortInSendOrder() {
+        List<Message> first = Arrays.asList(message("m1", 10), message("m2", 11));
+        List<Message> sameStart = Arrays.asList(message("m1", 10), message("m3", 12));
+        List<Message> later = Arrays.asList(message("m4", 13));
+
+        // A retry of the same batch overwrites the same document
+        assertEquals(FirestoreSyncBackend.batchId(first),
+            FirestoreSyncBackend.batchId(Arrays.asList(message("m1", 10), message("m2", 11))));
+        // Another device's batch starting with the same message doesn't replace it
+        assertNotEquals(FirestoreSyncBackend.batchId(first), FirestoreSyncBackend.batchId(sameStart));
+        assertTrue(FirestoreSyncBackend.batchId(first).compareTo(FirestoreSyncBackend.batchId(sameStart)) < 0);
+        assertTrue(FirestoreSyncBackend.batchId(sameStart).compareTo(FirestoreSyncBackend.batchId(later)) < 0);
+    }
+
+    private static Message message(String messageId, long millis) {
+        Message message = new Message(messageId, "alice_uid", "cipher", millis);
+        message.setHlc(HybridLogicalClock.pack(millis));
+        return message;
+    }
+}
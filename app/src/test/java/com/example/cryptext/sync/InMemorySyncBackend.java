@@ -0,0 +1,163 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-process SyncBackend. Each write gets the next position, like a server
+ * timestamp, and rewriting a messageId keeps its original position.
+ */
+public class InMemorySyncBackend implements SyncBackend {
+
+    private final Map<String, LinkedHashMap<String, Message>> chats = new HashMap<>();
+    private final Map<String, Chat> chatRecords = new LinkedHashMap<>();
+    private final Map<String, String> publicKeys = new HashMap<>();
+    // Each member's copy of an epoch key, keyed by "<chatId>@<epoch>:<member>"
+    private final Map<String, EpochKeys> wrappedKeys = new LinkedHashMap<>();
+    private final Map<String, Long> positions = new HashMap<>();
+    private long nextPosition = 1;
+    int pushCalls;
+    int pullCalls;
+    boolean failPushes;
+    private final Map<String, List<Runnable>> watchers = new HashMap<>();
+
+    @Override
+    public synchronized void push(Map<String, List<Message>> messagesByChat) throws Exception {
+        pushCalls++;
+        if (failPushes) {
+            throw new IOException("Simulated network failure");
+        }
+        for (Map.Entry<String, List<Message>> entry : messagesByChat.entrySet()) {
+            String chatId = entry.getKey();
+            LinkedHashMap<String, Message> chat = chats.computeIfAbsent(chatId, k -> new LinkedHashMap<>());
+            for (Message message : entry.getValue()) {
+                if (!chat.containsKey(message.getMessageId())) {
+                    positions.put(chatId + "/" + message.getMessageId(), nextPosition++);
+                }
+                chat.put(message.getMessageId(), message);
+            }
+            for (Runnable watcher : watchers.getOrDefault(chatId, new ArrayList<>())) {
+                watcher.run();
+            }
+        }
+    }
+
+    @Override
+    public synchronized Page pull(String chatId, SyncCursor after, int limit) {
+        pullCalls++;
+        List<Message> page = new ArrayList<>();
+        SyncCursor cursor = after;
+        LinkedHashMap<String, Message> chat = chats.get(chatId);
+        if (chat == null) {
+            return new Page(page, cursor, false);
+        }
+
+        long afterPosition = after != null ? after.getPosition() : 0;
+        boolean hasMore = false;
+        for (Message message : chat.values()) {
+            long position = positions.get(chatId + "/" + message.getMessageId());
+            if (position <= afterPosition) {
+                continue;
+            }
+            if (page.size() == limit) {
+                hasMore = true;
+                break;
+            }
+            page.add(message);
+            cursor = new SyncCursor(position, message.getMessageId());
+        }
+        return new Page(page, cursor, hasMore);
+    }
+
+    @Override
+    public synchronized void pushChats(List<Chat> records) throws Exception {
+        pushCalls++;
+        if (failPushes) {
+            throw new IOException("Simulated network failure");
+        }
+        for (Chat chat : records) {
+            Chat copy = new Chat(chat.getChatId(), null, chat.getTimestamp());
+            copy.setParticipants(new ArrayList<>(chat.getParticipants()));
+            copy.setGroup(chat.isGroup());
+            copy.setName(chat.getName());
+            chatRecords.put(chat.getChatId(), copy);
+        }
+    }
+
+    @Override
+    public synchronized List<Chat> pullChats(String userId) {
+        List<Chat> found = new ArrayList<>();
+        for (Chat chat : chatRecords.values()) {
+            if (chat.getParticipants().contains(userId)) {
+                found.add(chat);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void publishPublicKey(String userId, String publicKey) {
+        publicKeys.put(userId, publicKey);
+    }
+
+    @Override
+    public synchronized Map<String, String> pullPublicKeys(List<String> userIds) {
+        Map<String, String> found = new HashMap<>();
+        for (String userId : userIds) {
+            if (publicKeys.containsKey(userId)) {
+                found.put(userId, publicKeys.get(userId));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void pushKeys(List<EpochKeys> keys) throws Exception {
+        pushCalls++;
+        if (failPushes) {
+            throw new IOException("Simulated network failure");
+        }
+        for (EpochKeys epochKeys : keys) {
+            for (Map.Entry<String, String> wrapped : epochKeys.getWrappedKeys().entrySet()) {
+                Map<String, String> copy = new HashMap<>();
+                copy.put(wrapped.getKey(), wrapped.getValue());
+                wrappedKeys.put(epochKeys.getChatId() + "@" + epochKeys.getEpoch() + ":" + wrapped.getKey(),
+                    new EpochKeys(epochKeys.getChatId(), epochKeys.getEpoch(), copy));
+            }
+        }
+    }
+
+    @Override
+    public synchronized List<EpochKeys> pullKeys(String userId) {
+        List<EpochKeys> found = new ArrayList<>();
+        for (EpochKeys keys : wrappedKeys.values()) {
+            if (keys.getWrappedKeys().containsKey(userId)) {
+                found.add(keys);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized Subscription watch(String chatId, Runnable onRemoteChange) {
+        watchers.computeIfAbsent(chatId, k -> new ArrayList<>()).add(onRemoteChange);
+        return () -> {
+            synchronized (InMemorySyncBackend.this) {
+                watchers.get(chatId).remove(onRemoteChange);
+            }
+        };
+    }
+
+    synchronized int size(String chatId) {
+        LinkedHashMap<String, Message> chat = chats.get(chatId);
+        return chat != null ? chat.size() : 0;
+    }
+}
@@ -0,0 +1,128 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.HybridLogicalClock;
+import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.TestStorage;
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MessageBatchCodecTest {
+
+    private static final String CHAT_ID = "chat_1_abcd";
+
+    @Test
+    public void storedMessagesRoundTrip() throws Exception {
+        List<Message> messages = storedMessages(200);
+
+        for (boolean compress : new boolean[]{false, true}) {
+            List<Message> decoded = MessageBatchCodec.decode(MessageBatchCodec.encode(messages, compress));
+            assertSameMessages(messages, decoded);
+        }
+    }
+
+    @Test
+    public void unusualValuesRoundTrip() throws Exception {
+        List<Message> messages = Arrays.asList(
+            new Message("msg_a", "alice_uid", null, 1000),
+            new Message("msg_b", null, "not base64 \u00e9\u6f22", 500),
+            new Message("msg_c", "alice_uid", "", Long.MAX_VALUE),
+            new Message("msg_d", "bob_uid", Base64.getEncoder().encodeToString(new byte[40]), -5),
+            new Message(null, "bob_uid", "QUJD\n", 0)
+        );
+        messages.get(1).setHlc(HybridLogicalClock.pack(500) + 3);
+        // An HLC behind its timestamp, from a device whose clock ran ahead
+        messages.get(2).setHlc(HybridLogicalClock.pack(1000));
+        messages.get(3).setKeyEpoch(300);
+        messages.get(3).setAttachment(new Attachment("image/jpeg", 300_000,
+            Arrays.asList(hexId('a'), hexId('b')), hexId('c'), 300));
+        messages.get(4).setAttachment(new Attachment(null, 0, Collections.emptyList(), null, null));
+
+        assertSameMessages(messages, MessageBatchCodec.decode(MessageBatchCodec.encode(messages, true)));
+    }
+
+    @Test
+    public void streamingEncoderMatchesListEncoder() throws Exception {
+        List<Message> messages = storedMessages(50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MessageBatchCodec.Encoder encoder = new MessageBatchCodec.Encoder(out, false)) {
+            for (Message message : messages) {
+                encoder.write(message);
+            }
+            assertEquals(50, encoder.getMessageCount());
+        }
+        assertArrayEquals(MessageBatchCodec.encode(messages, false), out.toByteArray());
+    }
+
+    @Test
+    public void batchIsMuchSmallerThanJson() throws Exception {
+        List<Message> messages = storedMessages(500);
+        int jsonBytes = new Gson().toJson(messages).getBytes(StandardCharsets.UTF_8).length;
+        int batchBytes = MessageBatchCodec.encode(messages, true).length;
+        assertTrue("batch " + batchBytes + " vs json " + jsonBytes, batchBytes * 2 < jsonBytes);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedBatchIsRejected() throws Exception {
+        byte[] batch = MessageBatchCodec.encode(storedMessages(10), false);
+        MessageBatchCodec.decode(Arrays.copyOf(batch, batch.length / 2));
+    }
+
+    // Messages as LocalStorageManager stores them, with ciphertext in android.util.Base64.DEFAULT form
+    private static List<Message> storedMessages(int count) throws IOException {
+        LocalStorageManager storage = TestStorage.create();
+        Base64.Encoder wrapped = Base64.getMimeEncoder(76, new byte[]{'\n'});
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            byte[] ciphertext = new byte[16 + 16 * (1 + random.nextInt(6))];
+            random.nextBytes(ciphertext);
+            String sender = i % 3 == 0 ? "bob_uid_1234" : "alice_uid_5678";
+            storage.sendMessage(CHAT_ID, sender, "m" + i, wrapped.encodeToString(ciphertext) + "\n");
+        }
+        return new ArrayList<>(storage.getChatMessages(CHAT_ID));
+    }
+
+    private static String hexId(char digit) {
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            id.append(i % 2 == 0 ? digit : '0');
+        }
+        return id.toString();
+    }
+
+    private static void assertSameMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getMessageId(), actual.get(i).getMessageId());
+            assertEquals(expected.get(i).getSenderId(), actual.get(i).getSenderId());
+            assertEquals(expected.get(i).getContent(), actual.get(i).getContent());
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+            assertEquals(expected.get(i).getHlc(), actual.get(i).getHlc());
+            assertEquals(expected.get(i).getKeyEpoch(), actual.get(i).getKeyEpoch());
+            Attachment expectedAttachment = expected.get(i).getAttachment();
+            Attachment actualAttachment = actual.get(i).getAttachment();
+            assertEquals(expectedAttachment == null, actualAttachment == null);
+            if (expectedAttachment != null) {
+                assertEquals(expectedAttachment.getMimeType(), actualAttachment.getMimeType());
+                assertEquals(expectedAttachment.getSize(), actualAttachment.getSize());
+                assertEquals(expectedAttachment.getChunks(), actualAttachment.getChunks());
+                assertEquals(expectedAttachment.getThumbnail(), actualAttachment.getThumbnail());
+                assertEquals(expectedAttachment.getKeyEpoch(), actualAttachment.getKeyEpoch());
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.FakeSharedPreferences;
+import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.TestStorage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OutboxFlusherTest {
+
+    private InMemorySyncBackend backend;
+    private LocalStorageManager storage;
+    private OutboxFlusher flusher;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new InMemorySyncBackend();
+        storage = TestStorage.create();
+        flusher = new OutboxFlusher(storage, backend, null, new Random(1));
+    }
+
+    @Test
+    public void burstAcrossChatsIsPushedInFullBatches() {
+        int count = OutboxFlusher.MAX_BATCH_SIZE + 20;
+        for (int i = 0; i < count; i++) {
+            storage.sendMessage("chat_" + (i % 3), "alice_uid", "m" + i, "cipher " + i);
+        }
+        assertEquals(count, storage.getOutbox().size());
+
+        assertTrue(flusher.flushNow());
+        assertEquals(1, backend.pushCalls);
+        assertEquals(20, storage.getOutbox().size());
+
+        assertTrue(flusher.flushNow());
+        assertEquals(2, backend.pushCalls);
+        assertTrue(storage.getOutbox().isEmpty());
+        assertEquals(count, backend.size("chat_0") + backend.size("chat_1") + backend.size("chat_2"));
+    }
+
+    @Test
+    public void failedPushKeepsMessagesQueuedAndRetryIsIdempotent() {
+        storage.sendMessage("chat_1", "alice_uid", "hi", "cipher");
+
+        backend.failPushes = true;
+        assertFalse(flusher.flushNow());
+        assertEquals(1, storage.getOutbox().size());
+
+        backend.failPushes = false;
+        assertTrue(flusher.flushNow());
+        assertTrue(storage.getOutbox().isEmpty());
+
+        // A retry of a batch that had already landed writes the same document again
+        storage.getOutbox().enqueue("chat_1", storage.getChatMessages("chat_1").get(0));
+        assertTrue(flusher.flushNow());
+        assertEquals(1, backend.size("chat_1"));
+    }
+
+    @Test
+    public void entriesStayInQueueOrderAcrossReopening() {
+        FakeSharedPreferences prefs = new FakeSharedPreferences();
+        Outbox outbox = new Outbox(prefs);
+        outbox.enqueue("chat_1", new Message("m1", "alice_uid", "c1", 1));
+        outbox.enqueue("chat_2", new Message("m2", "alice_uid", "c2", 2));
+        // Written through, so a process that dies now still pushes them after a restart
+        assertEquals(2, new Outbox(prefs).size());
+        outbox.enqueue("chat_1", new Message("m3", "alice_uid", "c3", 3));
+
+        List<Outbox.Entry> queued = outbox.peek(10);
+        assertEquals("m1", queued.get(0).getMessage().getMessageId());
+        assertEquals("m3", queued.get(2).getMessage().getMessageId());
+        outbox.remove(queued.subList(0, 1));
+        assertEquals("m2", outbox.peek(1).get(0).getMessage().getMessageId());
+        // Reopening keeps queuing after the entries already saved
+        new Outbox(prefs).enqueue("chat_2", new Message("m4", "alice_uid", "c4", 4));
+        assertEquals("m4", outbox.peek(10).get(2).getMessage().getMessageId());
+    }
+
+    @Test
+    public void backoffGrowsWithJitterUpToCap() {
+        Random random = new Random(7);
+        for (int failures = 1; failures < 40; failures++) {
+            long ceiling = Math.min(OutboxFlusher.MAX_BACKOFF_MS,
+                OutboxFlusher.BASE_BACKOFF_MS << Math.min(failures - 1, 20));
+            long delay = OutboxFlusher.backoffDelay(failures, random);
+            assertTrue(delay >= ceiling / 2);
+            assertTrue(delay <= ceiling);
+        }
+    }
+}
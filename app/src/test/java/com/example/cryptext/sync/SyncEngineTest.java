@@ -0,0 +1,292 @@
+package com.example.cryptext.sync;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.util.ChatCipher;
+import com.example.cryptext.util.FakeSharedPreferences;
+import com.example.cryptext.util.HybridLogicalClock;
+import com.example.cryptext.util.LocalStorageManager;
+import com.example.cryptext.util.TestStorage;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SyncEngineTest {
+
+    private static final String CHAT_ID = "chat_1_abcd";
+
+    private InMemorySyncBackend backend;
+    private LocalStorageManager deviceA;
+    private LocalStorageManager deviceB;
+    private SyncEngine syncA;
+    private SyncEngine syncB;
+    private OutboxFlusher flusherA;
+    private OutboxFlusher flusherB;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new InMemorySyncBackend();
+        deviceA = TestStorage.create();
+        deviceB = TestStorage.create();
+        syncA = new SyncEngine(deviceA, backend);
+        syncB = new SyncEngine(deviceB, backend);
+        flusherA = new OutboxFlusher(deviceA, backend, null, new Random(1));
+        flusherB = new OutboxFlusher(deviceB, backend, null, new Random(1));
+    }
+
+    @Test
+    public void messagesFlowBetweenDevicesWithoutDuplicates() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertTrue(deviceA.sendMessage(CHAT_ID, "alice_uid", "hi " + i, "cipher " + i));
+        }
+        assertTrue(flusherA.flushNow());
+        assertEquals(3, backend.size(CHAT_ID));
+        // A's own messages come back from the server but are not merged again
+        assertEquals(0, syncA.syncChat(CHAT_ID).pulled);
+        assertEquals(3, deviceA.getChatMessages(CHAT_ID).size());
+
+        SyncEngine.Result pullResult = syncB.syncChat(CHAT_ID);
+        assertEquals(3, pullResult.pulled);
+        assertEquals(3, deviceB.getChatMessages(CHAT_ID).size());
+
+        deviceB.sendMessage(CHAT_ID, "bob_uid", "hello", "cipher b");
+        flusherB.flushNow();
+        syncB.syncChat(CHAT_ID);
+        syncA.syncChat(CHAT_ID);
+
+        assertEquals(4, deviceA.getChatMessages(CHAT_ID).size());
+        assertEquals(4, deviceB.getChatMessages(CHAT_ID).size());
+        assertUniqueIds(deviceA.getChatMessages(CHAT_ID));
+        assertUniqueIds(deviceB.getChatMessages(CHAT_ID));
+        assertEquals(4, backend.size(CHAT_ID));
+    }
+
+    @Test
+    public void cursorMakesRepeatSyncsMoveNothing() throws Exception {
+        deviceA.sendMessage(CHAT_ID, "alice_uid", "one", "cipher");
+        flusherA.flushNow();
+        syncB.syncChat(CHAT_ID);
+
+        SyncEngine.Result again = syncB.syncChat(CHAT_ID);
+        assertEquals(0, again.pulled);
+        assertNotNull(deviceB.getSyncCursor(CHAT_ID));
+    }
+
+    @Test
+    public void largeBacklogIsPulledInPages() throws Exception {
+        int count = SyncEngine.PULL_PAGE_SIZE * 2 + 50;
+        for (int i = 0; i < count; i++) {
+            deviceA.sendMessage(CHAT_ID, "alice_uid", "m" + i, "cipher " + i);
+        }
+        while (!deviceA.getOutbox().isEmpty()) {
+            assertTrue(flusherA.flushNow());
+        }
+
+        int pullsBefore = backend.pullCalls;
+        SyncEngine.Result result = syncB.syncChat(CHAT_ID);
+        assertEquals(count, result.pulled);
+        assertEquals(3, backend.pullCalls - pullsBefore);
+
+        List<Message> messages = deviceB.getChatMessages(CHAT_ID);
+        assertEquals(count, messages.size());
+        assertEquals(deviceA.getChatMessages(CHAT_ID).get(0).getMessageId(), messages.get(0).getMessageId());
+    }
+
+    @Test
+    public void subscriberReceivesOnlyNewMessages() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            deviceA.sendMessage(CHAT_ID, "alice_uid", "old " + i, "cipher " + i);
+        }
+        flusherA.flushNow();
+        syncB.syncChat(CHAT_ID);
+
+        final List<Message> received = new ArrayList<>();
+        Subscription subscription = syncB.subscribe(CHAT_ID,
+            (chatId, messages) -> received.addAll(messages), Runnable::run);
+
+        deviceA.sendMessage(CHAT_ID, "alice_uid", "new", "cipher new");
+        flusherA.flushNow();
+        assertEquals(1, received.size());
+        assertEquals("cipher new", received.get(0).getContent());
+
+        // B's own send is delivered once, locally, and not again when its echo is pulled
+        deviceB.sendMessage(CHAT_ID, "bob_uid", "reply", "cipher reply");
+        flusherB.flushNow();
+        assertEquals(2, received.size());
+
+        subscription.unsubscribe();
+        deviceA.sendMessage(CHAT_ID, "alice_uid", "later", "cipher later");
+        flusherA.flushNow();
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void lateMessagesDoNotReplaceANewerPreview() throws Exception {
+        String chatId = deviceA.createChat("alice_uid", "bob_uid", "bob@example.com").getChatId();
+        assertTrue(deviceA.sendMessage(chatId, "alice_uid", "just now", "cipher now"));
+        Chat before = deviceA.getUserChats("alice_uid").get(0);
+
+        // Bob wrote this an hour ago while offline; it reaches the server only now
+        long sentAt = System.currentTimeMillis() - 60 * 60 * 1000;
+        Message late = new Message("msg_late", "bob_uid", "cipher late", sentAt);
+        late.setHlc(HybridLogicalClock.pack(sentAt));
+        Map<String, List<Message>> push = new HashMap<>();
+        push.put(chatId, Arrays.asList(late));
+        backend.push(push);
+        assertEquals(1, syncA.syncChat(chatId).pulled);
+
+        Chat after = deviceA.getUserChats("alice_uid").get(0);
+        assertEquals(before.getPreviewMessageId(), after.getPreviewMessageId());
+        assertEquals("cipher now", after.getPreviewContent());
+        assertEquals(before.getTimestamp(), after.getTimestamp());
+        // Still listed in chat order
+        assertEquals("msg_late", deviceA.getChatMessages(chatId).get(0).getMessageId());
+    }
+
+    @Test
+    public void chatsCreatedOnOneDeviceReachTheOtherParticipants() throws Exception {
+        Chat direct = deviceA.createChat("alice_uid", "bob_uid", "bob@example.com");
+        Chat group = deviceA.createGroupChat("alice_uid", "Trip", Arrays.asList("bob_uid", "carol_uid"));
+        deviceA.sendMessage(direct.getChatId(), "alice_uid", "hi", "cipher");
+        assertTrue(flusherA.flushNow());
+
+        assertEquals(2, syncB.syncChatList("bob_uid"));
+        assertTrue(deviceB.getUserChatIds("bob_uid").contains(direct.getChatId()));
+        assertTrue(deviceB.getUserChatIds("bob_uid").contains(group.getChatId()));
+        assertEquals(1, syncB.syncAll("bob_uid"));
+        assertEquals(1, deviceB.getChatMessages(direct.getChatId()).size());
+        // Nothing new the second time
+        assertEquals(0, syncB.syncChatList("bob_uid"));
+
+        // Membership changes are pushed too
+        deviceA.addGroupMember(group.getChatId(), "dave_uid");
+        assertTrue(flusherA.flushNow());
+        assertEquals(1, syncB.syncChatList("bob_uid"));
+        Chat synced = null;
+        for (Chat chat : deviceB.getUserChats("bob_uid")) {
+            if (chat.getChatId().equals(group.getChatId())) {
+                synced = chat;
+            }
+        }
+        assertNotNull(synced);
+        assertTrue(synced.isGroup());
+        assertEquals("Trip", synced.getName());
+        assertTrue(synced.getParticipants().contains("dave_uid"));
+    }
+
+    @Test
+    public void groupKeysReachMembersThroughTheBackend() throws Exception {
+        LocalStorageManager alice = TestStorage.create("alice_uid");
+        LocalStorageManager bob = TestStorage.create("bob_uid");
+        LocalStorageManager carol = TestStorage.create("carol_uid");
+        SyncEngine aliceSync = new SyncEngine(alice, backend);
+        SyncEngine bobSync = new SyncEngine(bob, backend);
+        SyncEngine carolSync = new SyncEngine(carol, backend);
+        OutboxFlusher aliceFlusher = new OutboxFlusher(alice, backend, null, new Random(1));
+        bobSync.syncKeys("bob_uid");
+
+        // Carol hasn't published a key yet, so only Alice and Bob get one
+        Chat group = alice.createGroupChat("alice_uid", "Trip", Arrays.asList("bob_uid", "carol_uid"));
+        String chatId = group.getChatId();
+        aliceSync.syncKeys("alice_uid");
+        ChatCipher.Sealed sealed = new ChatCipher(alice, chatId).encrypt("hello");
+        alice.sendMessage(chatId, "alice_uid", "hello", sealed.content, sealed.keyEpoch);
+        assertTrue(aliceFlusher.flushNow());
+
+        assertEquals(1, bobSync.syncChatList("bob_uid"));
+        assertEquals(1, bobSync.syncKeys("bob_uid"));
+        bobSync.syncChat(chatId);
+        Message received = bob.getChatMessages(chatId).get(0);
+        assertEquals("hello", new ChatCipher(bob, chatId).decrypt(received));
+
+        carolSync.syncChatList("carol_uid");
+        assertEquals(0, carolSync.syncKeys("carol_uid"));
+        assertNull(new ChatCipher(carol, chatId).decrypt(received));
+        // Alice wraps the current key for Carol once she learns Carol's public key
+        assertEquals(1, aliceSync.syncKeys("alice_uid"));
+        assertTrue(aliceFlusher.flushNow());
+        assertEquals(1, carolSync.syncKeys("carol_uid"));
+        assertEquals("hello", new ChatCipher(carol, chatId).decrypt(received));
+    }
+
+    @Test
+    public void oneToOneChatsMoveOffTheChatIdKeyOnceBothKeysAreKnown() throws Exception {
+        LocalStorageManager alice = TestStorage.create("alice_uid");
+        LocalStorageManager bob = TestStorage.create("bob_uid");
+        SyncEngine aliceSync = new SyncEngine(alice, backend);
+        SyncEngine bobSync = new SyncEngine(bob, backend);
+        OutboxFlusher aliceFlusher = new OutboxFlusher(alice, backend, null, new Random(1));
+        String chatId = alice.createChat("alice_uid", "bob_uid", "bob@example.com").getChatId();
+        aliceSync.syncKeys("alice_uid");
+        // Bob's public key isn't known yet, so he couldn't be given a new key
+        assertTrue(alice.getChatsToRotate().isEmpty());
+
+        assertTrue(aliceFlusher.flushNow());
+        bobSync.syncChatList("bob_uid");
+        bobSync.syncKeys("bob_uid");
+        bob.sendMessage(chatId, "bob_uid", "before", new ChatCipher(bob, chatId).encrypt("before").content);
+        // Only the participant whose ID sorts first issues the key
+        assertTrue(bob.getChatsToRotate().isEmpty());
+        aliceSync.syncKeys("alice_uid");
+        assertEquals(Arrays.asList(chatId), alice.getChatsToRotate());
+
+        assertEquals(1, alice.rotateChatKey(chatId));
+        assertTrue(alice.getChatsToRotate().isEmpty());
+        assertTrue(aliceFlusher.flushNow());
+        assertEquals(1, bobSync.syncKeys("bob_uid"));
+
+        // Bob sends under the new key and re-encrypts his copies as Alice does hers
+        assertEquals(1, bob.getGroupKeyEpoch(chatId));
+        assertEquals(Arrays.asList(chatId), bob.getChatsPendingReencryption());
+        ChatCipher.Sealed sealed = new ChatCipher(bob, chatId).encrypt("after");
+        assertEquals(1, sealed.keyEpoch);
+        Message fromBob = new Message("msg_after", "bob_uid", sealed.content, 0);
+        fromBob.setKeyEpoch(sealed.keyEpoch);
+        assertEquals("after", new ChatCipher(alice, chatId).decrypt(fromBob));
+    }
+
+    @Test
+    public void historyFromBeforeSyncIsQueuedOnce() throws Exception {
+        Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        LocalStorageManager upgraded = new LocalStorageManager(
+            name -> prefs.computeIfAbsent(name, n -> new FakeSharedPreferences()),
+            Files.createTempDirectory("cryptext-history").toFile(), new MessageChangeFeed());
+        String chatId = upgraded.createChat("alice_uid", "bob_uid", "bob@example.com").getChatId();
+        upgraded.getOutbox().clear();
+        // Messages an older version kept in one list per chat, never pushed
+        List<Message> old = Arrays.asList(new Message("old_1", "alice_uid", "c1", 1),
+            new Message("old_2", "bob_uid", "c2", 2));
+        prefs.computeIfAbsent("messages_data", n -> new FakeSharedPreferences()).edit()
+            .putString(chatId, new Gson().toJson(old)).commit();
+
+        assertEquals(3, upgraded.enqueueUnsyncedHistory("alice_uid"));
+        assertEquals(0, upgraded.enqueueUnsyncedHistory("alice_uid"));
+        OutboxFlusher flusher = new OutboxFlusher(upgraded, backend, null, new Random(1));
+        assertTrue(flusher.flushNow());
+        assertEquals(2, backend.size(chatId));
+
+        assertEquals(1, syncB.syncChatList("bob_uid"));
+        syncB.syncChat(chatId);
+        assertEquals(2, deviceB.getChatMessages(chatId).size());
+    }
+
+    private static void assertUniqueIds(List<Message> messages) {
+        Set<String> ids = new HashSet<>();
+        for (Message message : messages) {
+            assertTrue("duplicate " + message.getMessageId(), ids.add(message.getMessageId()));
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.CAROL;
+import static com.example.cryptext.util.TestStorage.sendMessages;
+import static org.junit.Assert.*;
+
+public class BackupManagerTest {
+
+    private static final String PASSPHRASE = "correct horse battery staple";
+    // Keeps key derivation out of the timings; the format stores the count
+    private static final int ITERATIONS = 1000;
+
+    private LocalStorageManager source;
+    private LocalStorageManager target;
+
+    @Before
+    public void setUp() throws Exception {
+        source = newStorage();
+        target = newStorage();
+    }
+
+    @Test
+    public void roundTripRestoresChatsMessagesKeysAndBlobs() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        seedMessages(source, chatId, 1200);
+        String groupId = source.createGroupChat(ALICE, "Group", Arrays.asList(BOB, CAROL)).getChatId();
+        ChatCipher groupCipher = new ChatCipher(source, groupId, ALICE);
+        ChatCipher.Sealed sealed = groupCipher.encrypt("hello group");
+        source.sendMessage(groupId, ALICE, "hello group", sealed.content, sealed.keyEpoch);
+        // Its blobs are under the group's epoch key, so the import can only check them once that's restored
+        byte[] file = randomBytes(BlobStore.CHUNK_SIZE + 500, 1);
+        Attachment attachment = source.getBlobStore().store(groupCipher.attachmentKeys(),
+            new ByteArrayInputStream(file), "image/jpeg", randomBytes(800, 2));
+        sealed = groupCipher.encrypt("[Photo]");
+        source.sendMessage(groupId, ALICE, "[Photo]", sealed.content, sealed.keyEpoch, attachment);
+
+        // The new device already has an identity of its own
+        String targetKey = target.getPublicKey();
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        BackupManager.Result exported = new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        BackupManager.Result imported = new BackupManager(target, ITERATIONS)
+            .importFrom(new ByteArrayInputStream(archive.toByteArray()), PASSPHRASE);
+
+        assertEquals(2, exported.chats);
+        assertEquals(1202, exported.messages);
+        assertEquals(3, exported.blobs);
+        assertEquals(archive.size(), exported.archiveBytes);
+        assertEquals(2, imported.chats);
+        assertEquals(1202, imported.messages);
+        assertEquals(0, imported.messagesSkipped);
+        assertEquals(3, imported.blobs);
+
+        assertEquals(2, target.getUserChats(ALICE).size());
+        assertEquals(1, target.getUserChats(CAROL).size());
+        assertSameMessages(source.getChatMessages(chatId), target.getChatMessages(chatId));
+        Message group = target.getChatMessages(groupId).get(0);
+        // The group key is wrapped to Alice's identity key, which the backup carries over
+        assertNotEquals(targetKey, target.getPublicKey());
+        assertEquals(source.getPublicKey(), target.getPublicKey());
+        assertEquals("hello group", new ChatCipher(target, groupId, ALICE).decrypt(group));
+
+        Attachment restored = target.getChatMessages(groupId).get(1).getAttachment();
+        assertEquals(attachment.getKeyEpoch(), restored.getKeyEpoch());
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        target.getBlobStore().copyTo(new ChatCipher(target, groupId, ALICE).attachmentKeys(restored), restored, copy);
+        assertArrayEquals(file, copy.toByteArray());
+    }
+
+    @Test
+    public void legacyMessagesAreExportedWithTheLog() throws Exception {
+        Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        source = TestStorage.create(prefs, Files.createTempDirectory("cryptext-backup").toFile(), ALICE);
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        List<Message> legacy = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            legacy.add(new Message("legacy_" + i, BOB, EncryptionUtil.encrypt("legacy " + i, chatId), i));
+        }
+        prefs.computeIfAbsent("messages_data", n -> new FakeSharedPreferences()).edit()
+            .putString(chatId, new Gson().toJson(legacy)).commit();
+        sendMessages(source, chatId, 2);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        new BackupManager(target, ITERATIONS).importFrom(new ByteArrayInputStream(archive.toByteArray()), PASSPHRASE);
+
+        assertSameMessages(source.getChatMessages(chatId), target.getChatMessages(chatId));
+    }
+
+    @Test
+    public void importingAgainSkipsStoredMessages() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        sendMessages(source, chatId, 50);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+
+        // Restoring onto the device it came from adds nothing
+        BackupManager.Result result = new BackupManager(source, ITERATIONS)
+            .importFrom(new ByteArrayInputStream(archive.toByteArray()), PASSPHRASE);
+
+        assertEquals(0, result.chats);
+        assertEquals(0, result.messages);
+        assertEquals(50, result.messagesSkipped);
+        assertEquals(50, source.getChatMessages(chatId).size());
+    }
+
+    @Test
+    public void interruptedImportResumesWhereItStopped() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        seedMessages(source, chatId, BackupManager.MESSAGES_PER_FRAME * 6);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        byte[] bytes = archive.toByteArray();
+
+        try {
+            new BackupManager(target, ITERATIONS).importFrom(
+                new FailingInputStream(new ByteArrayInputStream(bytes), bytes.length / 2), PASSPHRASE);
+            fail("Import should have been interrupted");
+        } catch (IOException expected) {
+            // The device ran out of battery, say
+        }
+        int before = target.getChatMessages(chatId).size();
+        assertTrue(before > 0 && before < BackupManager.MESSAGES_PER_FRAME * 6);
+
+        BackupManager.Result result = new BackupManager(target, ITERATIONS)
+            .importFrom(new ByteArrayInputStream(bytes), PASSPHRASE);
+
+        // Finished frames were skipped without being read again
+        assertEquals(BackupManager.MESSAGES_PER_FRAME * 6 - before, result.messages);
+        assertEquals(0, result.messagesSkipped);
+        assertSameMessages(source.getChatMessages(chatId), target.getChatMessages(chatId));
+    }
+
+    @Test
+    public void wrongPassphraseOrDamageIsDetected() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        sendMessages(source, chatId, 10);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        byte[] bytes = archive.toByteArray();
+
+        assertImportFails(bytes, "wrong passphrase");
+        byte[] flipped = bytes.clone();
+        flipped[flipped.length - 100] ^= 1;
+        assertImportFails(flipped, PASSPHRASE);
+        assertImportFails(Arrays.copyOf(bytes, bytes.length - 60), PASSPHRASE);
+    }
+
+    @Test
+    public void reencryptedMessagesAreExportedAsTheirLatestRecord() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        sendMessages(source, chatId, 20);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Reencryptor reencryptor = new Reencryptor(source, ALICE, executor);
+            reencryptor.rotate(chatId);
+            while (reencryptor.runBatch()) {
+                // Each message now has a second record under epoch 1
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        BackupManager.Result exported = new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        new BackupManager(target, ITERATIONS).importFrom(new ByteArrayInputStream(archive.toByteArray()), PASSPHRASE);
+
+        assertEquals(20, exported.messages);
+        List<Message> restored = target.getChatMessages(chatId);
+        assertSameMessages(source.getChatMessages(chatId), restored);
+        ChatCipher cipher = new ChatCipher(target, chatId, ALICE);
+        for (Message message : restored) {
+            assertEquals(1, message.getKeyEpoch());
+            assertNotNull(cipher.decrypt(message));
+        }
+    }
+
+    @Test
+    public void largeMessagesAreSplitAcrossFrames() throws Exception {
+        String chatId = source.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        // Random text hardly compresses, so a full run of these is several times a frame's limit
+        Random random = new Random(3);
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < BackupManager.MESSAGES_PER_FRAME; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < 8000; j++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            Message message = new Message(chatId + "_msg_" + i, BOB,
+                EncryptionUtil.encrypt(text.toString(), chatId), System.currentTimeMillis());
+            message.setHlc(HybridLogicalClock.getInstance().now());
+            batch.add(message);
+        }
+        source.importMessages(chatId, batch);
+
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        BackupManager.Result exported = new BackupManager(source, ITERATIONS).export(archive, PASSPHRASE);
+        BackupManager.Result imported = new BackupManager(target, ITERATIONS)
+            .importFrom(new ByteArrayInputStream(archive.toByteArray()), PASSPHRASE);
+
+        assertEquals(BackupManager.MESSAGES_PER_FRAME, exported.messages);
+        assertEquals(BackupManager.MESSAGES_PER_FRAME, imported.messages);
+        assertSameMessages(source.getChatMessages(chatId), target.getChatMessages(chatId));
+    }
+
+    @Test
+    public void manyChatsRoundTripThroughAFile() throws Exception {
+        int chats = 20;
+        int perChat = 2000;
+        List<String> chatIds = new ArrayList<>();
+        for (int i = 0; i < chats; i++) {
+            Chat chat = source.createChat(ALICE, "user_" + i + "_uid", "user" + i + "@example.com");
+            chatIds.add(chat.getChatId());
+            seedMessages(source, chat.getChatId(), perChat);
+        }
+        File file = File.createTempFile("cryptext-backup", ".ctbk");
+        file.deleteOnExit();
+
+        BackupManager.Result exported;
+        try (OutputStream out = new FileOutputStream(file)) {
+            exported = new BackupManager(source, ITERATIONS).export(out, PASSPHRASE);
+        }
+        BackupManager.Result imported;
+        try (InputStream in = new FileInputStream(file)) {
+            imported = new BackupManager(target, ITERATIONS).importFrom(in, PASSPHRASE);
+        }
+
+        assertEquals(chats, exported.chats);
+        assertEquals((long) chats * perChat, exported.messages);
+        assertEquals(file.length(), exported.archiveBytes);
+        assertEquals(exported.chats, imported.chats);
+        assertEquals(exported.messages, imported.messages);
+        assertEquals(file.length(), imported.archiveBytes);
+        for (String chatId : chatIds) {
+            assertEquals(perChat, target.getChatMessages(chatId).size());
+        }
+    }
+
+    private void assertImportFails(byte[] archive, String passphrase) throws Exception {
+        try {
+            new BackupManager(newStorage(), ITERATIONS).importFrom(new ByteArrayInputStream(archive), passphrase);
+            fail("Import should have failed");
+        } catch (IOException expected) {
+            // Detected
+        }
+    }
+
+    private static void assertSameMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getMessageId(), actual.get(i).getMessageId());
+            assertEquals(expected.get(i).getContent(), actual.get(i).getContent());
+            assertEquals(expected.get(i).getHlc(), actual.get(i).getHlc());
+        }
+    }
+
+    private static LocalStorageManager newStorage() throws IOException {
+        return TestStorage.create(ALICE);
+    }
+
+    // Many messages at once; sending them one by one would mostly time the outbox
+    private static void seedMessages(LocalStorageManager storage, String chatId, int count) throws IOException {
+        HybridLogicalClock clock = HybridLogicalClock.getInstance();
+        List<Message> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String text = "message " + i;
+            Message message = new Message(chatId + "_msg_" + i, BOB, EncryptionUtil.encrypt(text, chatId),
+                System.currentTimeMillis());
+            message.setHlc(clock.now());
+            batch.add(message);
+            if (batch.size() == 500 || i == count - 1) {
+                storage.importMessages(chatId, batch);
+                batch = new ArrayList<>();
+            }
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    // Fails once limit bytes have been read, like a connection dropping mid-download
+    private static class FailingInputStream extends FilterInputStream {
+        private long remaining;
+
+        FailingInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                throw new IOException("Connection lost");
+            }
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+}
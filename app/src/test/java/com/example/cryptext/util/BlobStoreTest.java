@@ -0,0 +1,128 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class BlobStoreTest {
+
+    private static final String CHAT = "chat_alice_bob";
+    private static final BlobStore.Keys KEYS = BlobStore.Keys.forEpoch(0, EncryptionUtil.passphraseKey(CHAT));
+    private static final BlobStore.Keys OTHER_CHAT_KEYS =
+        BlobStore.Keys.forEpoch(0, EncryptionUtil.passphraseKey("chat_carol_dave"));
+
+    private File filesDir;
+    private BlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = Files.createTempDirectory("cryptext-blobs").toFile();
+        store = new BlobStore(filesDir);
+    }
+
+    @Test
+    public void multiChunkFileRoundTrips() throws Exception {
+        byte[] file = randomBytes(BlobStore.CHUNK_SIZE * 2 + 1234, 1);
+        byte[] thumbnail = randomBytes(3000, 2);
+
+        Attachment attachment = store.store(KEYS, new ByteArrayInputStream(file), "image/png", thumbnail);
+
+        assertEquals(3, attachment.getChunks().size());
+        assertEquals(file.length, attachment.getSize());
+        assertTrue(attachment.isImage());
+        assertTrue(store.contains(attachment));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.copyTo(KEYS, attachment, out);
+        assertArrayEquals(file, out.toByteArray());
+        assertArrayEquals(thumbnail, store.get(KEYS, attachment.getThumbnail()));
+    }
+
+    @Test
+    public void resendingAFileStoresNoNewBytes() throws Exception {
+        byte[] file = randomBytes(BlobStore.CHUNK_SIZE + 10, 3);
+        Attachment first = store.store(KEYS, new ByteArrayInputStream(file), "application/pdf", null);
+        long stored = store.totalBytes();
+
+        Attachment second = store.store(KEYS, new ByteArrayInputStream(file), "application/pdf", null);
+
+        assertEquals(first.getChunks(), second.getChunks());
+        assertEquals(stored, store.totalBytes());
+    }
+
+    @Test
+    public void repeatedChunksWithinAFileAreStoredOnce() throws Exception {
+        byte[] file = new byte[BlobStore.CHUNK_SIZE * 3];
+
+        Attachment attachment = store.store(KEYS, new ByteArrayInputStream(file), null, null);
+
+        assertEquals(3, attachment.getChunks().size());
+        assertEquals(1, attachment.getChunks().stream().distinct().count());
+        assertTrue(store.totalBytes() < BlobStore.CHUNK_SIZE + 64);
+    }
+
+    @Test
+    public void blobsAreEncryptedAndNamedPerChat() throws Exception {
+        byte[] file = "a secret document".getBytes(StandardCharsets.UTF_8);
+
+        Attachment mine = store.store(KEYS, new ByteArrayInputStream(file), "text/plain", null);
+        Attachment other = store.store(OTHER_CHAT_KEYS, new ByteArrayInputStream(file), "text/plain", null);
+
+        assertNotEquals(mine.getChunks(), other.getChunks());
+        try (Stream<Path> paths = Files.walk(filesDir.toPath())) {
+            paths.filter(Files::isRegularFile).forEach(path -> {
+                try {
+                    String stored = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+                    assertFalse(stored.contains("secret"));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            });
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void blobReadWithAnotherChatsKeyFails() throws Exception {
+        byte[] file = randomBytes(100, 4);
+        Attachment attachment = store.store(KEYS, new ByteArrayInputStream(file), null, null);
+
+        store.get(OTHER_CHAT_KEYS, attachment.getChunks().get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void blobReadWithAnotherEpochsKeyFails() throws Exception {
+        byte[] file = randomBytes(100, 5);
+        BlobStore.Keys rotated = BlobStore.Keys.forEpoch(2, EncryptionUtil.newGroupKey());
+        Attachment attachment = store.store(rotated, new ByteArrayInputStream(file), null, null);
+        assertEquals(Integer.valueOf(2), attachment.getKeyEpoch());
+
+        store.get(BlobStore.Keys.forEpoch(1, EncryptionUtil.newGroupKey()), attachment.getChunks().get(0));
+    }
+
+    @Test
+    public void legacyBlobsStillReadWithChatDerivedKeys() throws Exception {
+        byte[] file = randomBytes(100, 6);
+        Attachment attachment = store.store(BlobStore.Keys.legacy(CHAT), new ByteArrayInputStream(file), null, null);
+        assertNull(attachment.getKeyEpoch());
+
+        assertArrayEquals(file, store.get(BlobStore.Keys.legacy(CHAT), attachment.getChunks().get(0)));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ChatListSnapshotTest {
+
+    private static final String ALICE = "alice_uid_5678";
+
+    private File dir;
+    private File file;
+    private ChatListSnapshot snapshot;
+    private TimeZone defaultZone;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("cryptext-snapshot").toFile();
+        file = new File(dir, ChatListSnapshot.FILE_NAME);
+        snapshot = new ChatListSnapshot(dir, ALICE);
+        defaultZone = TimeZone.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultZone);
+    }
+
+    @Test
+    public void rowsRoundTripInOrder() {
+        assertNull(snapshot.read());
+        assertTrue(snapshot.write(rows(3)));
+
+        List<ChatListSnapshot.Row> read = new ChatListSnapshot(dir, ALICE).read();
+        assertEquals(3, read.size());
+        ChatListSnapshot.Row first = read.get(0);
+        assertEquals("chat_0", first.chat.getChatId());
+        assertEquals("peer0@example.com", first.peerLabel);
+        assertEquals("hello 0 \uD83D\uDC4B", first.chat.getLastMessage());
+        assertFalse(first.chat.hasEncryptedPreview());
+        assertEquals("Mar 02, 04:05 PM", first.formattedTime);
+        assertEquals(1000, first.chat.getTimestamp());
+        assertEquals("chat_2", read.get(2).chat.getChatId());
+        assertEquals(2, read.get(2).unreadCount);
+    }
+
+    @Test
+    public void onlyTheFirstScreenfulIsKeptWithShortPreviews() {
+        List<ChatListSnapshot.Row> rows = rows(ChatListSnapshot.MAX_ROWS + 5);
+        char[] longPreview = new char[1000];
+        Arrays.fill(longPreview, 'x');
+        rows.set(0, new ChatListSnapshot.Row(new Chat("chat_0", new String(longPreview), 1), null, "now", 0));
+        snapshot.write(rows);
+
+        List<ChatListSnapshot.Row> read = snapshot.read();
+        assertEquals(ChatListSnapshot.MAX_ROWS, read.size());
+        assertEquals(ChatListSnapshot.MAX_PREVIEW_CHARS, read.get(0).chat.getLastMessage().length());
+        assertNull(read.get(0).peerLabel);
+    }
+
+    @Test
+    public void encryptedPreviewsAreSavedAsCiphertext() throws Exception {
+        List<ChatListSnapshot.Row> rows = rows(2);
+        rows.get(0).chat.setPreview("msg_1", "c2VhbGVk", 3);
+        char[] longCiphertext = new char[ChatListSnapshot.MAX_SEALED_PREVIEW_CHARS + 1];
+        Arrays.fill(longCiphertext, 'A');
+        rows.get(1).chat.setPreview("msg_2", new String(longCiphertext), 0);
+        snapshot.write(rows);
+
+        // The plain text the rows were built with is not in the file
+        assertFalse(new String(Files.readAllBytes(file.toPath()), "UTF-8").contains("hello"));
+
+        List<ChatListSnapshot.Row> read = snapshot.read();
+        Chat sealed = read.get(0).chat;
+        assertTrue(sealed.hasEncryptedPreview());
+        assertNull(sealed.getLastMessage());
+        assertEquals("msg_1", sealed.getPreviewMessageId());
+        assertEquals("c2VhbGVk", sealed.getPreviewContent());
+        assertEquals(3, sealed.getPreviewKeyEpoch());
+        // Too long to keep: shown blank until the chats load
+        assertFalse(read.get(1).chat.hasEncryptedPreview());
+        assertNull(read.get(1).chat.getLastMessage());
+    }
+
+    @Test
+    public void anUnchangedListIsNotRewritten() {
+        assertTrue(snapshot.write(rows(2)));
+        assertFalse(snapshot.write(rows(2)));
+
+        // Nor after reading it back in a new process
+        ChatListSnapshot reopened = new ChatListSnapshot(dir, ALICE);
+        reopened.read();
+        assertFalse(reopened.write(rows(2)));
+        assertTrue(reopened.write(rows(1)));
+    }
+
+    @Test
+    public void damagedSnapshotsAreDeleted() throws Exception {
+        snapshot.write(rows(3));
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        // Cut short
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 9));
+        assertNull(snapshot.read());
+        assertFalse(file.exists());
+
+        // One byte flipped
+        byte[] flipped = data.clone();
+        flipped[data.length / 2] ^= 1;
+        Files.write(file.toPath(), flipped);
+        assertNull(snapshot.read());
+        assertFalse(file.exists());
+
+        // The next write still goes through
+        assertTrue(snapshot.write(rows(3)));
+        assertEquals(3, snapshot.read().size());
+    }
+
+    @Test
+    public void snapshotsFromAnotherVersionUserOrTimeZoneAreStale() throws Exception {
+        snapshot.write(rows(2));
+        byte[] data = Files.readAllBytes(file.toPath());
+        ByteBuffer.wrap(data).putInt(4, ChatListSnapshot.VERSION + 1);
+        Files.write(file.toPath(), data);
+        assertNull(snapshot.read());
+        assertFalse(file.exists());
+
+        snapshot.write(rows(2));
+        assertNull(new ChatListSnapshot(dir, "bob_uid_1234").read());
+        assertFalse(file.exists());
+
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        snapshot.write(rows(2));
+        TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+        assertNull(snapshot.read());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void deleteRemovesTheFile() {
+        snapshot.write(rows(2));
+        snapshot.delete();
+        assertFalse(file.exists());
+        assertNull(snapshot.read());
+        assertTrue(snapshot.write(rows(2)));
+    }
+
+    private static List<ChatListSnapshot.Row> rows(int count) {
+        List<ChatListSnapshot.Row> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            rows.add(new ChatListSnapshot.Row(new Chat("chat_" + i, "hello " + i + " \uD83D\uDC4B", 1000 + i),
+                "peer" + i + "@example.com", "Mar 02, 04:05 PM", i));
+        }
+        return rows;
+    }
+}
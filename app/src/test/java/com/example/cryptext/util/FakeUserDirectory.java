@@ -0,0 +1,62 @@
+package com.example.cryptext.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory UserDirectory. Requests are held until answerAll() so tests
+ * can observe in-flight state; failNext makes pending requests fail.
+ */
+public class FakeUserDirectory implements UserDirectory {
+
+    final Map<String, String> userIdsByEmail = new HashMap<>();
+    final List<List<String>> batches = new ArrayList<>();
+    private final List<Runnable> pending = new ArrayList<>();
+    int emailQueries;
+    boolean fail;
+
+    void addUser(String email, String userId) {
+        userIdsByEmail.put(email, userId);
+    }
+
+    @Override
+    public void findUserIdByEmail(String email, LookupCallback callback) {
+        emailQueries++;
+        pending.add(() -> {
+            if (fail) {
+                callback.onFailure(new Exception("offline"));
+            } else {
+                callback.onResult(userIdsByEmail.get(email));
+            }
+        });
+    }
+
+    @Override
+    public void findEmailsByUserIds(List<String> userIds, BatchCallback callback) {
+        final List<String> batch = new ArrayList<>(userIds);
+        batches.add(batch);
+        pending.add(() -> {
+            if (fail) {
+                callback.onFailure(new Exception("offline"));
+                return;
+            }
+            Map<String, String> emails = new HashMap<>();
+            for (Map.Entry<String, String> entry : userIdsByEmail.entrySet()) {
+                if (batch.contains(entry.getValue())) {
+                    emails.put(entry.getValue(), entry.getKey());
+                }
+            }
+            callback.onResult(emails);
+        });
+    }
+
+    void answerAll() {
+        List<Runnable> due = new ArrayList<>(pending);
+        pending.clear();
+        for (Runnable answer : due) {
+            answer.run();
+        }
+    }
+}
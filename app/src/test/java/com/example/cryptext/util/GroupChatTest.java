@@ -0,0 +1,264 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.EpochKeys;
+import com.example.cryptext.model.GroupKeyState;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageChangeFeed;
+import com.example.cryptext.sync.Outbox;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class GroupChatTest {
+
+    private static final String CREATOR = "alice_uid_5678";
+    private static final String BOB = "bob_uid_1234";
+    private static final String CAROL = "carol_uid_9012";
+
+    private LocalStorageManager storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = TestStorage.create(CREATOR);
+    }
+
+    @Test
+    public void everyMemberReadsAMessageEncryptedOnce() throws Exception {
+        LocalStorageManager bob = TestStorage.create(BOB);
+        LocalStorageManager carol = TestStorage.create(CAROL);
+        Map<String, KeyPair> others = new HashMap<>();
+        Map<String, String> publicKeys = new HashMap<>();
+        publicKeys.put(BOB, bob.getPublicKey());
+        publicKeys.put(CAROL, carol.getPublicKey());
+        for (String memberId : members(100)) {
+            KeyPair pair = EncryptionUtil.newIdentityKeyPair();
+            others.put(memberId, pair);
+            publicKeys.put(memberId, EncryptionUtil.encodeKey(pair.getPublic()));
+        }
+        storage.mergeMemberPublicKeys(publicKeys);
+        List<String> memberIds = new ArrayList<>(others.keySet());
+        memberIds.add(BOB);
+        memberIds.add(CAROL);
+        Chat chat = storage.createGroupChat(CREATOR, "Big group", memberIds);
+        String chatId = chat.getChatId();
+
+        send(chatId, "hello everyone");
+        Message message = storage.getChatMessages(chatId).get(0);
+        assertEquals(1, message.getKeyEpoch());
+
+        for (LocalStorageManager member : Arrays.asList(bob, carol)) {
+            receive(member, chat);
+            assertEquals("hello everyone", new ChatCipher(member, chatId).decrypt(message));
+        }
+        // Every other member's copy opens with their private key only
+        Map<String, String> wrapped = queuedKeys(storage, chatId, 1);
+        byte[] groupKey = storage.getGroupKey(chatId, 1, CREATOR);
+        for (String memberId : others.keySet()) {
+            assertArrayEquals(groupKey, EncryptionUtil.unwrapGroupKey(wrapped.get(memberId), chatId, 1,
+                memberId, others.get(memberId).getPrivate()));
+        }
+        assertNull(EncryptionUtil.unwrapGroupKey(wrapped.get(memberIds.get(0)), chatId, 1,
+            memberIds.get(0), others.get(memberIds.get(1)).getPrivate()));
+    }
+
+    @Test
+    public void ciphertextSizeDoesNotDependOnMemberCount() {
+        String small = storage.createGroupChat(CREATOR, "Small", members(2)).getChatId();
+        String large = storage.createGroupChat(CREATOR, "Large", members(200)).getChatId();
+
+        ChatCipher.Sealed fromSmall = new ChatCipher(storage, small, CREATOR).encrypt("same text");
+        ChatCipher.Sealed fromLarge = new ChatCipher(storage, large, CREATOR).encrypt("same text");
+
+        assertEquals(fromSmall.content.length(), fromLarge.content.length());
+    }
+
+    @Test
+    public void keyRotatesOnFirstSendAfterMembershipChange() throws Exception {
+        List<String> members = members(3);
+        storage.mergeMemberPublicKeys(publicKeysOf(members, "dave_uid_0003"));
+        String chatId = storage.createGroupChat(CREATOR, "Group", members).getChatId();
+
+        assertTrue(storage.addGroupMember(chatId, "dave_uid_0003"));
+        assertTrue(storage.removeGroupMember(chatId, members.get(0)));
+        // Both changes are folded into one new key, issued when next needed
+        assertNull(storage.getGroupKey(chatId, 2, CREATOR));
+
+        assertEquals(2, storage.getGroupKeyEpoch(chatId));
+        assertEquals(2, storage.getGroupKeyEpoch(chatId));
+        assertNotNull(storage.getGroupKey(chatId, 2, CREATOR));
+        Map<String, String> wrapped = queuedKeys(storage, chatId, 2);
+        assertTrue(wrapped.containsKey("dave_uid_0003"));
+        assertFalse(wrapped.containsKey(members.get(0)));
+    }
+
+    @Test
+    public void removedMemberCannotReadLaterMessages() throws Exception {
+        LocalStorageManager removed = TestStorage.create(BOB);
+        LocalStorageManager remaining = TestStorage.create(CAROL);
+        Map<String, String> publicKeys = new HashMap<>();
+        publicKeys.put(BOB, removed.getPublicKey());
+        publicKeys.put(CAROL, remaining.getPublicKey());
+        storage.mergeMemberPublicKeys(publicKeys);
+        Chat chat = storage.createGroupChat(CREATOR, "Group", Arrays.asList(BOB, CAROL));
+        String chatId = chat.getChatId();
+        send(chatId, "before");
+        receive(removed, chat);
+
+        storage.removeGroupMember(chatId, BOB);
+        send(chatId, "after");
+        // Even handed every copy of the new key, including the ones for others
+        for (Outbox.Entry entry : storage.getOutbox().peek(Integer.MAX_VALUE)) {
+            if (entry.getKeys() != null) {
+                removed.mergeRemoteKeys(entry.getKeys());
+            }
+        }
+        receive(remaining, chat);
+
+        List<Message> messages = storage.getChatMessages(chatId);
+        assertEquals(2, messages.get(1).getKeyEpoch());
+        ChatCipher removedCipher = new ChatCipher(removed, chatId);
+        assertEquals("before", removedCipher.decrypt(messages.get(0)));
+        assertNull(removedCipher.decrypt(messages.get(1)));
+        LocalStorageManager.IdentityBackup removedIdentity = removed.exportIdentity();
+        for (Map.Entry<String, String> copy : queuedKeys(storage, chatId, 2).entrySet()) {
+            assertNull(EncryptionUtil.unwrapGroupKey(copy.getValue(), chatId, 2, BOB,
+                EncryptionUtil.decodePrivateKey(removedIdentity.privateKey)));
+        }
+        assertEquals("after", new ChatCipher(remaining, chatId).decrypt(messages.get(1)));
+        assertFalse(storage.getUserChats(BOB).stream().anyMatch(c -> c.getChatId().equals(chatId)));
+    }
+
+    @Test
+    public void membersWhoseKeyArrivesLaterAreGivenTheCurrentKey() throws Exception {
+        LocalStorageManager bob = TestStorage.create(BOB);
+        Chat chat = storage.createGroupChat(CREATOR, "Group", Arrays.asList(BOB, CAROL));
+        String chatId = chat.getChatId();
+        send(chatId, "sent before bob's key was known");
+        assertFalse(queuedKeys(storage, chatId, 1).containsKey(BOB));
+
+        Map<String, String> publicKeys = new HashMap<>();
+        publicKeys.put(BOB, bob.getPublicKey());
+        assertEquals(1, storage.mergeMemberPublicKeys(publicKeys));
+        assertEquals(1, storage.distributeGroupKeys());
+        assertEquals(0, storage.distributeGroupKeys());
+
+        receive(bob, chat);
+        assertEquals("sent before bob's key was known",
+            new ChatCipher(bob, chatId).decrypt(storage.getChatMessages(chatId).get(0)));
+    }
+
+    @Test
+    public void keysWrappedToMemberIdsAreReplacedBeforeTheNextSend() throws Exception {
+        Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        storage = new LocalStorageManager(name -> prefs.computeIfAbsent(name, n -> new FakeSharedPreferences()),
+            Files.createTempDirectory("cryptext-group").toFile(), new MessageChangeFeed(), CREATOR);
+        String chatId = storage.createGroupChat(CREATOR, "Group", Arrays.asList(BOB)).getChatId();
+
+        // As an older version saved it: epoch 1 wrapped to a key derived from the IDs
+        byte[] oldKey = EncryptionUtil.newGroupKey();
+        byte[] derived = Arrays.copyOf(MessageDigest.getInstance("SHA-256")
+            .digest(("member:" + chatId + ":" + CREATOR).getBytes(StandardCharsets.UTF_8)), 16);
+        Map<String, String> oldWrapped = new HashMap<>();
+        oldWrapped.put(CREATOR, Base64.getEncoder().encodeToString(KeyWrap.wrap(derived, oldKey)));
+        GroupKeyState oldState = new GroupKeyState();
+        oldState.setEpoch(1);
+        Gson gson = new Gson();
+        prefs.get("group_keys").edit()
+            .putString(chatId, gson.toJson(oldState))
+            .putString(chatId + "@1", gson.toJson(oldWrapped))
+            .commit();
+
+        // Old messages stay readable, but nothing new is sent under that key
+        assertArrayEquals(oldKey, storage.getGroupKey(chatId, 1, CREATOR));
+        assertEquals(2, storage.getGroupKeyEpoch(chatId));
+        assertNotNull(storage.getGroupKey(chatId, 2, CREATOR));
+    }
+
+    @Test
+    public void oneToOneChatsKeepThePassphraseKey() {
+        Chat chat = storage.createChat(CREATOR, BOB, "bob@example.com");
+
+        assertFalse(storage.addGroupMember(chat.getChatId(), "carol_uid_0001"));
+        assertEquals(0, storage.getGroupKeyEpoch(chat.getChatId()));
+        ChatCipher.Sealed sealed = new ChatCipher(storage, chat.getChatId(), CREATOR).encrypt("hi");
+        assertEquals(0, sealed.keyEpoch);
+        assertEquals("hi", EncryptionUtil.decrypt(sealed.content, chat.getChatId()));
+    }
+
+    @Test
+    public void deletingAGroupRemovesItsKeys() {
+        List<String> members = members(2);
+        String chatId = storage.createGroupChat(CREATOR, "Group", members).getChatId();
+        storage.removeGroupMember(chatId, members.get(0));
+        send(chatId, "hello");
+
+        storage.deleteChat(chatId, CREATOR);
+
+        assertEquals(0, storage.getGroupKeyEpoch(chatId));
+        assertNull(storage.getGroupKey(chatId, 1, CREATOR));
+        assertNull(storage.getGroupKey(chatId, 2, CREATOR));
+    }
+
+    private void send(String chatId, String text) {
+        ChatCipher.Sealed sealed = new ChatCipher(storage, chatId, CREATOR).encrypt(text);
+        assertTrue(storage.sendMessage(chatId, CREATOR, text, sealed.content, sealed.keyEpoch));
+    }
+
+    // Hand a member's device the chat record and every key the creator queued for it
+    private void receive(LocalStorageManager member, Chat chat) {
+        member.mergeRemoteChat(member.getOwnerId(), chat);
+        for (Outbox.Entry entry : storage.getOutbox().peek(Integer.MAX_VALUE)) {
+            EpochKeys keys = entry.getKeys();
+            if (keys != null && keys.getWrappedKeys().containsKey(member.getOwnerId())) {
+                Map<String, String> own = new HashMap<>();
+                own.put(member.getOwnerId(), keys.getWrappedKeys().get(member.getOwnerId()));
+                member.mergeRemoteKeys(new EpochKeys(keys.getChatId(), keys.getEpoch(), own));
+            }
+        }
+    }
+
+    // Every copy of an epoch's key the device has queued for pushing
+    private static Map<String, String> queuedKeys(LocalStorageManager device, String chatId, int epoch) {
+        Map<String, String> wrapped = new HashMap<>();
+        for (Outbox.Entry entry : device.getOutbox().peek(Integer.MAX_VALUE)) {
+            EpochKeys keys = entry.getKeys();
+            if (keys != null && keys.getChatId().equals(chatId) && keys.getEpoch() == epoch) {
+                wrapped.putAll(keys.getWrappedKeys());
+            }
+        }
+        return wrapped;
+    }
+
+    private static Map<String, String> publicKeysOf(List<String> members, String... more) {
+        Map<String, String> publicKeys = new HashMap<>();
+        List<String> all = new ArrayList<>(members);
+        all.addAll(Arrays.asList(more));
+        for (String memberId : all) {
+            publicKeys.put(memberId, EncryptionUtil.encodeKey(EncryptionUtil.newIdentityKeyPair().getPublic()));
+        }
+        return publicKeys;
+    }
+
+    private static List<String> members(int count) {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            members.add(String.format("member_uid_%04d", i));
+        }
+        return members;
+    }
+}
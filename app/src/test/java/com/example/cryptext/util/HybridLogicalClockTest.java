@@ -0,0 +1,96 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageChangeFeed;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class HybridLogicalClockTest {
+
+    private long wallTime = 1_000_000;
+
+    @Test
+    public void valuesIncreaseEvenWhenTheWallClockStepsBack() {
+        HybridLogicalClock clock = new HybridLogicalClock(() -> wallTime);
+        long first = clock.now();
+        long second = clock.now();
+        wallTime -= 5000;
+        long third = clock.now();
+
+        assertTrue(second > first);
+        assertTrue(third > second);
+        assertEquals(1_000_000, HybridLogicalClock.physicalMillis(third));
+    }
+
+    @Test
+    public void replyFromASlowDeviceSortsAfterTheMessageItAnswers() {
+        long fastWall = 2_000_000;
+        long slowWall = fastWall - 30_000;
+        HybridLogicalClock fast = new HybridLogicalClock(() -> fastWall);
+        HybridLogicalClock slow = new HybridLogicalClock(() -> slowWall);
+
+        Message question = message("msg_q", fastWall, fast.now());
+        slow.receive(question.getHlc());
+        Message answer = message("msg_a", slowWall, slow.now());
+
+        // Wall-clock timestamps alone would put the answer first
+        assertTrue(answer.getTimestamp() < question.getTimestamp());
+        List<Message> chat = new ArrayList<>(Arrays.asList(answer, question));
+        chat.sort(HybridLogicalClock.ORDER);
+        assertEquals("msg_q", chat.get(0).getMessageId());
+    }
+
+    @Test
+    public void valuesFarInTheFutureDoNotDragTheClock() {
+        HybridLogicalClock clock = new HybridLogicalClock(() -> wallTime);
+        clock.receive(HybridLogicalClock.pack(wallTime + HybridLogicalClock.MAX_DRIFT_MS * 10));
+        assertEquals(wallTime, HybridLogicalClock.physicalMillis(clock.now()));
+    }
+
+    @Test
+    public void restoredValuesAreTrustedEvenFarAhead() {
+        HybridLogicalClock clock = new HybridLogicalClock(() -> wallTime);
+        long saved = HybridLogicalClock.pack(wallTime + HybridLogicalClock.MAX_DRIFT_MS * 10);
+        clock.restore(saved);
+        assertEquals(saved, clock.current());
+        assertTrue(clock.now() > saved);
+    }
+
+    @Test
+    public void sendsAfterARestartSortAfterTheSavedClock() throws Exception {
+        Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        // Saved by a run whose wall clock was ahead of this one's
+        long saved = HybridLogicalClock.pack(System.currentTimeMillis() + HybridLogicalClock.MAX_DRIFT_MS * 2);
+        prefs.computeIfAbsent("sync_state", n -> new FakeSharedPreferences()).edit().putLong("hlc", saved).commit();
+        LocalStorageManager storage = new LocalStorageManager(name -> prefs.computeIfAbsent(name, n -> new FakeSharedPreferences()),
+            Files.createTempDirectory("cryptext-hlc").toFile(), new MessageChangeFeed(), "alice_uid_5678");
+
+        String chatId = storage.createChat("alice_uid_5678", "bob_uid_1234", "bob@example.com").getChatId();
+        assertTrue(storage.sendMessage(chatId, "alice_uid_5678", "hi", "cipher"));
+        Message sent = storage.getChatMessages(chatId).get(0);
+        assertTrue(sent.getHlc() > saved);
+        assertEquals(sent.getHlc(), prefs.get("sync_state").getLong("hlc", 0));
+    }
+
+    @Test
+    public void messagesWithoutHlcOrderByTimestamp() {
+        Message legacy = message("msg_old", 500, 0);
+        Message current = message("msg_new", 400, HybridLogicalClock.pack(600));
+        assertTrue(HybridLogicalClock.ORDER.compare(legacy, current) < 0);
+    }
+
+    private static Message message(String id, long timestamp, long hlc) {
+        Message message = new Message(id, "uid", "cipher", timestamp);
+        message.setHlc(hlc);
+        return message;
+    }
+}
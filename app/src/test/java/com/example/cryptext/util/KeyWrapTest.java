@@ -0,0 +1,43 @@
+package com.example.cryptext.util;
+
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.*;
+
+public class KeyWrapTest {
+
+    // RFC 3394 section 4.1: 128-bit key data with a 128-bit KEK
+    private static final byte[] KEK = hex("000102030405060708090A0B0C0D0E0F");
+    private static final byte[] KEY = hex("00112233445566778899AABBCCDDEEFF");
+    private static final byte[] WRAPPED = hex("1FA68B0A8112B447AEF34BD8FB5A7B829D3E862371D2CFE5");
+
+    @Test
+    public void matchesRfcTestVector() throws Exception {
+        assertArrayEquals(WRAPPED, KeyWrap.wrap(KEK, KEY));
+        assertArrayEquals(KEY, KeyWrap.unwrap(KEK, WRAPPED));
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void alteredWrappedKeyIsRejected() throws Exception {
+        byte[] altered = WRAPPED.clone();
+        altered[12] ^= 1;
+        KeyWrap.unwrap(KEK, altered);
+    }
+
+    @Test(expected = GeneralSecurityException.class)
+    public void wrongKekIsRejected() throws Exception {
+        byte[] otherKek = KEK.clone();
+        otherKek[0] ^= 1;
+        KeyWrap.unwrap(otherKek, WRAPPED);
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageChangeFeed;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.CAROL;
+import static org.junit.Assert.*;
+
+public class LegacyMigratorTest {
+
+    private static final String WITH_BOB = "chat_1_alic_aaaa";
+    private static final String WITH_CAROL = "chat_2_alic_bbbb";
+
+    private final Gson gson = new Gson();
+    private final Map<String, FakeSharedPreferences> legacyPrefs = new HashMap<>();
+    private final Map<String, FakeSharedPreferences> shardPrefs = new HashMap<>();
+    private File legacyDir;
+    private File shardDir;
+    private ScheduledExecutorService executor;
+    private LocalStorageManager storage;
+
+    @Before
+    public void setUp() throws Exception {
+        legacyDir = Files.createTempDirectory("cryptext-legacy").toFile();
+        shardDir = Files.createTempDirectory("cryptext-shard").toFile();
+        executor = Executors.newSingleThreadScheduledExecutor();
+
+        // The old global store: one chat with its messages listed in preferences, one with a log
+        putLegacy("chats_data", WITH_BOB, gson.toJson(chat(WITH_BOB, BOB)));
+        putLegacy("chats_data", WITH_CAROL, gson.toJson(chat(WITH_CAROL, CAROL)));
+        putLegacy("messages_data", WITH_BOB, gson.toJson(messages(WITH_BOB, 30)));
+        new MessageLog(legacyDir).append(WITH_CAROL, messages(WITH_CAROL, 1200));
+        putLegacy("user_chats_data", ALICE, gson.toJson(Arrays.asList(WITH_BOB, WITH_CAROL)));
+        putLegacy("user_chats_data", BOB, gson.toJson(Collections.singletonList(WITH_BOB)));
+
+        storage = openShard();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readsComeFromTheOldStoreUntilEachChatIsMoved() {
+        assertEquals(2, storage.getUserChats(ALICE).size());
+        assertEquals(30, storage.getChatMessages(WITH_BOB).size());
+        assertEquals(1200, storage.getChatMessages(WITH_CAROL).size());
+
+        // Sends before the move land in the shard and are read alongside the old messages
+        storage.sendMessage(WITH_BOB, ALICE, "new", EncryptionUtil.encrypt("new", WITH_BOB));
+        List<Message> beforeMove = storage.getChatMessages(WITH_BOB);
+        assertEquals(31, beforeMove.size());
+        assertEquals("new", preview(storage.getUserChats(ALICE).get(0)));
+
+        migrateAll();
+
+        assertTrue(storage.getMigrationProgress().isComplete());
+        assertEquals(2, storage.getMigrationProgress().moved);
+        assertEquals(ids(beforeMove), ids(storage.getChatMessages(WITH_BOB)));
+        assertEquals(1200, storage.getChatMessages(WITH_CAROL).size());
+        assertEquals(2, storage.getUserChats(ALICE).size());
+        assertEquals("new", preview(chatNamed(storage.getUserChats(ALICE), WITH_BOB)));
+    }
+
+    @Test
+    public void oldDataIsDeletedOnceNoOneElseListsIt() {
+        migrateAll();
+
+        LegacyStore legacy = legacyStore();
+        assertTrue(legacy.getUserChatIds(ALICE).isEmpty());
+        assertNull(legacy.getChatJson(WITH_CAROL));
+        assertTrue(legacy.readMessages(WITH_CAROL).isEmpty());
+        // Bob hasn't signed in since the upgrade, so his chat with Alice stays for his own migration
+        assertEquals(Collections.singletonList(WITH_BOB), legacy.getUserChatIds(BOB));
+        assertNotNull(legacy.getChatJson(WITH_BOB));
+        assertEquals(30, legacy.getListedMessages(WITH_BOB).size());
+    }
+
+    @Test
+    public void progressSurvivesARestart() throws Exception {
+        LegacyMigrator migrator = new LegacyMigrator(storage, executor);
+        assertTrue(migrator.step());
+
+        // Half of the other chat was copied when the app was killed
+        storage.importMessages(WITH_CAROL, legacyStore().readMessages(WITH_CAROL).subList(0, 600));
+
+        LocalStorageManager reopened = openShard();
+        assertEquals(1, reopened.getMigrationProgress().moved);
+        assertEquals(2, reopened.getMigrationProgress().total);
+        assertEquals(Collections.singletonList(WITH_CAROL), reopened.getChatsPendingMigration());
+        assertEquals(1200, reopened.getChatMessages(WITH_CAROL).size());
+
+        // Moving it again copies nothing twice
+        assertEquals(1200, reopened.migrateChat(WITH_CAROL));
+        assertEquals(1200, reopened.getChatMessages(WITH_CAROL).size());
+        assertTrue(reopened.getMigrationProgress().isComplete());
+    }
+
+    @Test
+    public void aCopyThatDoesNotVerifyKeepsTheOldData() throws Exception {
+        // The shard already holds a different message under an old ID
+        Message conflicting = messages(WITH_CAROL, 1).get(0);
+        conflicting.setContent("something else");
+        storage.importMessages(WITH_CAROL, Collections.singletonList(conflicting));
+
+        try {
+            storage.migrateChat(WITH_CAROL);
+            fail("Migration should not have verified");
+        } catch (IOException expected) {
+            // Kept for a retry
+        }
+        assertTrue(storage.getChatsPendingMigration().contains(WITH_CAROL));
+        assertEquals(1200, legacyStore().readMessages(WITH_CAROL).size());
+
+        // The migrator moves on to the other chat and stops rather than retrying at once
+        LegacyMigrator migrator = new LegacyMigrator(storage, executor);
+        while (migrator.step()) {
+            // Drain
+        }
+        assertEquals(Collections.singletonList(WITH_CAROL), storage.getChatsPendingMigration());
+    }
+
+    @Test
+    public void deletingAChatNotMovedYetRemovesItFromTheOldStore() {
+        storage.deleteChat(WITH_CAROL, ALICE);
+
+        assertEquals(1, storage.getUserChats(ALICE).size());
+        assertNull(legacyStore().getChatJson(WITH_CAROL));
+        assertEquals(Collections.singletonList(WITH_BOB), storage.getChatsPendingMigration());
+    }
+
+    private void migrateAll() {
+        LegacyMigrator migrator = new LegacyMigrator(storage, executor);
+        int steps = 0;
+        while (migrator.step()) {
+            assertTrue("migration did not finish", ++steps < 10);
+        }
+    }
+
+    private LocalStorageManager openShard() {
+        return new LocalStorageManager(TestStorage.provider(shardPrefs), shardDir, new MessageChangeFeed(), ALICE,
+            legacyStore());
+    }
+
+    private LegacyStore legacyStore() {
+        return new LegacyStore(TestStorage.provider(legacyPrefs), legacyDir);
+    }
+
+    private void putLegacy(String file, String key, String value) {
+        legacyPrefs.computeIfAbsent(file, n -> new FakeSharedPreferences()).edit().putString(key, value).commit();
+    }
+
+    private static Chat chat(String chatId, String peerId) {
+        Chat chat = new Chat(chatId, "Start chatting", 1);
+        chat.setParticipants(new ArrayList<>(Arrays.asList(ALICE, peerId)));
+        return chat;
+    }
+
+    private static List<Message> messages(String chatId, int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(chatId + "_old_" + i, i % 2 == 0 ? ALICE : BOB,
+                EncryptionUtil.encrypt("old " + i, chatId), 1000 + i);
+            message.setHlc(HybridLogicalClock.pack(1000 + i));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    private static Chat chatNamed(List<Chat> chats, String chatId) {
+        for (Chat chat : chats) {
+            if (chat.getChatId().equals(chatId)) {
+                return chat;
+            }
+        }
+        throw new AssertionError("No chat " + chatId);
+    }
+
+    private String preview(Chat chat) {
+        Message preview = new Message(chat.getPreviewMessageId(), null, chat.getPreviewContent(),
+            chat.getTimestamp());
+        preview.setKeyEpoch(chat.getPreviewKeyEpoch());
+        return new ChatCipher(storage, chat.getChatId()).decrypt(preview);
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getMessageId());
+        }
+        return ids;
+    }
+}
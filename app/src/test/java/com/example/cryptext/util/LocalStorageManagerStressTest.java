@@ -0,0 +1,171 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.sync.MessageChangeFeed;
+import com.example.cryptext.sync.Outbox;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LocalStorageManagerStressTest {
+
+    private static final String USER_ID = "alice_uid_5678";
+    private static final int THREADS = 8;
+    private static final int SENDS_PER_THREAD = 150;
+
+    @Test
+    public void concurrentSendsAreNotLost() throws Exception {
+        LocalStorageManager storage = TestStorage.create();
+        String shared = storage.createChat(USER_ID, "bob_uid_1234", "bob@example.com").getChatId();
+        List<String> own = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            own.add(storage.createChat(USER_ID, "user_" + t + "_uid", "user" + t + "@example.com").getChatId());
+        }
+
+        // Each thread alternates between the shared chat and a chat of its own
+        runConcurrently(t -> {
+            for (int i = 0; i < SENDS_PER_THREAD; i++) {
+                String chatId = i % 2 == 0 ? shared : own.get(t);
+                assertTrue(storage.sendMessage(chatId, USER_ID, "m" + t + "_" + i, "c" + t + "_" + i));
+            }
+        });
+
+        int sharedExpected = THREADS * ((SENDS_PER_THREAD + 1) / 2);
+        assertUniqueMessages(storage.getChatMessages(shared), sharedExpected);
+        for (String chatId : own) {
+            assertUniqueMessages(storage.getChatMessages(chatId), SENDS_PER_THREAD / 2);
+        }
+        // Every message is queued, after one record per created chat
+        assertEquals(THREADS * SENDS_PER_THREAD + THREADS + 1, storage.getOutbox().size());
+    }
+
+    @Test
+    public void concurrentCreatesAllReachTheChatList() throws Exception {
+        LocalStorageManager storage = TestStorage.create();
+        Set<String> created = Collections.synchronizedSet(new HashSet<>());
+
+        runConcurrently(t -> {
+            for (int i = 0; i < 25; i++) {
+                Chat chat = storage.createChat(USER_ID, "user_" + t + "_" + i, "u" + t + "_" + i + "@example.com");
+                created.add(chat.getChatId());
+            }
+        });
+
+        assertEquals(THREADS * 25, created.size());
+        assertEquals(created, new HashSet<>(storage.getUserChatIds(USER_ID)));
+    }
+
+    @Test
+    public void aStalledSendDoesNotHoldUpOtherChats() throws Exception {
+        final String stalledChat = "chat_stalled";
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // The outbox write for one chat hangs, as a slow disk might
+        final FakeSharedPreferences outboxPrefs = new FakeSharedPreferences() {
+            @Override
+            protected void beforeWrite(Set<String> keys) {
+                for (String key : keys) {
+                    if (key.endsWith("/" + stalledChat)) {
+                        stalled.countDown();
+                        awaitQuietly(release);
+                    }
+                }
+            }
+        };
+        final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+        prefs.put(Outbox.PREF_OUTBOX, outboxPrefs);
+        LocalStorageManager storage = new LocalStorageManager(name -> {
+            synchronized (prefs) {
+                return prefs.computeIfAbsent(name, n -> new FakeSharedPreferences());
+            }
+        }, Files.createTempDirectory("cryptext-stall").toFile(), new MessageChangeFeed(), USER_ID);
+
+        // A chat whose lock stripe differs from the stalled one's
+        LockStripes stripes = new LockStripes(32);
+        int stalledStripe = stripes.indexFor("chat:" + stalledChat);
+        String otherChat = null;
+        for (int i = 0; otherChat == null; i++) {
+            if (stripes.indexFor("chat:chat_other_" + i) != stalledStripe) {
+                otherChat = "chat_other_" + i;
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> stalledSend = executor.submit(
+                () -> storage.sendMessage(stalledChat, USER_ID, "slow", "c slow"));
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+
+            final String chatId = otherChat;
+            Future<Boolean> otherSend = executor.submit(
+                () -> storage.sendMessage(chatId, USER_ID, "fast", "c fast"));
+            assertTrue(otherSend.get(10, TimeUnit.SECONDS));
+            assertFalse(stalledSend.isDone());
+
+            release.countDown();
+            assertTrue(stalledSend.get(10, TimeUnit.SECONDS));
+            assertEquals(2, storage.getOutbox().size());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    // Start every worker at once so their writes overlap
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            Callable<Void> task = () -> {
+                start.await();
+                worker.run(thread);
+                return null;
+            };
+            futures.add(executor.submit(task));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+    }
+
+    private static void assertUniqueMessages(List<Message> messages, int expected) {
+        assertEquals(expected, messages.size());
+        Set<String> ids = new HashSet<>();
+        for (Message message : messages) {
+            assertTrue("duplicate " + message.getMessageId(), ids.add(message.getMessageId()));
+        }
+    }
+}
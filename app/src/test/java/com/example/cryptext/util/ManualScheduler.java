@@ -0,0 +1,30 @@
+package com.example.cryptext.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scheduler whose tasks run only when the test calls runAll()
+ */
+public class ManualScheduler implements Scheduler {
+
+    final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        tasks.add(task);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        tasks.remove(task);
+    }
+
+    void runAll() {
+        List<Runnable> due = new ArrayList<>(tasks);
+        tasks.clear();
+        for (Runnable task : due) {
+            task.run();
+        }
+    }
+}
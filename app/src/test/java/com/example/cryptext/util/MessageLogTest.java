@@ -0,0 +1,181 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageLogTest {
+
+    private static final String CHAT_ID = "chat_1_abcd";
+
+    private File filesDir;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = Files.createTempDirectory("cryptext-log").toFile();
+        log = new MessageLog(filesDir);
+    }
+
+    @Test
+    public void appendNewSkipsStoredAndRepeatedIds() throws Exception {
+        log.append(CHAT_ID, messages(0, 100));
+
+        List<Message> incoming = new ArrayList<>(messages(90, 110));
+        incoming.add(message(105));
+        List<Message> added = log.appendNew(CHAT_ID, incoming);
+
+        assertEquals(10, added.size());
+        assertEquals("msg_100", added.get(0).getMessageId());
+        assertEquals(110, log.read(CHAT_ID).size());
+    }
+
+    @Test
+    public void falsePositivesStayNearTheTargetRate() throws Exception {
+        log.append(CHAT_ID, messages(0, 1000));
+        MessageLog.DedupStats before = MessageLog.getDedupStats();
+
+        log.appendNew(CHAT_ID, messages(1000, 1500));
+        MessageLog.DedupStats after = MessageLog.getDedupStats();
+
+        long falsePositives = after.falsePositives - before.falsePositives;
+        assertEquals(500, after.queries - before.queries);
+        assertEquals(falsePositives, after.possibleDuplicates - before.possibleDuplicates);
+        assertTrue("false positives: " + falsePositives, falsePositives < 25);
+        assertTrue(log.expectedFalsePositiveRate(CHAT_ID) < 0.05);
+        assertEquals(1500, log.read(CHAT_ID).size());
+    }
+
+    @Test
+    public void filterIsRebuiltWhenTheLogIsRewritten() throws Exception {
+        log.append(CHAT_ID, messages(0, 10));
+
+        // Rewrite the log behind the filter's back, as compaction does
+        File logFile = new File(new File(filesDir, "messages"), CHAT_ID + ".log");
+        try (Writer writer = new FileWriter(logFile)) {
+            writer.write("{\"messageId\":\"msg_kept\",\"senderId\":\"alice_uid\",\"timestamp\":1}\n");
+        }
+
+        long rebuildsBefore = MessageLog.getDedupStats().rebuilds;
+        List<Message> added = log.appendNew(CHAT_ID,
+            Arrays.asList(message(0), new Message("msg_kept", "alice_uid", null, 1)));
+
+        assertEquals(1, added.size());
+        assertEquals("msg_0", added.get(0).getMessageId());
+        assertEquals(rebuildsBefore + 1, MessageLog.getDedupStats().rebuilds);
+    }
+
+    @Test
+    public void filterIsHeldInMemoryAndSavedOnFlush() throws Exception {
+        log.append(CHAT_ID, messages(0, 10));
+        File filterFile = new File(new File(filesDir, "messages"), CHAT_ID + ".bloom");
+        long savedBefore = filterFile.length();
+        log.append(CHAT_ID, messages(10, 20));
+        // Appends only change the filter in memory
+        assertEquals(savedBefore, filterFile.length());
+        long rebuildsBefore = MessageLog.getDedupStats().rebuilds;
+        assertTrue(log.appendNew(CHAT_ID, messages(0, 20)).isEmpty());
+        assertEquals(rebuildsBefore, MessageLog.getDedupStats().rebuilds);
+
+        // Without a flush, a reopened log finds the saved filter stale and rebuilds it
+        assertTrue(new MessageLog(filesDir).appendNew(CHAT_ID, messages(5, 15)).isEmpty());
+        assertEquals(rebuildsBefore + 1, MessageLog.getDedupStats().rebuilds);
+
+        log.append(CHAT_ID, messages(20, 30));
+        log.close();
+        MessageLog reopened = new MessageLog(filesDir);
+        assertEquals(1, reopened.appendNew(CHAT_ID, messages(29, 31)).size());
+        assertEquals(rebuildsBefore + 1, MessageLog.getDedupStats().rebuilds);
+        assertEquals(31, reopened.read(CHAT_ID).size());
+    }
+
+    @Test
+    public void filterGrowsWithTheChat() throws Exception {
+        for (int start = 0; start < 5000; start += 500) {
+            log.append(CHAT_ID, messages(start, start + 500));
+        }
+        assertTrue(log.expectedFalsePositiveRate(CHAT_ID) < 0.05);
+        assertTrue(log.appendNew(CHAT_ID, messages(4000, 5000)).isEmpty());
+    }
+
+    @Test
+    public void laterRecordReplacesEarlierOneInPlace() throws Exception {
+        log.append(CHAT_ID, messages(0, 3));
+        Message updated = new Message("msg_1", "alice_uid", "new cipher", 1);
+        log.append(CHAT_ID, Arrays.asList(updated));
+
+        List<Message> read = log.read(CHAT_ID);
+        assertEquals(3, read.size());
+        assertEquals("msg_1", read.get(1).getMessageId());
+        assertEquals("new cipher", read.get(1).getContent());
+    }
+
+    @Test
+    public void batchedReadsResumeFromTheirOffset() throws Exception {
+        log.append(CHAT_ID, messages(0, 25));
+
+        List<String> ids = new ArrayList<>();
+        long offset = 0;
+        MessageLog.Batch batch;
+        do {
+            batch = log.readBatch(CHAT_ID, offset, 10);
+            assertTrue(batch.messages.size() <= 10);
+            for (Message message : batch.messages) {
+                ids.add(message.getMessageId());
+            }
+            offset = batch.nextOffset;
+        } while (!batch.finished);
+
+        assertEquals(25, ids.size());
+        assertEquals("msg_24", ids.get(24));
+        assertTrue(log.readBatch(CHAT_ID, offset, 10).messages.isEmpty());
+    }
+
+    @Test
+    public void compactionStreamsPastOneBatchAndKeepsTheLastRecordOfEachId() throws Exception {
+        int count = MessageLog.COMPACT_BATCH * 2 + 10;
+        log.append(CHAT_ID, messages(0, count));
+        List<Message> updates = new ArrayList<>();
+        for (int i = 0; i < count; i += 3) {
+            updates.add(new Message("msg_" + i, "alice_uid", "new cipher " + i, i));
+        }
+        log.append(CHAT_ID, updates);
+
+        long reclaimed = log.compact(CHAT_ID, message -> !message.getMessageId().equals("msg_1"));
+
+        assertTrue(reclaimed > 0);
+        List<Message> read = log.read(CHAT_ID);
+        assertEquals(count - 1, read.size());
+        int updated = 0;
+        for (Message message : read) {
+            int i = Integer.parseInt(message.getMessageId().substring("msg_".length()));
+            assertEquals((i % 3 == 0 ? "new cipher " : "cipher ") + i, message.getContent());
+            updated += i % 3 == 0 ? 1 : 0;
+        }
+        assertEquals(updates.size(), updated);
+        assertEquals(0, log.compact(CHAT_ID, message -> true));
+    }
+
+    private static List<Message> messages(int from, int to) {
+        List<Message> messages = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            messages.add(message(i));
+        }
+        return messages;
+    }
+
+    private static Message message(int i) {
+        return new Message("msg_" + i, "alice_uid", "cipher " + i, i);
+    }
+}
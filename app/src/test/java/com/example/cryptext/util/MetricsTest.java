@@ -0,0 +1,117 @@
+package com.example.cryptext.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Before
+    public void setUp() {
+        Metrics.reset();
+        Metrics.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void bucketsCoverEveryValueContiguously() {
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123_456_789L, (1L << 36) - 1};
+        for (long value : values) {
+            int index = Metrics.Histogram.indexFor(value);
+            assertTrue(value + " below its bucket", Metrics.Histogram.lowerBound(index) <= value);
+            assertTrue(value + " above its bucket", Metrics.Histogram.lowerBound(index + 1) > value);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Metrics.Histogram histogram = Metrics.histogram("test.uniform");
+        // 1..10000 microseconds
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Metrics.HistogramSnapshot snapshot = Metrics.snapshot().histogram("test.uniform");
+        assertEquals(10_000, snapshot.count);
+        assertEquals(10_000_000L, snapshot.maxNanos);
+        assertWithin(5_000_000L, snapshot.p50Nanos);
+        assertWithin(9_000_000L, snapshot.p90Nanos);
+        assertWithin(9_900_000L, snapshot.p99Nanos);
+        assertWithin(5_000_500L, snapshot.meanNanos);
+    }
+
+    @Test
+    public void nothingIsRecordedWhileDisabled() {
+        Metrics.setEnabled(false);
+        long start = Metrics.start();
+        Metrics.histogram("test.disabled").recordSince(start);
+        Metrics.counter("test.disabled").add(5);
+
+        assertEquals(0, start);
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        assertEquals(0, snapshot.counter("test.disabled"));
+        assertEquals(0, snapshot.histogram("test.disabled").count);
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        Metrics.Counter counter = Metrics.counter("test.concurrent");
+        Metrics.Histogram histogram = Metrics.histogram("test.concurrent");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    counter.increment();
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        assertEquals(200_000, snapshot.counter("test.concurrent"));
+        assertEquals(200_000, snapshot.histogram("test.concurrent").count);
+        assertEquals(49_999, snapshot.histogram("test.concurrent").maxNanos);
+    }
+
+    @Test
+    public void storageOperationsAreInstrumented() throws Exception {
+        LocalStorageManager storage = TestStorage.create();
+        String chatId = storage.createChat("alice_uid_5678", "bob_uid_1234", "bob@example.com").getChatId();
+        String encrypted = EncryptionUtil.encrypt("hello", "secret");
+        storage.sendMessage(chatId, "alice_uid_5678", "hello", encrypted);
+        storage.getChatMessages(chatId);
+
+        Metrics.Snapshot snapshot = Metrics.snapshot();
+        assertEquals(1, snapshot.histogram("storage.sendMessage").count);
+        assertEquals(1, snapshot.histogram("storage.getChatMessages").count);
+        assertEquals(1, snapshot.histogram("crypto.encrypt").count);
+        assertTrue(snapshot.counter("log.bytesWritten") > 0);
+        assertEquals(snapshot.counter("log.bytesWritten"), snapshot.counter("log.bytesRead"));
+        assertTrue(snapshot.toString().contains("storage.sendMessage count=1"));
+    }
+
+    // Buckets are about 3% wide, so reported values land within 4%
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+            Math.abs(actual - expected) <= expected * 0.04);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Chat;
+import com.google.gson.Gson;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.CAROL;
+import static org.junit.Assert.*;
+
+public class PreviewDecryptorTest {
+
+    private final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+    private LocalStorageManager storage;
+    private ManualScheduler scheduler;
+    private List<Runnable> batches;
+    private PreviewDecryptor decryptor;
+    private List<Set<String>> notifications;
+    private String withBob;
+    private String withCarol;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = Files.createTempDirectory("cryptext-preview").toFile();
+        storage = TestStorage.create(prefs, dir, ALICE);
+        scheduler = new ManualScheduler();
+        batches = new ArrayList<>();
+        Executor worker = batches::add;
+        decryptor = new PreviewDecryptor(storage, worker, scheduler);
+        notifications = new ArrayList<>();
+        decryptor.setListener(chatIds -> notifications.add(new HashSet<>(chatIds)));
+
+        withBob = storage.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        withCarol = storage.createChat(ALICE, CAROL, "carol@example.com").getChatId();
+    }
+
+    @Test
+    public void sentPreviewsAreStoredAsCiphertextOnly() {
+        storage.sendMessage(withBob, ALICE, "meet at noon", EncryptionUtil.encrypt("meet at noon", withBob));
+
+        Chat chat = chat(withBob);
+        assertTrue(chat.hasEncryptedPreview());
+        assertNull(chat.getLastMessage());
+        assertFalse(prefs.get("chats_data").getString(withBob, "").contains("noon"));
+        // Not yet decrypted, so nothing to show
+        assertNull(decryptor.getPreview(chat));
+        // The new-chat placeholder is shown as it is
+        assertEquals(LocalStorageManager.NEW_CHAT_PREVIEW, decryptor.getPreview(chat(withCarol)));
+    }
+
+    @Test
+    public void requestsInOnePassAreDecryptedInOneBatch() {
+        storage.sendMessage(withBob, ALICE, "to bob", EncryptionUtil.encrypt("to bob", withBob));
+        storage.sendMessage(withCarol, ALICE, "to carol", EncryptionUtil.encrypt("to carol", withCarol));
+
+        decryptor.request(chat(withBob));
+        decryptor.request(chat(withCarol));
+        // Rebinding a row before the batch runs doesn't queue it twice
+        decryptor.request(chat(withBob));
+        scheduler.runAll();
+        assertEquals(1, batches.size());
+
+        runBatches();
+        assertEquals("to bob", decryptor.getPreview(chat(withBob)));
+        assertEquals("to carol", decryptor.getPreview(chat(withCarol)));
+        assertEquals(1, notifications.size());
+        Set<String> expected = new HashSet<>();
+        expected.add(withBob);
+        expected.add(withCarol);
+        assertEquals(expected, notifications.get(0));
+    }
+
+    @Test
+    public void decryptedPreviewsAreNotDecryptedAgainUntilTheyChange() {
+        storage.sendMessage(withBob, ALICE, "first", EncryptionUtil.encrypt("first", withBob));
+        decryptor.request(chat(withBob));
+        scheduler.runAll();
+        runBatches();
+
+        decryptor.request(chat(withBob));
+        scheduler.runAll();
+        assertTrue(batches.isEmpty());
+
+        storage.sendMessage(withBob, ALICE, "second", EncryptionUtil.encrypt("second", withBob));
+        assertNull(decryptor.getPreview(chat(withBob)));
+        decryptor.request(chat(withBob));
+        scheduler.runAll();
+        runBatches();
+        assertEquals("second", decryptor.getPreview(chat(withBob)));
+    }
+
+    @Test
+    public void previewsThatCannotBeDecryptedSaySo() {
+        Chat chat = chat(withBob);
+        chat.setPreview("msg_broken", "bm90IGNpcGhlcnRleHQ=", 0);
+        decryptor.request(chat);
+        scheduler.runAll();
+        runBatches();
+
+        assertEquals(PreviewDecryptor.UNREADABLE_PREVIEW, decryptor.getPreview(chat));
+    }
+
+    @Test
+    public void plainPreviewsFromBeforeTheUpgradeAreShownWithoutWriting() {
+        // A preview saved in plain text by an older version
+        FakeSharedPreferences chats = prefs.get("chats_data");
+        Gson gson = new Gson();
+        Chat old = gson.fromJson(chats.getString(withBob, null), Chat.class);
+        old.setLastMessage("an old secret");
+        chats.edit().putString(withBob, gson.toJson(old)).commit();
+        String saved = chats.getString(withBob, null);
+
+        // Binding is read-only: shown as it is, with nothing queued and nothing written
+        assertEquals("an old secret", decryptor.getPreview(chat(withBob)));
+        decryptor.request(chat(withBob));
+        decryptor.request(chat(withCarol));
+        scheduler.runAll();
+        assertTrue(batches.isEmpty());
+        assertEquals(saved, chats.getString(withBob, null));
+
+        // Once the retention sweeper has sealed it, it's decrypted like any other
+        assertTrue(storage.sealPlainPreview(withBob));
+        Chat sealed = chat(withBob);
+        decryptor.request(sealed);
+        scheduler.runAll();
+        runBatches();
+        assertEquals("an old secret", decryptor.getPreview(sealed));
+    }
+
+    private Chat chat(String chatId) {
+        for (Chat chat : storage.getUserChats(ALICE)) {
+            if (chat.getChatId().equals(chatId)) {
+                return chat;
+            }
+        }
+        throw new AssertionError("No chat " + chatId);
+    }
+
+    // Run the queued batches on the worker, then deliver their results on the main thread
+    private void runBatches() {
+        List<Runnable> due = new ArrayList<>(batches);
+        batches.clear();
+        for (Runnable batch : due) {
+            batch.run();
+        }
+        scheduler.runAll();
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.cryptext.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ProfileResolverTest {
+
+    private FakeUserDirectory directory;
+    private ManualScheduler scheduler;
+    private UserLookupCache lookupCache;
+    private ProfileResolver resolver;
+    private List<Set<String>> notifications;
+
+    @Before
+    public void setUp() {
+        directory = new FakeUserDirectory();
+        scheduler = new ManualScheduler();
+        lookupCache = new UserLookupCache(directory, new FakeSharedPreferences(), scheduler, () -> 1000L);
+        resolver = new ProfileResolver(directory, lookupCache, scheduler);
+        notifications = new ArrayList<>();
+        resolver.setListener(userIds -> notifications.add(new HashSet<>(userIds)));
+    }
+
+    @Test
+    public void requestsInOnePassAreBatchedWithinFirestoreLimits() {
+        for (int i = 0; i < 65; i++) {
+            directory.addUser("user" + i + "@example.com", "uid" + i);
+            resolver.request("uid" + i);
+        }
+        // Duplicate requests from rebinding rows are ignored
+        resolver.request("uid0");
+        scheduler.runAll();
+
+        assertEquals(3, directory.batches.size());
+        assertEquals(UserDirectory.MAX_BATCH_SIZE, directory.batches.get(0).size());
+        assertEquals(UserDirectory.MAX_BATCH_SIZE, directory.batches.get(1).size());
+        assertEquals(5, directory.batches.get(2).size());
+
+        directory.answerAll();
+        assertEquals("user42@example.com", resolver.getEmail("uid42"));
+        assertEquals("user42@example.com", lookupCache.getEmailForUserId("uid42"));
+    }
+
+    @Test
+    public void listenerHearsOnlyResolvedIds() {
+        directory.addUser("alice@example.com", "uid_alice");
+        resolver.request("uid_alice");
+        resolver.request("uid_ghost");
+        scheduler.runAll();
+        directory.answerAll();
+
+        assertEquals(1, notifications.size());
+        Set<String> expected = new HashSet<>();
+        expected.add("uid_alice");
+        assertEquals(expected, notifications.get(0));
+
+        // Unknown accounts and resolved ones are not fetched again
+        resolver.request("uid_alice");
+        resolver.request("uid_ghost");
+        scheduler.runAll();
+        assertEquals(1, directory.batches.size());
+    }
+
+    @Test
+    public void persistedEmailsNeedNoRequest() {
+        lookupCache.remember("bob@example.com", "uid_bob");
+        assertEquals("bob@example.com", resolver.getEmail("uid_bob"));
+
+        resolver.request("uid_bob");
+        scheduler.runAll();
+        assertTrue(directory.batches.isEmpty());
+    }
+
+    @Test
+    public void knownEmailsAreReadAheadAndNeverFromDisk() {
+        lookupCache.remember("bob@example.com", "uid_bob");
+        // Binding only looks in memory
+        assertNull(resolver.getKnownEmail("uid_bob"));
+
+        Map<String, String> persisted = ProfileResolver.readPersistedEmails(lookupCache,
+            Arrays.asList("uid_bob", "uid_unknown"));
+        assertEquals(1, persisted.size());
+        resolver.addKnownEmails(persisted);
+        assertEquals("bob@example.com", resolver.getKnownEmail("uid_bob"));
+    }
+
+    @Test
+    public void failedBatchCanBeRetried() {
+        directory.addUser("alice@example.com", "uid_alice");
+        directory.fail = true;
+        resolver.request("uid_alice");
+        scheduler.runAll();
+        directory.answerAll();
+        assertNull(resolver.getEmail("uid_alice"));
+
+        directory.fail = false;
+        resolver.request("uid_alice");
+        scheduler.runAll();
+        directory.answerAll();
+        assertEquals("alice@example.com", resolver.getEmail("uid_alice"));
+    }
+}
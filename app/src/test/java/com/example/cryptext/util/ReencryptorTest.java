@@ -0,0 +1,156 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.model.RetentionPolicy;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.sendMessages;
+import static org.junit.Assert.*;
+
+public class ReencryptorTest {
+
+    private final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+    private LocalStorageManager storage;
+    private ScheduledExecutorService executor;
+    private String chatId;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = TestStorage.create(prefs, Files.createTempDirectory("cryptext-reencrypt").toFile(), ALICE);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        chatId = storage.createChat(ALICE, BOB, "bob@example.com").getChatId();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void rotationTakesEffectAtOnceAndOldMessagesStayReadable() {
+        sendMessages(storage, chatId, 5);
+
+        assertEquals(1, new Reencryptor(storage, ALICE, executor).rotate(chatId));
+        ChatCipher cipher = new ChatCipher(storage, chatId, ALICE);
+        ChatCipher.Sealed sealed = cipher.encrypt("after rotation");
+        storage.sendMessage(chatId, ALICE, "after rotation", sealed.content, sealed.keyEpoch);
+
+        List<Message> messages = storage.getChatMessages(chatId);
+        assertEquals(6, messages.size());
+        assertEquals(1, messages.get(5).getKeyEpoch());
+        assertEquals("message 0", cipher.decrypt(messages.get(0)));
+        assertEquals("after rotation", new ChatCipher(storage, chatId, ALICE).decrypt(messages.get(5)));
+    }
+
+    @Test
+    public void oldMessagesAreReencryptedInResumableBatches() {
+        writeLegacyMessages(30);
+        sendMessages(storage, chatId, 120);
+        List<Message> before = storage.getChatMessages(chatId);
+        new Reencryptor(storage, ALICE, executor).rotate(chatId);
+
+        // Each worker instance picks up where the last one stopped
+        int batches = 0;
+        while (new Reencryptor(storage, ALICE, executor).runBatch()) {
+            batches++;
+            assertTrue("pass did not finish", batches < 100);
+        }
+
+        List<Message> after = storage.getChatMessages(chatId);
+        ChatCipher cipher = new ChatCipher(storage, chatId, ALICE);
+        assertEquals(before.size(), after.size());
+        assertTrue(batches >= 150 / Reencryptor.BATCH_SIZE);
+        for (int i = 0; i < after.size(); i++) {
+            assertEquals(before.get(i).getMessageId(), after.get(i).getMessageId());
+            assertEquals(1, after.get(i).getKeyEpoch());
+            assertEquals(EncryptionUtil.decrypt(before.get(i).getContent(), chatId),
+                cipher.decrypt(after.get(i)));
+        }
+        assertTrue(storage.getChatsPendingReencryption().isEmpty());
+    }
+
+    @Test
+    public void messagesFromBeforeTheLogAreRewrittenInPlace() throws Exception {
+        writeLegacyMessages(30);
+        new Reencryptor(storage, ALICE, executor).rotate(chatId);
+        while (new Reencryptor(storage, ALICE, executor).runBatch()) {
+            // Drain
+        }
+
+        // No copy under the old key is left in the stored list or appended to the log
+        List<Message> legacy = storage.getLegacyMessages(chatId);
+        assertEquals(30, legacy.size());
+        for (Message message : legacy) {
+            assertEquals(1, message.getKeyEpoch());
+        }
+        assertTrue(storage.readLogBatch(chatId, 0, 100, storage.getCompactionGeneration(chatId)).messages.isEmpty());
+    }
+
+    @Test
+    public void batchReadBeforeACompactionIsDropped() throws Exception {
+        sendMessages(storage, chatId, 20);
+        storage.rotateChatKey(chatId);
+        LocalStorageManager.ReencryptBatch batch = storage.nextReencryptBatch(chatId, Reencryptor.BATCH_SIZE);
+        ChatCipher cipher = new ChatCipher(storage, chatId, ALICE);
+        List<Message> reencrypted = new ArrayList<>();
+        for (Message message : batch.messages) {
+            reencrypted.add(cipher.reencrypt(message));
+        }
+        storage.setChatRetention(chatId, new RetentionPolicy(0, 5, 0));
+        storage.sweepChat(chatId, System.currentTimeMillis());
+
+        // Storing it would bring back the expired messages
+        assertFalse(storage.completeReencryptBatch(chatId, batch, reencrypted));
+        assertEquals(5, storage.getChatMessages(chatId).size());
+
+        // The restarted pass still covers what's left
+        while (new Reencryptor(storage, ALICE, executor).runBatch()) {
+            // Drain
+        }
+        for (Message message : storage.getChatMessages(chatId)) {
+            assertEquals(1, message.getKeyEpoch());
+        }
+        assertEquals(5, storage.getChatMessages(chatId).size());
+    }
+
+    @Test
+    public void rotatingDuringAPassRestartsItUnderTheNewEpoch() {
+        sendMessages(storage, chatId, 120);
+        Reencryptor reencryptor = new Reencryptor(storage, ALICE, executor);
+        reencryptor.rotate(chatId);
+        assertTrue(reencryptor.runBatch());
+
+        assertEquals(2, reencryptor.rotate(chatId));
+        while (reencryptor.runBatch()) {
+            // Drain
+        }
+
+        for (Message message : storage.getChatMessages(chatId)) {
+            assertEquals(2, message.getKeyEpoch());
+        }
+    }
+
+    // Messages stored as one JSON list, as before the append-only log
+    private void writeLegacyMessages(int count) {
+        List<Message> legacy = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message("legacy_" + i, BOB, EncryptionUtil.encrypt("legacy " + i, chatId), i);
+            legacy.add(message);
+        }
+        prefs.computeIfAbsent("messages_data", n -> new FakeSharedPreferences()).edit().putString(chatId, new Gson().toJson(legacy)).commit();
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Attachment;
+import com.example.cryptext.model.Chat;
+import com.example.cryptext.model.Message;
+import com.example.cryptext.model.RetentionPolicy;
+import com.example.cryptext.sync.SyncCursor;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.CAROL;
+import static com.example.cryptext.util.TestStorage.sendMessages;
+import static org.junit.Assert.*;
+
+public class RetentionSweeperTest {
+
+    private final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+    private File filesDir;
+    private LocalStorageManager storage;
+    private ScheduledExecutorService executor;
+    private String chatId;
+
+    @Before
+    public void setUp() throws Exception {
+        filesDir = Files.createTempDirectory("cryptext-retention").toFile();
+        storage = TestStorage.create(prefs, filesDir, ALICE);
+        executor = Executors.newSingleThreadScheduledExecutor();
+        chatId = storage.createChat(ALICE, BOB, "bob@example.com").getChatId();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void countLimitKeepsTheNewestMessages() throws IOException {
+        sendMessages(storage, chatId, 20);
+        storage.setChatRetention(chatId, new RetentionPolicy(0, 5, 0));
+
+        LocalStorageManager.SweepResult result = storage.sweepChat(chatId, System.currentTimeMillis());
+
+        List<Message> messages = storage.getChatMessages(chatId);
+        assertEquals(15, result.messagesRemoved);
+        assertTrue(result.bytesReclaimed > 0);
+        assertEquals(5, messages.size());
+        assertEquals("message 15", EncryptionUtil.decrypt(messages.get(0).getContent(), chatId));
+        // Compacting a one-to-one chat gives it no group key record
+        assertEquals(1, storage.getCompactionGeneration(chatId));
+        assertNull(storage.exportChat(chatId).keyState);
+    }
+
+    @Test
+    public void ageLimitRemovesOldMessages() throws IOException {
+        sendMessages(storage, chatId, 3);
+        storage.setGlobalRetention(new RetentionPolicy(TimeUnit.DAYS.toMillis(1), 0, 0));
+
+        assertEquals(0, storage.sweepChat(chatId, System.currentTimeMillis()).messagesRemoved);
+        long twoDaysLater = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(2);
+        assertEquals(3, storage.sweepChat(chatId, twoDaysLater).messagesRemoved);
+        assertTrue(storage.getChatMessages(chatId).isEmpty());
+    }
+
+    @Test
+    public void stricterOfGlobalAndChatPolicyApplies() {
+        storage.setGlobalRetention(new RetentionPolicy(TimeUnit.DAYS.toMillis(30), 100, 0));
+        storage.setChatRetention(chatId, new RetentionPolicy(TimeUnit.DAYS.toMillis(90), 10, 4096));
+
+        RetentionPolicy policy = storage.getRetention(chatId);
+        assertEquals(TimeUnit.DAYS.toMillis(30), policy.getMaxAgeMs());
+        assertEquals(10, policy.getMaxCount());
+        assertEquals(4096, policy.getMaxBytes());
+        assertEquals(0, storage.getRetention("other_chat").getMaxBytes());
+    }
+
+    @Test
+    public void compactionDropsRecordsReplacedByReencryption() throws IOException {
+        sendMessages(storage, chatId, 40);
+        Reencryptor reencryptor = new Reencryptor(storage, ALICE, executor);
+        reencryptor.rotate(chatId);
+        while (reencryptor.runBatch()) {
+            // Drain
+        }
+        List<Message> before = storage.getChatMessages(chatId);
+
+        LocalStorageManager.SweepResult result = storage.sweepChat(chatId, System.currentTimeMillis());
+
+        assertEquals(0, result.messagesRemoved);
+        assertTrue(result.bytesReclaimed > 0);
+        List<Message> after = storage.getChatMessages(chatId);
+        assertEquals(before.size(), after.size());
+        ChatCipher cipher = new ChatCipher(storage, chatId, ALICE);
+        for (int i = 0; i < after.size(); i++) {
+            assertEquals(1, after.get(i).getKeyEpoch());
+            assertEquals("message " + i, cipher.decrypt(after.get(i)));
+        }
+        // Nothing left to reclaim
+        assertEquals(0, storage.sweepChat(chatId, System.currentTimeMillis()).bytesReclaimed);
+    }
+
+    @Test
+    public void passSweepsOneChatPerStepThenCollectsUnreferencedBlobs() throws IOException {
+        String otherChatId = storage.createChat(ALICE, CAROL, "carol@example.com").getChatId();
+        Attachment expired = sendAttachment(chatId, 1);
+        Attachment kept = sendAttachment(chatId, 2);
+        sendMessages(storage, otherChatId, 3);
+        // Written well before the pass, so they're past the grace period
+        ageBlobs(RetentionSweeper.BLOB_GRACE_MS * 2);
+        storage.setChatRetention(chatId, new RetentionPolicy(0, 1, 0));
+
+        RetentionSweeper sweeper = new RetentionSweeper(storage, executor);
+        assertNull(sweeper.step());
+        RetentionSweeper.PassResult result = sweeper.step();
+
+        assertNotNull(result);
+        assertEquals(2, result.chatsSwept);
+        assertEquals(1, result.messagesRemoved);
+        assertFalse(storage.getBlobStore().contains(expired));
+        assertTrue(storage.getBlobStore().contains(kept));
+        assertEquals(3, storage.getChatMessages(otherChatId).size());
+    }
+
+    @Test
+    public void expiringMessagesUpdatesThePreviewAndUnreadCount() throws Exception {
+        long now = System.currentTimeMillis();
+        List<Message> page = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Message message = new Message("from_bob_" + i, BOB, EncryptionUtil.encrypt("hi " + i, chatId),
+                now - 1000 + i);
+            message.setHlc(HybridLogicalClock.pack(now - 1000 + i));
+            page.add(message);
+        }
+        Message newest = page.get(3);
+        storage.mergeRemoteMessages(chatId, page, new SyncCursor(newest.getHlc(), newest.getMessageId()));
+        storage.updateChatPreview(chatId, newest);
+        Chat chat = storage.getUserChats(ALICE).get(0);
+        assertTrue(storage.getChatListSnapshot().write(
+            Arrays.asList(new ChatListSnapshot.Row(chat, BOB, "now", 4))));
+        assertEquals(4, storage.getUnreadCount(chatId));
+
+        storage.setChatRetention(chatId, new RetentionPolicy(0, 2, 0));
+        storage.sweepChat(chatId, now);
+        assertEquals(2, storage.getUnreadCount(chatId));
+        assertEquals(2, storage.getTotalUnreadCount());
+        assertEquals(newest.getMessageId(), storage.getUserChats(ALICE).get(0).getPreviewMessageId());
+        // The rows painted at startup showed the old count
+        assertNull(storage.getChatListSnapshot().read());
+
+        // Once everything has aged out the chat looks new again
+        storage.setChatRetention(chatId, new RetentionPolicy(1, 0, 0));
+        storage.sweepChat(chatId, now + 10_000);
+        chat = storage.getUserChats(ALICE).get(0);
+        assertEquals(0, storage.getUnreadCount(chatId));
+        assertNull(chat.getPreviewMessageId());
+        assertFalse(chat.hasEncryptedPreview());
+        assertEquals(LocalStorageManager.NEW_CHAT_PREVIEW, chat.getLastMessage());
+        assertNull(storage.getReadState(chatId).getLatestId());
+    }
+
+    @Test
+    public void plainPreviewsAreSealedDuringAPass() {
+        // A preview saved in plain text by an older version
+        FakeSharedPreferences chats = prefs.get("chats_data");
+        Gson gson = new Gson();
+        Chat old = gson.fromJson(chats.getString(chatId, null), Chat.class);
+        old.setLastMessage("an old secret");
+        chats.edit().putString(chatId, gson.toJson(old)).commit();
+        String otherChatId = storage.createChat(ALICE, CAROL, "carol@example.com").getChatId();
+
+        RetentionSweeper sweeper = new RetentionSweeper(storage, executor);
+        while (sweeper.step() == null) {
+            // One chat per step
+        }
+
+        Chat sealed = gson.fromJson(chats.getString(chatId, null), Chat.class);
+        assertTrue(sealed.hasEncryptedPreview());
+        assertFalse(chats.getString(chatId, "").contains("secret"));
+        Message preview = new Message(sealed.getPreviewMessageId(), null, sealed.getPreviewContent(),
+            sealed.getTimestamp());
+        preview.setKeyEpoch(sealed.getPreviewKeyEpoch());
+        assertEquals("an old secret", new ChatCipher(storage, chatId).decrypt(preview));
+        // The placeholder is left alone
+        Chat other = gson.fromJson(chats.getString(otherChatId, null), Chat.class);
+        assertEquals(LocalStorageManager.NEW_CHAT_PREVIEW, other.getLastMessage());
+    }
+
+    @Test
+    public void lastPassIsRememberedAcrossRestarts() {
+        RetentionSweeper sweeper = new RetentionSweeper(storage, executor);
+        assertNotNull(sweeper.step());
+
+        long saved = storage.getLastSweepMillis();
+        assertTrue(saved > 0);
+        LocalStorageManager reopened = TestStorage.create(prefs, filesDir, ALICE);
+        assertEquals(saved, reopened.getLastSweepMillis());
+    }
+
+    @Test
+    public void recentUnreferencedBlobsSurviveCollection() throws IOException {
+        Attachment pending = storage.getBlobStore().store(new ChatCipher(storage, chatId).attachmentKeys(),
+            new ByteArrayInputStream(new byte[1000]), "image/jpeg", null);
+
+        RetentionSweeper sweeper = new RetentionSweeper(storage, executor);
+        assertNotNull(sweeper.step());
+
+        // Its message may still be on the way, so it isn't garbage yet
+        assertTrue(storage.getBlobStore().contains(pending));
+    }
+
+    private Attachment sendAttachment(String chatId, int fill) throws IOException {
+        byte[] data = new byte[BlobStore.CHUNK_SIZE + 100];
+        Arrays.fill(data, (byte) fill);
+        Attachment attachment = storage.getBlobStore().store(new ChatCipher(storage, chatId).attachmentKeys(),
+            new ByteArrayInputStream(data), "image/jpeg", new byte[] {(byte) fill, 1, 2});
+        storage.sendMessage(chatId, ALICE, "[Photo]", EncryptionUtil.encrypt("[Photo]", chatId), 0,
+            attachment);
+        return attachment;
+    }
+
+    private void ageBlobs(long ageMs) throws IOException {
+        long modified = System.currentTimeMillis() - ageMs;
+        try (Stream<Path> paths = Files.walk(new File(filesDir, "blobs").toPath())) {
+            paths.filter(Files::isRegularFile).forEach(path -> path.toFile().setLastModified(modified));
+        }
+    }
+}
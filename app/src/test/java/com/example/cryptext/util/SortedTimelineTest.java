@@ -0,0 +1,82 @@
+package com.example.cryptext.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SortedTimelineTest {
+
+    @Test
+    public void matchesASortedListUnderRandomInsertsAndRemoves() {
+        Random random = new Random(3);
+        SortedTimeline<Integer> timeline = new SortedTimeline<>(Integer::compare);
+        List<Integer> expected = new ArrayList<>();
+
+        for (int i = 0; i < 2000; i++) {
+            int value = random.nextInt(1_000_000);
+            if (expected.contains(value)) {
+                continue;
+            }
+            int position = timeline.insert(value);
+            int expectedPosition = -Collections.binarySearch(expected, value) - 1;
+            expected.add(expectedPosition, value);
+            assertEquals(expectedPosition, position);
+
+            if (i % 5 == 0) {
+                int removed = expected.remove(random.nextInt(expected.size()));
+                assertTrue(timeline.remove(removed) >= 0);
+            }
+        }
+
+        assertEquals(expected, timeline.toList());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i), timeline.get(i));
+            assertEquals(i, timeline.indexOf(expected.get(i)));
+        }
+        assertEquals(-1, timeline.indexOf(-1));
+    }
+
+    @Test
+    public void mergeReportsPositionsThatReplayAsInserts() {
+        SortedTimeline<Integer> timeline = new SortedTimeline<>(Integer::compare);
+        List<Integer> initial = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            initial.add(i * 10);
+        }
+        timeline.resetSorted(initial);
+
+        List<Integer> incoming = List.of(995, 5, 455, 456, 2000);
+        int[] positions = timeline.merge(incoming);
+
+        // Replaying the notifications on a copy of the old list reproduces the new one
+        List<Integer> replay = new ArrayList<>(initial);
+        List<Integer> result = timeline.toList();
+        for (int position : positions) {
+            replay.add(position, result.get(position));
+        }
+        assertEquals(result, replay);
+        assertEquals(105, timeline.size());
+        assertEquals(Integer.valueOf(2000), timeline.get(104));
+    }
+
+    @Test
+    public void bulkBuiltTimelineStaysOrderedAfterInserts() {
+        List<Integer> initial = new ArrayList<>();
+        for (int i = 0; i < 10_000; i += 2) {
+            initial.add(i);
+        }
+        SortedTimeline<Integer> timeline = new SortedTimeline<>(Integer::compare);
+        timeline.resetSorted(initial);
+        for (int i = 1; i < 10_000; i += 2) {
+            timeline.insert(i);
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(Integer.valueOf(i), timeline.get(i));
+        }
+    }
+}
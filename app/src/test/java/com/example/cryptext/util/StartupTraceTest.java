@@ -0,0 +1,74 @@
+package com.example.cryptext.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+
+    private long now;
+    private StartupTrace trace;
+
+    @Before
+    public void setUp() {
+        Metrics.reset();
+        Metrics.setEnabled(true);
+        now = 1000;
+        trace = new StartupTrace(900, () -> now);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void phasesAreTimedFromProcessStartInOrder() {
+        trace.mark("activityCreate");
+        now = 1040;
+        trace.mark("storageOpen");
+        // A phase reached twice keeps its first time
+        now = 1050;
+        trace.mark("activityCreate");
+        now = 1200;
+        trace.finish("firstChatRow");
+
+        Map<String, Long> phases = trace.getPhases();
+        assertEquals(Arrays.asList("activityCreate", "storageOpen", "firstChatRow"),
+            new ArrayList<>(phases.keySet()));
+        assertEquals(Long.valueOf(100), phases.get("activityCreate"));
+        assertEquals(Long.valueOf(140), phases.get("storageOpen"));
+        assertEquals(Long.valueOf(300), phases.get("firstChatRow"));
+        assertEquals("Cold start: activityCreate=100ms (+100) storageOpen=140ms (+40)"
+            + " firstChatRow=300ms (+160)", trace.report());
+
+        Metrics.HistogramSnapshot firstRow = Metrics.snapshot().histogram("startup.firstChatRow");
+        assertEquals(1, firstRow.count);
+        assertEquals(300_000_000L, firstRow.maxNanos);
+    }
+
+    @Test
+    public void marksAfterFinishingOrAbandoningAreIgnored() {
+        trace.finish("emptyChatList");
+        now = 5000;
+        trace.mark("activityCreate");
+        trace.finish("firstChatRow");
+        assertEquals(1, trace.getPhases().size());
+        assertNull(Metrics.snapshot().histogram("startup.firstChatRow"));
+
+        StartupTrace toLogin = new StartupTrace(900, () -> now);
+        toLogin.mark("activityCreate");
+        toLogin.abandon();
+        toLogin.finish("firstChatRow");
+        assertTrue(toLogin.isDone());
+        assertFalse(toLogin.getPhases().containsKey("firstChatRow"));
+        assertEquals(1, Metrics.snapshot().histogram("startup.emptyChatList").count);
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.sync.MessageChangeFeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds LocalStorageManager instances over in-memory preferences and a temp directory.
+ * Each instance gets its own change feed, like a separate device.
+ */
+public final class TestStorage {
+
+    public static final String ALICE = "alice_uid_5678";
+    public static final String BOB = "bob_uid_1234";
+    public static final String CAROL = "carol_uid_9012";
+
+    private TestStorage() {
+    }
+
+    public static LocalStorageManager create() throws IOException {
+        return create(Files.createTempDirectory("cryptext-test").toFile());
+    }
+
+    public static LocalStorageManager create(File filesDir) {
+        return create(new HashMap<>(), filesDir, null);
+    }
+
+    /**
+     * Storage owned by a user, as opened through forUser: only it can unwrap group keys
+     */
+    public static LocalStorageManager create(String ownerId) throws IOException {
+        return create(new HashMap<>(), Files.createTempDirectory("cryptext-test").toFile(), ownerId);
+    }
+
+    /**
+     * Storage over the given preference files, which the test can seed, inspect,
+     * or open again with filesDir as the same device after a restart
+     */
+    public static LocalStorageManager create(Map<String, FakeSharedPreferences> prefs, File filesDir,
+                                             String ownerId) {
+        return new LocalStorageManager(provider(prefs), filesDir, new MessageChangeFeed(), ownerId);
+    }
+
+    /**
+     * Provider of the preference files in prefs, adding empty ones as they're asked for
+     */
+    public static LocalStorageManager.PreferencesProvider provider(Map<String, FakeSharedPreferences> prefs) {
+        return name -> {
+            synchronized (prefs) {
+                return prefs.computeIfAbsent(name, n -> new FakeSharedPreferences());
+            }
+        };
+    }
+
+    /**
+     * Send count messages from Alice, "message 0" onwards, under the chat's passphrase key
+     */
+    public static void sendMessages(LocalStorageManager storage, String chatId, int count) {
+        for (int i = 0; i < count; i++) {
+            String text = "message " + i;
+            storage.sendMessage(chatId, ALICE, text, EncryptionUtil.encrypt(text, chatId));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.cryptext.util;
+
+import com.example.cryptext.model.Message;
+import com.example.cryptext.model.ReadState;
+import com.example.cryptext.sync.SyncCursor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.example.cryptext.util.TestStorage.ALICE;
+import static com.example.cryptext.util.TestStorage.BOB;
+import static com.example.cryptext.util.TestStorage.CAROL;
+import static org.junit.Assert.*;
+
+public class UnreadCountTest {
+
+    private final Map<String, FakeSharedPreferences> prefs = new HashMap<>();
+    private File dir;
+    private LocalStorageManager storage;
+    private String withBob;
+    private String withCarol;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("cryptext-unread").toFile();
+        storage = open();
+        withBob = storage.createChat(ALICE, BOB, "bob@example.com").getChatId();
+        withCarol = storage.createChat(ALICE, CAROL, "carol@example.com").getChatId();
+    }
+
+    @Test
+    public void receivedMessagesFromOthersAreCounted() throws Exception {
+        receive(withBob, message("b1", BOB, 1000), message("b2", BOB, 1001), message("b3", BOB, 1002));
+        receive(withCarol, message("c1", CAROL, 1000));
+        // Sent by Alice from another device, so already read
+        receive(withBob, message("a1", ALICE, 1003));
+        // Pulled again: nothing new is stored, so nothing is counted
+        receive(withBob, message("b2", BOB, 1001));
+
+        assertEquals(3, storage.getUnreadCount(withBob));
+        assertEquals(1, storage.getUnreadCount(withCarol));
+        assertEquals(4, storage.getTotalUnreadCount());
+        assertEquals(0, storage.getUnreadCount("chat_unknown"));
+    }
+
+    @Test
+    public void openingAChatMovesItsWatermarkToTheNewestMessage() throws Exception {
+        receive(withBob, message("b1", BOB, 1000), message("b2", BOB, 2000));
+        receive(withCarol, message("c1", CAROL, 1000));
+
+        storage.markChatRead(withBob);
+
+        ReadState readState = storage.getReadState(withBob);
+        assertEquals(0, readState.getUnreadCount());
+        assertEquals("b2", readState.getWatermarkId());
+        assertEquals(HybridLogicalClock.pack(2000), readState.getWatermark());
+        assertEquals(1, storage.getTotalUnreadCount());
+
+        // A late arrival ordered before what was read isn't unread; a newer one is
+        receive(withBob, message("b_late", BOB, 1500), message("b3", BOB, 2500));
+        assertEquals(1, storage.getUnreadCount(withBob));
+        assertEquals(2, storage.getTotalUnreadCount());
+    }
+
+    @Test
+    public void sendingMarksTheChatRead() throws Exception {
+        receive(withBob, message("b1", BOB, 1000), message("b2", BOB, 1001));
+
+        storage.sendMessage(withBob, ALICE, "reply", EncryptionUtil.encrypt("reply", withBob));
+
+        assertEquals(0, storage.getUnreadCount(withBob));
+        assertEquals(0, storage.getTotalUnreadCount());
+        assertTrue(storage.getReadState(withBob).getWatermark() > HybridLogicalClock.pack(1001));
+    }
+
+    @Test
+    public void countsAndTotalSurviveAReopen() throws Exception {
+        receive(withBob, message("b1", BOB, 1000), message("b2", BOB, 1001));
+        receive(withCarol, message("c1", CAROL, 1000));
+        storage.markChatRead(withCarol);
+
+        LocalStorageManager reopened = open();
+        assertEquals(2, reopened.getUnreadCount(withBob));
+        assertEquals(0, reopened.getUnreadCount(withCarol));
+        assertEquals(2, reopened.getTotalUnreadCount());
+        assertEquals("c1", reopened.getReadState(withCarol).getWatermarkId());
+    }
+
+    @Test
+    public void deletingAChatTakesItsCountOffTheTotal() throws Exception {
+        receive(withBob, message("b1", BOB, 1000), message("b2", BOB, 1001));
+        receive(withCarol, message("c1", CAROL, 1000));
+
+        storage.deleteChat(withBob, ALICE);
+
+        assertEquals(0, storage.getUnreadCount(withBob));
+        assertEquals(1, storage.getTotalUnreadCount());
+        assertEquals(1, open().getTotalUnreadCount());
+
+        storage.clearAllData();
+        assertEquals(0, storage.getTotalUnreadCount());
+    }
+
+    @Test
+    public void restoredHistoryIsNotUnreadButIsMarkedReadOnOpen() throws Exception {
+        storage.importMessages(withBob, Arrays.asList(message("b1", BOB, 1000), message("b2", BOB, 1001)));
+        assertEquals(0, storage.getUnreadCount(withBob));
+
+        storage.markChatRead(withBob);
+        receive(withBob, message("b_old", BOB, 900));
+        assertEquals(0, storage.getUnreadCount(withBob));
+        assertEquals("b2", storage.getReadState(withBob).getWatermarkId());
+    }
+
+    private LocalStorageManager open() {
+        return TestStorage.create(prefs, dir, ALICE);
+    }
+
+    private void receive(String chatId, Message... messages) throws Exception {
+        List<Message> page = new ArrayList<>(Arrays.asList(messages));
+        Message last = page.get(page.size() - 1);
+        storage.mergeRemoteMessages(chatId, page, new SyncCursor(last.getHlc(), last.getMessageId()));
+    }
+
+    private static Message message(String messageId, String senderId, long millis) {
+        Message message = new Message(messageId, senderId, "ciphertext", millis);
+        message.setHlc(HybridLogicalClock.pack(millis));
+        return message;
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.cryptext.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class UserLookupCacheTest {
+
+    private FakeUserDirectory directory;
+    private FakeSharedPreferences prefs;
+    private ManualScheduler scheduler;
+    private long now;
+    private UserLookupCache cache;
+
+    @Before
+    public void setUp() {
+        directory = new FakeUserDirectory();
+        prefs = new FakeSharedPreferences();
+        scheduler = new ManualScheduler();
+        now = 1000;
+        cache = new UserLookupCache(directory, prefs, scheduler, () -> now);
+        directory.addUser("alice@example.com", "uid_alice");
+    }
+
+    @Test
+    public void foundUserIsCachedAndPersisted() {
+        RecordingCallback first = new RecordingCallback();
+        cache.lookup("Alice@Example.com ", first);
+        directory.answerAll();
+
+        assertEquals("uid_alice", first.found);
+        assertEquals(1, directory.emailQueries);
+        assertTrue(scheduler.tasks.isEmpty());
+
+        // A fresh instance over the same storage answers without a query
+        UserLookupCache reloaded = new UserLookupCache(directory, prefs, scheduler, () -> now);
+        RecordingCallback second = new RecordingCallback();
+        reloaded.lookup("alice@example.com", second);
+
+        assertEquals("uid_alice", second.found);
+        assertEquals(1, directory.emailQueries);
+        assertEquals("alice@example.com", reloaded.getEmailForUserId("uid_alice"));
+    }
+
+    @Test
+    public void unknownUserIsNegativelyCachedUntilTtlExpires() {
+        RecordingCallback first = new RecordingCallback();
+        cache.lookup("bob@example.com", first);
+        directory.answerAll();
+        assertTrue(first.notFound);
+
+        RecordingCallback second = new RecordingCallback();
+        cache.lookup("bob@example.com", second);
+        assertTrue(second.notFound);
+        assertEquals(1, directory.emailQueries);
+
+        now += UserLookupCache.NEGATIVE_TTL_MS;
+        cache.lookup("bob@example.com", new RecordingCallback());
+        assertEquals(2, directory.emailQueries);
+    }
+
+    @Test
+    public void concurrentLookupsShareOneQuery() {
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        cache.lookup("alice@example.com", first);
+        cache.lookup("alice@example.com", second);
+
+        assertEquals(1, directory.emailQueries);
+        directory.answerAll();
+
+        assertEquals("uid_alice", first.found);
+        assertEquals("uid_alice", second.found);
+    }
+
+    @Test
+    public void timeoutFailsWaitersButLateAnswerIsStillCached() {
+        RecordingCallback callback = new RecordingCallback();
+        cache.lookup("alice@example.com", callback);
+
+        scheduler.runAll();
+        assertTrue(callback.error instanceof TimeoutException);
+
+        directory.answerAll();
+        assertNull(callback.found);
+        assertTrue(cache.isCached("alice@example.com"));
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        directory.fail = true;
+        RecordingCallback callback = new RecordingCallback();
+        cache.lookup("alice@example.com", callback);
+        directory.answerAll();
+
+        assertNotNull(callback.error);
+        assertFalse(cache.isCached("alice@example.com"));
+        assertTrue(scheduler.tasks.isEmpty());
+    }
+
+    @Test
+    public void pruningDropsExpiredAndOrphanedEntries() {
+        cache.remember("alice@example.com", "uid_alice");
+        cache.lookup("nobody@example.com", new RecordingCallback());
+        directory.answerAll();
+        // The email moves to a new account; the old account's entry is dropped with it
+        cache.remember("Alice@example.com", "uid_alice_new");
+        assertNull(cache.getEmailForUserId("uid_alice"));
+        assertEquals(0, cache.pruneExpired());
+
+        // An entry for a userId whose email entry expired is never read again
+        cache.remember("carol@example.com", "uid_carol");
+        prefs.edit().remove("email:carol@example.com").commit();
+        now += UserLookupCache.NEGATIVE_TTL_MS;
+        assertEquals(2, cache.pruneExpired());
+        assertFalse(prefs.contains("uid:uid_carol"));
+        assertFalse(prefs.contains("email:nobody@example.com"));
+        assertEquals("alice@example.com", cache.getEmailForUserId("uid_alice_new"));
+    }
+
+    private static class RecordingCallback implements UserLookupCache.Callback {
+        String found;
+        boolean notFound;
+        Exception error;
+
+        @Override
+        public void onUserFound(String userId) {
+            found = userId;
+        }
+
+        @Override
+        public void onUserNotFound() {
+            notFound = true;
+        }
+
+        @Override
+        public void onError(Exception e) {
+            error = e;
+        }
+    }
+}